@@ -0,0 +1,246 @@
+package org.janelia.colormipsearch.cds;
+
+import java.util.BitSet;
+
+import org.janelia.colormipsearch.imageprocessing.Vol3DSlicesReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calculates the bidirectional area gap between the 3D segmentation volumes of a mask and a target.
+ * A foreground voxel of one volume is a gap voxel if there is no foreground voxel of the other volume within
+ * xyRadius pixels in the same plane and within zTolerance slices. The bidirectional area gap is the number of gap voxels
+ * of the mask with respect to the target plus the number of gap voxels of the target with respect to the mask.
+ * If the mask is mirrored the smaller of the two gaps is returned.
+ *
+ * The volumes are read slice by slice and only the 2 * zTolerance + 1 most recent slices of every volume are kept in memory,
+ * except for a prepared mask volume which is read once and then compared with many targets.
+ */
+public class Bidirectional3DShapeScoreCalculator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Bidirectional3DShapeScoreCalculator.class);
+
+    private final int threshold;
+    private final int xyRadius;
+    private final int zTolerance;
+    private final boolean mirrorMask;
+
+    public Bidirectional3DShapeScoreCalculator(int threshold, int xyRadius, int zTolerance, boolean mirrorMask) {
+        this.threshold = threshold;
+        this.xyRadius = xyRadius;
+        this.zTolerance = zTolerance;
+        this.mirrorMask = mirrorMask;
+    }
+
+    /**
+     * Mask volume whose foreground slices were read and dilated once so that it can be compared with many targets
+     * without reading the volume again. Unlike the streamed comparison this keeps all slices of the mask in memory.
+     */
+    public static class PreparedMaskVolume {
+        private final String name;
+        private final int width;
+        private final int height;
+        private final int depth;
+        private final BitSet[] slices;
+        private final BitSet[] dilatedSlices;
+
+        private PreparedMaskVolume(String name, int width, int height, int depth, BitSet[] slices, BitSet[] dilatedSlices) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.slices = slices;
+            this.dilatedSlices = dilatedSlices;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Foreground slices of a volume and their dilations. A streamed volume only keeps the slices of the current window,
+     * a prepared volume has all of them.
+     */
+    private class VolumeSlices {
+        private final Vol3DSlicesReader volume;
+        private final int width;
+        private final int height;
+        private final int windowSize;
+        private final BitSet[] slices;
+        private final BitSet[] dilatedSlices;
+
+        VolumeSlices(Vol3DSlicesReader volume, int width, int height, int windowSize) {
+            this.volume = volume;
+            this.width = width;
+            this.height = height;
+            this.windowSize = windowSize;
+            this.slices = new BitSet[windowSize];
+            this.dilatedSlices = new BitSet[windowSize];
+        }
+
+        VolumeSlices(PreparedMaskVolume preparedVolume) {
+            this.volume = null;
+            this.width = preparedVolume.width;
+            this.height = preparedVolume.height;
+            this.windowSize = preparedVolume.depth;
+            this.slices = preparedVolume.slices;
+            this.dilatedSlices = preparedVolume.dilatedSlices;
+        }
+
+        void readSlice(int z) {
+            if (volume != null) {
+                int wi = z % windowSize;
+                slices[wi] = volume.nextSliceForeground(threshold);
+                dilatedSlices[wi] = dilate(slices[wi], width, height);
+            }
+        }
+
+        BitSet getSlice(int z) {
+            return slices[z % windowSize];
+        }
+
+        BitSet getDilatedSlice(int z) {
+            return dilatedSlices[z % windowSize];
+        }
+    }
+
+    /**
+     * Read all foreground slices of the mask volume and dilate them.
+     *
+     * @param maskVolume
+     * @return the prepared mask volume
+     */
+    public PreparedMaskVolume prepareMaskVolume(Vol3DSlicesReader maskVolume) {
+        int width = maskVolume.getWidth();
+        int height = maskVolume.getHeight();
+        int depth = maskVolume.getDepth();
+        BitSet[] slices = new BitSet[depth];
+        BitSet[] dilatedSlices = new BitSet[depth];
+        for (int z = 0; z < depth; z++) {
+            slices[z] = maskVolume.nextSliceForeground(threshold);
+            dilatedSlices[z] = dilate(slices[z], width, height);
+        }
+        return new PreparedMaskVolume(maskVolume.getName(), width, height, depth, slices, dilatedSlices);
+    }
+
+    /**
+     * @param maskVolume
+     * @param targetVolume
+     * @return the bidirectional area gap or -1 if the volumes do not have the same size
+     */
+    public long calculateBidirectionalAreaGap(Vol3DSlicesReader maskVolume, Vol3DSlicesReader targetVolume) {
+        int width = maskVolume.getWidth();
+        int height = maskVolume.getHeight();
+        int depth = maskVolume.getDepth();
+        return calculateBidirectionalAreaGap(
+                maskVolume.getName(), depth, new VolumeSlices(maskVolume, width, height, 2 * zTolerance + 1), targetVolume);
+    }
+
+    /**
+     * @param maskVolume
+     * @param targetVolume
+     * @return the bidirectional area gap or -1 if the volumes do not have the same size
+     */
+    public long calculateBidirectionalAreaGap(PreparedMaskVolume maskVolume, Vol3DSlicesReader targetVolume) {
+        return calculateBidirectionalAreaGap(maskVolume.name, maskVolume.depth, new VolumeSlices(maskVolume), targetVolume);
+    }
+
+    private long calculateBidirectionalAreaGap(String maskName, int depth, VolumeSlices maskSlices, Vol3DSlicesReader targetVolume) {
+        int width = maskSlices.width;
+        int height = maskSlices.height;
+        if (width != targetVolume.getWidth() || height != targetVolume.getHeight() || depth != targetVolume.getDepth()) {
+            LOG.warn("Mask volume {} ({}x{}x{}) and target volume {} ({}x{}x{}) have different sizes",
+                    maskName, width, height, depth,
+                    targetVolume.getName(), targetVolume.getWidth(), targetVolume.getHeight(), targetVolume.getDepth());
+            return -1;
+        }
+        VolumeSlices targetSlices = new VolumeSlices(targetVolume, width, height, 2 * zTolerance + 1);
+        long maskGap = 0;
+        long targetGap = 0;
+        long mirroredMaskGap = 0;
+        long targetGapToMirroredMask = 0;
+        for (int z = 0; z < depth + zTolerance; z++) {
+            if (z < depth) {
+                maskSlices.readSlice(z);
+                targetSlices.readSlice(z);
+            }
+            // slice z - zTolerance can be compared now that all its neighbor slices were read
+            int gapSliceIndex = z - zTolerance;
+            if (gapSliceIndex < 0) {
+                continue;
+            }
+            BitSet maskNeighborhood = new BitSet(width * height);
+            BitSet targetNeighborhood = new BitSet(width * height);
+            for (int nz = Math.max(0, gapSliceIndex - zTolerance); nz <= Math.min(depth - 1, gapSliceIndex + zTolerance); nz++) {
+                maskNeighborhood.or(maskSlices.getDilatedSlice(nz));
+                targetNeighborhood.or(targetSlices.getDilatedSlice(nz));
+            }
+            BitSet maskSlice = maskSlices.getSlice(gapSliceIndex);
+            BitSet targetSlice = targetSlices.getSlice(gapSliceIndex);
+            maskGap += countGaps(maskSlice, targetNeighborhood);
+            targetGap += countGaps(targetSlice, maskNeighborhood);
+            if (mirrorMask) {
+                // the dilation is symmetric so the neighborhood of the mirrored mask is the mirrored neighborhood of the mask
+                mirroredMaskGap += countGaps(mirror(maskSlice, width, height), targetNeighborhood);
+                targetGapToMirroredMask += countGaps(targetSlice, mirror(maskNeighborhood, width, height));
+            }
+        }
+        if (mirrorMask) {
+            return Math.min(maskGap + targetGap, mirroredMaskGap + targetGapToMirroredMask);
+        } else {
+            return maskGap + targetGap;
+        }
+    }
+
+    private long countGaps(BitSet slice, BitSet otherNeighborhood) {
+        BitSet gaps = (BitSet) slice.clone();
+        gaps.andNot(otherNeighborhood);
+        return gaps.cardinality();
+    }
+
+    /**
+     * Dilate the slice with a square of size 2 * xyRadius + 1 - first along the rows and then along the columns.
+     */
+    private BitSet dilate(BitSet slice, int width, int height) {
+        if (xyRadius <= 0 || slice.isEmpty()) {
+            return slice;
+        }
+        BitSet[] dilatedRows = new BitSet[height];
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            int rowEnd = rowStart + width;
+            BitSet dilatedRow = new BitSet(width);
+            for (int i = slice.nextSetBit(rowStart); i >= 0 && i < rowEnd; i = slice.nextSetBit(i)) {
+                int runEnd = Math.min(slice.nextClearBit(i), rowEnd);
+                dilatedRow.set(Math.max(0, i - rowStart - xyRadius), Math.min(width, runEnd - rowStart + xyRadius));
+                i = runEnd;
+            }
+            dilatedRows[y] = dilatedRow;
+        }
+        BitSet dilatedSlice = new BitSet(width * height);
+        for (int y = 0; y < height; y++) {
+            BitSet row = new BitSet(width);
+            for (int dy = Math.max(0, y - xyRadius); dy <= Math.min(height - 1, y + xyRadius); dy++) {
+                row.or(dilatedRows[dy]);
+            }
+            int rowStart = y * width;
+            for (int x = row.nextSetBit(0); x >= 0; x = row.nextSetBit(x)) {
+                int runEnd = row.nextClearBit(x);
+                dilatedSlice.set(rowStart + x, rowStart + runEnd);
+                x = runEnd;
+            }
+        }
+        return dilatedSlice;
+    }
+
+    private BitSet mirror(BitSet slice, int width, int height) {
+        BitSet mirroredSlice = new BitSet(width * height);
+        for (int i = slice.nextSetBit(0); i >= 0; i = slice.nextSetBit(i + 1)) {
+            int y = i / width;
+            int x = i % width;
+            mirroredSlice.set(y * width + width - 1 - x);
+        }
+        return mirroredSlice;
+    }
+}
@@ -6,9 +6,11 @@ import java.util.Set;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.janelia.colormipsearch.imageprocessing.ImageArray;
 import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.NeuronMIPStats;
 
 /**
  * ColorMIPMaskCompare encapsulates a query image and it provides a method to search
@@ -36,6 +38,29 @@ public interface ColorDepthSearchAlgorithm<S extends ColorDepthMatchScore> exten
      */
     int getQueryLastPixelIndex();
 
+    /**
+     * Calculate an upper bound of the score that the query can get against a target, using only the target's stats,
+     * i.e. without loading the target image. A target whose bound is not good enough for a match can be skipped.
+     *
+     * @param targetStats target stats
+     * @return the score upper bound or Integer.MAX_VALUE if the score cannot be bounded
+     */
+    default int calculateScoreUpperBound(@Nullable NeuronMIPStats targetStats) {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Calculate an upper bound of the score that the query can get against a target using one level of the target's
+     * occupancy pyramid. The bound from a finer level is never greater than the bound from a coarser level.
+     *
+     * @param targetPyramid target occupancy pyramid
+     * @param level pyramid level - 0 is the coarsest level
+     * @return the score upper bound or Integer.MAX_VALUE if the score cannot be bounded
+     */
+    default int calculateScoreUpperBound(TargetOccupancyPyramid targetPyramid, int level) {
+        return Integer.MAX_VALUE;
+    }
+
     /**
      * @return required variant types for calculating the score.
      */
@@ -4,7 +4,10 @@ import java.io.Serializable;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import org.janelia.colormipsearch.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.model.NeuronMIPStats;
 
 /**
  * Creates a color depth search for a given mask.
@@ -14,13 +17,28 @@ public class ColorMIPSearch implements Serializable {
     private final ColorDepthSearchAlgorithmProvider<PixelMatchScore> cdsAlgorithmProvider;
     private final Integer defaultQueryThreshold;
     private final Double pctPositivePixels;
+    // if set, a target is first compared with the query at low resolution and only the targets
+    // that may still match are compared at full resolution
+    private final boolean multiresolutionSearch;
 
     public ColorMIPSearch(Double pctPositivePixels,
                           Integer defaultQueryThreshold,
                           ColorDepthSearchAlgorithmProvider<PixelMatchScore> cdsAlgorithmProvider) {
+        this(pctPositivePixels, defaultQueryThreshold, cdsAlgorithmProvider, false);
+    }
+
+    public ColorMIPSearch(Double pctPositivePixels,
+                          Integer defaultQueryThreshold,
+                          ColorDepthSearchAlgorithmProvider<PixelMatchScore> cdsAlgorithmProvider,
+                          boolean multiresolutionSearch) {
         this.pctPositivePixels = pctPositivePixels;
         this.defaultQueryThreshold = defaultQueryThreshold;
         this.cdsAlgorithmProvider = cdsAlgorithmProvider;
+        this.multiresolutionSearch = multiresolutionSearch;
+    }
+
+    public boolean isMultiresolutionSearch() {
+        return multiresolutionSearch;
     }
 
     public Map<String, Object> getCDSParameters() {
@@ -39,6 +57,63 @@ public class ColorMIPSearch implements Serializable {
     }
 
 
+    /**
+     * Check if the query may match the target based on the target's stats. If this returns false the query
+     * cannot match the target so the target image does not even have to be loaded.
+     *
+     * @param queryColorDepthSearch query search algorithm
+     * @param targetStats target stats
+     * @return false only if the query certainly does not match the target
+     */
+    public boolean mayMatch(ColorDepthSearchAlgorithm<PixelMatchScore> queryColorDepthSearch, @Nullable NeuronMIPStats targetStats) {
+        return mayReachMatchThreshold(queryColorDepthSearch, queryColorDepthSearch.calculateScoreUpperBound(targetStats));
+    }
+
+    /**
+     * Create the low resolution views of a loaded target that are used by the multiresolution search.
+     * A pyramid only depends on the target so it can be shared by all queries.
+     *
+     * @param targetImage target image
+     * @return the target pyramid or null if the multiresolution search is not enabled
+     */
+    @Nullable
+    public TargetOccupancyPyramid createTargetPyramid(ImageArray<?> targetImage) {
+        if (!multiresolutionSearch) {
+            return null;
+        }
+        return TargetOccupancyPyramid.create(targetImage, cdsAlgorithmProvider.getDefaultCDSParams().getIntParam("dataThreshold", 0));
+    }
+
+    /**
+     * Check if the query may match the target by going from the coarsest to the finest level of the target's pyramid.
+     * As with the stats, this only returns false if the full resolution comparison cannot result in a match,
+     * therefore the multiresolution search finds exactly the same matches as the exhaustive search.
+     *
+     * @param queryColorDepthSearch query search algorithm
+     * @param targetPyramid target pyramid
+     * @return false only if the query certainly does not match the target
+     */
+    public boolean mayMatch(ColorDepthSearchAlgorithm<PixelMatchScore> queryColorDepthSearch, @Nullable TargetOccupancyPyramid targetPyramid) {
+        if (targetPyramid == null) {
+            return true;
+        }
+        for (int level = 0; level < TargetOccupancyPyramid.getNLevels(); level++) {
+            if (!mayReachMatchThreshold(queryColorDepthSearch, queryColorDepthSearch.calculateScoreUpperBound(targetPyramid, level))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean mayReachMatchThreshold(ColorDepthSearchAlgorithm<PixelMatchScore> queryColorDepthSearch, int scoreUpperBound) {
+        if (scoreUpperBound == Integer.MAX_VALUE) {
+            return true;
+        }
+        double pixMatchRatioThreshold = pctPositivePixels != null ? pctPositivePixels / 100 : 0.;
+        // the normalized score is at most scoreUpperBound / querySize
+        return scoreUpperBound > 0 && (double) scoreUpperBound / (double) queryColorDepthSearch.getQuerySize() > pixMatchRatioThreshold;
+    }
+
     public boolean isMatch(PixelMatchScore pixelMatchScore) {
         double pixMatchRatioThreshold = pctPositivePixels != null ? pctPositivePixels / 100 : 0.;
         return pixelMatchScore.getScore() > 0 && pixelMatchScore.getNormalizedScore() > pixMatchRatioThreshold;
@@ -5,8 +5,8 @@ package org.janelia.colormipsearch.cds;
  */
 public class GradientAreaGapUtils {
 
-    private static final double LOW_NORMALIZED_NEGATIVE_SCORE = 0.002;
-    private static final double HIGH_NORMALIZED_NEGATIVE_SCORE = 1.;
+    public static final double LOW_NORMALIZED_NEGATIVE_SCORE = 0.002;
+    public static final double HIGH_NORMALIZED_NEGATIVE_SCORE = 1.;
 
     private enum Color {
         BLACK,
@@ -1,15 +1,20 @@
 package org.janelia.colormipsearch.cds;
 
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.janelia.colormipsearch.imageprocessing.ImageArray;
 import org.janelia.colormipsearch.imageprocessing.ImageRegionDefinition;
 import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.NeuronMIPStats;
 
 /**
  * PixelMatchColorDepthQuerySearchAlgorithm - implements the color depth mip comparison
@@ -19,12 +24,121 @@ import org.janelia.colormipsearch.model.ComputeFileType;
  */
 public class PixelMatchColorDepthSearchAlgorithm extends AbstractColorDepthSearchAlgorithm<PixelMatchScore> {
 
+    /**
+     * Coarse summary of the query pixel positions after one of the x-y shift or mirroring transformations:
+     * the bounding box of the positions and how many positions fall in each cell of the occupancy grid.
+     */
+    private static class TransformedQuerySummary implements Serializable {
+        private final int minx;
+        private final int miny;
+        private final int maxx;
+        private final int maxy;
+        private final int size;
+        private final int[] cellCounts;
+
+        TransformedQuerySummary(int[] pixelCoords, int imageWidth, int imageHeight) {
+            int minx = imageWidth;
+            int miny = imageHeight;
+            int maxx = -1;
+            int maxy = -1;
+            int size = 0;
+            int[] cellCounts = new int[NeuronMIPStats.OCCUPANCY_GRID_SIZE * NeuronMIPStats.OCCUPANCY_GRID_SIZE];
+            for (int pixelCoord : pixelCoords) {
+                if (pixelCoord == -1) {
+                    continue;
+                }
+                int x = pixelCoord % imageWidth;
+                int y = pixelCoord / imageWidth;
+                if (x < minx) minx = x;
+                if (x > maxx) maxx = x;
+                if (y < miny) miny = y;
+                if (y > maxy) maxy = y;
+                cellCounts[NeuronMIPStats.getOccupancyCellIndex(x, y, imageWidth, imageHeight)]++;
+                size++;
+            }
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+            this.size = size;
+            this.cellCounts = cellCounts;
+        }
+
+        /**
+         * A query position can only match if the target has a signal pixel at that position, so the number of
+         * matching positions from a grid cell cannot exceed the number of target signal pixels from that cell.
+         */
+        int calculateScoreUpperBound(NeuronMIPStats targetStats) {
+            if (size == 0 || targetStats.isEmpty() ||
+                    maxx < targetStats.getMinX() || minx > targetStats.getMaxX() ||
+                    maxy < targetStats.getMinY() || miny > targetStats.getMaxY()) {
+                // the bounding boxes do not overlap
+                return 0;
+            }
+            if (!targetStats.hasOccupancyGrid()) {
+                return (int) Math.min(size, targetStats.getPixelCount());
+            }
+            int[] targetCellCounts = targetStats.getOccupancyGrid();
+            int bound = 0;
+            for (int i = 0; i < cellCounts.length; i++) {
+                bound += Math.min(cellCounts[i], targetCellCounts[i]);
+            }
+            return bound;
+        }
+    }
+
+    /**
+     * Sparse histogram of the query pixel positions after one of the x-y shift or mirroring transformations over
+     * the cells of one level of the target occupancy pyramid.
+     */
+    private static class TransformedQueryHistogram {
+        private final int[] cells;
+        private final int[] counts;
+
+        TransformedQueryHistogram(int[] pixelCoords, int imageWidth, int imageHeight, int level) {
+            int[] cellCounts = new int[TargetOccupancyPyramid.getNCells(imageWidth, imageHeight, level)];
+            int nCells = 0;
+            for (int pixelCoord : pixelCoords) {
+                if (pixelCoord == -1) {
+                    continue;
+                }
+                int cell = TargetOccupancyPyramid.getCellIndex(pixelCoord % imageWidth, pixelCoord / imageWidth, imageWidth, level);
+                if (cellCounts[cell]++ == 0) {
+                    nCells++;
+                }
+            }
+            this.cells = new int[nCells];
+            this.counts = new int[nCells];
+            for (int cell = 0, i = 0; i < nCells; cell++) {
+                if (cellCounts[cell] > 0) {
+                    cells[i] = cell;
+                    counts[i] = cellCounts[cell];
+                    i++;
+                }
+            }
+        }
+
+        /**
+         * Same as for the occupancy grid, the matching positions from a cell cannot exceed the target's signal pixels from that cell.
+         */
+        int calculateScoreUpperBound(TargetOccupancyPyramid targetPyramid, int level) {
+            int bound = 0;
+            for (int i = 0; i < cells.length; i++) {
+                bound += Math.min(counts[i], targetPyramid.getCellCount(level, cells[i]));
+            }
+            return bound;
+        }
+    }
+
     private final int[][] targetMasksList;
     private final int[][] mirrorTargetMasksList;
     private final int[][] negTargetMasksList;
     private final int[][] negMirrorTargetMasksList;
     private final int queryFirstPixelIndex;
     private final int queryLastPixelIndex;
+    private final TransformedQuerySummary[] transformedQuerySummaries;
+    // histograms for every pyramid level of all transformations that are scored - only created if a pyramid bound is needed
+    private transient volatile TransformedQueryHistogram[][] transformedQueryHistograms;
 
     public PixelMatchColorDepthSearchAlgorithm(ImageArray<?> queryImage, int queryThreshold, boolean mirrorQuery,
                                                ImageArray<?> negQueryImage, int negQueryThreshold,
@@ -98,6 +212,12 @@ public class PixelMatchColorDepthSearchAlgorithm extends AbstractColorDepthSearc
         }
         queryFirstPixelIndex = firstPixel;
         queryLastPixelIndex = lastPixel;
+        // summaries of all transformations that are scored - used for bounding the score before comparing the pixels
+        transformedQuerySummaries = Stream.concat(
+                        Arrays.stream(targetMasksList),
+                        mirrorTargetMasksList != null ? Arrays.stream(mirrorTargetMasksList) : Stream.empty())
+                .map(pixelCoords -> new TransformedQuerySummary(pixelCoords, queryImage.getWidth(), queryImage.getHeight()))
+                .toArray(TransformedQuerySummary[]::new);
     }
 
     @Override
@@ -157,6 +277,72 @@ public class PixelMatchColorDepthSearchAlgorithm extends AbstractColorDepthSearc
         return mirroredCoords;
     }
 
+    /**
+     * The bound only takes into account the positive query because the negative query can only decrease the score.
+     * The bound is only computed if the target stats were calculated with a threshold not greater than the target
+     * threshold, otherwise the stats may miss pixels that count as signal for this search.
+     */
+    @Override
+    public int calculateScoreUpperBound(@Nullable NeuronMIPStats targetStats) {
+        if (targetStats == null ||
+                targetStats.getThreshold() > targetThreshold ||
+                targetStats.getWidth() != queryImage.getWidth() ||
+                targetStats.getHeight() != queryImage.getHeight()) {
+            return Integer.MAX_VALUE;
+        }
+        int maxBound = 0;
+        for (TransformedQuerySummary transformedQuerySummary : transformedQuerySummaries) {
+            int bound = transformedQuerySummary.calculateScoreUpperBound(targetStats);
+            if (bound > maxBound) {
+                maxBound = bound;
+            }
+        }
+        return maxBound;
+    }
+
+    /**
+     * As for the stats, only the positive query is used for the bound and the pyramid must have been built
+     * with a threshold not greater than the target threshold.
+     */
+    @Override
+    public int calculateScoreUpperBound(TargetOccupancyPyramid targetPyramid, int level) {
+        if (targetPyramid.getThreshold() > targetThreshold ||
+                targetPyramid.getWidth() != queryImage.getWidth() ||
+                targetPyramid.getHeight() != queryImage.getHeight()) {
+            return Integer.MAX_VALUE;
+        }
+        int maxBound = 0;
+        for (TransformedQueryHistogram transformedQueryHistogram : getTransformedQueryHistograms()[level]) {
+            int bound = transformedQueryHistogram.calculateScoreUpperBound(targetPyramid, level);
+            if (bound > maxBound) {
+                maxBound = bound;
+            }
+        }
+        return maxBound;
+    }
+
+    private TransformedQueryHistogram[][] getTransformedQueryHistograms() {
+        TransformedQueryHistogram[][] histograms = transformedQueryHistograms;
+        if (histograms == null) {
+            synchronized (this) {
+                histograms = transformedQueryHistograms;
+                if (histograms == null) {
+                    histograms = new TransformedQueryHistogram[TargetOccupancyPyramid.getNLevels()][];
+                    for (int l = 0; l < histograms.length; l++) {
+                        int level = l;
+                        histograms[l] = Stream.concat(
+                                        Arrays.stream(targetMasksList),
+                                        mirrorTargetMasksList != null ? Arrays.stream(mirrorTargetMasksList) : Stream.empty())
+                                .map(pixelCoords -> new TransformedQueryHistogram(pixelCoords, queryImage.getWidth(), queryImage.getHeight(), level))
+                                .toArray(TransformedQueryHistogram[]::new);
+                    }
+                    transformedQueryHistograms = histograms;
+                }
+            }
+        }
+        return histograms;
+    }
+
     @Override
     public Set<ComputeFileType> getRequiredTargetVariantTypes() {
         return Collections.emptySet();
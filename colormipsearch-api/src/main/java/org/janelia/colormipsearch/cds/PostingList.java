@@ -0,0 +1,86 @@
+package org.janelia.colormipsearch.cds;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed list of increasing target ids. Each id is stored as the difference from the previous one
+ * using a variable length encoding, so dense lists take about one byte per id.
+ */
+class PostingList {
+
+    private byte[] bytes;
+    private int length;
+    private int size;
+    private int lastId;
+
+    PostingList() {
+        this(new byte[16], 0, 0, -1);
+    }
+
+    private PostingList(byte[] bytes, int length, int size, int lastId) {
+        this.bytes = bytes;
+        this.length = length;
+        this.size = size;
+        this.lastId = lastId;
+    }
+
+    static PostingList read(DataInputStream inputStream) throws IOException {
+        int size = inputStream.readInt();
+        int lastId = inputStream.readInt();
+        int length = inputStream.readInt();
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new PostingList(bytes, length, size, lastId);
+    }
+
+    /**
+     * Append an id - the ids must be added in increasing order.
+     */
+    void add(int id) {
+        if (id <= lastId) {
+            throw new IllegalArgumentException("Posting list ids must be increasing: " + id + " was added after " + lastId);
+        }
+        int delta = id - lastId;
+        if (length + 5 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+        }
+        while ((delta & ~0x7F) != 0) {
+            bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        bytes[length++] = (byte) delta;
+        lastId = id;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(IntConsumer idConsumer) {
+        int id = -1;
+        for (int pos = 0; pos < length; ) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            id += delta;
+            idConsumer.accept(id);
+        }
+    }
+
+    void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(size);
+        outputStream.writeInt(lastId);
+        outputStream.writeInt(length);
+        outputStream.write(bytes, 0, length);
+    }
+}
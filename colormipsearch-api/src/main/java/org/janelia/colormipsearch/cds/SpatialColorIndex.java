@@ -0,0 +1,292 @@
+package org.janelia.colormipsearch.cds;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.janelia.colormipsearch.imageprocessing.ImageArray;
+
+/**
+ * Inverted index over the target color depth MIPs used for retrieving the candidate targets of a query without
+ * scanning all targets. The image is split in square cells and the color of a pixel, which encodes its depth,
+ * is quantized in a few depth buckets. For every (cell, depth bucket) key the index keeps the compressed list of
+ * the targets that have a signal pixel in that cell with a color from that bucket.
+ *
+ * A query is ranked against all targets by counting its pixels whose key, or a neighboring key, is present
+ * in the target. The neighboring cells account for the x-y shift and the neighboring buckets account for the color
+ * fluctuation. The rank is only an estimate, so the candidates must still be compared with the full color depth search.
+ */
+public class SpatialColorIndex {
+
+    private static final int INDEX_FORMAT_MAGIC = 0x43445349; // "CDSI"
+    private static final int INDEX_FORMAT_VERSION = 1;
+
+    private final int cellSize;
+    private final int nDepthBuckets;
+    private final int threshold;
+    private int width;
+    private int height;
+    private final List<String> targetKeys;
+    private PostingList[] postingLists;
+
+    /**
+     * @param cellSize size in pixels of the square cells
+     * @param nDepthBuckets number of buckets in which the pixel colors are quantized
+     * @param threshold a target pixel is indexed if any of its channels is above this threshold
+     */
+    public SpatialColorIndex(int cellSize, int nDepthBuckets, int threshold) {
+        this(cellSize, nDepthBuckets, threshold, 0, 0, new ArrayList<>(), null);
+    }
+
+    private SpatialColorIndex(int cellSize, int nDepthBuckets, int threshold, int width, int height,
+                              List<String> targetKeys, PostingList[] postingLists) {
+        this.cellSize = cellSize;
+        this.nDepthBuckets = nDepthBuckets;
+        this.threshold = threshold;
+        this.width = width;
+        this.height = height;
+        this.targetKeys = targetKeys;
+        this.postingLists = postingLists;
+    }
+
+    public static SpatialColorIndex read(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        if (dataInputStream.readInt() != INDEX_FORMAT_MAGIC) {
+            throw new IOException("Invalid color depth index format");
+        }
+        int version = dataInputStream.readInt();
+        if (version != INDEX_FORMAT_VERSION) {
+            throw new IOException("Unsupported color depth index version: " + version);
+        }
+        int cellSize = dataInputStream.readInt();
+        int nDepthBuckets = dataInputStream.readInt();
+        int threshold = dataInputStream.readInt();
+        int width = dataInputStream.readInt();
+        int height = dataInputStream.readInt();
+        int nTargets = dataInputStream.readInt();
+        List<String> targetKeys = new ArrayList<>(nTargets);
+        for (int i = 0; i < nTargets; i++) {
+            targetKeys.add(dataInputStream.readUTF());
+        }
+        PostingList[] postingLists = null;
+        if (nTargets > 0) {
+            postingLists = new PostingList[getNKeys(width, height, cellSize, nDepthBuckets)];
+            int nPostingLists = dataInputStream.readInt();
+            for (int i = 0; i < nPostingLists; i++) {
+                int key = dataInputStream.readInt();
+                postingLists[key] = PostingList.read(dataInputStream);
+            }
+        }
+        return new SpatialColorIndex(cellSize, nDepthBuckets, threshold, width, height, targetKeys, postingLists);
+    }
+
+    private static int getNKeys(int width, int height, int cellSize, int nDepthBuckets) {
+        return ((width + cellSize - 1) / cellSize) * ((height + cellSize - 1) / cellSize) * nDepthBuckets;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getNTargets() {
+        return targetKeys.size();
+    }
+
+    /**
+     * Add a target to the index. The keys of the target are computed concurrently, only appending them
+     * to the posting lists is serialized.
+     *
+     * @param targetKey key that identifies the target
+     * @param targetImage target image
+     */
+    public void addTarget(String targetKey, ImageArray<?> targetImage) {
+        int[] imageKeys = getImageKeys(targetImage);
+        synchronized (this) {
+            if (postingLists == null) {
+                width = targetImage.getWidth();
+                height = targetImage.getHeight();
+                postingLists = new PostingList[getNKeys(width, height, cellSize, nDepthBuckets)];
+            } else if (targetImage.getWidth() != width || targetImage.getHeight() != height) {
+                throw new IllegalArgumentException(String.format("Invalid image size for %s - target's image size (%d, %d) must match index image size: (%d, %d)",
+                        targetKey, targetImage.getWidth(), targetImage.getHeight(), width, height));
+            }
+            int targetId = targetKeys.size();
+            targetKeys.add(targetKey);
+            for (int key : imageKeys) {
+                if (postingLists[key] == null) {
+                    postingLists[key] = new PostingList();
+                }
+                postingLists[key].add(targetId);
+            }
+        }
+    }
+
+    private int[] getImageKeys(ImageArray<?> image) {
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        boolean[] keys = new boolean[getNKeys(imageWidth, imageHeight, cellSize, nDepthBuckets)];
+        for (int y = 0, pi = 0; y < imageHeight; y++) {
+            for (int x = 0; x < imageWidth; x++, pi++) {
+                int p = image.get(pi);
+                int r = (p >> 16) & 0xFF;
+                int g = (p >> 8) & 0xFF;
+                int b = p & 0xFF;
+                if (r > threshold || g > threshold || b > threshold) {
+                    keys[getKey(x, y, imageWidth, getDepthBucket(r, g, b))] = true;
+                }
+            }
+        }
+        return IntStream.range(0, keys.length).filter(k -> keys[k]).toArray();
+    }
+
+    private int getKey(int x, int y, int imageWidth, int depthBucket) {
+        return getCellKey(x / cellSize, y / cellSize, (imageWidth + cellSize - 1) / cellSize, depthBucket);
+    }
+
+    private int getCellKey(int cellX, int cellY, int gridWidth, int depthBucket) {
+        return (cellY * gridWidth + cellX) * nDepthBuckets + depthBucket;
+    }
+
+    /**
+     * The color depth MIPs encode the depth in the hue so the depth bucket is the quantized hue.
+     */
+    private int getDepthBucket(int r, int g, int b) {
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        if (max == min) {
+            return 0;
+        }
+        double hue;
+        if (max == r) {
+            hue = (double) (g - b) / (max - min);
+        } else if (max == g) {
+            hue = 2 + (double) (b - r) / (max - min);
+        } else {
+            hue = 4 + (double) (r - g) / (max - min);
+        }
+        if (hue < 0) {
+            hue += 6;
+        }
+        return Math.min((int) (hue / 6 * nDepthBuckets), nDepthBuckets - 1);
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(INDEX_FORMAT_MAGIC);
+        dataOutputStream.writeInt(INDEX_FORMAT_VERSION);
+        dataOutputStream.writeInt(cellSize);
+        dataOutputStream.writeInt(nDepthBuckets);
+        dataOutputStream.writeInt(threshold);
+        dataOutputStream.writeInt(width);
+        dataOutputStream.writeInt(height);
+        dataOutputStream.writeInt(targetKeys.size());
+        for (String targetKey : targetKeys) {
+            dataOutputStream.writeUTF(targetKey);
+        }
+        if (postingLists != null) {
+            dataOutputStream.writeInt((int) Arrays.stream(postingLists).filter(Objects::nonNull).count());
+            for (int key = 0; key < postingLists.length; key++) {
+                if (postingLists[key] != null) {
+                    dataOutputStream.writeInt(key);
+                    postingLists[key].write(dataOutputStream);
+                }
+            }
+        }
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Rank the indexed targets for the given query.
+     *
+     * @param queryColorDepthSearch query search algorithm - the query pixels are the ones selected by the algorithm
+     * @param mirrorQuery if true the mirrored query is ranked too and a target gets the best of the two ranks
+     * @param xyShift the x-y shift used by the color depth search
+     * @param maxCandidates maximum number of candidates to return
+     * @return the keys of the best ranked targets, best first
+     */
+    public List<String> findCandidates(ColorDepthSearchAlgorithm<?> queryColorDepthSearch, boolean mirrorQuery, int xyShift, int maxCandidates) {
+        if (!(queryColorDepthSearch instanceof AbstractColorDepthSearchAlgorithm)) {
+            throw new IllegalArgumentException("Unsupported color depth search algorithm: " + queryColorDepthSearch.getClass());
+        }
+        if (postingLists == null || maxCandidates <= 0) {
+            return Collections.emptyList();
+        }
+        ImageArray<?> queryImage = queryColorDepthSearch.getQueryImage();
+        if (queryImage.getWidth() != width || queryImage.getHeight() != height) {
+            throw new IllegalArgumentException(String.format("Invalid image size - query's image size (%d, %d) must match index image size: (%d, %d)",
+                    queryImage.getWidth(), queryImage.getHeight(), width, height));
+        }
+        int[] queryPositions = ((AbstractColorDepthSearchAlgorithm<?>) queryColorDepthSearch).queryPixelPositions();
+        int[] targetHits = countTargetHits(queryImage, queryPositions, false, xyShift);
+        if (mirrorQuery) {
+            int[] mirroredTargetHits = countTargetHits(queryImage, queryPositions, true, xyShift);
+            for (int t = 0; t < targetHits.length; t++) {
+                targetHits[t] = Math.max(targetHits[t], mirroredTargetHits[t]);
+            }
+        }
+        return IntStream.range(0, targetHits.length)
+                .filter(t -> targetHits[t] > 0)
+                .boxed()
+                .sorted((t1, t2) -> Integer.compare(targetHits[t2], targetHits[t1]))
+                .limit(maxCandidates)
+                .map(targetKeys::get)
+                .collect(Collectors.toList());
+    }
+
+    private int[] countTargetHits(ImageArray<?> queryImage, int[] queryPositions, boolean mirror, int xyShift) {
+        int gridWidth = (width + cellSize - 1) / cellSize;
+        int gridHeight = (height + cellSize - 1) / cellSize;
+        // number of query pixels for every key
+        int[] queryKeyCounts = new int[postingLists.length];
+        for (int pos : queryPositions) {
+            int x = pos % width;
+            int y = pos / width;
+            int p = queryImage.get(pos);
+            int depthBucket = getDepthBucket((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF);
+            queryKeyCounts[getKey(mirror ? width - 1 - x : x, y, width, depthBucket)]++;
+        }
+        int cellRadius = (xyShift + cellSize - 1) / cellSize;
+        int[] targetHits = new int[targetKeys.size()];
+        // every target is counted at most once for a query key, even if it is present in several neighboring keys
+        int[] lastQueryKey = new int[targetKeys.size()];
+        Arrays.fill(lastQueryKey, -1);
+        for (int queryKey = 0; queryKey < queryKeyCounts.length; queryKey++) {
+            int queryKeyCount = queryKeyCounts[queryKey];
+            if (queryKeyCount == 0) {
+                continue;
+            }
+            int currentQueryKey = queryKey;
+            int cell = queryKey / nDepthBuckets;
+            int cellX = cell % gridWidth;
+            int cellY = cell / gridWidth;
+            int depthBucket = queryKey % nDepthBuckets;
+            for (int ny = Math.max(0, cellY - cellRadius); ny <= Math.min(gridHeight - 1, cellY + cellRadius); ny++) {
+                for (int nx = Math.max(0, cellX - cellRadius); nx <= Math.min(gridWidth - 1, cellX + cellRadius); nx++) {
+                    for (int db = -1; db <= 1; db++) {
+                        // the hue is circular
+                        PostingList postingList = postingLists[getCellKey(nx, ny, gridWidth, (depthBucket + db + nDepthBuckets) % nDepthBuckets)];
+                        if (postingList == null) {
+                            continue;
+                        }
+                        postingList.forEach(t -> {
+                            if (lastQueryKey[t] != currentQueryKey) {
+                                lastQueryKey[t] = currentQueryKey;
+                                targetHits[t] += queryKeyCount;
+                            }
+                        });
+                    }
+                }
+            }
+        }
+        return targetHits;
+    }
+}
@@ -0,0 +1,92 @@
+package org.janelia.colormipsearch.cds;
+
+import java.io.Serializable;
+
+import org.janelia.colormipsearch.imageprocessing.ImageArray;
+
+/**
+ * Downsampled views of a target color depth MIP used for the coarse-to-fine search: every level splits the image
+ * in square cells and keeps only the number of signal pixels, i.e. pixels that have any channel above the threshold,
+ * from each cell. The levels go from the coarsest (1/16 scale) to the finest (1/4 scale).
+ */
+public class TargetOccupancyPyramid implements Serializable {
+
+    private static final int[] LEVEL_CELL_SIZES = new int[] {16, 4};
+
+    /**
+     * Build the pyramid of the given target image.
+     *
+     * @param imageArray target image
+     * @param threshold a pixel is a signal pixel if any of its channels is above this threshold
+     * @return the target pyramid
+     */
+    public static TargetOccupancyPyramid create(ImageArray<?> imageArray, int threshold) {
+        int width = imageArray.getWidth();
+        int height = imageArray.getHeight();
+        short[][] levelCellCounts = new short[LEVEL_CELL_SIZES.length][];
+        for (int l = 0; l < LEVEL_CELL_SIZES.length; l++) {
+            levelCellCounts[l] = new short[getNCells(width, height, l)];
+        }
+        for (int y = 0, pi = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, pi++) {
+                int p = imageArray.get(pi);
+                int r = (p >> 16) & 0xFF;
+                int g = (p >> 8) & 0xFF;
+                int b = p & 0xFF;
+                if (r > threshold || g > threshold || b > threshold) {
+                    for (int l = 0; l < LEVEL_CELL_SIZES.length; l++) {
+                        levelCellCounts[l][getCellIndex(x, y, width, l)]++;
+                    }
+                }
+            }
+        }
+        return new TargetOccupancyPyramid(threshold, width, height, levelCellCounts);
+    }
+
+    static int getNLevels() {
+        return LEVEL_CELL_SIZES.length;
+    }
+
+    static int getNCells(int imageWidth, int imageHeight, int level) {
+        int cellSize = LEVEL_CELL_SIZES[level];
+        return getGridWidth(imageWidth, cellSize) * getGridWidth(imageHeight, cellSize);
+    }
+
+    static int getCellIndex(int x, int y, int imageWidth, int level) {
+        int cellSize = LEVEL_CELL_SIZES[level];
+        return (y / cellSize) * getGridWidth(imageWidth, cellSize) + x / cellSize;
+    }
+
+    private static int getGridWidth(int imageSize, int cellSize) {
+        return (imageSize + cellSize - 1) / cellSize;
+    }
+
+    private final int threshold;
+    private final int width;
+    private final int height;
+    // number of signal pixels in every cell of a level (row major); a cell has at most 16 x 16 pixels so a short is enough
+    private final short[][] levelCellCounts;
+
+    private TargetOccupancyPyramid(int threshold, int width, int height, short[][] levelCellCounts) {
+        this.threshold = threshold;
+        this.width = width;
+        this.height = height;
+        this.levelCellCounts = levelCellCounts;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    int getCellCount(int level, int cellIndex) {
+        return levelCellCounts[level][cellIndex];
+    }
+}
@@ -1,6 +1,9 @@
 package org.janelia.colormipsearch.imageprocessing;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import javax.imageio.ImageIO;
@@ -59,6 +62,76 @@ public class ImageArrayUtils {
         }
     }
 
+    /**
+     * @param imageArray
+     * @return the number of bytes used for holding the image pixels in memory
+     */
+    public static long getPixelsByteSize(ImageArray<?> imageArray) {
+        if (imageArray instanceof SparseColorImageArray) {
+            // one int for the pixel value and one char for the column of each stored pixel plus the row offsets
+            return (long) ((SparseColorImageArray) imageArray).getStoredPixelCount() * (Integer.BYTES + Character.BYTES) +
+                    (long) (imageArray.getHeight() + 1) * Integer.BYTES;
+        }
+        switch (imageArray.type) {
+            case GRAY8:
+                return imageArray.getPixelCount();
+            case GRAY16:
+                return (long) imageArray.getPixelCount() * Short.BYTES;
+            case RGB:
+                return (long) imageArray.getPixelCount() * 3;
+            default:
+                throw new IllegalArgumentException("Unsupported image type: " + imageArray.type);
+        }
+    }
+
+    /**
+     * Compute a fingerprint of the image pixels. Images that have the same type, size and pixel values have the same fingerprint
+     * regardless of the encoding of the file they were read from.
+     *
+     * @param imageArray
+     * @return the fingerprint as a hex string
+     */
+    public static String computeFingerprint(ImageArray<?> imageArray) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+        buffer.putInt(imageArray.type.ordinal()).putInt(imageArray.width).putInt(imageArray.height);
+        int pixelCount = imageArray.getPixelCount();
+        for (int i = 0; i < pixelCount; i++) {
+            if (buffer.remaining() < 4) {
+                md.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putInt(imageArray.get(i));
+        }
+        md.update(buffer.array(), 0, buffer.position());
+        StringBuilder fingerprintBuilder = new StringBuilder();
+        for (byte b : md.digest()) {
+            fingerprintBuilder.append(String.format("%02x", b));
+        }
+        return fingerprintBuilder.toString();
+    }
+
+    /**
+     * Convert a color image array into a sparse image array that only keeps the pixels above the given threshold.
+     * Other image types are returned unchanged.
+     *
+     * @param imageArray
+     * @param threshold
+     * @return
+     */
+    public static ImageArray<?> toSparseColorImageArray(ImageArray<?> imageArray, int threshold) {
+        if (imageArray == null || imageArray.type != ImageType.RGB || imageArray instanceof SparseColorImageArray) {
+            return imageArray;
+        } else {
+            return SparseColorImageArray.fromImageArray(imageArray, threshold);
+        }
+    }
+
     /**
      * Determine if the file identified by the given name is an image file. This is only based on the filename extension.
      *
@@ -1,8 +1,9 @@
 package org.janelia.colormipsearch.imageprocessing;
 
+import java.io.Serializable;
 import java.util.function.BiPredicate;
 
-public interface ImageRegionDefinition {
+public interface ImageRegionDefinition extends Serializable {
     /**
      * Create the region predicate which should return true if the pixel at x, y is true.
      *
@@ -0,0 +1,103 @@
+package org.janelia.colormipsearch.imageprocessing;
+
+import java.util.Arrays;
+
+/**
+ * Color image array that only keeps the pixels above a threshold. Color depth MIPs are mostly black
+ * so this takes a fraction of the memory of a {@link ColorImageArray}.
+ * The pixels are stored row by row (CSR layout): rowOffsets[y] is the index of the first stored pixel from row y,
+ * columns contains the x coordinate of each stored pixel and the pixels array its ARGB value.
+ * Pixels that are not stored are black, so this representation can be used wherever a pixel is only relevant
+ * if one of its channels is above a threshold greater than or equal to the threshold used for building it.
+ */
+public class SparseColorImageArray extends ImageArray<int[]> {
+
+    private static final int BLACK = 0xFF000000;
+
+    /**
+     * Create a sparse color image from a color image array.
+     *
+     * @param imageArray source image
+     * @param threshold  only pixels that have at least one channel above this value are kept
+     * @return
+     */
+    static SparseColorImageArray fromImageArray(ImageArray<?> imageArray, int threshold) {
+        int width = imageArray.getWidth();
+        int height = imageArray.getHeight();
+        if (width > Character.MAX_VALUE + 1) {
+            throw new IllegalArgumentException("Image width " + width + " is too large for a sparse image array");
+        }
+        int[] rowOffsets = new int[height + 1];
+        int nPixels = 0;
+        for (int y = 0, pi = 0; y < height; y++) {
+            rowOffsets[y] = nPixels;
+            for (int x = 0; x < width; x++, pi++) {
+                if (isAboveThreshold(imageArray.get(pi), threshold)) {
+                    nPixels++;
+                }
+            }
+        }
+        rowOffsets[height] = nPixels;
+        char[] columns = new char[nPixels];
+        int[] pixels = new int[nPixels];
+        for (int y = 0, pi = 0, si = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, pi++) {
+                int p = imageArray.get(pi);
+                if (isAboveThreshold(p, threshold)) {
+                    columns[si] = (char) x;
+                    pixels[si] = BLACK | p;
+                    si++;
+                }
+            }
+        }
+        return new SparseColorImageArray(width, height, rowOffsets, columns, pixels);
+    }
+
+    private static boolean isAboveThreshold(int p, int threshold) {
+        int r = (p >> 16) & 0xFF;
+        int g = (p >> 8) & 0xFF;
+        int b = p & 0xFF;
+        return r > threshold || g > threshold || b > threshold;
+    }
+
+    private final int[] rowOffsets;
+    private final char[] columns;
+
+    private SparseColorImageArray(int width, int height, int[] rowOffsets, char[] columns, int[] pixels) {
+        super(ImageType.RGB, width, height, pixels);
+        this.rowOffsets = rowOffsets;
+        this.columns = columns;
+    }
+
+    /**
+     * @return number of stored (above threshold) pixels
+     */
+    public int getStoredPixelCount() {
+        return pixels.length;
+    }
+
+    @Override
+    public int get(int pi) {
+        int pos = findPixel(pi);
+        return pos >= 0 ? pixels[pos] : BLACK;
+    }
+
+    /**
+     * Set the value of a stored pixel. Only stored pixels can be modified, except that setting a pixel to black is always allowed.
+     */
+    @Override
+    public void set(int pi, int pixel) {
+        int pos = findPixel(pi);
+        if (pos >= 0) {
+            pixels[pos] = BLACK | pixel;
+        } else if ((pixel & 0x00FFFFFF) != 0) {
+            throw new UnsupportedOperationException("Cannot add new pixels to a sparse image array");
+        }
+    }
+
+    private int findPixel(int pi) {
+        int y = pi / width;
+        int x = pi - y * width;
+        return Arrays.binarySearch(columns, rowOffsets[y], rowOffsets[y + 1], (char) x);
+    }
+}
@@ -0,0 +1,221 @@
+package org.janelia.colormipsearch.imageprocessing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Sequential reader of the slices of a 3D volume. The volume is only opened when its dimensions or its first slice
+ * are needed, and only one slice is read at a time so the volume is never entirely in memory.
+ * Only NRRD volumes with the data attached to the header, raw or gzip encoded, with 8 or 16 bit pixels are supported.
+ */
+public class Vol3DSlicesReader implements Closeable {
+
+    @FunctionalInterface
+    public interface VolumeStreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private final String name;
+    private final VolumeStreamOpener volumeStreamOpener;
+    private DataInputStream dataStream;
+    private int width;
+    private int height;
+    private int depth;
+    private int bytesPerPixel;
+    private boolean bigEndian;
+    private int nextSliceIndex;
+    private byte[] sliceBuffer;
+
+    public Vol3DSlicesReader(String name, VolumeStreamOpener volumeStreamOpener) {
+        this.name = name;
+        this.volumeStreamOpener = volumeStreamOpener;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        open();
+        return width;
+    }
+
+    public int getHeight() {
+        open();
+        return height;
+    }
+
+    public int getDepth() {
+        open();
+        return depth;
+    }
+
+    public boolean hasNextSlice() {
+        open();
+        return nextSliceIndex < depth;
+    }
+
+    /**
+     * Read the next slice.
+     *
+     * @param threshold pixel threshold
+     * @return the pixels of the slice whose value is above the threshold - the index of pixel (x, y) is y * width + x
+     */
+    public BitSet nextSliceForeground(int threshold) {
+        if (!hasNextSlice()) {
+            throw new IllegalStateException("No more slices in " + name);
+        }
+        try {
+            dataStream.readFully(sliceBuffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading slice " + nextSliceIndex + " from " + name, e);
+        }
+        nextSliceIndex++;
+        int nPixels = width * height;
+        BitSet foreground = new BitSet(nPixels);
+        for (int pi = 0; pi < nPixels; pi++) {
+            int pixel;
+            if (bytesPerPixel == 1) {
+                pixel = sliceBuffer[pi] & 0xFF;
+            } else if (bigEndian) {
+                pixel = ((sliceBuffer[2 * pi] & 0xFF) << 8) | (sliceBuffer[2 * pi + 1] & 0xFF);
+            } else {
+                pixel = ((sliceBuffer[2 * pi + 1] & 0xFF) << 8) | (sliceBuffer[2 * pi] & 0xFF);
+            }
+            if (pixel > threshold) {
+                foreground.set(pi);
+            }
+        }
+        return foreground;
+    }
+
+    @Override
+    public void close() {
+        if (dataStream != null) {
+            try {
+                dataStream.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                // do not open it again
+                nextSliceIndex = depth;
+            }
+        }
+    }
+
+    private void open() {
+        if (dataStream != null) {
+            return;
+        }
+        try {
+            InputStream volumeStream = volumeStreamOpener.open();
+            if (volumeStream == null) {
+                throw new IllegalArgumentException("No volume found for " + name);
+            }
+            InputStream headerStream = new BufferedInputStream(volumeStream);
+            Map<String, String> header = readHeader(headerStream);
+            if (!"3".equals(header.get("dimension"))) {
+                throw new IllegalArgumentException("Only 3D volumes are supported - " + name + " has dimension " + header.get("dimension"));
+            }
+            if (header.containsKey("data file") || header.containsKey("datafile")) {
+                throw new IllegalArgumentException("Detached volume data is not supported for " + name);
+            }
+            String[] sizes = StringUtils.split(header.getOrDefault("sizes", ""));
+            if (sizes.length != 3) {
+                throw new IllegalArgumentException("Invalid sizes for " + name + ": " + header.get("sizes"));
+            }
+            width = Integer.parseInt(sizes[0]);
+            height = Integer.parseInt(sizes[1]);
+            depth = Integer.parseInt(sizes[2]);
+            bytesPerPixel = getBytesPerPixel(header.get("type"));
+            bigEndian = "big".equals(header.get("endian"));
+            String encoding = header.getOrDefault("encoding", "");
+            if ("raw".equals(encoding)) {
+                dataStream = new DataInputStream(headerStream);
+            } else if ("gzip".equals(encoding) || "gz".equals(encoding)) {
+                dataStream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(headerStream)));
+            } else {
+                headerStream.close();
+                throw new IllegalArgumentException("Unsupported encoding for " + name + ": " + encoding);
+            }
+            sliceBuffer = new byte[width * height * bytesPerPixel];
+            nextSliceIndex = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening " + name, e);
+        }
+    }
+
+    private Map<String, String> readHeader(InputStream stream) throws IOException {
+        String magic = readLine(stream);
+        if (magic == null || !magic.startsWith("NRRD")) {
+            throw new IllegalArgumentException(name + " is not a NRRD volume");
+        }
+        Map<String, String> header = new HashMap<>();
+        for (String line = readLine(stream); StringUtils.isNotEmpty(line); line = readLine(stream)) {
+            if (line.startsWith("#") || line.contains(":=")) {
+                continue; // comment or key/value pair
+            }
+            int separatorIndex = line.indexOf(':');
+            if (separatorIndex > 0) {
+                header.put(line.substring(0, separatorIndex).trim().toLowerCase(), line.substring(separatorIndex + 1).trim());
+            }
+        }
+        return header;
+    }
+
+    /**
+     * @return the next header line or null if the stream ended
+     */
+    private String readLine(InputStream stream) throws IOException {
+        ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                lineBytes.write(b);
+            }
+        }
+        if (b == -1 && lineBytes.size() == 0) {
+            return null;
+        }
+        return new String(lineBytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private int getBytesPerPixel(String type) {
+        switch (StringUtils.defaultString(type)) {
+            case "signed char":
+            case "int8":
+            case "int8_t":
+            case "uchar":
+            case "unsigned char":
+            case "uint8":
+            case "uint8_t":
+                return 1;
+            case "short":
+            case "short int":
+            case "signed short":
+            case "signed short int":
+            case "int16":
+            case "int16_t":
+            case "ushort":
+            case "unsigned short":
+            case "unsigned short int":
+            case "uint16":
+            case "uint16_t":
+                return 2;
+            default:
+                throw new IllegalArgumentException("Unsupported pixel type for " + name + ": " + type);
+        }
+    }
+}
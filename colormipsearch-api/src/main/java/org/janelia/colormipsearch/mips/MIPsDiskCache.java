@@ -0,0 +1,195 @@
+package org.janelia.colormipsearch.mips;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node local disk cache for MIP files that are read from a slow or remote storage.
+ * The cache keeps a verbatim copy of the source content, keyed by the source path, size and last modified time,
+ * so a source that changes will simply not be found in the cache anymore.
+ * The cache directory can be shared by several processes running on the same host - entries are published
+ * with an atomic rename and the eviction runs under a file lock. The eviction removes the least recently used entries
+ * once the cache grows beyond the configured quota.
+ */
+public class MIPsDiskCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MIPsDiskCache.class);
+    private static final String LOCK_FILE_NAME = ".lock";
+    private static final String CACHE_ENTRY_EXT = ".mip";
+    // the eviction trims the cache below the quota so that it does not have to run again on the next insert
+    private static final double EVICTION_TARGET = 0.9;
+
+    @FunctionalInterface
+    public interface SourceStreamOpener {
+        @Nullable
+        InputStream open() throws IOException;
+    }
+
+    private final Path cacheDir;
+    private final long quotaInBytes;
+    private final Path lockFilePath;
+    // usage as known by this process - other processes may have added entries since the last directory scan
+    private final AtomicLong estimatedUsage;
+
+    public MIPsDiskCache(Path cacheDir, long quotaInBytes) {
+        this.cacheDir = cacheDir;
+        this.quotaInBytes = quotaInBytes;
+        this.lockFilePath = cacheDir.resolve(LOCK_FILE_NAME);
+        try {
+            Files.createDirectories(cacheDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.estimatedUsage = new AtomicLong(listCacheEntries().stream().mapToLong(e -> e.getRight().size()).sum());
+        LOG.info("Use MIPs disk cache {} - {} bytes used out of {}", cacheDir, estimatedUsage.get(), quotaInBytes);
+    }
+
+    /**
+     * Open a stream to the cached copy of the source. If the source is not cached yet it is copied into the cache first.
+     *
+     * @param sourcePath source file - for zip entries this is the archive file
+     * @param entryName entry name for an archive or null for a regular file
+     * @param sourceStreamOpener opens the source content if it's not cached
+     * @return an input stream or null if the source does not exist
+     * @throws IOException
+     */
+    @Nullable
+    public InputStream openCachedStream(Path sourcePath, @Nullable String entryName, SourceStreamOpener sourceStreamOpener) throws IOException {
+        BasicFileAttributes sourceAttrs = Files.readAttributes(sourcePath, BasicFileAttributes.class);
+        Path cacheEntryPath = cacheDir.resolve(getCacheKey(sourcePath, entryName, sourceAttrs) + CACHE_ENTRY_EXT);
+        InputStream cachedStream = openCacheEntry(cacheEntryPath);
+        if (cachedStream != null) {
+            LOG.trace("Cache hit for {}:{} -> {}", sourcePath, entryName, cacheEntryPath);
+            return cachedStream;
+        }
+        LOG.trace("Cache miss for {}:{}", sourcePath, entryName);
+        long entrySize;
+        try (InputStream sourceStream = sourceStreamOpener.open()) {
+            if (sourceStream == null) {
+                return null;
+            }
+            Path tmpEntryPath = Files.createTempFile(cacheDir, cacheEntryPath.getFileName().toString(), ".tmp");
+            try {
+                entrySize = Files.copy(sourceStream, tmpEntryPath, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmpEntryPath, cacheEntryPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpEntryPath);
+            }
+        }
+        if (estimatedUsage.addAndGet(entrySize) > quotaInBytes) {
+            evict();
+        }
+        cachedStream = openCacheEntry(cacheEntryPath);
+        // the entry may have already been evicted by another process in which case read it from the source
+        return cachedStream != null ? cachedStream : sourceStreamOpener.open();
+    }
+
+    @Nullable
+    private InputStream openCacheEntry(Path cacheEntryPath) throws IOException {
+        try {
+            InputStream cachedStream = Files.newInputStream(cacheEntryPath);
+            try {
+                // the modification time of the entry is used as the last access time for the LRU eviction
+                Files.setLastModifiedTime(cacheEntryPath, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                LOG.debug("Could not update access time for {}", cacheEntryPath, e);
+            }
+            return cachedStream;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is below the quota.
+     */
+    synchronized void evict() {
+        // the file lock only protects against other processes, the monitor protects against other threads from this process
+        try (FileChannel lockChannel = FileChannel.open(lockFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            List<Pair<Path, BasicFileAttributes>> cacheEntries = listCacheEntries();
+            long usage = cacheEntries.stream().mapToLong(e -> e.getRight().size()).sum();
+            if (usage > quotaInBytes) {
+                long targetUsage = (long) (quotaInBytes * EVICTION_TARGET);
+                int nEvicted = 0;
+                cacheEntries.sort(Comparator.comparing(e -> e.getRight().lastModifiedTime()));
+                for (Pair<Path, BasicFileAttributes> cacheEntry : cacheEntries) {
+                    if (usage <= targetUsage) {
+                        break;
+                    }
+                    if (Files.deleteIfExists(cacheEntry.getLeft())) {
+                        nEvicted++;
+                    }
+                    usage -= cacheEntry.getRight().size();
+                }
+                LOG.info("Evicted {} entries from {} - {} bytes used out of {}", nEvicted, cacheDir, usage, quotaInBytes);
+            }
+            estimatedUsage.set(usage);
+        } catch (IOException e) {
+            LOG.warn("Error evicting entries from {}", cacheDir, e);
+        }
+    }
+
+    private List<Pair<Path, BasicFileAttributes>> listCacheEntries() {
+        try (Stream<Path> cacheFiles = Files.list(cacheDir)) {
+            return cacheFiles
+                    .filter(p -> p.getFileName().toString().endsWith(CACHE_ENTRY_EXT))
+                    .map(p -> {
+                        try {
+                            Pair<Path, BasicFileAttributes> e = ImmutablePair.of(p, Files.readAttributes(p, BasicFileAttributes.class));
+                            return e;
+                        } catch (IOException e) {
+                            // most likely the entry was removed by another process
+                            return null;
+                        }
+                    })
+                    .filter(e -> e != null)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String getCacheKey(Path sourcePath, @Nullable String entryName, BasicFileAttributes sourceAttrs) {
+        String sourceId = sourcePath.toAbsolutePath().normalize() + "\n" +
+                StringUtils.defaultString(entryName) + "\n" +
+                sourceAttrs.size() + "\n" +
+                sourceAttrs.lastModifiedTime().toMillis();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sourceId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder keyBuilder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                keyBuilder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return keyBuilder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
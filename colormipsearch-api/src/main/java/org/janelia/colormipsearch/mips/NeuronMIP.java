@@ -22,6 +22,10 @@ public class NeuronMIP<N extends AbstractNeuronEntity> {
         return neuronInfo;
     }
 
+    public FileData getImageFileData() {
+        return imageFileData;
+    }
+
     public ImageArray<?> getImageArray() {
         return imageArray;
     }
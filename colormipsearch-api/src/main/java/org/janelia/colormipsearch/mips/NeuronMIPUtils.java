@@ -1,12 +1,24 @@
 package org.janelia.colormipsearch.mips;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
@@ -21,12 +33,27 @@ import org.janelia.colormipsearch.imageprocessing.ImageArrayUtils;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
 import org.janelia.colormipsearch.model.ComputeFileType;
 import org.janelia.colormipsearch.model.FileData;
+import org.janelia.colormipsearch.model.NeuronMIPStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class NeuronMIPUtils {
 
     private static final Logger LOG = LoggerFactory.getLogger(NeuronMIPUtils.class);
+    // max number of archive entries that were read and wait to be decoded on another thread
+    private static final int MAX_PENDING_ARCHIVE_DECODES = 8;
+
+    // optional node local cache for the MIP files
+    private static MIPsDiskCache mipsDiskCache;
+
+    /**
+     * Set the disk cache used for reading MIP files. If this is null the files are always read from the source.
+     *
+     * @param diskCache
+     */
+    public static void setMIPsDiskCache(@Nullable MIPsDiskCache diskCache) {
+        mipsDiskCache = diskCache;
+    }
 
     @FunctionalInterface
     public interface NeuronImageFileLoader<N extends AbstractNeuronEntity> {
@@ -76,6 +103,112 @@ public class NeuronMIPUtils {
         }
     }
 
+    /**
+     * Load the compute files for a batch of neurons. The requests are grouped by the archive that contains the file
+     * so that each archive is only opened once, and the images are decoded concurrently using the given executor.
+     * The returned futures are in the same order as the requests and each one completes as soon as its image is loaded,
+     * so the caller can either wait for all of them or consume them as they complete.
+     * All requested images may be in memory at the same time, so callers that have many requests should submit them
+     * in bounded batches. The executor should be bounded too, and a direct executor loads the batch sequentially
+     * on the calling thread.
+     *
+     * @param requests neurons and the compute file type to be loaded for each of them
+     * @param executor executor used for reading and decoding the images
+     * @return a future for each request
+     */
+    public static <N extends AbstractNeuronEntity> List<CompletableFuture<NeuronMIP<N>>> submitComputeFilesLoad(List<Pair<N, ComputeFileType>> requests,
+                                                                                                                   Executor executor) {
+        List<CompletableFuture<NeuronMIP<N>>> results = new ArrayList<>(requests.size());
+        // requests for entries from the same archive
+        Map<Path, List<Integer>> archiveRequests = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            N neuron = requests.get(i).getLeft();
+            ComputeFileType computeFileType = requests.get(i).getRight();
+            FileData neuronFile = neuron != null ? neuron.getComputeFileData(computeFileType) : null;
+            if (neuronFile == null) {
+                results.add(CompletableFuture.completedFuture(loadComputeFile(neuron, computeFileType)));
+                continue;
+            }
+            Path archivePath = getArchivePath(neuronFile);
+            if (archivePath != null && mipsDiskCache == null) {
+                results.add(new CompletableFuture<>());
+                archiveRequests.computeIfAbsent(archivePath, p -> new ArrayList<>()).add(i);
+            } else {
+                results.add(CompletableFuture.supplyAsync(() -> new NeuronMIP<>(neuron, neuronFile, loadImageFromFileData(neuronFile)), executor));
+            }
+        }
+        archiveRequests.forEach((archivePath, archiveRequestIndexes) -> executor.execute(() -> {
+            AtomicInteger pendingDecodes = new AtomicInteger();
+            try (ZipFile archiveFile = new ZipFile(archivePath.toFile())) {
+                for (Integer requestIndex : archiveRequestIndexes) {
+                    N neuron = requests.get(requestIndex).getLeft();
+                    FileData neuronFile = neuron.getComputeFileData(requests.get(requestIndex).getRight());
+                    CompletableFuture<NeuronMIP<N>> result = results.get(requestIndex);
+                    try {
+                        ZipEntry zipEntry = findZipEntry(archiveFile, neuronFile.getEntryName());
+                        if (zipEntry == null) {
+                            LOG.debug("No entry {} found in {}", neuronFile.getEntryName(), archivePath);
+                            result.complete(new NeuronMIP<>(neuron, neuronFile, null));
+                            continue;
+                        }
+                        // read the content while the archive is open and decode it on a different thread, unless too many
+                        // entries already wait to be decoded, in which case it is decoded on this thread
+                        // so that the raw bytes buffered for an archive stay bounded
+                        byte[] imageBytes;
+                        try (InputStream entryStream = archiveFile.getInputStream(zipEntry)) {
+                            imageBytes = readAllBytes(entryStream);
+                        }
+                        if (pendingDecodes.get() >= MAX_PENDING_ARCHIVE_DECODES) {
+                            result.complete(new NeuronMIP<>(neuron, neuronFile, decodeImage(neuronFile, new ByteArrayInputStream(imageBytes))));
+                            continue;
+                        }
+                        pendingDecodes.incrementAndGet();
+                        CompletableFuture
+                                .supplyAsync(() -> new NeuronMIP<>(neuron, neuronFile, decodeImage(neuronFile, new ByteArrayInputStream(imageBytes))), executor)
+                                .whenComplete((neuronMIP, exc) -> {
+                                    pendingDecodes.decrementAndGet();
+                                    if (exc != null) {
+                                        result.completeExceptionally(exc);
+                                    } else {
+                                        result.complete(neuronMIP);
+                                    }
+                                });
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            } catch (Exception e) {
+                archiveRequestIndexes.forEach(requestIndex -> results.get(requestIndex).completeExceptionally(e));
+            }
+        }));
+        return results;
+    }
+
+    /**
+     * Load the compute files for a batch of neurons and wait until all of them are loaded.
+     * Failed or missing images are returned as a NeuronMIP with no image.
+     *
+     * @param requests neurons and the compute file type to be loaded for each of them
+     * @param executor executor used for reading and decoding the images
+     * @return the loaded MIPs in the same order as the requests
+     */
+    public static <N extends AbstractNeuronEntity> List<NeuronMIP<N>> loadComputeFiles(List<Pair<N, ComputeFileType>> requests,
+                                                                                       Executor executor) {
+        List<CompletableFuture<NeuronMIP<N>>> pendingResults = submitComputeFilesLoad(requests, executor);
+        List<NeuronMIP<N>> results = new ArrayList<>(pendingResults.size());
+        for (int i = 0; i < pendingResults.size(); i++) {
+            N neuron = requests.get(i).getLeft();
+            ComputeFileType computeFileType = requests.get(i).getRight();
+            try {
+                results.add(pendingResults.get(i).join());
+            } catch (Exception e) {
+                LOG.error("Error loading {}:{}", neuron, computeFileType, e);
+                results.add(new NeuronMIP<>(neuron, neuron != null ? neuron.getComputeFileData(computeFileType) : null, null));
+            }
+        }
+        return results;
+    }
+
     public static ImageArray<?> loadImageFromFileData(FileData fd) {
         long startTime = System.currentTimeMillis();
         InputStream inputStream;
@@ -89,10 +222,7 @@ public class NeuronMIPUtils {
             throw new IllegalStateException(e);
         }
         try {
-            LOG.trace("Load image array from {}", fd);
-            return ImageArrayUtils.readImageArray(fd.getName(), fd.getName(), inputStream);
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+            return decodeImage(fd, inputStream);
         } finally {
             try {
                 inputStream.close();
@@ -102,6 +232,168 @@ public class NeuronMIPUtils {
         }
     }
 
+    private static ImageArray<?> decodeImage(FileData fd, InputStream inputStream) {
+        try {
+            LOG.trace("Load image array from {}", fd);
+            return ImageArrayUtils.readImageArray(fd.getName(), fd.getName(), inputStream);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readAllBytes(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytesStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1) {
+            bytesStream.write(buffer, 0, n);
+        }
+        return bytesStream.toByteArray();
+    }
+
+    /**
+     * @return the archive path if the file data references an entry from an existing archive, otherwise null
+     */
+    @Nullable
+    private static Path getArchivePath(FileData fileData) {
+        if (fileData.getDataType() == FileData.FileDataType.zipEntry) {
+            Path dataPath = Paths.get(fileData.getFileName());
+            return Files.isRegularFile(dataPath) ? dataPath : null;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Find the archive entry by its name or, if there's no entry with that name, by its file name only,
+     * which requires a scan of the whole archive.
+     */
+    @Nullable
+    private static ZipEntry findZipEntry(ZipFile archiveFile, String entryName) {
+        ZipEntry ze = archiveFile.getEntry(entryName);
+        if (ze != null) {
+            return ze;
+        } else {
+            LOG.warn("Full {} archive scan for {}", archiveFile.getName(), entryName);
+            String imageFn = Paths.get(entryName).getFileName().toString();
+            return archiveFile.stream()
+                    .filter(aze -> !aze.isDirectory())
+                    .filter(aze -> imageFn.equals(Paths.get(aze.getName()).getFileName().toString()))
+                    .findFirst()
+                    .orElse(null);
+        }
+    }
+
+    /**
+     * Compute the stats of a color depth MIP. A pixel is counted as a signal pixel if any of its channels is above the threshold.
+     * The stats include a coarse occupancy grid of the signal pixels.
+     *
+     * @param imageArray MIP image
+     * @param threshold signal threshold
+     * @return MIP stats
+     */
+    public static NeuronMIPStats computeMIPStats(ImageArray<?> imageArray, int threshold) {
+        int width = imageArray.getWidth();
+        int height = imageArray.getHeight();
+        long pixelCount = 0;
+        int minX = width;
+        int minY = height;
+        int maxX = -1;
+        int maxY = -1;
+        int[] occupancyGrid = new int[NeuronMIPStats.OCCUPANCY_GRID_SIZE * NeuronMIPStats.OCCUPANCY_GRID_SIZE];
+        for (int y = 0, pi = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, pi++) {
+                int p = imageArray.get(pi);
+                int r = (p >> 16) & 0xFF;
+                int g = (p >> 8) & 0xFF;
+                int b = p & 0xFF;
+                if (r > threshold || g > threshold || b > threshold) {
+                    pixelCount++;
+                    occupancyGrid[NeuronMIPStats.getOccupancyCellIndex(x, y, width, height)]++;
+                    if (x < minX) minX = x;
+                    if (x > maxX) maxX = x;
+                    if (y < minY) minY = y;
+                    maxY = y;
+                }
+            }
+        }
+        NeuronMIPStats mipStats = new NeuronMIPStats();
+        mipStats.setThreshold(threshold);
+        mipStats.setWidth(width);
+        mipStats.setHeight(height);
+        mipStats.setPixelCount(pixelCount);
+        if (pixelCount > 0) {
+            mipStats.setMinX(minX);
+            mipStats.setMinY(minY);
+            mipStats.setMaxX(maxX);
+            mipStats.setMaxY(maxY);
+        }
+        mipStats.setDecodedByteSize(ImageArrayUtils.getPixelsByteSize(imageArray));
+        mipStats.setOccupancyGrid(occupancyGrid);
+        return mipStats;
+    }
+
+    /**
+     * Compute a fingerprint of the raw content of a file without decoding the image. Files with the same size and the same
+     * bytes have the same fingerprint, but identical images stored with different encodings have different fingerprints.
+     *
+     * @param fileData
+     * @return the fingerprint as a hex string or null if the file does not exist
+     */
+    @Nullable
+    public static String computeFileContentFingerprint(@Nullable FileData fileData) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long size = 0;
+        try (InputStream inputStream = openInputStream(fileData)) {
+            if (inputStream == null) {
+                return null;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            for (int n = inputStream.read(buffer); n != -1; n = inputStream.read(buffer)) {
+                md.update(buffer, 0, n);
+                size += n;
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading {}", fileData, e);
+            return null;
+        }
+        StringBuilder fingerprintBuilder = new StringBuilder().append(size).append(':');
+        for (byte b : md.digest()) {
+            fingerprintBuilder.append(String.format("%02x", b));
+        }
+        return fingerprintBuilder.toString();
+    }
+
+    /**
+     * Get the size and the last modified time of the file that holds the data - for a zip entry this is the archive.
+     * Unlike {@link #computeFileContentFingerprint(FileData)} it does not read the content but it still changes
+     * when the file is rewritten in place.
+     *
+     * @param fileData
+     * @return the version as "size:lastModifiedMillis" or null if the file does not exist
+     */
+    @Nullable
+    public static String getFileVersion(@Nullable FileData fileData) {
+        if (fileData == null) {
+            return null;
+        }
+        Path dataPath = Paths.get(fileData.getFileName());
+        if (Files.isDirectory(dataPath)) {
+            dataPath = dataPath.resolve(fileData.getEntryName());
+        }
+        try {
+            BasicFileAttributes dataAttrs = Files.readAttributes(dataPath, BasicFileAttributes.class);
+            return dataAttrs.size() + ":" + dataAttrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public static boolean hasImageArray(@Nullable NeuronMIP<?> neuronMIP) {
         return neuronMIP != null && neuronMIP.hasImageArray();
     }
@@ -154,17 +446,7 @@ public class NeuronMIPUtils {
             return false;
         }
         try {
-            if (archiveFile.getEntry(entryName) != null) {
-                return true;
-            } else {
-                // slightly longer test
-                LOG.warn("Full {} archive scan for {}", archiveFilePath, entryName);
-                String imageFn = Paths.get(entryName).getFileName().toString();
-                return archiveFile.stream()
-                        .filter(ze -> !ze.isDirectory())
-                        .map(ze -> Paths.get(ze.getName()).getFileName().toString())
-                        .anyMatch(imageFn::equals);
-            }
+            return findZipEntry(archiveFile, entryName) != null;
         } finally {
             try {
                 archiveFile.close();
@@ -199,38 +481,45 @@ public class NeuronMIPUtils {
     }
 
     private static InputStream openFileStream(Path fp) throws IOException {
-        return Files.newInputStream(fp);
+        if (mipsDiskCache != null) {
+            return mipsDiskCache.openCachedStream(fp, null, () -> Files.newInputStream(fp));
+        } else {
+            return Files.newInputStream(fp);
+        }
     }
 
     private static InputStream openZipEntryStream(Path zipFilePath, String entryName) throws IOException {
-        try (ZipFile archiveFile = new ZipFile(zipFilePath.toFile())) {
-            ZipEntry ze = archiveFile.getEntry(entryName);
-            if (ze != null) {
-                return archiveFile.getInputStream(ze);
-            } else {
-                LOG.warn("Full {} archive scan for {}", zipFilePath, entryName);
-                String imageFn = Paths.get(entryName).getFileName().toString();
-                return archiveFile.stream()
-                        .filter(aze -> !aze.isDirectory())
-                        .filter(aze -> imageFn.equals(Paths.get(aze.getName()).getFileName().toString()))
-                        .findFirst()
-                        .map(aze -> getEntryStream(archiveFile, aze))
-                        .orElseGet(() -> {
-                            try {
-                                archiveFile.close();
-                            } catch (IOException ignore) {
-                            }
-                            return null;
-                        });
-            }
+        if (mipsDiskCache != null) {
+            return mipsDiskCache.openCachedStream(zipFilePath, entryName, () -> openZipEntrySourceStream(zipFilePath, entryName));
+        } else {
+            return openZipEntrySourceStream(zipFilePath, entryName);
         }
     }
 
-    private static InputStream getEntryStream(ZipFile archiveFile, ZipEntry zipEntry) {
+    /**
+     * The returned stream owns the archive, which is closed when the stream is closed.
+     */
+    private static InputStream openZipEntrySourceStream(Path zipFilePath, String entryName) throws IOException {
+        ZipFile archiveFile = new ZipFile(zipFilePath.toFile());
         try {
-            return archiveFile.getInputStream(zipEntry);
-        } catch (IOException e) {
-            return null;
+            ZipEntry ze = findZipEntry(archiveFile, entryName);
+            if (ze == null) {
+                archiveFile.close();
+                return null;
+            }
+            return new FilterInputStream(archiveFile.getInputStream(ze)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        archiveFile.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            archiveFile.close();
+            throw e;
         }
     }
 
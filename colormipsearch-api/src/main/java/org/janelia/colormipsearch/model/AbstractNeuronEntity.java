@@ -48,6 +48,8 @@ public abstract class AbstractNeuronEntity extends AbstractBaseEntity {
     private final Map<ProcessingType, Set<String>> processedTags = new HashMap<>();
     private final Set<String> datasetLabels = new HashSet<>();
     private Set<String> validationErrors;
+    // stats of the color depth MIP used for estimating the cost of processing it - not set until they are computed
+    private NeuronMIPStats mipStats;
 
     public String getMipId() {
         return mipId;
@@ -206,6 +208,18 @@ public abstract class AbstractNeuronEntity extends AbstractBaseEntity {
         validationErrors = null;
     }
 
+    public NeuronMIPStats getMipStats() {
+        return mipStats;
+    }
+
+    public void setMipStats(NeuronMIPStats mipStats) {
+        this.mipStats = mipStats;
+    }
+
+    public boolean hasMipStats() {
+        return mipStats != null;
+    }
+
     public Map<ProcessingType, Set<String>> getProcessedTags() {
         return processedTags;
     }
@@ -261,6 +275,10 @@ public abstract class AbstractNeuronEntity extends AbstractBaseEntity {
         // datasetLabels is a collection but will always be replaced instead of appended to existing values
         fieldList.add(new EntityField<>("datasetLabels", datasetLabels));
         fieldList.add(new EntityField<>("validationErrors", validationErrors, EntityField.FieldOp.ADD_TO_SET));
+        if (mipStats != null) {
+            // only update the stats if they were computed so that they are not reset when the neuron metadata is re-imported
+            fieldList.add(new EntityField<>("mipStats", mipStats));
+        }
         computeFiles.forEach((ft, fd) ->
                 fieldList.add(new EntityField<>("computeFiles." + ft.name(), fd)));
         processedTags.forEach((pt, t) ->
@@ -328,6 +346,7 @@ public abstract class AbstractNeuronEntity extends AbstractBaseEntity {
         this.setValidationErrors(that.getValidationErrors());
         this.setProcessedTags(that.getProcessedTags());
         this.addDatasetLabels(that.getDatasetLabels());
+        this.mipStats = that.getMipStats();
     }
 
 }
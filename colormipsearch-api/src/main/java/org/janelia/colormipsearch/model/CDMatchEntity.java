@@ -16,6 +16,8 @@ public class CDMatchEntity<M extends AbstractNeuronEntity, T extends AbstractNeu
     private Long bidirectionalAreaGap;
     private Long gradientAreaGap;
     private Long highExpressionArea;
+    // fingerprint of the inputs used for calculating the gradient scores
+    private String gradientScoreFingerprint;
     private boolean matchFound;
     private String errors;
 
@@ -71,6 +73,14 @@ public class CDMatchEntity<M extends AbstractNeuronEntity, T extends AbstractNeu
         this.highExpressionArea = highExpressionArea;
     }
 
+    public String getGradientScoreFingerprint() {
+        return gradientScoreFingerprint;
+    }
+
+    public void setGradientScoreFingerprint(String gradientScoreFingerprint) {
+        this.gradientScoreFingerprint = gradientScoreFingerprint;
+    }
+
     @JsonIgnore
     public Long getGradScore() {
         if (!hasGradScore()) {
@@ -108,6 +118,7 @@ public class CDMatchEntity<M extends AbstractNeuronEntity, T extends AbstractNeu
         this.highExpressionArea = null;
         this.bidirectionalAreaGap = null;
         this.normalizedScore = null;
+        this.gradientScoreFingerprint = null;
     }
 
     @JsonIgnore
@@ -150,6 +161,7 @@ public class CDMatchEntity<M extends AbstractNeuronEntity, T extends AbstractNeu
         clone.bidirectionalAreaGap = this.bidirectionalAreaGap;
         clone.gradientAreaGap = this.gradientAreaGap;
         clone.highExpressionArea = this.highExpressionArea;
+        clone.gradientScoreFingerprint = this.gradientScoreFingerprint;
         clone.matchFound = this.matchFound;
         clone.errors = this.errors;
         // apply the copier
@@ -0,0 +1,177 @@
+package org.janelia.colormipsearch.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Statistics of a neuron's color depth MIP that give an estimate of how expensive the MIP is to load and to compare:
+ * how many pixels are above the threshold used for computing the stats, the bounding box of these pixels,
+ * how these pixels are spread over a coarse grid and the size of the decoded image.
+ */
+public class NeuronMIPStats {
+    // number of cells of the occupancy grid along each axis
+    public static final int OCCUPANCY_GRID_SIZE = 16;
+
+    /**
+     * @return the index of the occupancy grid cell that contains the pixel (x, y) from an image with the given dimensions
+     */
+    public static int getOccupancyCellIndex(int x, int y, int width, int height) {
+        return (int) ((long) y * OCCUPANCY_GRID_SIZE / height) * OCCUPANCY_GRID_SIZE + (int) ((long) x * OCCUPANCY_GRID_SIZE / width);
+    }
+
+    // threshold used for selecting the signal pixels - a pixel is a signal pixel if any of its channels is above the threshold
+    private int threshold;
+    private int width;
+    private int height;
+    private long pixelCount;
+    // bounding box of the signal pixels - only meaningful if pixelCount > 0
+    private int minX;
+    private int minY;
+    private int maxX;
+    private int maxY;
+    // size in bytes of the decoded image
+    private long decodedByteSize;
+    // number of signal pixels in each cell of an OCCUPANCY_GRID_SIZE x OCCUPANCY_GRID_SIZE grid laid over the image (row major)
+    private int[] occupancyGrid;
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public long getPixelCount() {
+        return pixelCount;
+    }
+
+    public void setPixelCount(long pixelCount) {
+        this.pixelCount = pixelCount;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public void setMinX(int minX) {
+        this.minX = minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public void setMinY(int minY) {
+        this.minY = minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public void setMaxX(int maxX) {
+        this.maxX = maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    public void setMaxY(int maxY) {
+        this.maxY = maxY;
+    }
+
+    public long getDecodedByteSize() {
+        return decodedByteSize;
+    }
+
+    public void setDecodedByteSize(long decodedByteSize) {
+        this.decodedByteSize = decodedByteSize;
+    }
+
+    public int[] getOccupancyGrid() {
+        return occupancyGrid;
+    }
+
+    public void setOccupancyGrid(int[] occupancyGrid) {
+        this.occupancyGrid = occupancyGrid;
+    }
+
+    @JsonIgnore
+    public boolean hasOccupancyGrid() {
+        return occupancyGrid != null && occupancyGrid.length == OCCUPANCY_GRID_SIZE * OCCUPANCY_GRID_SIZE;
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return pixelCount == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+
+        if (o == null || getClass() != o.getClass()) return false;
+
+        NeuronMIPStats that = (NeuronMIPStats) o;
+
+        return new EqualsBuilder()
+                .append(threshold, that.threshold)
+                .append(width, that.width)
+                .append(height, that.height)
+                .append(pixelCount, that.pixelCount)
+                .append(minX, that.minX)
+                .append(minY, that.minY)
+                .append(maxX, that.maxX)
+                .append(maxY, that.maxY)
+                .append(decodedByteSize, that.decodedByteSize)
+                .append(occupancyGrid, that.occupancyGrid)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 37)
+                .append(threshold)
+                .append(width)
+                .append(height)
+                .append(pixelCount)
+                .append(minX)
+                .append(minY)
+                .append(maxX)
+                .append(maxY)
+                .append(decodedByteSize)
+                .append(occupancyGrid)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("threshold", threshold)
+                .append("pixelCount", pixelCount)
+                .append("bbox", "(" + minX + "," + minY + ")-(" + maxX + "," + maxY + ")")
+                .append("decodedByteSize", decodedByteSize)
+                .toString();
+    }
+}
@@ -1,15 +1,19 @@
 package org.janelia.colormipsearch.results;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -77,34 +81,167 @@ public class ItemsHandling {
                 .collect(Collectors.groupingBy(docId -> index.getAndIncrement() / partitionSize));
     }
 
+    /**
+     * Group the elements by the given criteria and select the top ranked groups, where a group is ranked by the best
+     * score of its elements. The elements of a group are ordered by their score, in descending order, and elements with
+     * the same score keep their original order.
+     *
+     * @param l                elements to select from
+     * @param groupingCriteria criteria used for grouping the elements - elements with a blank key are grouped as "UNKNOWN"
+     * @param scoreExtractor   element score
+     * @param topResults       number of groups to select; if <= 0 all groups are selected
+     * @param limitSubResults  number of elements to keep from every group; if <= 0 all elements are kept
+     * @param <T>              element type
+     * @return the selected groups in descending order of their score
+     */
     public static <T> List<ScoredEntry<List<T>>> selectTopRankedElements(List<T> l,
                                                                          Function<T, String> groupingCriteria,
-                                                                         Function<T, Number> scoreExtractor,
+                                                                         ToDoubleFunction<T> scoreExtractor,
                                                                          int topResults,
                                                                          int limitSubResults) {
-        Comparator<T> csrComparison = Comparator.comparing(scoreExtractor.andThen(Number::doubleValue));
-        Map<String, List<T>> groupedResults = l.stream()
-                .collect(Collectors.groupingBy(
-                        val -> StringUtils.defaultIfBlank(groupingCriteria.apply(val), "UNKNOWN"),
-                        Collectors.collectingAndThen(Collectors.toList(), r -> {
-                            r.sort(csrComparison.reversed());
-                            if (limitSubResults > 0 && limitSubResults < r.size()) {
-                                return r.subList(0, limitSubResults);
-                            } else {
-                                return r;
-                            }
-                        })));
-        List<ScoredEntry<List<T>>> bestResultsForSpecifiedCriteria = groupedResults.entrySet().stream()
-                .map(e -> {
-                    T maxValue = Collections.max(e.getValue(), csrComparison);
-                    return new ScoredEntry<>(e.getKey(), scoreExtractor.apply(maxValue), e.getValue());
-                })
-                .sorted((se1, se2) -> Double.compare(se2.getScore().doubleValue(), se1.getScore().doubleValue())) // sort in reverse order
-                .collect(Collectors.toList());
-        if (topResults > 0 && bestResultsForSpecifiedCriteria.size() > topResults) {
-            return bestResultsForSpecifiedCriteria.subList(0, topResults);
-        } else {
-            return bestResultsForSpecifiedCriteria;
+        List<T> elems = l instanceof RandomAccess ? l : new ArrayList<>(l);
+        int nElems = elems.size();
+        // extract the scores only once
+        double[] scores = new double[nElems];
+        // the groups must be visited in the same order as the ones created by Collectors.groupingBy,
+        // which is why they are kept in a HashMap to which they are added in the order of the elements
+        Map<String, IndexesGroup> groups = new HashMap<>();
+        for (int i = 0; i < nElems; i++) {
+            T e = elems.get(i);
+            scores[i] = scoreExtractor.applyAsDouble(e);
+            groups.computeIfAbsent(StringUtils.defaultIfBlank(groupingCriteria.apply(e), "UNKNOWN"), k -> new IndexesGroup())
+                    .add(i, scores);
+        }
+        // rank the groups by their best score and only order the elements of the selected groups
+        String[] groupNames = new String[groups.size()];
+        IndexesGroup[] groupIndexes = new IndexesGroup[groups.size()];
+        double[] groupScores = new double[groups.size()];
+        RankedIndexes rankedGroups = new RankedIndexes(groupScores, topResults);
+        int groupIndex = 0;
+        for (Map.Entry<String, IndexesGroup> groupEntry : groups.entrySet()) {
+            groupNames[groupIndex] = groupEntry.getKey();
+            groupIndexes[groupIndex] = groupEntry.getValue();
+            groupScores[groupIndex] = scores[groupEntry.getValue().best];
+            rankedGroups.offer(groupIndex);
+            groupIndex++;
+        }
+        List<ScoredEntry<List<T>>> bestResultsForSpecifiedCriteria = new ArrayList<>();
+        for (int gi : rankedGroups.toRankedArray()) {
+            RankedIndexes rankedGroupElems = new RankedIndexes(scores, limitSubResults);
+            IndexesGroup group = groupIndexes[gi];
+            for (int i = 0; i < group.size; i++) {
+                rankedGroupElems.offer(group.indexes[i]);
+            }
+            int[] selectedGroupElems = rankedGroupElems.toRankedArray();
+            List<T> groupResults = new ArrayList<>(selectedGroupElems.length);
+            for (int ei : selectedGroupElems) {
+                groupResults.add(elems.get(ei));
+            }
+            bestResultsForSpecifiedCriteria.add(new ScoredEntry<>(groupNames[gi], groupScores[gi], groupResults));
+        }
+        return bestResultsForSpecifiedCriteria;
+    }
+
+    /**
+     * Indexes of the elements from a group in their original order and the index of the first element with the best score.
+     */
+    private static class IndexesGroup {
+        private int[] indexes = new int[4];
+        private int size = 0;
+        private int best = -1;
+
+        void add(int index, double[] scores) {
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, 2 * size);
+            }
+            indexes[size++] = index;
+            if (best == -1 || Double.compare(scores[index], scores[best]) > 0) {
+                best = index;
+            }
+        }
+    }
+
+    /**
+     * Bounded heap of indexes into an array of scores that keeps the best ranked indexes: a higher score ranks better
+     * and for equal scores the lower index ranks better. The root of the heap is the worst ranked index so that
+     * it can be replaced when a better one is offered.
+     */
+    private static class RankedIndexes {
+        private final double[] scores;
+        private final int capacity;
+        private int[] heap;
+        private int size;
+
+        RankedIndexes(double[] scores, int capacity) {
+            this.scores = scores;
+            this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+            this.heap = new int[Math.min(this.capacity, 16)];
+            this.size = 0;
+        }
+
+        void offer(int index) {
+            if (size < capacity) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min((long) capacity, 2L * heap.length));
+                }
+                heap[size] = index;
+                siftUp(size++);
+            } else if (ranksBefore(index, heap[0])) {
+                heap[0] = index;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * @return the indexes from the best ranked to the worst ranked; the heap is emptied
+         */
+        int[] toRankedArray() {
+            int[] ranked = new int[size];
+            while (size > 0) {
+                ranked[size - 1] = heap[0];
+                heap[0] = heap[--size];
+                siftDown(0);
+            }
+            return ranked;
+        }
+
+        private boolean ranksBefore(int i1, int i2) {
+            int scoreComparison = Double.compare(scores[i1], scores[i2]);
+            return scoreComparison > 0 || scoreComparison == 0 && i1 < i2;
+        }
+
+        private void siftUp(int pos) {
+            int index = heap[pos];
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!ranksBefore(heap[parent], index)) {
+                    break;
+                }
+                heap[pos] = heap[parent];
+                pos = parent;
+            }
+            heap[pos] = index;
+        }
+
+        private void siftDown(int pos) {
+            if (size == 0) {
+                return;
+            }
+            int index = heap[pos];
+            int half = size >>> 1;
+            while (pos < half) {
+                int child = 2 * pos + 1;
+                int right = child + 1;
+                if (right < size && ranksBefore(heap[child], heap[right])) {
+                    child = right;
+                }
+                if (!ranksBefore(index, heap[child])) {
+                    break;
+                }
+                heap[pos] = heap[child];
+                pos = child;
+            }
+            heap[pos] = index;
         }
     }
 
@@ -0,0 +1,151 @@
+package org.janelia.colormipsearch.cds;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.janelia.colormipsearch.imageprocessing.Vol3DSlicesReader;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class Bidirectional3DShapeScoreCalculatorTest {
+
+    private static final int W = 20;
+    private static final int H = 10;
+    private static final int D = 8;
+
+    @Test
+    public void identicalVolumesHaveNoGap() {
+        byte[][][] voxels = new byte[D][H][W];
+        setCube(voxels, 2, 2, 2, 4, (byte) 255);
+        Bidirectional3DShapeScoreCalculator calculator = new Bidirectional3DShapeScoreCalculator(0, 0, 0, false);
+        assertEquals(0, calculator.calculateBidirectionalAreaGap(createVolume("m", voxels, false), createVolume("t", voxels, true)));
+    }
+
+    @Test
+    public void gapsAreCountedInBothDirections() {
+        byte[][][] maskVoxels = new byte[D][H][W];
+        byte[][][] targetVoxels = new byte[D][H][W];
+        setCube(maskVoxels, 1, 1, 1, 3, (byte) 200); // 27 voxels
+        setCube(targetVoxels, 10, 1, 1, 2, (byte) 200); // 8 voxels
+        Bidirectional3DShapeScoreCalculator noToleranceCalculator = new Bidirectional3DShapeScoreCalculator(100, 0, 0, false);
+        assertEquals(35, noToleranceCalculator.calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)));
+        // within 7 pixels only the mask voxels with x = 3 and the target voxels with x = 10 have neighbors
+        Bidirectional3DShapeScoreCalculator smallXYToleranceCalculator = new Bidirectional3DShapeScoreCalculator(100, 7, 0, false);
+        assertEquals(21 + 4, smallXYToleranceCalculator.calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)));
+        // the target cube spans z = 1..2 so the mask slice z = 3 has no neighbors in the target
+        Bidirectional3DShapeScoreCalculator xyToleranceCalculator = new Bidirectional3DShapeScoreCalculator(100, 10, 0, false);
+        assertEquals(9, xyToleranceCalculator.calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)));
+        Bidirectional3DShapeScoreCalculator xyzToleranceCalculator = new Bidirectional3DShapeScoreCalculator(100, 10, 1, false);
+        assertEquals(0, xyzToleranceCalculator.calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)));
+        // pixels that are not above the threshold are ignored
+        Bidirectional3DShapeScoreCalculator highThresholdCalculator = new Bidirectional3DShapeScoreCalculator(200, 0, 0, false);
+        assertEquals(0, highThresholdCalculator.calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)));
+    }
+
+    @Test
+    public void mirroredMaskGap() {
+        byte[][][] maskVoxels = new byte[D][H][W];
+        byte[][][] targetVoxels = new byte[D][H][W];
+        setCube(maskVoxels, 0, 0, 0, 2, (byte) 255);
+        setCube(targetVoxels, W - 2, 0, 0, 2, (byte) 255);
+        assertEquals(16, new Bidirectional3DShapeScoreCalculator(0, 1, 1, false)
+                .calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)));
+        assertEquals(0, new Bidirectional3DShapeScoreCalculator(0, 1, 1, true)
+                .calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)));
+    }
+
+    @Test
+    public void volumesWithDifferentSizes() {
+        Bidirectional3DShapeScoreCalculator calculator = new Bidirectional3DShapeScoreCalculator(0, 0, 0, false);
+        assertEquals(-1, calculator.calculateBidirectionalAreaGap(
+                createVolume("m", new byte[D][H][W], false),
+                createVolume("t", new byte[D - 1][H][W], false)));
+    }
+
+    @Test
+    public void preparedMaskVolumeIsReadOnce() {
+        byte[][][] maskVoxels = new byte[D][H][W];
+        setCube(maskVoxels, 1, 1, 1, 3, (byte) 200);
+        byte[] maskNrrd = createNrrd(maskVoxels, false);
+        AtomicInteger nOpened = new AtomicInteger();
+        Vol3DSlicesReader maskVolume = new Vol3DSlicesReader("m", () -> {
+            nOpened.incrementAndGet();
+            return new ByteArrayInputStream(maskNrrd);
+        });
+        Bidirectional3DShapeScoreCalculator calculator = new Bidirectional3DShapeScoreCalculator(100, 7, 1, true);
+        Bidirectional3DShapeScoreCalculator.PreparedMaskVolume preparedMaskVolume = calculator.prepareMaskVolume(maskVolume);
+        maskVolume.close();
+        for (int x0 : new int[] {0, 5, 10, W - 3}) {
+            byte[][][] targetVoxels = new byte[D][H][W];
+            setCube(targetVoxels, x0, 2, 0, 3, (byte) 200);
+            assertEquals(
+                    calculator.calculateBidirectionalAreaGap(createVolume("m", maskVoxels, false), createVolume("t", targetVoxels, false)),
+                    calculator.calculateBidirectionalAreaGap(preparedMaskVolume, createVolume("t", targetVoxels, true)));
+        }
+        assertEquals(-1, calculator.calculateBidirectionalAreaGap(preparedMaskVolume, createVolume("t", new byte[D][H + 1][W], false)));
+        assertEquals(1, nOpened.get());
+    }
+
+    @Test
+    public void volumesAreOpenedOnlyWhenNeeded() {
+        AtomicInteger nOpened = new AtomicInteger();
+        Vol3DSlicesReader volume = new Vol3DSlicesReader("v", () -> {
+            nOpened.incrementAndGet();
+            return new ByteArrayInputStream(createNrrd(new byte[D][H][W], false));
+        });
+        assertEquals(0, nOpened.get());
+        assertEquals(D, volume.getDepth());
+        volume.nextSliceForeground(0);
+        assertEquals(W, volume.getWidth());
+        volume.close();
+        assertEquals(1, nOpened.get());
+    }
+
+    private void setCube(byte[][][] voxels, int x0, int y0, int z0, int size, byte value) {
+        for (int z = z0; z < z0 + size; z++) {
+            for (int y = y0; y < y0 + size; y++) {
+                for (int x = x0; x < x0 + size; x++) {
+                    voxels[z][y][x] = value;
+                }
+            }
+        }
+    }
+
+    private Vol3DSlicesReader createVolume(String name, byte[][][] voxels, boolean gzip) {
+        byte[] nrrd = createNrrd(voxels, gzip);
+        return new Vol3DSlicesReader(name, () -> new ByteArrayInputStream(nrrd));
+    }
+
+    private byte[] createNrrd(byte[][][] voxels, boolean gzip) {
+        int depth = voxels.length;
+        int height = voxels[0].length;
+        int width = voxels[0][0].length;
+        try {
+            ByteArrayOutputStream nrrdStream = new ByteArrayOutputStream();
+            nrrdStream.write(("NRRD0004\n" +
+                    "# test volume\n" +
+                    "type: uint8\n" +
+                    "dimension: 3\n" +
+                    "sizes: " + width + " " + height + " " + depth + "\n" +
+                    "encoding: " + (gzip ? "gzip" : "raw") + "\n" +
+                    "\n").getBytes(StandardCharsets.US_ASCII));
+            OutputStream dataStream = gzip ? new GZIPOutputStream(nrrdStream) : nrrdStream;
+            for (byte[][] slice : voxels) {
+                for (byte[] row : slice) {
+                    dataStream.write(row);
+                }
+            }
+            dataStream.close();
+            return nrrdStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
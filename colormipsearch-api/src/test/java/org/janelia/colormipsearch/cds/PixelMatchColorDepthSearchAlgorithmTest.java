@@ -15,6 +15,7 @@ import org.janelia.colormipsearch.imageprocessing.ImageProcessing;
 import org.janelia.colormipsearch.imageprocessing.ImageRegionDefinition;
 import org.janelia.colormipsearch.imageprocessing.ImageTransformation;
 import org.janelia.colormipsearch.imageprocessing.LImageUtils;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.janelia.colormipsearch.model.ComputeFileType;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -23,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class PixelMatchColorDepthSearchAlgorithmTest {
@@ -52,6 +54,123 @@ public class PixelMatchColorDepthSearchAlgorithmTest {
         assertFalse(score.isMirrored());
     }
 
+    @Test
+    public void pixelMatchScoreWithSparseTarget() {
+        ImagePlus testMask = new Opener().openTiff("src/test/resources/colormipsearch/api/cdsearch/ems/1752016801-LPLC2-RT_18U.tif", 1);
+        ImagePlus testTarget = new Opener().openTiff("src/test/resources/colormipsearch/api/cdsearch/lms/GMR_31G04_AE_01-20190813_66_F3-40x-Brain-JRC2018_Unisex_20x_HR-2704505419467849826-CH2-07_CDM.tif", 1);
+        ImageArray<?> testMaskArray = ImageArrayUtils.fromImagePlus(testMask);
+        ImageArray<?> testTargetArray = ImageArrayUtils.fromImagePlus(testTarget);
+        int targetThreshold = 20;
+        ImageArray<?> sparseTargetArray = ImageArrayUtils.toSparseColorImageArray(testTargetArray, targetThreshold);
+        for (int pi = 0; pi < testTargetArray.getPixelCount(); pi++) {
+            int p = testTargetArray.get(pi);
+            if (((p >> 16) & 0xFF) > targetThreshold || ((p >> 8) & 0xFF) > targetThreshold || (p & 0xFF) > targetThreshold) {
+                assertEquals(p, sparseTargetArray.get(pi));
+            } else {
+                assertEquals(0xFF000000, sparseTargetArray.get(pi));
+            }
+        }
+        PixelMatchColorDepthSearchAlgorithm colorDepthSearchAlgorithm = new PixelMatchColorDepthSearchAlgorithm(
+                testMaskArray,
+                20,
+                true,
+                null,
+                0,
+                false,
+                targetThreshold,
+                0.01,
+                2,
+                img -> (x, y) -> x >= img.getWidth() - 260 && y < 90 || x < 330 && y < 100
+        );
+        PixelMatchScore denseScore = colorDepthSearchAlgorithm.calculateMatchingScore(testTargetArray, Collections.emptyMap());
+        PixelMatchScore sparseScore = colorDepthSearchAlgorithm.calculateMatchingScore(sparseTargetArray, Collections.emptyMap());
+        assertEquals(denseScore.getScore(), sparseScore.getScore());
+        assertEquals(denseScore.isMirrored(), sparseScore.isMirrored());
+    }
+
+    @Test
+    public void scoreUpperBoundIsNotLessThanTheScore() {
+        String[] testMasks = new String[] {
+                "src/test/resources/colormipsearch/api/cdsearch/ems/12191_JRC2018U.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/ems/1752016801-LPLC2-RT_18U.tif"
+        };
+        String[] testTargets = new String[] {
+                "src/test/resources/colormipsearch/api/cdsearch/lms/GMR_31G04_AE_01-20190813_66_F3-40x-Brain-JRC2018_Unisex_20x_HR-2704505419467849826-CH2-07_CDM.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/lms/VT033614_127B01_AE_01-20171124_64_H6-f-CH2_01.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/lms/BJD_127B01_AE_01-20171124_64_H6-40x-Brain-JRC2018_Unisex_20x_HR-2483089192251293794-CH2-01_CDM.tif"
+        };
+        int targetThreshold = 20;
+        for (String testMask : testMasks) {
+            ImageArray<?> testMaskArray = ImageArrayUtils.fromImagePlus(new Opener().openTiff(testMask, 1));
+            PixelMatchColorDepthSearchAlgorithm colorDepthSearchAlgorithm = new PixelMatchColorDepthSearchAlgorithm(
+                    testMaskArray,
+                    20,
+                    true,
+                    null,
+                    0,
+                    false,
+                    targetThreshold,
+                    0.01,
+                    2,
+                    img -> (x, y) -> x >= img.getWidth() - 260 && y < 90 || x < 330 && y < 100
+            );
+            for (String testTarget : testTargets) {
+                ImageArray<?> testTargetArray = ImageArrayUtils.fromImagePlus(new Opener().openTiff(testTarget, 1));
+                PixelMatchScore score = colorDepthSearchAlgorithm.calculateMatchingScore(testTargetArray, Collections.emptyMap());
+                int scoreUpperBound = colorDepthSearchAlgorithm.calculateScoreUpperBound(NeuronMIPUtils.computeMIPStats(testTargetArray, targetThreshold));
+                assertTrue(scoreUpperBound >= score.getScore());
+                assertTrue(scoreUpperBound <= colorDepthSearchAlgorithm.getQuerySize());
+                // stats computed with a higher threshold may miss signal pixels so they cannot bound the score
+                assertEquals(Integer.MAX_VALUE,
+                        colorDepthSearchAlgorithm.calculateScoreUpperBound(NeuronMIPUtils.computeMIPStats(testTargetArray, targetThreshold + 1)));
+            }
+        }
+    }
+
+    @Test
+    public void multiresolutionSearchFindsTheSameMatches() {
+        String[] testMasks = new String[] {
+                "src/test/resources/colormipsearch/api/cdsearch/ems/12191_JRC2018U.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/ems/1752016801-LPLC2-RT_18U.tif"
+        };
+        String[] testTargets = new String[] {
+                "src/test/resources/colormipsearch/api/cdsearch/lms/GMR_31G04_AE_01-20190813_66_F3-40x-Brain-JRC2018_Unisex_20x_HR-2704505419467849826-CH2-07_CDM.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/lms/VT033614_127B01_AE_01-20171124_64_H6-f-CH2_01.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/lms/BJD_127B01_AE_01-20171124_64_H6-40x-Brain-JRC2018_Unisex_20x_HR-2483089192251293794-CH2-01_CDM.tif"
+        };
+        ColorDepthSearchAlgorithmProvider<PixelMatchScore> cdsAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(
+                true,
+                20,
+                0.01,
+                2,
+                img -> (x, y) -> x >= img.getWidth() - 260 && y < 90 || x < 330 && y < 100
+        );
+        for (double pctPositivePixels : new double[] {0., 1., 2., 5., 10.}) {
+            ColorMIPSearch exhaustiveSearch = new ColorMIPSearch(pctPositivePixels, 20, cdsAlgorithmProvider);
+            ColorMIPSearch multiresolutionSearch = new ColorMIPSearch(pctPositivePixels, 20, cdsAlgorithmProvider, true);
+            assertNull(exhaustiveSearch.createTargetPyramid(ImageArrayUtils.fromImagePlus(new Opener().openTiff(testTargets[0], 1))));
+            for (String testMask : testMasks) {
+                ColorDepthSearchAlgorithm<PixelMatchScore> colorDepthSearchAlgorithm = multiresolutionSearch.createQueryColorDepthSearchWithDefaultThreshold(
+                        ImageArrayUtils.fromImagePlus(new Opener().openTiff(testMask, 1)));
+                for (String testTarget : testTargets) {
+                    ImageArray<?> testTargetArray = ImageArrayUtils.fromImagePlus(new Opener().openTiff(testTarget, 1));
+                    PixelMatchScore score = colorDepthSearchAlgorithm.calculateMatchingScore(testTargetArray, Collections.emptyMap());
+                    TargetOccupancyPyramid targetPyramid = multiresolutionSearch.createTargetPyramid(testTargetArray);
+                    int previousLevelBound = Integer.MAX_VALUE;
+                    for (int level = 0; level < TargetOccupancyPyramid.getNLevels(); level++) {
+                        int levelBound = colorDepthSearchAlgorithm.calculateScoreUpperBound(targetPyramid, level);
+                        assertTrue(levelBound >= score.getScore());
+                        assertTrue(levelBound <= previousLevelBound);
+                        previousLevelBound = levelBound;
+                    }
+                    assertEquals(
+                            exhaustiveSearch.isMatch(score),
+                            multiresolutionSearch.mayMatch(colorDepthSearchAlgorithm, targetPyramid) && multiresolutionSearch.isMatch(score));
+                }
+            }
+        }
+    }
+
     @Test
     public void multiplePixelScores() {
 
@@ -0,0 +1,62 @@
+package org.janelia.colormipsearch.cds;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import ij.io.Opener;
+import org.janelia.colormipsearch.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.imageprocessing.ImageArrayUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpatialColorIndexTest {
+
+    @Test
+    public void bestMatchingTargetIsAmongTheTopCandidates() throws IOException {
+        String testMask = "src/test/resources/colormipsearch/api/cdsearch/ems/1752016801-LPLC2-RT_18U.tif";
+        String[] testTargets = new String[] {
+                "src/test/resources/colormipsearch/api/cdsearch/lms/GMR_31G04_AE_01-20190813_66_F3-40x-Brain-JRC2018_Unisex_20x_HR-2704505419467849826-CH2-07_CDM.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/lms/VT033614_127B01_AE_01-20171124_64_H6-f-CH2_01.tif",
+                "src/test/resources/colormipsearch/api/cdsearch/lms/BJD_127B01_AE_01-20171124_64_H6-40x-Brain-JRC2018_Unisex_20x_HR-2483089192251293794-CH2-01_CDM.tif"
+        };
+        ColorDepthSearchAlgorithm<PixelMatchScore> colorDepthSearchAlgorithm = new PixelMatchColorDepthSearchAlgorithm(
+                ImageArrayUtils.fromImagePlus(new Opener().openTiff(testMask, 1)),
+                20,
+                true,
+                null,
+                0,
+                false,
+                20,
+                0.01,
+                2,
+                img -> (x, y) -> x >= img.getWidth() - 260 && y < 90 || x < 330 && y < 100
+        );
+        SpatialColorIndex index = new SpatialColorIndex(16, 8, 20);
+        String bestTarget = null;
+        int bestScore = -1;
+        for (String testTarget : testTargets) {
+            ImageArray<?> testTargetArray = ImageArrayUtils.fromImagePlus(new Opener().openTiff(testTarget, 1));
+            index.addTarget(testTarget, testTargetArray);
+            int score = colorDepthSearchAlgorithm.calculateMatchingScore(testTargetArray, Collections.emptyMap()).getScore();
+            if (score > bestScore) {
+                bestScore = score;
+                bestTarget = testTarget;
+            }
+        }
+        List<String> candidates = index.findCandidates(colorDepthSearchAlgorithm, true, 2, 2);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(bestTarget));
+
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        index.write(indexBytes);
+        SpatialColorIndex persistedIndex = SpatialColorIndex.read(new ByteArrayInputStream(indexBytes.toByteArray()));
+        assertEquals(index.getNTargets(), persistedIndex.getNTargets());
+        assertEquals(index.findCandidates(colorDepthSearchAlgorithm, true, 2, testTargets.length),
+                persistedIndex.findCandidates(colorDepthSearchAlgorithm, true, 2, testTargets.length));
+    }
+}
@@ -63,6 +63,17 @@ public class ImageArrayUtilsTest {
         }
     }
 
+    @Test
+    public void identicalPixelsHaveTheSameFingerprint() throws Exception {
+        File testFile1 = new File("src/test/resources/colormipsearch/api/imageprocessing/compressed_pack1.tif");
+        File testFile2 = new File("src/test/resources/colormipsearch/api/imageprocessing/compressed_pack2.tif");
+        ImageArray<?> testImageArray1 = ImageArrayUtils.readImageArray("test1", testFile1.getName(), openFile(testFile1));
+        ImageArray<?> testImageArray1Copy = ImageArrayUtils.fromImagePlus(new Opener().openTiff(testFile1.getAbsolutePath(), 1));
+        ImageArray<?> testImageArray2 = ImageArrayUtils.readImageArray("test2", testFile2.getName(), openFile(testFile2));
+        Assert.assertEquals(ImageArrayUtils.computeFingerprint(testImageArray1), ImageArrayUtils.computeFingerprint(testImageArray1Copy));
+        Assert.assertNotEquals(ImageArrayUtils.computeFingerprint(testImageArray1), ImageArrayUtils.computeFingerprint(testImageArray2));
+    }
+
     private int[] getImageBoundaries(ImageProcessor ip) {
         int minx = ip.getWidth();
         int miny = ip.getHeight();
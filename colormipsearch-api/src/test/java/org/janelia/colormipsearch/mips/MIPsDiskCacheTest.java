@@ -0,0 +1,99 @@
+package org.janelia.colormipsearch.mips;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MIPsDiskCacheTest {
+
+    private Path testDir;
+    private Path cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        testDir = Files.createTempDirectory("mipsdiskcachetest");
+        cacheDir = testDir.resolve("cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> testFiles = Files.walk(testDir)) {
+            testFiles.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void sourceIsReadOnlyOnceUntilItChanges() throws IOException {
+        MIPsDiskCache diskCache = new MIPsDiskCache(cacheDir, 1024);
+        Path sourceFile = createSourceFile("source1", 100);
+        AtomicInteger sourceReads = new AtomicInteger(0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(100, readCached(diskCache, sourceFile, sourceReads));
+        }
+        assertEquals(1, sourceReads.get());
+        // modifying the source changes its key
+        Files.write(sourceFile, new byte[120]);
+        Files.setLastModifiedTime(sourceFile, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertEquals(120, readCached(diskCache, sourceFile, sourceReads));
+        assertEquals(2, sourceReads.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws IOException {
+        MIPsDiskCache diskCache = new MIPsDiskCache(cacheDir, 250);
+        Path s1 = createSourceFile("s1", 100);
+        Path s2 = createSourceFile("s2", 100);
+        Path s3 = createSourceFile("s3", 100);
+        AtomicInteger sourceReads = new AtomicInteger(0);
+        readCached(diskCache, s1, sourceReads);
+        readCached(diskCache, s2, sourceReads);
+        // make s1 the least recently used entry
+        try (Stream<Path> cacheEntries = Files.list(cacheDir)) {
+            cacheEntries.forEach(p -> {
+                try {
+                    Files.setLastModifiedTime(p, FileTime.fromMillis(0));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        readCached(diskCache, s2, sourceReads);
+        readCached(diskCache, s3, sourceReads); // this goes over the quota
+        assertEquals(3, sourceReads.get());
+        readCached(diskCache, s2, sourceReads);
+        readCached(diskCache, s3, sourceReads);
+        assertEquals(3, sourceReads.get());
+        readCached(diskCache, s1, sourceReads);
+        assertEquals(4, sourceReads.get());
+    }
+
+    private Path createSourceFile(String name, int size) throws IOException {
+        Path sourceFile = testDir.resolve(name);
+        Files.write(sourceFile, new byte[size]);
+        return sourceFile;
+    }
+
+    private int readCached(MIPsDiskCache diskCache, Path sourceFile, AtomicInteger sourceReads) throws IOException {
+        try (InputStream is = diskCache.openCachedStream(sourceFile, null, () -> {
+            sourceReads.incrementAndGet();
+            return Files.newInputStream(sourceFile);
+        })) {
+            int n = 0;
+            while (is.read() != -1) {
+                n++;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.janelia.colormipsearch.mips;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.janelia.colormipsearch.imageprocessing.ImageArray;
+import org.janelia.colormipsearch.imageprocessing.ImageArrayUtils;
+import org.janelia.colormipsearch.imageprocessing.SparseColorImageArray;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.FileData;
+import org.janelia.colormipsearch.model.NeuronMIPStats;
+import org.janelia.colormipsearch.model.TestLMNeuronEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NeuronMIPUtilsTest {
+
+    private static final String TEST_IMAGES_DIR = "src/test/resources/colormipsearch/api/imageprocessing";
+
+    private Path testDir;
+
+    @Before
+    public void setUp() throws IOException {
+        testDir = Files.createTempDirectory("neuronmiputilstest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> testFiles = Files.walk(testDir)) {
+            testFiles.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void batchLoadReturnsImagesInRequestOrder() throws IOException {
+        List<String> testImages = Arrays.asList("compressed_pack1.tif", "compressed_lzw1.tif", "compressed_pack2.tif", "compressed_lzw2.tif");
+        Path archivePath = testDir.resolve("mips.zip");
+        try (ZipOutputStream archiveStream = new ZipOutputStream(Files.newOutputStream(archivePath))) {
+            for (String testImage : testImages) {
+                archiveStream.putNextEntry(new ZipEntry("mips/" + testImage));
+                Files.copy(Paths.get(TEST_IMAGES_DIR, testImage), (OutputStream) archiveStream);
+                archiveStream.closeEntry();
+            }
+        }
+        List<Pair<TestLMNeuronEntity, ComputeFileType>> requests = new ArrayList<>();
+        for (String testImage : testImages) {
+            // request each image both from the archive and directly from the file
+            requests.add(Pair.of(
+                    createNeuron(FileData.fromComponents(FileData.FileDataType.zipEntry, archivePath.toString(), "mips/" + testImage)),
+                    ComputeFileType.InputColorDepthImage));
+            requests.add(Pair.of(
+                    createNeuron(FileData.fromString(Paths.get(TEST_IMAGES_DIR, testImage).toString())),
+                    ComputeFileType.InputColorDepthImage));
+        }
+        requests.add(Pair.of(
+                createNeuron(FileData.fromComponents(FileData.FileDataType.zipEntry, archivePath.toString(), "mips/missing.tif")),
+                ComputeFileType.InputColorDepthImage));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<NeuronMIP<TestLMNeuronEntity>> neuronMIPs = NeuronMIPUtils.loadComputeFiles(requests, executor);
+            assertEquals(requests.size(), neuronMIPs.size());
+            for (int i = 0; i < testImages.size(); i++) {
+                String expectedFingerprint = ImageArrayUtils.computeFingerprint(
+                        NeuronMIPUtils.loadImageFromFileData(FileData.fromString(Paths.get(TEST_IMAGES_DIR, testImages.get(i)).toString())));
+                assertEquals(requests.get(2 * i).getLeft(), neuronMIPs.get(2 * i).getNeuronInfo());
+                assertEquals(expectedFingerprint, ImageArrayUtils.computeFingerprint(neuronMIPs.get(2 * i).getImageArray()));
+                assertEquals(expectedFingerprint, ImageArrayUtils.computeFingerprint(neuronMIPs.get(2 * i + 1).getImageArray()));
+            }
+            assertNull(neuronMIPs.get(requests.size() - 1).getImageArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void archiveEntriesAreFoundByFileNameInAllReadPaths() throws IOException {
+        String testImage = "compressed_pack1.tif";
+        Path archivePath = testDir.resolve("mips.zip");
+        try (ZipOutputStream archiveStream = new ZipOutputStream(Files.newOutputStream(archivePath))) {
+            archiveStream.putNextEntry(new ZipEntry("mips/" + testImage));
+            Files.copy(Paths.get(TEST_IMAGES_DIR, testImage), (OutputStream) archiveStream);
+            archiveStream.closeEntry();
+        }
+        // the entry is referenced from a different directory than the one in the archive
+        FileData entryData = FileData.fromComponents(FileData.FileDataType.zipEntry, archivePath.toString(), "other/" + testImage);
+        String expectedFingerprint = ImageArrayUtils.computeFingerprint(
+                NeuronMIPUtils.loadImageFromFileData(FileData.fromString(Paths.get(TEST_IMAGES_DIR, testImage).toString())));
+
+        assertTrue(NeuronMIPUtils.exists(entryData));
+        assertEquals(expectedFingerprint, ImageArrayUtils.computeFingerprint(NeuronMIPUtils.loadImageFromFileData(entryData)));
+        List<NeuronMIP<TestLMNeuronEntity>> neuronMIPs = NeuronMIPUtils.loadComputeFiles(
+                Collections.singletonList(Pair.of(createNeuron(entryData), ComputeFileType.InputColorDepthImage)),
+                Runnable::run);
+        assertEquals(expectedFingerprint, ImageArrayUtils.computeFingerprint(neuronMIPs.get(0).getImageArray()));
+        assertFalse(NeuronMIPUtils.exists(FileData.fromComponents(FileData.FileDataType.zipEntry, archivePath.toString(), "mips/missing.tif")));
+    }
+
+    @Test
+    public void batchLoadOfLargeArchiveWithBoundedExecutors() throws IOException {
+        List<String> testImages = Arrays.asList("compressed_pack1.tif", "compressed_lzw1.tif", "compressed_pack2.tif", "compressed_lzw2.tif");
+        Path archivePath = testDir.resolve("mips.zip");
+        List<Pair<TestLMNeuronEntity, ComputeFileType>> requests = new ArrayList<>();
+        try (ZipOutputStream archiveStream = new ZipOutputStream(Files.newOutputStream(archivePath))) {
+            // more entries than the ones that may wait to be decoded
+            for (int i = 0; i < 20; i++) {
+                String entryName = "mips/" + i + "-" + testImages.get(i % testImages.size());
+                archiveStream.putNextEntry(new ZipEntry(entryName));
+                Files.copy(Paths.get(TEST_IMAGES_DIR, testImages.get(i % testImages.size())), (OutputStream) archiveStream);
+                archiveStream.closeEntry();
+                requests.add(Pair.of(
+                        createNeuron(FileData.fromComponents(FileData.FileDataType.zipEntry, archivePath.toString(), entryName)),
+                        ComputeFileType.InputColorDepthImage));
+            }
+        }
+        List<String> expectedFingerprints = new ArrayList<>();
+        for (String testImage : testImages) {
+            expectedFingerprints.add(ImageArrayUtils.computeFingerprint(
+                    NeuronMIPUtils.loadImageFromFileData(FileData.fromString(Paths.get(TEST_IMAGES_DIR, testImage).toString()))));
+        }
+        ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
+        try {
+            List<NeuronMIP<TestLMNeuronEntity>> executorLoadedMIPs = NeuronMIPUtils.loadComputeFiles(requests, singleThreadExecutor);
+            List<NeuronMIP<TestLMNeuronEntity>> directlyLoadedMIPs = NeuronMIPUtils.loadComputeFiles(requests, Runnable::run);
+            for (int i = 0; i < requests.size(); i++) {
+                String expectedFingerprint = expectedFingerprints.get(i % testImages.size());
+                assertEquals(expectedFingerprint, ImageArrayUtils.computeFingerprint(executorLoadedMIPs.get(i).getImageArray()));
+                assertEquals(expectedFingerprint, ImageArrayUtils.computeFingerprint(directlyLoadedMIPs.get(i).getImageArray()));
+            }
+        } finally {
+            singleThreadExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void mipStatsMatchSignalPixels() {
+        ImageArray<?> imageArray = NeuronMIPUtils.loadImageFromFileData(
+                FileData.fromString(Paths.get(TEST_IMAGES_DIR, "compressed_pack1.tif").toString()));
+        int threshold = 100;
+        NeuronMIPStats mipStats = NeuronMIPUtils.computeMIPStats(imageArray, threshold);
+        SparseColorImageArray sparseImageArray = (SparseColorImageArray) ImageArrayUtils.toSparseColorImageArray(imageArray, threshold);
+        assertEquals(sparseImageArray.getStoredPixelCount(), mipStats.getPixelCount());
+        assertEquals((long) imageArray.getPixelCount() * 3, mipStats.getDecodedByteSize());
+        long pixelsInBoundingBox = 0;
+        for (int y = mipStats.getMinY(); y <= mipStats.getMaxY(); y++) {
+            for (int x = mipStats.getMinX(); x <= mipStats.getMaxX(); x++) {
+                if ((sparseImageArray.getPixel(x, y) & 0x00FFFFFF) != 0) {
+                    pixelsInBoundingBox++;
+                }
+            }
+        }
+        assertEquals(mipStats.getPixelCount(), pixelsInBoundingBox);
+    }
+
+    @Test
+    public void fileContentFingerprintDoesNotDependOnTheFileLocation() throws IOException {
+        Path archivePath = testDir.resolve("mips.zip");
+        try (ZipOutputStream archiveStream = new ZipOutputStream(Files.newOutputStream(archivePath))) {
+            archiveStream.putNextEntry(new ZipEntry("mips/copy.tif"));
+            Files.copy(Paths.get(TEST_IMAGES_DIR, "compressed_pack1.tif"), (OutputStream) archiveStream);
+            archiveStream.closeEntry();
+        }
+        String fileFingerprint = NeuronMIPUtils.computeFileContentFingerprint(
+                FileData.fromString(Paths.get(TEST_IMAGES_DIR, "compressed_pack1.tif").toString()));
+        assertNotNull(fileFingerprint);
+        assertEquals(fileFingerprint, NeuronMIPUtils.computeFileContentFingerprint(
+                FileData.fromComponents(FileData.FileDataType.zipEntry, archivePath.toString(), "mips/copy.tif")));
+        assertNotEquals(fileFingerprint, NeuronMIPUtils.computeFileContentFingerprint(
+                FileData.fromString(Paths.get(TEST_IMAGES_DIR, "compressed_pack2.tif").toString())));
+        assertNull(NeuronMIPUtils.computeFileContentFingerprint(
+                FileData.fromString(testDir.resolve("missing.tif").toString())));
+    }
+
+    private TestLMNeuronEntity createNeuron(FileData fd) {
+        TestLMNeuronEntity neuron = new TestLMNeuronEntity();
+        neuron.setMipId(fd.getName());
+        neuron.setComputeFileData(ComputeFileType.InputColorDepthImage, fd);
+        return neuron;
+    }
+}
@@ -1,16 +1,23 @@
 package org.janelia.colormipsearch.results;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.StringUtils;
 import org.janelia.colormipsearch.model.CDMatchEntity;
 import org.janelia.colormipsearch.model.TestEMNeuronEntity;
 import org.janelia.colormipsearch.model.TestLMNeuronEntity;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ItemsHandlingTest {
@@ -119,6 +126,105 @@ public class ItemsHandlingTest {
         }
     }
 
+    @Test
+    public void selectTopRankedElementsLikeFullSorts() {
+        Random random = new Random(17);
+        List<CDMatchEntity<TestEMNeuronEntity, TestLMNeuronEntity>> testData = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            int line = random.nextInt(200);
+            // a few blank lines and many equal scores to check that the ties are handled the same way
+            testData.add(createCDSMatch(line < 5 ? "" : "l" + line, "s" + line + "." + random.nextInt(10), random.nextInt(100)));
+        }
+        for (int topResults : new int[] {-1, 1, 10, 300}) {
+            for (int limitSubResults : new int[] {-1, 1, 3, 1000}) {
+                List<ScoredEntry<List<CDMatchEntity<TestEMNeuronEntity, TestLMNeuronEntity>>>> expected = selectTopRankedElementsWithFullSorts(
+                        testData,
+                        match -> match.getMatchedImage().getPublishedName(),
+                        CDMatchEntity::getMatchingPixels,
+                        topResults,
+                        limitSubResults);
+                List<ScoredEntry<List<CDMatchEntity<TestEMNeuronEntity, TestLMNeuronEntity>>>> ranked = ItemsHandling.selectTopRankedElements(
+                        testData,
+                        match -> match.getMatchedImage().getPublishedName(),
+                        CDMatchEntity::getMatchingPixels,
+                        topResults,
+                        limitSubResults);
+                assertEquals(expected.size(), ranked.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).getName(), ranked.get(i).getName());
+                    assertEquals(expected.get(i).getScore().doubleValue(), ranked.get(i).getScore().doubleValue(), 0);
+                    assertEquals(expected.get(i).getEntry().size(), ranked.get(i).getEntry().size());
+                    for (int j = 0; j < expected.get(i).getEntry().size(); j++) {
+                        assertSame(expected.get(i).getEntry().get(j), ranked.get(i).getEntry().get(j));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void selectTopRankedLinesAndSamplesLikeFullSorts() {
+        Random random = new Random(17);
+        List<CDMatchEntity<TestEMNeuronEntity, TestLMNeuronEntity>> testData = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            int line = random.nextInt(1000);
+            testData.add(createCDSMatch("l" + line, "s" + line + "." + random.nextInt(10), random.nextInt(10000)));
+        }
+        // the same selection that is done for the gradient scores: top lines and then top samples for every line
+        List<CDMatchEntity<TestEMNeuronEntity, TestLMNeuronEntity>> expected = selectTopRankedElementsWithFullSorts(
+                        testData, match -> match.getMatchedImage().getPublishedName(), CDMatchEntity::getMatchingPixels, 300, -1).stream()
+                .flatMap(se -> selectTopRankedElementsWithFullSorts(
+                        se.getEntry(), match -> match.getMatchedImage().getSlideCode(), CDMatchEntity::getMatchingPixels, 3, 3).stream())
+                .flatMap(se -> se.getEntry().stream())
+                .collect(Collectors.toList());
+        List<CDMatchEntity<TestEMNeuronEntity, TestLMNeuronEntity>> selected = ItemsHandling.selectTopRankedElements(
+                        testData, match -> match.getMatchedImage().getPublishedName(), CDMatchEntity::getMatchingPixels, 300, -1).stream()
+                .flatMap(se -> ItemsHandling.selectTopRankedElements(
+                        se.getEntry(), match -> match.getMatchedImage().getSlideCode(), CDMatchEntity::getMatchingPixels, 3, 3).stream())
+                .flatMap(se -> se.getEntry().stream())
+                .collect(Collectors.toList());
+        assertTrue(expected.size() > 300);
+        assertEquals(expected.size(), selected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), selected.get(i));
+        }
+    }
+
+    /**
+     * The previous implementation of ItemsHandling.selectTopRankedElements, which fully sorts every group,
+     * used as reference for the selection and the ordering of the results.
+     */
+    private static <T> List<ScoredEntry<List<T>>> selectTopRankedElementsWithFullSorts(List<T> l,
+                                                                                       Function<T, String> groupingCriteria,
+                                                                                       Function<T, Number> scoreExtractor,
+                                                                                       int topResults,
+                                                                                       int limitSubResults) {
+        Comparator<T> csrComparison = Comparator.comparing(scoreExtractor.andThen(Number::doubleValue));
+        Map<String, List<T>> groupedResults = l.stream()
+                .collect(Collectors.groupingBy(
+                        val -> StringUtils.defaultIfBlank(groupingCriteria.apply(val), "UNKNOWN"),
+                        Collectors.collectingAndThen(Collectors.toList(), r -> {
+                            r.sort(csrComparison.reversed());
+                            if (limitSubResults > 0 && limitSubResults < r.size()) {
+                                return r.subList(0, limitSubResults);
+                            } else {
+                                return r;
+                            }
+                        })));
+        List<ScoredEntry<List<T>>> bestResultsForSpecifiedCriteria = groupedResults.entrySet().stream()
+                .map(e -> {
+                    T maxValue = Collections.max(e.getValue(), csrComparison);
+                    return new ScoredEntry<>(e.getKey(), scoreExtractor.apply(maxValue), e.getValue());
+                })
+                .sorted((se1, se2) -> Double.compare(se2.getScore().doubleValue(), se1.getScore().doubleValue())) // sort in reverse order
+                .collect(Collectors.toList());
+        if (topResults > 0 && bestResultsForSpecifiedCriteria.size() > topResults) {
+            return bestResultsForSpecifiedCriteria.subList(0, topResults);
+        } else {
+            return bestResultsForSpecifiedCriteria;
+        }
+    }
+
     private List<CDMatchEntity<TestEMNeuronEntity, TestLMNeuronEntity>> createTestData() {
         return Arrays.asList(
                 // matches with line l1
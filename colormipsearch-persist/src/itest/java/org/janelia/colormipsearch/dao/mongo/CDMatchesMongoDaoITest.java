@@ -4,15 +4,23 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.janelia.colormipsearch.cds.GradientAreaGapUtils;
+import org.janelia.colormipsearch.dao.CDMatchesDao;
 import org.janelia.colormipsearch.dao.NeuronMatchesDao;
 import org.janelia.colormipsearch.dao.NeuronMetadataDao;
 import org.janelia.colormipsearch.dao.NeuronSelector;
 import org.janelia.colormipsearch.dao.NeuronsMatchFilter;
+import org.janelia.colormipsearch.dataio.db.DBSessionMatchesWriter;
 import org.janelia.colormipsearch.datarequests.PagedRequest;
 import org.janelia.colormipsearch.datarequests.ScoresFilter;
 import org.janelia.colormipsearch.model.AbstractBaseEntity;
@@ -615,6 +623,56 @@ public class CDMatchesMongoDaoITest extends AbstractMongoDaoITest {
         }
     }
 
+    @Test
+    public void rewriteSessionMatches() {
+        NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao = daosProvider.getNeuronMetadataDao();
+        EMNeuronEntity em = createNeuronEntity(
+                neuronMetadataDao,
+                new TestNeuronEntityBuilder<>(EMNeuronEntity::new)
+                        .mipId("123232232423232")
+                        .publishedName("23232345")
+                        .library("FlyEM Hemibrain")
+                        .computeFileData(ComputeFileType.InputColorDepthImage, FileData.fromString("mask-mipSegmentation"))
+                        .get());
+        LMNeuronEntity lm = createNeuronEntity(
+                neuronMetadataDao,
+                new TestNeuronEntityBuilder<>(LMNeuronEntity::new)
+                        .mipId("5565655454545432")
+                        .publishedName("S1234")
+                        .library("Split GAL4")
+                        .computeFileData(ComputeFileType.InputColorDepthImage, FileData.fromString("match-mipSegmentation"))
+                        .get());
+        NeuronMatchesDao<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> neuronMatchesDao =
+                daosProvider.getCDMatchesDao();
+        try {
+            CDMatchEntity<EMNeuronEntity, LMNeuronEntity> previousSessionMatch = createTestCDMatch(em, lm, 100, 0.5, -1);
+            previousSessionMatch.setSessionRefId(1);
+            neuronMatchesDao.save(previousSessionMatch);
+            addTestData(previousSessionMatch);
+
+            DBSessionMatchesWriter<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matchesWriter =
+                    new DBSessionMatchesWriter<>(neuronMatchesDao);
+            CDMatchEntity<EMNeuronEntity, LMNeuronEntity> sessionMatch = createTestCDMatch(em, lm, 113, 0.76, -1);
+            sessionMatch.setSessionRefId(2);
+            matchesWriter.write(Collections.singletonList(sessionMatch));
+            // a retried write replaces the match written by the first attempt
+            matchesWriter.write(Collections.singletonList(sessionMatch));
+            addTestData(sessionMatch);
+
+            assertEquals(1, neuronMatchesDao.countNeuronMatches(
+                    new NeuronsMatchFilter<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>>().setSessionRefIds(Collections.singleton(2)),
+                    null, null));
+            // the matches from other sessions are left alone
+            assertEquals(2, neuronMatchesDao.countNeuronMatches(
+                    new NeuronsMatchFilter<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>>()
+                            .setMaskEntityIds(Collections.singleton(em.getEntityId()))
+                            .setTargetEntityIds(Collections.singleton(lm.getEntityId())),
+                    null, null));
+        } finally {
+            deleteAll(neuronMetadataDao, Arrays.asList(em, lm));
+        }
+    }
+
     private void verifyMultipleCDMatcheshWithImages(int nTestMatches,
                                                     NeuronMatchesDao<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> neuronMatchesDao,
                                                     Function<List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>>,
@@ -651,6 +709,136 @@ public class CDMatchesMongoDaoITest extends AbstractMongoDaoITest {
         }
     }
 
+    @Test
+    public void findBestCDMatches() {
+        NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao = daosProvider.getNeuronMetadataDao();
+        EMNeuronEntity em = createNeuronEntity(
+                neuronMetadataDao,
+                new TestNeuronEntityBuilder<>(EMNeuronEntity::new)
+                        .mipId("123232232423232")
+                        .publishedName("23232345")
+                        .library("FlyEM Hemibrain")
+                        .get()
+        );
+        List<AbstractNeuronEntity> testNeurons = new ArrayList<>();
+        testNeurons.add(em);
+        CDMatchesDao<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> neuronMatchesDao = daosProvider.getCDMatchesDao();
+        // 3 lines x 2 samples per line x 2 mips per sample; the score increases with the line, the sample and the mip index
+        Map<String, CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> testCDMatches = new HashMap<>();
+        try {
+            for (int l = 0; l < 3; l++) {
+                for (int s = 0; s < 2; s++) {
+                    for (int i = 0; i < 2; i++) {
+                        LMNeuronEntity lm = new TestNeuronEntityBuilder<>(LMNeuronEntity::new)
+                                .mipId("55656554545454" + l + s + i)
+                                .publishedName("L" + l)
+                                .library("Split GAL4")
+                                .get();
+                        lm.setSlideCode("L" + l + "-S" + s);
+                        createNeuronEntity(neuronMetadataDao, lm);
+                        testNeurons.add(lm);
+                        CDMatchEntity<EMNeuronEntity, LMNeuronEntity> testCDMatch = createTestCDMatch(em, lm, 100 * l + 10 * s + i, 0.5, -1);
+                        neuronMatchesDao.save(testCDMatch);
+                        testCDMatches.put("" + l + s + i, testCDMatch);
+                    }
+                }
+            }
+            NeuronsMatchFilter<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matchesFilter = new NeuronsMatchFilter<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>>()
+                    .setMaskEntityIds(Collections.singletonList(em.getEntityId()));
+            retrieveAndCompareCDMatcheshWithImages(
+                    Arrays.asList(testCDMatches.get("111"), testCDMatches.get("211")),
+                    ms -> neuronMatchesDao.findBestNeuronMatches(matchesFilter, null, null, 2, 1, 1));
+            retrieveAndCompareCDMatcheshWithImages(
+                    Arrays.asList(testCDMatches.get("200"), testCDMatches.get("201"), testCDMatches.get("210"), testCDMatches.get("211")),
+                    ms -> neuronMatchesDao.findBestNeuronMatches(matchesFilter, null, null, 1, 0, 0));
+            assertEquals(12, neuronMatchesDao.findBestNeuronMatches(matchesFilter, null, null, 0, 0, 0).size());
+            assertEquals(6, neuronMatchesDao.findBestNeuronMatches(matchesFilter, null, null, 3, 2, 1).size());
+        } finally {
+            deleteAll(neuronMetadataDao, testNeurons);
+        }
+    }
+
+    @Test
+    public void updateNormalizedScoresLikeJavaNormalization() {
+        NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao = daosProvider.getNeuronMetadataDao();
+        List<AbstractNeuronEntity> testNeurons = new ArrayList<>();
+        List<EMNeuronEntity> ems = new ArrayList<>();
+        for (int e = 0; e < 2; e++) {
+            EMNeuronEntity em = createNeuronEntity(
+                    neuronMetadataDao,
+                    new TestNeuronEntityBuilder<>(EMNeuronEntity::new)
+                            .mipId("12323223242323" + e)
+                            .publishedName("2323234" + e)
+                            .library("FlyEM Hemibrain")
+                            .get()
+            );
+            ems.add(em);
+            testNeurons.add(em);
+        }
+        CDMatchesDao<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> neuronMatchesDao = daosProvider.getCDMatchesDao();
+        Random random = new Random(17);
+        try {
+            for (EMNeuronEntity em : ems) {
+                for (int i = 0; i < 50; i++) {
+                    LMNeuronEntity lm = createNeuronEntity(
+                            neuronMetadataDao,
+                            new TestNeuronEntityBuilder<>(LMNeuronEntity::new)
+                                    .mipId("556565545454" + em.getMipId().substring(em.getMipId().length() - 1) + i)
+                                    .publishedName("L" + i)
+                                    .library("Split GAL4")
+                                    .get());
+                    testNeurons.add(lm);
+                    // mix 3D scores, 2D scores, matches without shape scores and matches without matching pixels
+                    CDMatchEntity<EMNeuronEntity, LMNeuronEntity> testCDMatch = createTestCDMatch(
+                            em, lm, i % 10 == 0 ? 0 : random.nextInt(10000), random.nextDouble(), i % 7 == 0 ? -1 : random.nextInt(100000));
+                    if (i % 3 == 0) {
+                        testCDMatch.setBidirectionalAreaGap((long) random.nextInt(100000));
+                    } else if (i % 5 != 0) {
+                        testCDMatch.setHighExpressionArea((long) random.nextInt(100000));
+                    }
+                    neuronMatchesDao.save(testCDMatch);
+                }
+            }
+            ScoresFilter scoresFilter = new ScoresFilter();
+            scoresFilter.addSScore("gradientAreaGap|bidirectionalAreaGap", 0);
+            NeuronsMatchFilter<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matchesFilter = new NeuronsMatchFilter<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>>()
+                    .setScoresFilter(scoresFilter)
+                    .setMaskEntityIds(ems.stream().map(AbstractBaseEntity::getEntityId).collect(Collectors.toList()));
+            // normalize the selected matches of every mask the same way NormalizeGradientScoresCmd does it
+            List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> selectedMatches = neuronMatchesDao.findNeuronMatches(
+                    matchesFilter, null, null, new PagedRequest()).getResultList();
+            assertTrue(selectedMatches.size() > 0 && selectedMatches.size() < testData.size());
+            Map<Number, Float> expectedNormalizedScores = new HashMap<>();
+            selectedMatches.stream()
+                    .collect(Collectors.groupingBy(CDMatchEntity::getMaskImageRefId))
+                    .forEach((maskId, maskMatches) -> {
+                        int maxPixelMatch = maskMatches.stream().mapToInt(CDMatchEntity::getMatchingPixels).reduce(-1, Math::max);
+                        long maxShapeScore = maskMatches.stream().mapToLong(CDMatchEntity::getGradScore).reduce(-1L, Math::max);
+                        maskMatches.forEach(m -> expectedNormalizedScores.put(
+                                m.getEntityId(),
+                                (float) GradientAreaGapUtils.calculateNormalizedScore(
+                                        m.getMatchingPixels(), m.getGradScore(), maxPixelMatch, maxShapeScore)));
+                    });
+            Set<String> normalizedMipIds = neuronMatchesDao.updateNormalizedScores(matchesFilter, null, null);
+            assertEquals(
+                    selectedMatches.stream()
+                            .flatMap(m -> Stream.of(m.getMaskImage().getMipId(), m.getMatchedImage().getMipId()))
+                            .collect(Collectors.toSet()),
+                    normalizedMipIds);
+            for (CDMatchEntity<EMNeuronEntity, LMNeuronEntity> m : neuronMatchesDao.findByEntityIds(
+                    testData.stream().map(AbstractBaseEntity::getEntityId).collect(Collectors.toList()))) {
+                if (expectedNormalizedScores.containsKey(m.getEntityId())) {
+                    assertEquals("Normalized score for " + m, expectedNormalizedScores.get(m.getEntityId()), m.getNormalizedScore());
+                } else {
+                    // the matches that were not selected are not changed
+                    assertEquals("Normalized score for " + m, m.getMatchingPixelsRatio(), m.getNormalizedScore());
+                }
+            }
+        } finally {
+            deleteAll(neuronMetadataDao, testNeurons);
+        }
+    }
+
     private <N extends AbstractNeuronEntity> N createNeuronEntity(NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao, N neuronMetadata) {
         neuronMetadataDao.save(neuronMetadata);
         return neuronMetadata;
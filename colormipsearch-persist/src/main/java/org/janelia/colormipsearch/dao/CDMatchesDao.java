@@ -0,0 +1,47 @@
+package org.janelia.colormipsearch.dao;
+
+import java.util.List;
+import java.util.Set;
+
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+
+public interface CDMatchesDao<R extends CDMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>> extends NeuronMatchesDao<R> {
+
+    /**
+     * Retrieve only the best color depth matches of every mask. The matches of a mask are grouped by the target's
+     * published name (line) and by the target's neuron ID (sample) and ranked by the number of matching pixels:
+     * only the top lines, then only the top samples from every line and only the top matches from every sample are selected.
+     * This is the same selection as ColorMIPProcessUtils.selectBestMatches but it is done by the database
+     * so only the selected matches are retrieved. Ties are broken by the line name, the sample name and the match ID.
+     *
+     * @param neuronsMatchFilter score filter as well as mask and target entity IDs
+     * @param maskSelector filter by mask attributes
+     * @param targetSelector filter by target attributes
+     * @param topLines number of lines selected for every mask; if <= 0 all lines are selected
+     * @param topSamplesPerLine number of samples selected for every line; if <= 0 all samples are selected
+     * @param topMatchesPerSample number of matches selected for every sample; if <= 0 all matches are selected
+     * @return the selected matches
+     */
+    List<R> findBestNeuronMatches(NeuronsMatchFilter<R> neuronsMatchFilter,
+                                  NeuronSelector maskSelector,
+                                  NeuronSelector targetSelector,
+                                  int topLines,
+                                  int topSamplesPerLine,
+                                  int topMatchesPerSample);
+
+    /**
+     * Calculate the normalized scores of the selected matches in the database without retrieving the matches.
+     * The scores are normalized with respect to the maximum matching pixels and the maximum gradient score
+     * of the selected matches of every mask entity, exactly as it is done by GradientAreaGapUtils.calculateNormalizedScore,
+     * and the normalized score and the updated date of every selected match are set in place.
+     *
+     * @param neuronsMatchFilter score filter as well as mask and target entity IDs
+     * @param maskSelector filter by mask attributes
+     * @param targetSelector filter by target attributes
+     * @return the MIP IDs of the masks and of the targets of the normalized matches
+     */
+    Set<String> updateNormalizedScores(NeuronsMatchFilter<R> neuronsMatchFilter,
+                                       NeuronSelector maskSelector,
+                                       NeuronSelector targetSelector);
+}
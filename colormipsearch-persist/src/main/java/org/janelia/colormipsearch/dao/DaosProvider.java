@@ -64,7 +64,7 @@ public class DaosProvider {
         return new MatchSessionMongoDao<>(mongoDatabase, idGenerator, skipIndexCreation);
     }
 
-    public <R extends CDMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>> NeuronMatchesDao<R>
+    public <R extends CDMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>> CDMatchesDao<R>
     getCDMatchesDao() {
         return new CDMatchesMongoDao<>(mongoDatabase, idGenerator, skipIndexCreation);
     }
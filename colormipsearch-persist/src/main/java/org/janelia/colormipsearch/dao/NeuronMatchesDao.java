@@ -60,6 +60,14 @@ public interface NeuronMatchesDao<R extends AbstractMatchEntity<? extends Abstra
      */
     long updateExistingMatches(List<R> matches, List<Function<R, Pair<String, ?>>> fieldsToUpdateSelectors);
 
+    /**
+     * Delete the matches selected by any of the filters. Empty filters do not delete anything.
+     *
+     * @param neuronsMatchFilters select the matches to delete
+     * @return the number of deleted matches
+     */
+    long deleteNeuronMatches(List<NeuronsMatchFilter<R>> neuronsMatchFilters);
+
     long deleteEntityIds(List<Number> matches);
 
     long archiveEntityIds(List<Number> matches);
@@ -16,6 +16,7 @@ public class NeuronsMatchFilter<R extends AbstractMatchEntity<? extends Abstract
     private ScoresFilter scoresFilter; // score filter
     private Class<?> matchEntityType;
     private Collection<Number> matchEntityIds; // match entity IDs
+    private Collection<Number> sessionRefIds; // IDs of the sessions that created the matches
     private Collection<Number> maskEntityIds; // mask entity IDs
     private Collection<Number> targetEntityIds; // target entity IDs
     private final Set<String> tags = new HashSet<>(); // matching tags
@@ -53,6 +54,19 @@ public class NeuronsMatchFilter<R extends AbstractMatchEntity<? extends Abstract
         return matchEntityIds != null && !matchEntityIds.isEmpty();
     }
 
+    public Collection<Number> getSessionRefIds() {
+        return sessionRefIds;
+    }
+
+    public NeuronsMatchFilter<R> setSessionRefIds(Collection<Number> sessionRefIds) {
+        this.sessionRefIds = sessionRefIds;
+        return this;
+    }
+
+    public boolean hasSessionRefIds() {
+        return sessionRefIds != null && !sessionRefIds.isEmpty();
+    }
+
     public Collection<Number> getMaskEntityIds() {
         return maskEntityIds;
     }
@@ -117,6 +131,7 @@ public class NeuronsMatchFilter<R extends AbstractMatchEntity<? extends Abstract
 
     public boolean isEmpty() {
         return (scoresFilter == null || scoresFilter.isEmpty())
+                && CollectionUtils.isEmpty(sessionRefIds)
                 && CollectionUtils.isEmpty(maskEntityIds)
                 && CollectionUtils.isEmpty(targetEntityIds)
                 && !hasTags();
@@ -128,6 +143,7 @@ public class NeuronsMatchFilter<R extends AbstractMatchEntity<? extends Abstract
                 .append("scoresFilter", scoresFilter)
                 .append("matchEntityType", matchEntityType)
                 .append("matchEntityIds", matchEntityIds)
+                .append("sessionRefIds", sessionRefIds)
                 .append("maskEntityIds", maskEntityIds)
                 .append("targetEntityIds", targetEntityIds)
                 .append("tags", tags)
@@ -383,6 +383,21 @@ abstract class AbstractNeuronMatchesMongoDao<R extends AbstractMatchEntity<? ext
         return result.getDeletedCount();
     }
 
+    @Override
+    public long deleteNeuronMatches(List<NeuronsMatchFilter<R>> neuronsMatchFilters) {
+        List<WriteModel<R>> deletes = neuronsMatchFilters.stream()
+                .filter(f -> f != null && !f.isEmpty()) // do not delete across the board
+                .map(f -> new DeleteManyModel<R>(NeuronSelectionHelper.getNeuronsMatchFilter(f, null, null)))
+                .collect(Collectors.toList());
+        if (deletes.isEmpty()) {
+            return 0;
+        }
+        BulkWriteResult result = mongoCollection.bulkWrite(
+                deletes,
+                new BulkWriteOptions().bypassDocumentValidation(false).ordered(false));
+        return result.getDeletedCount();
+    }
+
     @Override
     public long deleteEntityIds(List<Number> entityIds) {
         if (CollectionUtils.isEmpty(entityIds)) {
@@ -1,13 +1,40 @@
 package org.janelia.colormipsearch.dao.mongo;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BsonField;
+import com.mongodb.client.model.MergeOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.WindowOutputFields;
 
+import org.apache.commons.collections4.ListUtils;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.janelia.colormipsearch.cds.GradientAreaGapUtils;
+import org.janelia.colormipsearch.dao.CDMatchesDao;
 import org.janelia.colormipsearch.dao.IdGenerator;
+import org.janelia.colormipsearch.dao.NeuronSelector;
+import org.janelia.colormipsearch.dao.NeuronsMatchFilter;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
 import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.LMNeuronEntity;
 
 public class CDMatchesMongoDao<R extends CDMatchEntity<? extends AbstractNeuronEntity,
-                                                       ? extends AbstractNeuronEntity>> extends AbstractNeuronMatchesMongoDao<R> {
+                                                       ? extends AbstractNeuronEntity>> extends AbstractNeuronMatchesMongoDao<R>
+        implements CDMatchesDao<R> {
+    // maximum number of IDs used for retrieving the selected matches with a single query
+    private static final int SELECTED_MATCHES_READ_SIZE = 10000;
+
     public CDMatchesMongoDao(MongoDatabase mongoDatabase, IdGenerator idGenerator, boolean skipIndexCreation) {
         super(mongoDatabase, idGenerator, skipIndexCreation);
     }
@@ -21,4 +48,188 @@ public class CDMatchesMongoDao<R extends CDMatchEntity<? extends AbstractNeuronE
     boolean supportsTargetLookup() {
         return true;
     }
+
+    @Override
+    public List<R> findBestNeuronMatches(NeuronsMatchFilter<R> neuronsMatchFilter,
+                                         NeuronSelector maskSelector,
+                                         NeuronSelector targetSelector,
+                                         int topLines,
+                                         int topSamplesPerLine,
+                                         int topMatchesPerSample) {
+        List<Bson> pipeline = createQueryPipeline(neuronsMatchFilter, maskSelector, targetSelector);
+        // only keep what is needed for ranking - the selection only passes the match IDs around
+        pipeline.add(Aggregates.project(Projections.fields(
+                Projections.computed("mask", "$maskImageRefId"),
+                Projections.computed("line", unknownIfBlank("$image.publishedName")),
+                Projections.computed("sample", unknownIfBlank(
+                        new Document("$cond", Arrays.asList(
+                                new Document("$eq", Arrays.asList("$image.class", LMNeuronEntity.class.getName())),
+                                "$image.slideCode",
+                                "$image.publishedName")))),
+                Projections.computed("score", "$matchingPixels")
+        )));
+        // top matches of every sample
+        pipeline.add(Aggregates.group(
+                new Document("mask", "$mask").append("line", "$line").append("sample", "$sample"),
+                Accumulators.max("score", "$score"),
+                selectTop("matches", "$_id", Sorts.orderBy(Sorts.descending("score"), Sorts.ascending("_id")), topMatchesPerSample)
+        ));
+        // top samples of every line
+        pipeline.add(Aggregates.group(
+                new Document("mask", "$_id.mask").append("line", "$_id.line"),
+                Accumulators.max("score", "$score"),
+                selectTop("samples", "$matches", Sorts.orderBy(Sorts.descending("score"), Sorts.ascending("_id.sample")), topSamplesPerLine)
+        ));
+        // top lines of every mask
+        pipeline.add(Aggregates.group(
+                "$_id.mask",
+                selectTop("lines", "$samples", Sorts.orderBy(Sorts.descending("score"), Sorts.ascending("_id.line")), topLines)
+        ));
+        // flatten lines -> samples -> matches
+        pipeline.add(Aggregates.unwind("$lines"));
+        pipeline.add(Aggregates.unwind("$lines"));
+        pipeline.add(Aggregates.unwind("$lines"));
+        pipeline.add(Aggregates.project(Projections.computed("_id", "$lines")));
+
+        List<Number> selectedMatchIds = MongoDaoHelper.aggregateAsList(
+                        pipeline,
+                        null,
+                        0,
+                        -1,
+                        mongoCollection,
+                        Document.class,
+                        true).stream()
+                .map(d -> (Number) d.get("_id"))
+                .collect(Collectors.toList());
+        if (selectedMatchIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<R> selectedMatches = new ArrayList<>();
+        ListUtils.partition(selectedMatchIds, SELECTED_MATCHES_READ_SIZE)
+                .forEach(matchIds -> selectedMatches.addAll(findByEntityIds(matchIds)));
+        return selectedMatches;
+    }
+
+    @Override
+    public Set<String> updateNormalizedScores(NeuronsMatchFilter<R> neuronsMatchFilter,
+                                              NeuronSelector maskSelector,
+                                              NeuronSelector targetSelector) {
+        List<Bson> pipeline = createQueryPipeline(neuronsMatchFilter, maskSelector, targetSelector);
+        // the same shape score as CDMatchEntity.getGradScore
+        pipeline.add(Aggregates.project(Projections.fields(
+                Projections.include("maskImageRefId", "matchingPixels"),
+                Projections.computed("gradScore", gradScoreExpr())
+        )));
+        // the maximum scores are calculated for every mask entity and they are never less than -1
+        pipeline.add(Aggregates.setWindowFields(
+                "$maskImageRefId",
+                null,
+                WindowOutputFields.max("maxMatchingPixels", "$matchingPixels", null),
+                WindowOutputFields.max("maxGradScore", "$gradScore", null)
+        ));
+        pipeline.add(Aggregates.project(Projections.fields(
+                Projections.computed("normalizedScore", normalizedScoreExpr(
+                        "$matchingPixels",
+                        "$gradScore",
+                        new Document("$max", Arrays.asList(-1, "$maxMatchingPixels")),
+                        new Document("$max", Arrays.asList(-1, "$maxGradScore"))
+                )),
+                Projections.computed("updatedDate", "$$NOW")
+        )));
+        // only the normalized score and the updated date are merged into the existing matches
+        pipeline.add(Aggregates.merge(
+                mongoCollection.getNamespace().getCollectionName(),
+                new MergeOptions()
+                        .uniqueIdentifier("_id")
+                        .whenMatched(MergeOptions.WhenMatched.MERGE)
+                        .whenNotMatched(MergeOptions.WhenNotMatched.DISCARD)
+        ));
+        mongoCollection.aggregate(pipeline).allowDiskUse(true).toCollection();
+
+        List<Bson> mipIdsPipeline = createQueryPipeline(neuronsMatchFilter, maskSelector, targetSelector);
+        mipIdsPipeline.add(Aggregates.project(Projections.computed("mipIds", Arrays.asList("$maskImage.mipId", "$image.mipId"))));
+        mipIdsPipeline.add(Aggregates.unwind("$mipIds"));
+        mipIdsPipeline.add(Aggregates.group("$mipIds"));
+        Set<String> mipIds = new LinkedHashSet<>();
+        MongoDaoHelper.aggregateIterable(
+                        mipIdsPipeline,
+                        null,
+                        0,
+                        -1,
+                        mongoCollection,
+                        Document.class,
+                        true)
+                .forEach(d -> mipIds.add(d.getString("_id")));
+        return mipIds;
+    }
+
+    /**
+     * Port of CDMatchEntity.getGradScore: the bidirectional area gap if it was calculated,
+     * otherwise the 2D shape score if both the gradient area gap and the high expression area were calculated, otherwise -1.
+     */
+    private Document gradScoreExpr() {
+        Document bidirectionalAreaGap = new Document("$ifNull", Arrays.asList("$bidirectionalAreaGap", -1));
+        Document gradientAreaGap = new Document("$ifNull", Arrays.asList("$gradientAreaGap", -1));
+        Document highExpressionArea = new Document("$ifNull", Arrays.asList("$highExpressionArea", -1));
+        return new Document("$cond", Arrays.asList(
+                new Document("$gte", Arrays.asList(bidirectionalAreaGap, 0)),
+                "$bidirectionalAreaGap",
+                new Document("$cond", Arrays.asList(
+                        new Document("$and", Arrays.asList(
+                                new Document("$gte", Arrays.asList(gradientAreaGap, 0)),
+                                new Document("$gte", Arrays.asList(highExpressionArea, 0)))),
+                        // integer division as in GradientAreaGapUtils.calculate2DShapeScore
+                        new Document("$add", Arrays.asList(
+                                "$gradientAreaGap",
+                                new Document("$toLong", new Document("$trunc", new Document("$divide", Arrays.asList("$highExpressionArea", 3)))))),
+                        -1))));
+    }
+
+    /**
+     * Port of GradientAreaGapUtils.calculateNormalizedScore. The operations are done in the same order
+     * so the result is the same double value as the one calculated by the Java implementation.
+     */
+    private Document normalizedScoreExpr(Object pixelMatchScore, Object shapeScore, Object maxPixelMatch, Object maxShapeScore) {
+        return new Document("$let", new Document()
+                .append("vars", new Document()
+                        .append("px", new Document("$ifNull", Arrays.asList(pixelMatchScore, 0)))
+                        .append("shape", shapeScore)
+                        .append("maxPx", maxPixelMatch)
+                        .append("maxShape", maxShapeScore))
+                .append("in", new Document("$cond", Arrays.asList(
+                        new Document("$or", Arrays.asList(
+                                new Document("$eq", Arrays.asList("$$px", 0)),
+                                new Document("$eq", Arrays.asList("$$maxPx", 0)),
+                                new Document("$lt", Arrays.asList("$$shape", 0)),
+                                new Document("$lte", Arrays.asList("$$maxShape", 0)))),
+                        new Document("$toDouble", "$$px"),
+                        new Document("$multiply", Arrays.asList(
+                                new Document("$divide", Arrays.asList(
+                                        new Document("$divide", Arrays.asList("$$px", "$$maxPx")),
+                                        new Document("$min", Arrays.asList(
+                                                new Document("$max", Arrays.asList(
+                                                        new Document("$multiply", Arrays.asList(
+                                                                new Document("$divide", Arrays.asList("$$shape", "$$maxShape")),
+                                                                2.5)),
+                                                        GradientAreaGapUtils.LOW_NORMALIZED_NEGATIVE_SCORE)),
+                                                GradientAreaGapUtils.HIGH_NORMALIZED_NEGATIVE_SCORE)))),
+                                100))))));
+    }
+
+    private Document unknownIfBlank(Object fieldExpr) {
+        return new Document("$let", new Document()
+                .append("vars", new Document("v", new Document("$ifNull", Arrays.asList(fieldExpr, ""))))
+                .append("in", new Document("$cond", Arrays.asList(
+                        new Document("$eq", Arrays.asList(new Document("$trim", new Document("input", "$$v")), "")),
+                        "UNKNOWN",
+                        "$$v"))));
+    }
+
+    private BsonField selectTop(String fieldName, String valueExpr, Bson sortBy, int n) {
+        if (n > 0) {
+            return Accumulators.topN(fieldName, sortBy, valueExpr, n);
+        } else {
+            return Accumulators.push(fieldName, valueExpr);
+        }
+    }
 }
@@ -109,6 +109,7 @@ class NeuronSelectionHelper {
                 filter.add(MongoDaoHelper.createFilterByClass(neuronsMatchFilter.getMatchEntityType()));
             }
             addInFilter("_id", neuronsMatchFilter.getMatchEntityIds(), filter);
+            addInFilter("sessionRefId", neuronsMatchFilter.getSessionRefIds(), filter);
             addNeuronsMatchScoresFilters(neuronsMatchFilter.getScoresFilter(), filter);
             addInFilter("maskImageRefId",
                     CollectionUtils.union(
@@ -0,0 +1,60 @@
+package org.janelia.colormipsearch.dataio.db;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.janelia.colormipsearch.dao.CDMatchesDao;
+import org.janelia.colormipsearch.dao.NeuronMetadataDao;
+import org.janelia.colormipsearch.dataio.DataSourceParam;
+import org.janelia.colormipsearch.datarequests.ScoresFilter;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+
+/**
+ * Color depth matches reader that can also let the database select the best matches of every mask.
+ */
+public class DBCDMatchesReader<R extends CDMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>> extends DBNeuronMatchesReader<R> {
+
+    private final CDMatchesDao<R> cdMatchesDao;
+
+    public DBCDMatchesReader(NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao,
+                             CDMatchesDao<R> cdMatchesDao,
+                             String neuronLocationAttributeName) {
+        super(neuronMetadataDao, cdMatchesDao, neuronLocationAttributeName);
+        this.cdMatchesDao = cdMatchesDao;
+    }
+
+    /**
+     * Read only the best matches of the specified masks and targets. The selection is the same as the one done by
+     * ColorMIPProcessUtils.selectBestMatches for the matches returned by readMatchesByMask, but only the selected
+     * matches are retrieved from the database.
+     *
+     * @param alignmentSpace
+     * @param maskDataSource
+     * @param targetDataSource
+     * @param matchTags
+     * @param matchExcludedTags
+     * @param matchScoresFilter
+     * @param topLines
+     * @param topSamplesPerLine
+     * @param topMatchesPerSample
+     * @return the best matches of the selected masks
+     */
+    public List<R> readBestMatchesByMask(String alignmentSpace,
+                                         DataSourceParam maskDataSource,
+                                         DataSourceParam targetDataSource,
+                                         Collection<String> matchTags,
+                                         Collection<String> matchExcludedTags,
+                                         ScoresFilter matchScoresFilter,
+                                         int topLines,
+                                         int topSamplesPerLine,
+                                         int topMatchesPerSample) {
+        return cdMatchesDao.findBestNeuronMatches(
+                createMatchesByMaskFilter(alignmentSpace, maskDataSource, matchTags, matchExcludedTags, matchScoresFilter),
+                null,
+                createTargetSelectorForMatchesByMask(alignmentSpace, targetDataSource),
+                topLines,
+                topSamplesPerLine,
+                topMatchesPerSample);
+    }
+}
@@ -0,0 +1,61 @@
+package org.janelia.colormipsearch.dataio.db;
+
+import java.util.Collection;
+import java.util.Set;
+
+import org.janelia.colormipsearch.dao.CDMatchesDao;
+import org.janelia.colormipsearch.dao.NeuronMetadataDao;
+import org.janelia.colormipsearch.dataio.DataSourceParam;
+import org.janelia.colormipsearch.datarequests.ScoresFilter;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.ProcessingType;
+
+/**
+ * Normalizes the gradient scores of the color depth matches in the database, without reading the matches.
+ * The matches are selected the same way as DBNeuronMatchesReader.readMatchesByMask selects them.
+ */
+public class DBCDScoresNormalizer<R extends CDMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>> {
+
+    private final NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao;
+    private final CDMatchesDao<R> cdMatchesDao;
+    private final DBNeuronMatchesReader<R> matchesReader;
+
+    public DBCDScoresNormalizer(NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao,
+                                CDMatchesDao<R> cdMatchesDao) {
+        this.neuronMetadataDao = neuronMetadataDao;
+        this.cdMatchesDao = cdMatchesDao;
+        this.matchesReader = new DBNeuronMatchesReader<>(neuronMetadataDao, cdMatchesDao, "mipId");
+    }
+
+    /**
+     * Normalize the scores of the selected matches of every mask and tag the MIPs of the normalized matches.
+     *
+     * @param alignmentSpace
+     * @param maskDataSource
+     * @param targetDataSource
+     * @param matchTags
+     * @param matchExcludedTags
+     * @param matchScoresFilter
+     * @param processingType
+     * @param processingTags
+     * @return the number of tagged MIPs
+     */
+    public long normalizeScoresByMask(String alignmentSpace,
+                                      DataSourceParam maskDataSource,
+                                      DataSourceParam targetDataSource,
+                                      Collection<String> matchTags,
+                                      Collection<String> matchExcludedTags,
+                                      ScoresFilter matchScoresFilter,
+                                      ProcessingType processingType,
+                                      Set<String> processingTags) {
+        Set<String> normalizedMipIds = cdMatchesDao.updateNormalizedScores(
+                matchesReader.createMatchesByMaskFilter(alignmentSpace, maskDataSource, matchTags, matchExcludedTags, matchScoresFilter),
+                null,
+                matchesReader.createTargetSelectorForMatchesByMask(alignmentSpace, targetDataSource));
+        if (normalizedMipIds.isEmpty()) {
+            return 0;
+        }
+        return neuronMetadataDao.addProcessingTagsToMIPIDs(normalizedMipIds, processingType, processingTags);
+    }
+}
@@ -80,6 +80,22 @@ public class DBNeuronMatchesReader<R extends AbstractMatchEntity<? extends Abstr
                                      long from,
                                      int nRecords,
                                      int pageSize) {
+        NeuronsMatchFilter<R> neuronsMatchFilter = createMatchesByMaskFilter(
+                alignmentSpace, maskDataSource, matchTags, matchExcludedTags, matchScoresFilter);
+        NeuronSelector targetSelector = createTargetSelectorForMatchesByMask(alignmentSpace, targetDataSource);
+
+        return readMatches(neuronsMatchFilter, null, targetSelector, sortCriteriaList, from, nRecords, pageSize);
+    }
+
+    /**
+     * Create the matches filter used for reading the matches by mask - the masks are selected first and
+     * the matches are then filtered by the masks' entity IDs.
+     */
+    NeuronsMatchFilter<R> createMatchesByMaskFilter(String alignmentSpace,
+                                                    DataSourceParam maskDataSource,
+                                                    Collection<String> matchTags,
+                                                    Collection<String> matchExcludedTags,
+                                                    ScoresFilter matchScoresFilter) {
         NeuronSelector maskSelector = new NeuronSelector()
                 .setAlignmentSpace(alignmentSpace)
                 .addLibraries(maskDataSource.getLibraries())
@@ -93,7 +109,15 @@ public class DBNeuronMatchesReader<R extends AbstractMatchEntity<? extends Abstr
                 .addProcessedTags(maskDataSource.getProcessingTags());
         List<Number> maskEntityIds = getNeuronEntityIds(maskSelector);
         LOG.debug("Use {} mask entities to filter matches", maskEntityIds.size());
-        NeuronSelector targetSelector = new NeuronSelector()
+        return new NeuronsMatchFilter<R>()
+                .setScoresFilter(matchScoresFilter)
+                .setMaskEntityIds(maskEntityIds)
+                .addTags(matchTags)
+                .addExcludedTags(matchExcludedTags);
+    }
+
+    NeuronSelector createTargetSelectorForMatchesByMask(String alignmentSpace, DataSourceParam targetDataSource) {
+        return new NeuronSelector()
                 .setAlignmentSpace(alignmentSpace)
                 .addLibraries(targetDataSource.getLibraries())
                 .addNames(targetDataSource.getNames())
@@ -104,13 +128,6 @@ public class DBNeuronMatchesReader<R extends AbstractMatchEntity<? extends Abstr
                 .addAnnotations(targetDataSource.getAnnotations())
                 .addExcludedAnnotations(targetDataSource.getExcludedAnnotations())
                 .addProcessedTags(targetDataSource.getProcessingTags());
-        NeuronsMatchFilter<R> neuronsMatchFilter = new NeuronsMatchFilter<R>()
-                .setScoresFilter(matchScoresFilter)
-                .setMaskEntityIds(maskEntityIds)
-                .addTags(matchTags)
-                .addExcludedTags(matchExcludedTags);
-
-        return readMatches(neuronsMatchFilter, null, targetSelector, sortCriteriaList, from, nRecords, pageSize);
     }
 
     @Override
@@ -0,0 +1,51 @@
+package org.janelia.colormipsearch.dataio.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.janelia.colormipsearch.dao.NeuronMatchesDao;
+import org.janelia.colormipsearch.dao.NeuronsMatchFilter;
+import org.janelia.colormipsearch.model.AbstractBaseEntity;
+import org.janelia.colormipsearch.model.AbstractMatchEntity;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+
+/**
+ * Matches writer that can be safely retried. Before inserting the matches it deletes the matches that the same session
+ * already wrote for the same mask and target pairs, so if a failed or a stale write is repeated the matches
+ * are not duplicated. Only the pairs being written are deleted so several batches of the same session can be written
+ * concurrently, and matches created by other sessions are never touched.
+ *
+ * @param <R> match type
+ */
+public class DBSessionMatchesWriter<R extends AbstractMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>>
+        extends DBNeuronMatchesWriter<R> {
+
+    private final NeuronMatchesDao<R> neuronMatchesDao;
+
+    public DBSessionMatchesWriter(NeuronMatchesDao<R> neuronMatchesDao) {
+        super(neuronMatchesDao);
+        this.neuronMatchesDao = neuronMatchesDao;
+    }
+
+    @Override
+    public long write(List<R> matches) {
+        List<NeuronsMatchFilter<R>> previousMatchesFilters = new ArrayList<>();
+        matches.stream()
+                .filter(m -> m.getSessionRefId() != null && m.hasMaskImageRefId() && m.hasMatchedImageRefId())
+                .collect(Collectors.groupingBy(
+                        m -> ImmutablePair.of(m.getSessionRefId(), m.getMaskImageRefId()),
+                        Collectors.mapping(AbstractMatchEntity::getMatchedImageRefId, Collectors.toSet())))
+                .forEach((sessionAndMask, targetEntityIds) -> previousMatchesFilters.add(
+                        new NeuronsMatchFilter<R>()
+                                .setSessionRefIds(Collections.singleton(sessionAndMask.getLeft()))
+                                .setMaskEntityIds(Collections.singleton(sessionAndMask.getRight()))
+                                .setTargetEntityIds(targetEntityIds)));
+        neuronMatchesDao.deleteNeuronMatches(previousMatchesFilters);
+        // the entity IDs assigned by a previous attempt are no longer valid
+        matches.stream().filter(AbstractBaseEntity::hasEntityId).forEach(m -> m.setEntityId(null));
+        return super.write(matches);
+    }
+}
@@ -42,6 +42,11 @@ class AbstractColorDepthMatchArgs extends AbstractCmdArgs {
     @Parameter(names = {"--processingPartitionSize", "-ps", "--libraryPartitionSize"}, description = "Processing partition size")
     int processingPartitionSize = 100;
 
+    @Parameter(names = {"--sparse-targets"},
+            description = "If set, keep the target color depth MIPs in a compact representation that only contains the pixels above the threshold",
+            arity = 0)
+    boolean sparseTargets = false;
+
     @Parameter(names = {"--no-name-labels"},
             description = "If true the mips do not have the name labels so they do not need to be cleared",
             arity = 0)
@@ -100,16 +105,19 @@ class AbstractColorDepthMatchArgs extends AbstractCmdArgs {
 
     ImageRegionDefinition getRegionGeneratorForTextLabels() {
         // define the text label regions
+        // the flags are captured as local values so that the region definition can be serialized
+        boolean withColorScaleLabel = hasColorScaleLabel();
+        boolean withNameLabel = hasNameLabel();
         return img -> {
             int imgWidth = img.getWidth();
             BiPredicate<Integer, Integer> colorScaleLabelRegion;
-            if (hasColorScaleLabel() && imgWidth > 270) {
+            if (withColorScaleLabel && imgWidth > 270) {
                 colorScaleLabelRegion = (x, y) -> x >= imgWidth - 270 && y < 90;
             } else {
                 colorScaleLabelRegion = (x, y) -> false;
             }
             BiPredicate<Integer, Integer> nameLabelRegion;
-            if (hasNameLabel()) {
+            if (withNameLabel) {
                 nameLabelRegion = (x, y) -> x < 330 && y < 100;
             } else {
                 nameLabelRegion = (x, y) -> false;
@@ -0,0 +1,207 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controls how many processing partitions can be in flight at the same time and how deep the MIPs prefetching goes.
+ * A partition must acquire a permit before it starts and release it when it is done. When the controller is enabled
+ * it periodically looks at the heap usage after the last GC, the time spent in GC, the number of partitions waiting
+ * for a permit and the average time it takes to process an item, and adjusts the number of permits between the
+ * configured bounds: the limit is halved (and so is the prefetch depth) when the JVM is under memory pressure and it
+ * is increased by one when there are partitions waiting, there's enough free memory and the latency per item did not degrade.
+ * The heap usage is the one left by the collector, so garbage that has not been collected yet does not count as pressure.
+ * When the controller is disabled the number of permits is always the max concurrency.
+ */
+public class AdaptiveConcurrencyController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveConcurrencyController.class);
+    private static final long ADJUST_INTERVAL_MILLIS = 10000;
+    private static final double HIGH_HEAP_USAGE = 0.85;
+    private static final double LOW_HEAP_USAGE = 0.7;
+    private static final double HIGH_GC_TIME_FRACTION = 0.1;
+    // latency degradation tolerated before the controller stops increasing the concurrency
+    private static final double MAX_LATENCY_DEGRADATION = 1.2;
+
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final MIPsPrefetcher mipsPrefetcher;
+    private final int maxPrefetchDepth;
+    private final DoubleSupplier heapUsageSupplier;
+    private final LongSupplier gcTimeSupplier;
+    private final LongSupplier clock;
+    private ScheduledExecutorService monitorExecutor;
+    private final AtomicLong processedItems = new AtomicLong();
+    private final AtomicLong processingTimeMillis = new AtomicLong();
+
+    private int concurrencyLimit;
+    private int inFlight;
+    private int waiting;
+    private long lastGCTimeMillis;
+    private long lastAdjustTimeMillis;
+    private double bestLatencyPerItem = Double.MAX_VALUE;
+
+    /**
+     * @param enabled if false the concurrency is never adjusted
+     * @param minConcurrency lower bound for the number of partitions in flight
+     * @param maxConcurrency upper bound for the number of partitions in flight
+     * @param mipsPrefetcher the prefetcher whose depth is adjusted together with the concurrency
+     */
+    AdaptiveConcurrencyController(boolean enabled, int minConcurrency, int maxConcurrency, MIPsPrefetcher mipsPrefetcher) {
+        this(minConcurrency, maxConcurrency, mipsPrefetcher,
+                AdaptiveConcurrencyController::getPostGCHeapUsage,
+                AdaptiveConcurrencyController::getTotalGCTimeMillis,
+                System::currentTimeMillis);
+        if (enabled && this.minConcurrency < this.maxConcurrency) {
+            LOG.info("Adjust concurrency between {} and {} partitions", this.minConcurrency, this.maxConcurrency);
+            this.monitorExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("CONCURRENCYCONTROL-%d")
+                            .setDaemon(true)
+                            .build());
+            this.monitorExecutor.scheduleWithFixedDelay(this::adjust, ADJUST_INTERVAL_MILLIS, ADJUST_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Controller that is only adjusted by explicit {@link #adjust()} calls.
+     *
+     * @param heapUsageSupplier fraction of the max heap in use after the last GC
+     * @param gcTimeSupplier total time in millis spent in GC so far
+     * @param clock current time in millis
+     */
+    AdaptiveConcurrencyController(int minConcurrency, int maxConcurrency, MIPsPrefetcher mipsPrefetcher,
+                                  DoubleSupplier heapUsageSupplier, LongSupplier gcTimeSupplier, LongSupplier clock) {
+        this.maxConcurrency = Math.max(maxConcurrency, 1);
+        this.minConcurrency = Math.max(Math.min(minConcurrency, this.maxConcurrency), 1);
+        this.mipsPrefetcher = mipsPrefetcher;
+        this.maxPrefetchDepth = mipsPrefetcher.getPrefetchDepth();
+        this.heapUsageSupplier = heapUsageSupplier;
+        this.gcTimeSupplier = gcTimeSupplier;
+        this.clock = clock;
+        this.concurrencyLimit = this.maxConcurrency;
+        this.lastGCTimeMillis = gcTimeSupplier.getAsLong();
+        this.lastAdjustTimeMillis = clock.getAsLong();
+        this.monitorExecutor = null;
+    }
+
+    /**
+     * Wait until a new partition can start.
+     */
+    public synchronized void acquire() {
+        waiting++;
+        try {
+            while (inFlight >= concurrencyLimit) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            waiting--;
+        }
+        inFlight++;
+    }
+
+    /**
+     * Release the permit of a partition that finished.
+     *
+     * @param nItems number of items processed by the partition
+     * @param elapsedMillis time it took to process the partition
+     */
+    public void release(int nItems, long elapsedMillis) {
+        processedItems.addAndGet(nItems);
+        processingTimeMillis.addAndGet(elapsedMillis);
+        synchronized (this) {
+            inFlight--;
+            notifyAll();
+        }
+    }
+
+    synchronized int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public void shutdown() {
+        if (monitorExecutor != null) {
+            monitorExecutor.shutdownNow();
+        }
+    }
+
+    void adjust() {
+        try {
+            long now = clock.getAsLong();
+            long gcTimeMillis = gcTimeSupplier.getAsLong();
+            double gcTimeFraction = (double) (gcTimeMillis - lastGCTimeMillis) / Math.max(now - lastAdjustTimeMillis, 1);
+            lastGCTimeMillis = gcTimeMillis;
+            lastAdjustTimeMillis = now;
+            double heapUsage = heapUsageSupplier.getAsDouble();
+            long nItems = processedItems.getAndSet(0);
+            long itemsTime = processingTimeMillis.getAndSet(0);
+            double latencyPerItem = nItems > 0 ? (double) itemsTime / nItems : -1;
+            if (latencyPerItem > 0) {
+                bestLatencyPerItem = Math.min(bestLatencyPerItem, latencyPerItem);
+            }
+            synchronized (this) {
+                int currentLimit = concurrencyLimit;
+                if (heapUsage > HIGH_HEAP_USAGE || gcTimeFraction > HIGH_GC_TIME_FRACTION) {
+                    concurrencyLimit = Math.max(minConcurrency, concurrencyLimit / 2);
+                    mipsPrefetcher.setPrefetchDepth(mipsPrefetcher.getPrefetchDepth() / 2);
+                } else if (waiting > 0 && heapUsage < LOW_HEAP_USAGE &&
+                        (latencyPerItem < 0 || latencyPerItem <= bestLatencyPerItem * MAX_LATENCY_DEGRADATION)) {
+                    concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1);
+                    mipsPrefetcher.setPrefetchDepth(Math.min(maxPrefetchDepth, mipsPrefetcher.getPrefetchDepth() + 1));
+                    notifyAll();
+                }
+                if (concurrencyLimit != currentLimit) {
+                    LOG.info("Changed concurrency from {} to {} partitions and prefetch depth to {} - " +
+                                    "heap usage: {}%, GC time: {}%, in flight: {}, waiting: {}, latency per item: {}ms",
+                            currentLimit, concurrencyLimit, mipsPrefetcher.getPrefetchDepth(),
+                            (int) (heapUsage * 100), (int) (gcTimeFraction * 100), inFlight, waiting, latencyPerItem);
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Error adjusting concurrency", e);
+        }
+    }
+
+    private static long getTotalGCTimeMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+                .filter(t -> t > 0)
+                .sum();
+    }
+
+    /**
+     * The heap usage after the last collection of the tenured pool, i.e. the largest heap pool that reports
+     * its collection usage. If no pool reports it, the current heap usage is used instead.
+     */
+    private static double getPostGCHeapUsage() {
+        MemoryPoolMXBean tenuredPool = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported())
+                .max(Comparator.comparingLong(pool -> pool.getUsage().getMax()))
+                .orElse(null);
+        MemoryUsage postGCUsage = tenuredPool != null ? tenuredPool.getCollectionUsage() : null;
+        if (postGCUsage != null && postGCUsage.getMax() > 0) {
+            return (double) postGCUsage.getUsed() / postGCUsage.getMax();
+        } else {
+            Runtime runtime = Runtime.getRuntime();
+            return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * File based queue of color depth search shards. The queue is a directory, typically on a filesystem shared by all
+ * the hosts that run workers, with one sub-directory for every shard state. A shard changes state by an atomic rename
+ * so when several workers try to claim the same shard only one of them will succeed.
+ * While a worker processes a shard it periodically touches the shard file so the coordinator can detect workers
+ * that died and put their shards back in the queue.
+ */
+class CDSShardsQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CDSShardsQueue.class);
+    private static final String SHARD_FILE_EXT = ".json";
+
+    enum ShardState {
+        pending,
+        running,
+        done,
+        failed
+    }
+
+    static class CDSShard {
+        @JsonProperty
+        String shardId;
+        @JsonProperty
+        long masksStartIndex;
+        @JsonProperty
+        int masksLength;
+        @JsonProperty
+        long targetsStartIndex;
+        @JsonProperty
+        int targetsLength;
+        @JsonProperty
+        Number sessionRefId; // all shards write their matches in the same CDS session
+        @JsonProperty
+        int attempts;
+        @JsonProperty
+        String workerId;
+        @JsonProperty
+        String lastError;
+        @JsonProperty
+        long nMatches;
+
+        @Override
+        public String toString() {
+            return shardId + "(masks: " + masksStartIndex + "+" + masksLength + ", targets: " + targetsStartIndex + "+" + targetsLength + ")";
+        }
+    }
+
+    private final Path queueDir;
+    private final ObjectMapper mapper;
+
+    CDSShardsQueue(Path queueDir) {
+        this.queueDir = queueDir;
+        this.mapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        try {
+            for (ShardState state : ShardState.values()) {
+                Files.createDirectories(getStateDir(state));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true if the queue has no shards in any state
+     */
+    boolean isEmpty() {
+        for (ShardState state : ShardState.values()) {
+            if (countShards(state) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void addShard(CDSShard shard) {
+        writeShard(shard, getShardPath(ShardState.pending, shard.shardId));
+    }
+
+    int countShards(ShardState state) {
+        return listShardFiles(state).size();
+    }
+
+    List<CDSShard> getShards(ShardState state) {
+        return listShardFiles(state).stream()
+                .map(this::readShard)
+                .filter(shard -> shard != null)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Claim the next pending shard.
+     *
+     * @param workerId ID of the worker that claims the shard
+     * @return the claimed shard or null if there are no pending shards
+     */
+    @Nullable
+    CDSShard claimShard(String workerId) {
+        for (Path pendingShardPath : listShardFiles(ShardState.pending)) {
+            Path runningShardPath = getStateDir(ShardState.running).resolve(pendingShardPath.getFileName());
+            if (!moveShardFile(pendingShardPath, runningShardPath)) {
+                // another worker claimed it first
+                continue;
+            }
+            CDSShard shard = readShard(runningShardPath);
+            if (shard == null) {
+                continue;
+            }
+            // record the owner in the running shard file - this also updates the time of the file
+            // which the rename kept from when the shard was queued, so the shard is not seen as stale
+            shard.workerId = workerId;
+            writeShard(shard, runningShardPath);
+            return shard;
+        }
+        return null;
+    }
+
+    /**
+     * Mark the shard as still being processed.
+     */
+    void heartbeat(CDSShard shard) {
+        try {
+            Files.setLastModifiedTime(getShardPath(ShardState.running, shard.shardId), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            LOG.warn("Shard {} is no longer assigned to {}", shard, shard.workerId);
+        } catch (IOException e) {
+            LOG.warn("Error updating the heartbeat for shard {}", shard, e);
+        }
+    }
+
+    /**
+     * Check if the shard is still assigned to the worker that claimed it. A worker whose shard was considered stale
+     * and re-queued must not write any more results for it.
+     */
+    boolean isShardAssigned(CDSShard shard) {
+        CDSShard runningShard = readShard(getShardPath(ShardState.running, shard.shardId));
+        return runningShard != null && Objects.equals(runningShard.workerId, shard.workerId);
+    }
+
+    /**
+     * Move the shard to the done state.
+     *
+     * @return false if the shard was no longer assigned to the worker, e.g. it was considered stale and re-queued
+     */
+    boolean completeShard(CDSShard shard) {
+        Path completedShardPath = takeRunningShard(shard, ".completed");
+        if (completedShardPath == null) {
+            return false;
+        }
+        writeShard(shard, getShardPath(ShardState.done, shard.shardId));
+        deleteShardFile(completedShardPath);
+        return true;
+    }
+
+    /**
+     * Release a shard that could not be processed. The shard goes back to the pending state unless
+     * it already used all its attempts in which case it goes to the failed state.
+     *
+     * @return the state in which the shard was moved or null if the shard was no longer running
+     */
+    @Nullable
+    ShardState releaseShard(CDSShard shard, String error, int maxAttempts) {
+        Path releasedShardPath = takeRunningShard(shard, ".released");
+        if (releasedShardPath == null) {
+            return null;
+        }
+        shard.attempts++;
+        shard.workerId = null;
+        shard.lastError = error;
+        ShardState nextState = shard.attempts < maxAttempts ? ShardState.pending : ShardState.failed;
+        writeShard(shard, getShardPath(nextState, shard.shardId));
+        deleteShardFile(releasedShardPath);
+        return nextState;
+    }
+
+    /**
+     * Release all running shards that have not been updated in the given amount of time.
+     *
+     * @return number of shards released
+     */
+    int releaseStaleShards(long staleTimeoutMillis, int maxAttempts) {
+        long now = System.currentTimeMillis();
+        int nReleased = 0;
+        for (Path runningShardPath : listShardFiles(ShardState.running)) {
+            long lastUpdated;
+            try {
+                lastUpdated = Files.getLastModifiedTime(runningShardPath).toMillis();
+            } catch (IOException e) {
+                // the shard was completed or released in the meantime
+                continue;
+            }
+            if (now - lastUpdated < staleTimeoutMillis) {
+                continue;
+            }
+            CDSShard shard = readShard(runningShardPath);
+            if (shard == null) {
+                continue;
+            }
+            ShardState nextState = releaseShard(shard, "No heartbeat from " + shard.workerId + " in " + (now - lastUpdated) + "ms", maxAttempts);
+            if (nextState != null) {
+                LOG.warn("Released stale shard {} to {}", shard, nextState);
+                nReleased++;
+            }
+        }
+        return nReleased;
+    }
+
+    /**
+     * Move the running shard file aside so that nobody else can move it while the shard is updated. The file is only
+     * taken if the shard is still assigned to the same worker, otherwise it is put back.
+     *
+     * @return the new location of the shard file or null if the shard is no longer assigned to the worker
+     */
+    @Nullable
+    private Path takeRunningShard(CDSShard shard, String suffix) {
+        Path runningShardPath = getShardPath(ShardState.running, shard.shardId);
+        Path takenShardPath = getStateDir(ShardState.running).resolve(shard.shardId + suffix);
+        if (!moveShardFile(runningShardPath, takenShardPath)) {
+            return null;
+        }
+        CDSShard runningShard = readShard(takenShardPath);
+        if (runningShard == null || !Objects.equals(runningShard.workerId, shard.workerId)) {
+            // the shard was re-assigned to another worker in the meantime
+            moveShardFile(takenShardPath, runningShardPath);
+            return null;
+        }
+        return takenShardPath;
+    }
+
+    private void deleteShardFile(Path shardPath) {
+        try {
+            Files.deleteIfExists(shardPath);
+        } catch (IOException e) {
+            LOG.warn("Error removing {}", shardPath, e);
+        }
+    }
+
+    private Path getStateDir(ShardState state) {
+        return queueDir.resolve(state.name());
+    }
+
+    private Path getShardPath(ShardState state, String shardId) {
+        return getStateDir(state).resolve(shardId + SHARD_FILE_EXT);
+    }
+
+    private List<Path> listShardFiles(ShardState state) {
+        try (Stream<Path> shardFiles = Files.list(getStateDir(state))) {
+            return shardFiles
+                    .filter(p -> p.getFileName().toString().endsWith(SHARD_FILE_EXT))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean moveShardFile(Path source, Path target) {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Nullable
+    private CDSShard readShard(Path shardPath) {
+        try {
+            return mapper.readValue(shardPath.toFile(), CDSShard.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            if (Files.exists(shardPath)) {
+                throw new UncheckedIOException(e);
+            }
+            // the shard was moved while it was read
+            return null;
+        }
+    }
+
+    private void writeShard(CDSShard shard, Path shardPath) {
+        try {
+            // write to a temporary file first so that nobody reads a partially written shard
+            Path tmpShardPath = Files.createTempFile(shardPath.getParent(), shard.shardId, ".tmp");
+            try {
+                mapper.writeValue(tmpShardPath.toFile(), shard);
+                Files.move(tmpShardPath, shardPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpShardPath);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package org.janelia.colormipsearch.cmd;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -9,6 +14,8 @@ import com.google.common.cache.LoadingCache;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.tuple.Pair;
+import org.janelia.colormipsearch.imageprocessing.ImageArrayUtils;
 import org.janelia.colormipsearch.mips.NeuronMIP;
 import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
@@ -56,6 +63,8 @@ public class CachedMIPsUtils {
     }
 
     private static LoadingCache<NeuronMIPKey<? extends AbstractNeuronEntity>, NeuronMIP<? extends AbstractNeuronEntity>> mipsImagesCache;
+    // if set (>= 0) color depth images are kept in a sparse representation that only contains the pixels above this threshold
+    private static int sparseColorDepthImagesThreshold = -1;
 
     public static void initializeCache(long maxSize) {
         if (maxSize > 0) {
@@ -76,6 +85,25 @@ public class CachedMIPsUtils {
         }
     }
 
+    /**
+     * Keep the loaded color depth MIPs (InputColorDepthImage) in a sparse representation that only contains the pixels above the threshold.
+     * The threshold must not be greater than any threshold used by the algorithms that process these images.
+     *
+     * @param threshold pixel threshold or a negative value to keep the images in a dense representation
+     */
+    public static void setSparseColorDepthImagesThreshold(int threshold) {
+        LOG.info("Set sparse color depth images threshold to {}", threshold);
+        sparseColorDepthImagesThreshold = threshold;
+    }
+
+    static boolean isCacheEnabled() {
+        return mipsImagesCache != null;
+    }
+
+    static <N extends AbstractNeuronEntity> boolean isMIPCached(N mipInfo, ComputeFileType computeFileType) {
+        return mipsImagesCache != null && mipsImagesCache.getIfPresent(new NeuronMIPKey<>(mipInfo, computeFileType)) != null;
+    }
+
     public static void cleanCache() {
         mipsImagesCache.invalidateAll();
     }
@@ -99,14 +127,64 @@ public class CachedMIPsUtils {
         }
     }
 
+    /**
+     * Load a batch of MIPs with the batch loader, so the archives that contain several of them are opened only once,
+     * and add them to the cache. The MIPs that are already cached are not loaded again.
+     *
+     * @param mips MIPs to load
+     * @param computeFileType file type to load for every MIP
+     * @param executor executor used by the batch loader
+     * @return the MIPs in the same order as the requests
+     */
+    @SuppressWarnings("unchecked")
+    public static <N extends AbstractNeuronEntity> List<NeuronMIP<N>> loadMIPs(List<N> mips, ComputeFileType computeFileType, Executor executor) {
+        List<NeuronMIP<N>> results = new ArrayList<>(Collections.nCopies(mips.size(), null));
+        List<Integer> toLoadIndexes = new ArrayList<>();
+        for (int i = 0; i < mips.size(); i++) {
+            NeuronMIP<N> cachedMIP = mipsImagesCache != null
+                    ? (NeuronMIP<N>) mipsImagesCache.getIfPresent(new NeuronMIPKey<>(mips.get(i), computeFileType))
+                    : null;
+            if (cachedMIP != null) {
+                results.set(i, cachedMIP);
+            } else {
+                toLoadIndexes.add(i);
+            }
+        }
+        List<NeuronMIP<N>> loadedMIPs = NeuronMIPUtils.loadComputeFiles(
+                toLoadIndexes.stream().map(i -> Pair.of(mips.get(i), computeFileType)).collect(Collectors.toList()),
+                executor);
+        for (int li = 0; li < toLoadIndexes.size(); li++) {
+            int i = toLoadIndexes.get(li);
+            NeuronMIP<N> neuronMIP = loadedMIPs.get(li) != null
+                    ? toCachedMIP(loadedMIPs.get(li), computeFileType)
+                    : new NeuronMIP<>(mips.get(i), null, null);
+            if (mipsImagesCache != null && mips.get(i) != null) {
+                mipsImagesCache.put(new NeuronMIPKey<>(mips.get(i), computeFileType), neuronMIP);
+            }
+            results.set(i, neuronMIP);
+        }
+        return results;
+    }
+
     private static <N extends AbstractNeuronEntity> NeuronMIP<N> tryMIPLoad(NeuronMIPKey<N> mipKey) {
         try {
             LOG.trace("Trying to load neuron {}", mipKey);
-            return NeuronMIPUtils.loadComputeFile(mipKey.neuron, mipKey.fileType);
+            return toCachedMIP(NeuronMIPUtils.loadComputeFile(mipKey.neuron, mipKey.fileType), mipKey.fileType);
         } catch (Exception e) {
             LOG.error("Error loading {}", mipKey, e);
             return new NeuronMIP<>(mipKey.neuron, null, null);
         }
     }
 
+    private static <N extends AbstractNeuronEntity> NeuronMIP<N> toCachedMIP(NeuronMIP<N> neuronMIP, ComputeFileType fileType) {
+        if (sparseColorDepthImagesThreshold >= 0 && fileType == ComputeFileType.InputColorDepthImage && NeuronMIPUtils.hasImageArray(neuronMIP)) {
+            return new NeuronMIP<>(
+                    neuronMIP.getNeuronInfo(),
+                    neuronMIP.getImageFileData(),
+                    ImageArrayUtils.toSparseColorImageArray(neuronMIP.getImageArray(), sparseColorDepthImagesThreshold));
+        } else {
+            return neuronMIP;
+        }
+    }
+
 }
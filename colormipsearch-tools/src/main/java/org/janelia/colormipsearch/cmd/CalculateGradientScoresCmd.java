@@ -1,20 +1,30 @@
 package org.janelia.colormipsearch.cmd;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
@@ -22,11 +32,14 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.janelia.colormipsearch.cds.Bidirectional3DShapeScoreCalculator;
 import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithm;
 import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithmProvider;
 import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithmProviderFactory;
@@ -40,13 +53,14 @@ import org.janelia.colormipsearch.dataio.DataSourceParam;
 import org.janelia.colormipsearch.dataio.NeuronMatchesReader;
 import org.janelia.colormipsearch.dataio.NeuronMatchesWriter;
 import org.janelia.colormipsearch.dataio.db.DBCheckedCDMIPsWriter;
-import org.janelia.colormipsearch.dataio.db.DBNeuronMatchesReader;
+import org.janelia.colormipsearch.dataio.db.DBCDMatchesReader;
 import org.janelia.colormipsearch.dataio.db.DBNeuronMatchesWriter;
 import org.janelia.colormipsearch.dataio.fs.JSONNeuronMatchesReader;
 import org.janelia.colormipsearch.dataio.fs.JSONNeuronMatchesWriter;
 import org.janelia.colormipsearch.datarequests.ScoresFilter;
 import org.janelia.colormipsearch.imageprocessing.ImageArray;
 import org.janelia.colormipsearch.imageprocessing.ImageRegionDefinition;
+import org.janelia.colormipsearch.imageprocessing.Vol3DSlicesReader;
 import org.janelia.colormipsearch.mips.NeuronMIP;
 import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
@@ -62,6 +76,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
@@ -86,13 +101,29 @@ class CalculateGradientScoresCmd extends AbstractCmd {
                 description = "Number of best matches for each sample to be used for gradient scoring")
         int numberOfBestMatchesPerSample;
 
-        // this parameter is not used but it's here for future cmd line compatibility
-        // when we start supporting 3d bidirectional shape matching
         @Parameter(names = {"--use-bidirectional-matching"},
-                description = "Use bidirectional matching",
+                description = "If set, the bidirectional area gap is also calculated from the 3D segmentation volumes " +
+                        "of the scored matches for which both the mask and the target have one",
                 arity = 0)
         boolean useBidirectionalMatching = false;
 
+        @Parameter(names = {"--bidirectional-matching-threshold"},
+                description = "Only the 3D segmentation voxels above this threshold are used for the bidirectional area gap")
+        int bidirectionalMatchingThreshold = 0;
+
+        @Parameter(names = {"--bidirectional-matching-xy-radius"},
+                description = "Maximum distance in pixels within a slice between a voxel and its match in the other volume")
+        int bidirectionalMatchingXYRadius = 10;
+
+        @Parameter(names = {"--bidirectional-matching-z-tolerance"},
+                description = "Maximum distance in slices between a voxel and its match in the other volume")
+        int bidirectionalMatchingZTolerance = 5;
+
+        @Parameter(names = {"--bidirectional-matching-threads"},
+                description = "Number of threads dedicated to the bidirectional area gap calculation " +
+                        "so that it does not compete with the 2D gradient scoring for the command executor threads")
+        int bidirectionalMatchingThreads = 2;
+
         @Parameter(names = {"--cancel-previous-gradient-scores"},
                 description = "Cancel existing gradient scores before calculating new ones",
                 arity = 0)
@@ -101,9 +132,50 @@ class CalculateGradientScoresCmd extends AbstractCmd {
         @Parameter(names = {"--mips-matches-read-size", "-mrs" }, description = "Number of MIPs for which matches will be read at once")
         int mipsMatchesReadSize = 1;
 
+        @Parameter(names = {"--masks-partitions-in-flight"},
+                description = "Maximum number of masks partitions that are scored at the same time. " +
+                        "The size of a partition is given by --mips-matches-read-size. " +
+                        "If <= 0 it is derived from the task concurrency so that small partitions still keep all task threads busy")
+        int masksPartitionsInFlight = 0;
+
+        @Parameter(names = {"--group-by-target"},
+                description = "If set, the selected matches are grouped by target so that every target is loaded only once " +
+                        "and scored against all masks that selected it. The best matches of all selected masks are read " +
+                        "before scoring, regardless of --mips-matches-read-size, so they must fit in memory",
+                arity = 0)
+        boolean groupByTarget = false;
+
+        @Parameter(names = {"--max-cached-mask-algorithms"},
+                description = "Maximum number of prepared mask algorithms kept in memory if --mask-algorithms-cache-memory is not set")
+        int maxCachedMaskAlgorithms = 200;
+
+        @Parameter(names = {"--mask-algorithms-cache-memory"},
+                description = "Maximum estimated memory in MB held by the prepared mask algorithms that are shared by all masks partitions. " +
+                        "If <= 0 the number of prepared mask algorithms is bounded by --max-cached-mask-algorithms")
+        long maskAlgorithmsCacheMemoryMB = 1024;
+
+        @Parameter(names = {"--incremental"},
+                description = "If set, only the matches that were never scored or whose inputs (mask and target files or " +
+                        "scoring parameters) changed since they were scored are scored again, and only the masks that have " +
+                        "such matches are normalized and updated",
+                arity = 0)
+        boolean incremental = false;
+
         CalculateGradientScoresArgs(CommonArgs commonArgs) {
             super(commonArgs);
         }
+
+        int getMasksPartitionsInFlight() {
+            if (masksPartitionsInFlight > 0) {
+                return masksPartitionsInFlight;
+            } else {
+                // enough partitions for one mask per task thread, and at least 2 so that the next partition
+                // is read while the last matches of the current one are scored
+                int readSize = Math.max(mipsMatchesReadSize, 1);
+                int taskConcurrency = CmdUtils.getTaskConcurrency(commonArgs);
+                return Math.max((taskConcurrency + readSize - 1) / readSize, 2);
+            }
+        }
     }
 
     /**
@@ -138,46 +210,28 @@ class CalculateGradientScoresCmd extends AbstractCmd {
         }
     }
 
+    // rough estimate of the memory held by a prepared mask algorithm for every mask pixel:
+    // the RGB mask image and the gray mask and high expression images derived from it
+    private static final int PREPARED_MASK_BYTES_PER_PIXEL = 8;
+
     /**
-     * Singleton algorithm provider for a mask so that each mask is only loaded once.
+     * Algorithm provider for a mask. The prepared algorithm is not held by the instance but by the shared mask algorithms cache,
+     * so each mask is only prepared once even if its matches are scored by different partitions.
      *
      * @param <M>
      * @param <T>
      */
     static class ShapeScoreAlgorithmInstance<M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> {
         private final M mask;
-        private final Integer maskThreshold;
-        private final Integer borderSize;
-        private final ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider;
-        private NeuronMIP<M> maskImage;
-        private ColorDepthSearchAlgorithm<ShapeMatchScore> shapeScoreAlgorithmInstance;
-
-        ShapeScoreAlgorithmInstance(M mask,
-                                    Integer maskThreshold,
-                                    Integer borderSize,
-                                    ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider) {
+        private final MaskAlgorithmsCache<M> maskAlgorithmsCache;
+
+        ShapeScoreAlgorithmInstance(M mask, MaskAlgorithmsCache<M> maskAlgorithmsCache) {
             this.mask = mask;
-            this.shapeScoreAlgorithmProvider = shapeScoreAlgorithmProvider;
-            this.maskThreshold = maskThreshold;
-            this.borderSize = borderSize;
-            this.maskImage = null;
-            this.shapeScoreAlgorithmInstance = null;
-        }
-
-        synchronized ColorDepthSearchAlgorithm<ShapeMatchScore> get() {
-            if (maskImage == null) {
-                LOG.info("Load mask image {}", mask);
-                maskImage = NeuronMIPUtils.loadComputeFile(mask, ComputeFileType.InputColorDepthImage);
-                if (NeuronMIPUtils.hasNoImageArray(maskImage)) {
-                    LOG.error("No image found for {}", mask);
-                    return null;
-                }
-                shapeScoreAlgorithmInstance = shapeScoreAlgorithmProvider.createColorDepthQuerySearchAlgorithmWithDefaultParams(
-                        maskImage.getImageArray(),
-                        maskThreshold,
-                        borderSize);
-            }
-            return shapeScoreAlgorithmInstance;
+            this.maskAlgorithmsCache = maskAlgorithmsCache;
+        }
+
+        ColorDepthSearchAlgorithm<ShapeMatchScore> get() {
+            return maskAlgorithmsCache.get(mask);
         }
     }
 
@@ -206,75 +260,320 @@ class CalculateGradientScoresCmd extends AbstractCmd {
     void execute() {
         // initialize the cache
         CachedMIPsUtils.initializeCache(cacheSizeSupplier.get());
+        if (args.sparseTargets) {
+            // the shape score only uses target pixels above the mask threshold
+            CachedMIPsUtils.setSparseColorDepthImagesThreshold(args.maskThreshold);
+        }
         // run gradient scoring
         calculateAllGradientScores();
     }
 
-    private void calculateAllGradientScores() {
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void calculateAllGradientScores() {
         long startTime = System.currentTimeMillis();
-        List<CDMatchEntity<AbstractNeuronEntity, AbstractNeuronEntity>> allScoredMatches = startAllGradientScores();
-        LOG.info("Finished calculating gradient scores (unnormalized) for {} items in {}s - memory usage {}M out of {}M",
-                allScoredMatches.size(),
+        LOG.info("Calculate gradient scores using: top {} / {} / {} best lines / best samples per line / best matches per sample, " +
+                        "percentPositivePixels > {}%, negative radius = {}, mask threshold = {}, mirror mask = {}",
+                args.numberOfBestLines, args.numberOfBestSamplesPerLine, args.numberOfBestMatchesPerSample,
+                args.pctPositivePixels, args.negativeRadius, args.maskThreshold, args.mirrorMask);
+        NeuronMatchesReader<CDMatchEntity<M, T>> cdMatchesReader = getCDMatchesReader();
+        Collection<String> maskIdsToProcess = cdMatchesReader.listMatchesLocations(
+                args.masksLibraries.stream()
+                        .map(larg -> new DataSourceParam()
+                                .setAlignmentSpace(args.alignmentSpace)
+                                .addLibrary(larg.input)
+                                .addNames(args.masksPublishedNames)
+                                .addMipIDs(args.masksMIPIDs)
+                                .addDatasets(args.maskDatasets)
+                                .addTags(args.maskTags)
+                                .addExcludedTags(args.maskExcludedTags)
+                                .addAnnotations(args.maskAnnotations)
+                                .addExcludedAnnotations(args.excludedMaskAnnotations)
+                                .addProcessingTags(args.getMasksProcessingTags())
+                                .setOffset(larg.offset)
+                                .setSize(larg.length))
+                        .collect(Collectors.toList()));
+        LOG.info("Calculate gradient scores for {} masks: {}", maskIdsToProcess.size(), CmdUtils.elemsAsShortenString(maskIdsToProcess, 10, m -> m));
+        long nScoredMatches = calculateMasksGradientScores(maskIdsToProcess, cdMatchesReader);
+        LOG.info("Finished gradient scores for {} matches of {} masks in {}s - memory usage {}M out of {}M",
+                nScoredMatches, maskIdsToProcess.size(),
+                (System.currentTimeMillis() - startTime) / 1000.,
+                (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
+                (maxMemory / _1M));
+    }
+
+    <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    long calculateMasksGradientScores(Collection<String> maskIdsToProcess, NeuronMatchesReader<CDMatchEntity<M, T>> cdMatchesReader) {
+        ImageRegionDefinition excludedRegions = args.getRegionGeneratorForTextLabels();
+        ExecutorService executorService = CmdUtils.createCmdExecutor(args.commonArgs);
+        MIPsPrefetcher mipsPrefetcher = CmdUtils.createMIPsPrefetcher(args.commonArgs);
+        AdaptiveConcurrencyController concurrencyController = CmdUtils.createConcurrencyController(args.commonArgs, mipsPrefetcher);
+        ExecutorService bidirectionalMatchingExecutorService = createBidirectionalMatchingExecutor();
+        try {
+            Scheduler scheduler = Schedulers.fromExecutorService(executorService);
+            Scheduler bidirectionalMatchingScheduler = bidirectionalMatchingExecutorService != null
+                    ? Schedulers.fromExecutorService(bidirectionalMatchingExecutorService)
+                    : null;
+            ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createShapeMatchCDSAlgorithmProvider(
+                    args.mirrorMask,
+                    loadQueryROIMask(args.queryROIMaskName),
+                    excludedRegions
+            );
+            String scoringParams = getScoringParams(shapeScoreAlgorithmProvider);
+            MaskAlgorithmsCache<M> maskAlgorithmsCache = new MaskAlgorithmsCache<>(
+                    mask -> prepareMaskAlgorithm(mask, shapeScoreAlgorithmProvider),
+                    scoringParams,
+                    args.maskAlgorithmsCacheMemoryMB * _1M,
+                    args.maxCachedMaskAlgorithms);
+            Map<Integer, List<String>> masksPartitions = ItemsHandling.partitionCollection(maskIdsToProcess, args.mipsMatchesReadSize);
+            Long nScoredMatches;
+            if (args.groupByTarget) {
+                // a target is usually selected by masks from many partitions, so the best matches of all masks are read
+                // before scoring in order to load every target only once; they are then normalized and written together
+                List<GroupedItems<M, CDMatchEntity<M, T>>> bestMatchesGroupedByMask = Flux.fromIterable(masksPartitions.values())
+                        .flatMapSequential(maskIds -> Mono.fromCallable(() -> getCDMatchesForMaskMipIDs(cdMatchesReader, maskIds))
+                                        .subscribeOn(Schedulers.boundedElastic()),
+                                args.getMasksPartitionsInFlight())
+                        .flatMapIterable(masksPartitionMatches -> masksPartitionMatches)
+                        .collectList()
+                        .block();
+                Preconditions.checkArgument(bestMatchesGroupedByMask != null);
+                nScoredMatches = calculateMasksPartitionGradientScores(
+                        0,
+                        bestMatchesGroupedByMask,
+                        maskAlgorithmsCache,
+                        scoringParams,
+                        scheduler,
+                        bidirectionalMatchingScheduler,
+                        mipsPrefetcher,
+                        concurrencyController);
+            } else {
+                // a masks partition is read, scored, normalized and written before it is released, and only a bounded number
+                // of partitions are in flight, so the memory usage does not depend on how many masks are selected.
+                // The normalization is done per mask and all matches of a mask are in the same partition
+                nScoredMatches = Flux.fromIterable(masksPartitions.entrySet())
+                        .flatMap(indexedPartition -> Mono.fromCallable(() -> calculateMasksPartitionGradientScores(
+                                                indexedPartition.getKey(),
+                                                getCDMatchesForMaskMipIDs(cdMatchesReader, indexedPartition.getValue()),
+                                                maskAlgorithmsCache,
+                                                scoringParams,
+                                                scheduler,
+                                                bidirectionalMatchingScheduler,
+                                                mipsPrefetcher,
+                                                concurrencyController))
+                                        .subscribeOn(Schedulers.boundedElastic()),
+                                args.getMasksPartitionsInFlight())
+                        .reduce(0L, Long::sum)
+                        .block();
+            }
+            maskAlgorithmsCache.logStats();
+            return nScoredMatches != null ? nScoredMatches : 0;
+        } finally {
+            concurrencyController.shutdown();
+            mipsPrefetcher.shutdown();
+            executorService.shutdown();
+            if (bidirectionalMatchingExecutorService != null) {
+                bidirectionalMatchingExecutorService.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The bidirectional area gap reads two 3D volumes for every match, which is much slower than the 2D scoring,
+     * so it runs on its own bounded pool instead of the command executor.
+     *
+     * @return the executor for the bidirectional area gap calculation or null if bidirectional matching is not used
+     */
+    private ExecutorService createBidirectionalMatchingExecutor() {
+        if (!args.useBidirectionalMatching) {
+            return null;
+        }
+        LOG.info("Create a thread pool with {} threads for bidirectional matching using threshold = {}, xy radius = {}, z tolerance = {}",
+                args.bidirectionalMatchingThreads, args.bidirectionalMatchingThreshold,
+                args.bidirectionalMatchingXYRadius, args.bidirectionalMatchingZTolerance);
+        return Executors.newFixedThreadPool(
+                Math.max(args.bidirectionalMatchingThreads, 1),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("BIDIRMATCH-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    long calculateMasksPartitionGradientScores(int partitionIndex,
+                                               List<GroupedItems<M, CDMatchEntity<M, T>>> bestMatchesGroupedByMask,
+                                               MaskAlgorithmsCache<M> maskAlgorithmsCache,
+                                               String scoringParams,
+                                               Scheduler scheduler,
+                                               Scheduler bidirectionalMatchingScheduler,
+                                               MIPsPrefetcher mipsPrefetcher,
+                                               AdaptiveConcurrencyController concurrencyController) {
+        long startTime = System.currentTimeMillis();
+        List<GroupedItems<M, CDMatchEntity<M, T>>> matchesToBeScoredGroupedByMask;
+        if (args.incremental) {
+            matchesToBeScoredGroupedByMask = selectChangedMatches(bestMatchesGroupedByMask, scoringParams);
+        } else {
+            matchesToBeScoredGroupedByMask = bestMatchesGroupedByMask;
+        }
+        List<CDMatchEntity<M, T>> newlyScoredMatches = calculateGradientScores(
+                matchesToBeScoredGroupedByMask,
+                maskAlgorithmsCache,
+                scheduler,
+                mipsPrefetcher,
+                concurrencyController);
+        if (newlyScoredMatches.isEmpty()) {
+            return 0;
+        }
+        Set<CDMatchEntity<M, T>> bidirectionalMatchingFailures = bidirectionalMatchingScheduler != null
+                ? calculateBidirectionalAreaGaps(newlyScoredMatches, bidirectionalMatchingScheduler)
+                : Collections.emptySet();
+        // the matches whose bidirectional area gap failed get no fingerprint so that an incremental run scores them again
+        newlyScoredMatches.stream()
+                .filter(CDMatchEntity::hasGradScore)
+                .forEach(m -> m.setGradientScoreFingerprint(bidirectionalMatchingFailures.contains(m)
+                        ? null
+                        : getGradientScoreFingerprint(m, scoringParams)));
+        List<CDMatchEntity<M, T>> scoredMatches;
+        if (args.incremental) {
+            // the normalized scores depend on the max scores of the mask, so all best matches of the affected masks
+            // are normalized and written again, not only the ones that were just scored
+            Set<Number> affectedMaskIds = matchesToBeScoredGroupedByMask.stream()
+                    .map(maskMatches -> maskMatches.getKey().getEntityId())
+                    .collect(Collectors.toSet());
+            scoredMatches = bestMatchesGroupedByMask.stream()
+                    .filter(maskMatches -> affectedMaskIds.contains(maskMatches.getKey().getEntityId()))
+                    .flatMap(maskMatches -> maskMatches.getItems().stream())
+                    .collect(Collectors.toList());
+        } else {
+            scoredMatches = newlyScoredMatches;
+        }
+        LOG.info("Finished calculating gradient scores (unnormalized) for {} items from masks partition {} in {}s - memory usage {}M out of {}M",
+                scoredMatches.size(), partitionIndex,
                 (System.currentTimeMillis() - startTime) / 1000.,
                 (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                 (maxMemory / _1M));
         long startUpdateTime = System.currentTimeMillis();
-        normalizeScores(allScoredMatches);
+        normalizeScores(scoredMatches);
         // update matches in the storage
-        long updated = updateCDMatches(allScoredMatches);
-        LOG.info("Finished updating gradient scores (normalized) for {} items ({} updated) in {}s - memory usage {}M out of {}M",
-                allScoredMatches.size(), updated,
+        long updated = updateCDMatches(scoredMatches);
+        LOG.info("Finished updating gradient scores (normalized) for {} items ({} updated) from masks partition {} in {}s - memory usage {}M out of {}M",
+                scoredMatches.size(), updated, partitionIndex,
                 (System.currentTimeMillis() - startUpdateTime) / 1000.,
                 (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                 (maxMemory / _1M));
 
-        Set<AbstractNeuronEntity> mipsToUpdate = allScoredMatches.stream()
+        Set<AbstractNeuronEntity> mipsToUpdate = scoredMatches.stream()
                 .flatMap(m -> Stream.of(m.getMaskImage(), m.getMatchedImage()))
                 .collect(Collectors.toSet());
         CDMIPsWriter cdmipsWriter = getCDMipsWriter();
         if (cdmipsWriter != null) {
             long updatedMips = cdmipsWriter.addProcessingTags(mipsToUpdate, ProcessingType.GradientScore, Collections.singleton(args.getProcessingTag()));
-            LOG.info("Annotated {} ({}) mips with {} in {}s - memory usage {}M out of {}M",
-                    mipsToUpdate.size(), updatedMips,
+            LOG.info("Annotated {} ({}) mips from masks partition {} with {} in {}s - memory usage {}M out of {}M",
+                    mipsToUpdate.size(), updatedMips, partitionIndex,
                     ProcessingType.GradientScore,
                     (System.currentTimeMillis() - startUpdateTime) / 1000.,
                     (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                     (maxMemory / _1M));
         }
+        return scoredMatches.size();
     }
 
-    @Nonnull
+    /**
+     * Calculate the bidirectional area gap of the scored matches for which both the mask and the target have a 3D segmentation volume.
+     * The matches without volumes keep the area gap set by the shape score. The matches are grouped by the mask volume
+     * so that every mask volume is read only once and then compared with the volumes of all its targets.
+     *
+     * @return the matches for which the bidirectional area gap could not be calculated because of an error
+     */
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
-    List<CDMatchEntity<M, T>> startAllGradientScores() {
-        LOG.info("Calculate gradient scores using: top {} / {} / {} best lines / best samples per line / best matches per sample, " +
-                        "percentPositivePixels > {}%, negative radius = {}, mask threshold = {}, mirror mask = {}",
-                args.numberOfBestLines, args.numberOfBestSamplesPerLine, args.numberOfBestMatchesPerSample,
-                args.pctPositivePixels, args.negativeRadius, args.maskThreshold, args.mirrorMask);
-        ImageRegionDefinition excludedRegions = args.getRegionGeneratorForTextLabels();
-        NeuronMatchesReader<CDMatchEntity<M, T>> cdMatchesReader = getCDMatchesReader();
-        Collection<String> maskIdsToProcess = cdMatchesReader.listMatchesLocations(
-                args.masksLibraries.stream()
-                        .map(larg -> new DataSourceParam()
-                                .setAlignmentSpace(args.alignmentSpace)
-                                .addLibrary(larg.input)
-                                .addNames(args.masksPublishedNames)
-                                .addMipIDs(args.masksMIPIDs)
-                                .addDatasets(args.maskDatasets)
-                                .addTags(args.maskTags)
-                                .addExcludedTags(args.maskExcludedTags)
-                                .addAnnotations(args.maskAnnotations)
-                                .addExcludedAnnotations(args.excludedMaskAnnotations)
-                                .addProcessingTags(args.getMasksProcessingTags())
-                                .setOffset(larg.offset)
-                                .setSize(larg.length))
-                        .collect(Collectors.toList()));
-        int size = maskIdsToProcess.size();
+    Set<CDMatchEntity<M, T>> calculateBidirectionalAreaGaps(List<CDMatchEntity<M, T>> scoredMatches, Scheduler bidirectionalMatchingScheduler) {
+        long startTime = System.currentTimeMillis();
+        Bidirectional3DShapeScoreCalculator bidirectionalShapeScoreCalculator = new Bidirectional3DShapeScoreCalculator(
+                args.bidirectionalMatchingThreshold,
+                args.bidirectionalMatchingXYRadius,
+                args.bidirectionalMatchingZTolerance,
+                args.mirrorMask);
+        int bidirectionalMatchingConcurrency = Math.max(args.bidirectionalMatchingThreads, 1);
+        Collection<List<CDMatchEntity<M, T>>> matchesGroupedByMaskVolume = scoredMatches.stream()
+                .filter(CDMatchEntity::hasGradScore)
+                .filter(m -> m.getMaskImage().hasComputeFile(ComputeFileType.Vol3DSegmentation) &&
+                        m.getMatchedImage().hasComputeFile(ComputeFileType.Vol3DSegmentation))
+                .collect(Collectors.groupingBy(
+                        m -> getFileDataRef(m.getMaskImage().getComputeFileData(ComputeFileType.Vol3DSegmentation)),
+                        LinkedHashMap::new,
+                        Collectors.toList()))
+                .values();
+        // every mask volume in flight is entirely in memory so only as many as the number of threads are prepared at a time
+        Set<CDMatchEntity<M, T>> failedMatches = Flux.fromIterable(matchesGroupedByMaskVolume)
+                .flatMap(maskVolumeMatches -> Flux.defer(() -> {
+                                    Bidirectional3DShapeScoreCalculator.PreparedMaskVolume maskVolume = prepareMaskVolume(
+                                            bidirectionalShapeScoreCalculator, maskVolumeMatches.get(0));
+                                    if (maskVolume == null) {
+                                        return Flux.fromIterable(maskVolumeMatches);
+                                    }
+                                    return Flux.fromIterable(maskVolumeMatches)
+                                            .flatMap(m -> Mono.fromCallable(() -> calculateBidirectionalAreaGap(bidirectionalShapeScoreCalculator, maskVolume, m))
+                                                            .subscribeOn(bidirectionalMatchingScheduler)
+                                                            .filter(calculated -> !calculated)
+                                                            .map(calculated -> m),
+                                                    bidirectionalMatchingConcurrency);
+                                })
+                                .subscribeOn(bidirectionalMatchingScheduler),
+                        bidirectionalMatchingConcurrency)
+                .collect(() -> Collections.<CDMatchEntity<M, T>>newSetFromMap(new IdentityHashMap<>()), Set::add)
+                .block();
+        Preconditions.checkArgument(failedMatches != null);
+        LOG.info("Calculated bidirectional area gap for {} mask volumes and {} out of {} matches with {} failures in {}s",
+                matchesGroupedByMaskVolume.size(),
+                matchesGroupedByMaskVolume.stream().mapToInt(List::size).sum(), scoredMatches.size(), failedMatches.size(),
+                (System.currentTimeMillis() - startTime) / 1000.);
+        return failedMatches;
+    }
 
-        LOG.info("Collect matches to calculate all gradient scores for {} masks: {}", size, CmdUtils.elemsAsShortenString(maskIdsToProcess, 10, m -> m));
-        List<GroupedItems<M, CDMatchEntity<M, T>>> matchesToBeScoredGroupedByMask = ItemsHandling.partitionCollection(maskIdsToProcess, args.mipsMatchesReadSize).entrySet().stream()
-                .flatMap(indexedPartition -> getCDMatchesForMaskMipIDs(cdMatchesReader, indexedPartition.getValue()).stream())
-                .collect(Collectors.toList());
+    /**
+     * @return the prepared mask volume of the match or null if the mask volume could not be read
+     */
+    @Nullable
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    Bidirectional3DShapeScoreCalculator.PreparedMaskVolume prepareMaskVolume(Bidirectional3DShapeScoreCalculator bidirectionalShapeScoreCalculator,
+                                                                            CDMatchEntity<M, T> cdsMatch) {
+        FileData maskVolumeData = cdsMatch.getMaskImage().getComputeFileData(ComputeFileType.Vol3DSegmentation);
+        try (Vol3DSlicesReader maskVolume = new Vol3DSlicesReader(maskVolumeData.getName(), () -> NeuronMIPUtils.openInputStream(maskVolumeData))) {
+            return bidirectionalShapeScoreCalculator.prepareMaskVolume(maskVolume);
+        } catch (Exception e) {
+            LOG.error("Error reading mask volume {} of {}", maskVolumeData.getName(), cdsMatch.getMaskImage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return false if the bidirectional area gap could not be calculated because of an error. If the volumes
+     * have different sizes they cannot be compared, so the match keeps the area gap set by the shape score but that is
+     * not an error.
+     */
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    boolean calculateBidirectionalAreaGap(Bidirectional3DShapeScoreCalculator bidirectionalShapeScoreCalculator,
+                                          Bidirectional3DShapeScoreCalculator.PreparedMaskVolume maskVolume,
+                                          CDMatchEntity<M, T> cdsMatch) {
+        FileData targetVolumeData = cdsMatch.getMatchedImage().getComputeFileData(ComputeFileType.Vol3DSegmentation);
+        try (Vol3DSlicesReader targetVolume = new Vol3DSlicesReader(targetVolumeData.getName(), () -> NeuronMIPUtils.openInputStream(targetVolumeData))) {
+            long bidirectionalAreaGap = bidirectionalShapeScoreCalculator.calculateBidirectionalAreaGap(maskVolume, targetVolume);
+            if (bidirectionalAreaGap >= 0) {
+                cdsMatch.setBidirectionalAreaGap(bidirectionalAreaGap);
+            }
+            return true;
+        } catch (Exception e) {
+            LOG.error("Error calculating bidirectional area gap for {} between {} and {}",
+                    cdsMatch, maskVolume.getName(), targetVolumeData.getName(), e);
+            return false;
+        }
+    }
 
+    @Nonnull
+    <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    List<CDMatchEntity<M, T>> calculateGradientScores(List<GroupedItems<M, CDMatchEntity<M, T>>> matchesToBeScoredGroupedByMask,
+                                                      MaskAlgorithmsCache<M> maskAlgorithmsCache,
+                                                      Scheduler scheduler,
+                                                      MIPsPrefetcher mipsPrefetcher,
+                                                      AdaptiveConcurrencyController concurrencyController) {
         long nMatches = matchesToBeScoredGroupedByMask.stream()
                 .mapToLong(gm -> gm.getItems().size())
                 .sum();
@@ -291,32 +590,31 @@ class CalculateGradientScoresCmd extends AbstractCmd {
                 nMatches / bufferingSize + 1, bufferingSize,
                 (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                 (maxMemory / _1M));
-        ExecutorService executorService = CmdUtils.createCmdExecutor(args.commonArgs);
-        try {
-            Scheduler scheduler = Schedulers.fromExecutorService(executorService);
-
-            ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createShapeMatchCDSAlgorithmProvider(
-                    args.mirrorMask,
-                    loadQueryROIMask(args.queryROIMaskName),
-                    excludedRegions
-            );
-
-            List<CDMatchEntity<M, T>> allScoredMatches = Flux.fromIterable(matchesToBeScoredGroupedByMask)
-                    .flatMap(maskMatches -> createGradScoreComputationsForMask(maskMatches.getKey(), maskMatches.getItems(), shapeScoreAlgorithmProvider))
+        Flux<CDMatchEntity<M, T>> scoredMatches;
+        if (args.groupByTarget) {
+            scoredMatches = scoreMatchesGroupedByTarget(matchesToBeScoredGroupedByMask, maskAlgorithmsCache, scheduler, mipsPrefetcher, concurrencyController);
+        } else {
+            scoredMatches = Flux.fromIterable(matchesToBeScoredGroupedByMask)
+                    .flatMap(maskMatches -> createGradScoreComputationsForMask(maskMatches.getKey(), maskMatches.getItems(), maskAlgorithmsCache))
                     .buffer(bufferingSize) // create processing partitions - all partitions will be dispatched concurrently and items from a partition will be processed sequentially
                     .parallel(CmdUtils.getTaskConcurrency(args.commonArgs))
                     .runOn(scheduler)
-                    .flatMap(this::runGradientScoreComputations)
-                    .sequential()
-                    .collectList()
-                    .block();
-
-            checkMemoryUsage();
-            Preconditions.checkArgument(allScoredMatches != null);
-            return allScoredMatches;
-        } finally {
-            executorService.shutdown();
+                    .flatMap(algsPlusMatches -> Flux.defer(() -> {
+                        // a partition only starts when the controller allows one more partition in flight
+                        concurrencyController.acquire();
+                        long startTime = System.currentTimeMillis();
+                        return runGradientScoreComputations(algsPlusMatches, mipsPrefetcher)
+                                .doFinally(signal -> concurrencyController.release(algsPlusMatches.size(), System.currentTimeMillis() - startTime));
+                    }))
+                    .sequential();
         }
+        List<CDMatchEntity<M, T>> allScoredMatches = scoredMatches
+                .collectList()
+                .block();
+
+        checkMemoryUsage();
+        Preconditions.checkArgument(allScoredMatches != null);
+        return allScoredMatches;
     }
 
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
@@ -327,26 +625,45 @@ class CalculateGradientScoresCmd extends AbstractCmd {
         if (args.pctPositivePixels > 0) {
             neuronsMatchScoresFilter.addSScore("matchingPixelsRatio", args.pctPositivePixels / 100);
         }
+        DataSourceParam masksDataSource = new DataSourceParam()
+                .setAlignmentSpace(args.alignmentSpace)
+                .addMipIDs(maskCDMipIds)
+                .addDatasets(args.maskDatasets)
+                .addTags(args.maskTags)
+                .addAnnotations(args.maskAnnotations)
+                .addExcludedAnnotations(args.excludedMaskAnnotations);
+        DataSourceParam targetsDataSource = new DataSourceParam()
+                .setAlignmentSpace(args.alignmentSpace)
+                .addLibraries(args.targetsLibraries)
+                .addNames(args.targetsPublishedNames)
+                .addMipIDs(args.targetsMIPIDs)
+                .addDatasets(args.targetDatasets)
+                .addTags(args.targetTags)
+                .addExcludedTags(args.targetExcludedTags)
+                .addAnnotations(args.targetAnnotations)
+                .addExcludedAnnotations(args.excludedTargetAnnotations)
+                .addProcessingTags(args.getTargetsProcessingTags());
+        if (cdsMatchesReader instanceof DBCDMatchesReader && !args.cancelExistingGradientScores) {
+            // let the database select the best matches so that only those are transferred;
+            // resetting the previous scores needs all matches so in that case the selection is still done here
+            List<CDMatchEntity<M, T>> bestCDMatches = ((DBCDMatchesReader<CDMatchEntity<M, T>>) cdsMatchesReader).readBestMatchesByMask(
+                    args.alignmentSpace,
+                    masksDataSource,
+                    targetsDataSource,
+                    /* matchTags */args.matchTags,
+                    /* matchExcludedTags */null,
+                    neuronsMatchScoresFilter,
+                    args.numberOfBestLines,
+                    args.numberOfBestSamplesPerLine,
+                    args.numberOfBestMatchesPerSample);
+            LOG.info("Selected {} best color depth matches for {} mips in {}ms",
+                    bestCDMatches.size(), maskCDMipIds.size(), System.currentTimeMillis() - startTime);
+            return MatchEntitiesGrouping.groupMatchesByMaskID(bestCDMatches);
+        }
         List<CDMatchEntity<M, T>> allCDMatches = cdsMatchesReader.readMatchesByMask(
                 args.alignmentSpace,
-                new DataSourceParam()
-                        .setAlignmentSpace(args.alignmentSpace)
-                        .addMipIDs(maskCDMipIds)
-                        .addDatasets(args.maskDatasets)
-                        .addTags(args.maskTags)
-                        .addAnnotations(args.maskAnnotations)
-                        .addExcludedAnnotations(args.excludedMaskAnnotations),
-                new DataSourceParam()
-                        .setAlignmentSpace(args.alignmentSpace)
-                        .addLibraries(args.targetsLibraries)
-                        .addNames(args.targetsPublishedNames)
-                        .addMipIDs(args.targetsMIPIDs)
-                        .addDatasets(args.targetDatasets)
-                        .addTags(args.targetTags)
-                        .addExcludedTags(args.targetExcludedTags)
-                        .addAnnotations(args.targetAnnotations)
-                        .addExcludedAnnotations(args.excludedTargetAnnotations)
-                        .addProcessingTags(args.getTargetsProcessingTags()),
+                masksDataSource,
+                targetsDataSource,
                 /* matchTags */args.matchTags,
                 /* matchExcludedTags */null,
                 neuronsMatchScoresFilter,
@@ -378,6 +695,116 @@ class CalculateGradientScoresCmd extends AbstractCmd {
         return allCDMatchesByMaskId;
     }
 
+    /**
+     * Select from every mask only the matches that must be scored again because they were never scored or because
+     * their fingerprint changed. Masks that have no such matches are left out.
+     */
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    List<GroupedItems<M, CDMatchEntity<M, T>>> selectChangedMatches(List<GroupedItems<M, CDMatchEntity<M, T>>> matchesGroupedByMask,
+                                                                    String scoringParams) {
+        List<GroupedItems<M, CDMatchEntity<M, T>>> changedMatchesGroupedByMask = new ArrayList<>();
+        long nMatches = 0;
+        long nChangedMatches = 0;
+        for (GroupedItems<M, CDMatchEntity<M, T>> maskMatches : matchesGroupedByMask) {
+            List<CDMatchEntity<M, T>> changedMatches = maskMatches.getItems().stream()
+                    .filter(m -> !m.hasGradScore() ||
+                            !StringUtils.equals(m.getGradientScoreFingerprint(), getGradientScoreFingerprint(m, scoringParams)))
+                    .collect(Collectors.toList());
+            nMatches += maskMatches.getItemsCount();
+            if (!changedMatches.isEmpty()) {
+                changedMatchesGroupedByMask.add(GroupedItems.createGroupedItems(maskMatches.getKey(), changedMatches));
+                nChangedMatches += changedMatches.size();
+            }
+        }
+        LOG.info("Found {} changed matches out of {} for {} out of {} masks",
+                nChangedMatches, nMatches, changedMatchesGroupedByMask.size(), matchesGroupedByMask.size());
+        return changedMatchesGroupedByMask;
+    }
+
+    <M extends AbstractNeuronEntity>
+    MaskAlgorithmsCache.PreparedMaskAlgorithm prepareMaskAlgorithm(M mask,
+                                                                   ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider) {
+        LOG.info("Load mask image {}", mask);
+        NeuronMIP<M> maskImage = NeuronMIPUtils.loadComputeFile(mask, ComputeFileType.InputColorDepthImage);
+        if (NeuronMIPUtils.hasNoImageArray(maskImage)) {
+            LOG.error("No image found for {}", mask);
+            return new MaskAlgorithmsCache.PreparedMaskAlgorithm(null, 0);
+        }
+        ColorDepthSearchAlgorithm<ShapeMatchScore> shapeScoreAlgorithm = shapeScoreAlgorithmProvider.createColorDepthQuerySearchAlgorithmWithDefaultParams(
+                maskImage.getImageArray(),
+                args.maskThreshold,
+                args.borderSize);
+        return new MaskAlgorithmsCache.PreparedMaskAlgorithm(
+                shapeScoreAlgorithm,
+                (long) maskImage.getImageArray().getPixelCount() * PREPARED_MASK_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * @return a description of all parameters that affect the gradient score of a match
+     */
+    private String getScoringParams(ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider) {
+        StringBuilder scoringParamsBuilder = new StringBuilder()
+                .append("maskThreshold=").append(args.maskThreshold)
+                .append(";borderSize=").append(args.borderSize)
+                .append(";mirrorMask=").append(args.mirrorMask)
+                .append(";negativeRadius=").append(args.negativeRadius)
+                .append(";queryROIMask=").append(StringUtils.defaultString(args.queryROIMaskName))
+                .append(";nameLabel=").append(args.hasNameLabel())
+                .append(";colorScaleLabel=").append(args.hasColorScaleLabel())
+                .append(";cdsParams=").append(shapeScoreAlgorithmProvider.getDefaultCDSParams().asMap());
+        if (args.useBidirectionalMatching) {
+            // only appended when used so that the fingerprints of the matches scored without it do not change
+            scoringParamsBuilder
+                    .append(";bidirectionalThreshold=").append(args.bidirectionalMatchingThreshold)
+                    .append(";bidirectionalXYRadius=").append(args.bidirectionalMatchingXYRadius)
+                    .append(";bidirectionalZTolerance=").append(args.bidirectionalMatchingZTolerance);
+        }
+        return scoringParamsBuilder.toString();
+    }
+
+    /**
+     * The fingerprint of a match is computed from the references of the files used for scoring, i.e. the mask image and
+     * the target image and its variants, and from the scoring parameters. The image content is not read because that
+     * would cost as much as scoring the match again.
+     *
+     * @return the fingerprint of the inputs used for calculating the gradient score of the match as a hex string
+     */
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> String getGradientScoreFingerprint(CDMatchEntity<M, T> cdsMatch,
+                                                                                                             String scoringParams) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder inputsBuilder = new StringBuilder(scoringParams)
+                .append(";mask=").append(getFileDataRef(cdsMatch.getMaskImage().getComputeFileData(ComputeFileType.InputColorDepthImage)))
+                .append(";target=").append(getFileDataRef(cdsMatch.getMatchedImage().getComputeFileData(ComputeFileType.InputColorDepthImage)))
+                .append(";gradient=").append(getFileDataRef(cdsMatch.getMatchedImage().getComputeFileData(ComputeFileType.GradientImage)))
+                .append(";zgap=").append(getFileDataRef(cdsMatch.getMatchedImage().getComputeFileData(ComputeFileType.ZGapImage)))
+                .append(";mirrored=").append(cdsMatch.isMirrored());
+        if (args.useBidirectionalMatching) {
+            inputsBuilder
+                    .append(";maskVolume=").append(getFileDataRef(cdsMatch.getMaskImage().getComputeFileData(ComputeFileType.Vol3DSegmentation)))
+                    .append(";targetVolume=").append(getFileDataRef(cdsMatch.getMatchedImage().getComputeFileData(ComputeFileType.Vol3DSegmentation)));
+        }
+        StringBuilder fingerprintBuilder = new StringBuilder();
+        for (byte b : md.digest(inputsBuilder.toString().getBytes(StandardCharsets.UTF_8))) {
+            fingerprintBuilder.append(String.format("%02x", b));
+        }
+        return fingerprintBuilder.toString();
+    }
+
+    private String getFileDataRef(FileData fd) {
+        if (fd == null) {
+            return "";
+        } else {
+            // the file version makes a file that was rewritten at the same location count as a changed input
+            return fd.getDataType() + ":" + fd.getFileName() + ":" + StringUtils.defaultString(fd.getEntryName()) +
+                    ":" + StringUtils.defaultString(NeuronMIPUtils.getFileVersion(fd));
+        }
+    }
+
     /**
      * The ROI mask is typically the hemibrain mask that should be applied when the color depth search is done from LM to EM.
      *
@@ -395,7 +822,7 @@ class CalculateGradientScoresCmd extends AbstractCmd {
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> NeuronMatchesReader<CDMatchEntity<M, T>> getCDMatchesReader() {
         if (args.commonArgs.resultsStorage == StorageType.DB) {
             DaosProvider daosProvider = getDaosProvider(false);
-            return new DBNeuronMatchesReader<>(
+            return new DBCDMatchesReader<>(
                     daosProvider.getNeuronMetadataDao(),
                     daosProvider.getCDMatchesDao(),
                     "mipId");
@@ -463,7 +890,7 @@ class CalculateGradientScoresCmd extends AbstractCmd {
      *
      * @param mask
      * @param maskMatches
-     * @param shapeScoreAlgorithmProvider
+     * @param maskAlgorithmsCache
      * @param <M>
      * @param <T>
      * @return
@@ -471,11 +898,11 @@ class CalculateGradientScoresCmd extends AbstractCmd {
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
     Flux<Pair<ShapeScoreAlgorithmInstance<M, T>, CDMatchEntity<M, T>>> createGradScoreComputationsForMask(M mask,
                                                                                                           List<CDMatchEntity<M, T>> maskMatches,
-                                                                                                          ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider) {
+                                                                                                          MaskAlgorithmsCache<M> maskAlgorithmsCache) {
         if (maskMatches.isEmpty()) {
             return Flux.empty(); // nothing to do
         }
-        ShapeScoreAlgorithmInstance<M, T> shapeScoreAlgorithmSupplier = new ShapeScoreAlgorithmInstance<>(mask, args.maskThreshold, args.borderSize, shapeScoreAlgorithmProvider);
+        ShapeScoreAlgorithmInstance<M, T> shapeScoreAlgorithmSupplier = new ShapeScoreAlgorithmInstance<>(mask, maskAlgorithmsCache);
         // use Flux.generate instead of Flux.fromIterable because then I don't have to worry about the backpressure
         // the method will be called only one data is needed by the downstream
         return Flux.generate(
@@ -499,7 +926,10 @@ class CalculateGradientScoresCmd extends AbstractCmd {
     }
 
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
-    Flux<CDMatchEntity<M, T>> runGradientScoreComputations(List<Pair<ShapeScoreAlgorithmInstance<M, T>, CDMatchEntity<M, T>>> algsPlusMatches) {
+    Flux<CDMatchEntity<M, T>> runGradientScoreComputations(List<Pair<ShapeScoreAlgorithmInstance<M, T>, CDMatchEntity<M, T>>> algsPlusMatches,
+                                                           MIPsPrefetcher mipsPrefetcher) {
+        // the targets in the order in which they will be scored - used for prefetching the target images
+        List<T> scheduledTargets = algsPlusMatches.stream().map(p -> p.getRight().getMatchedImage()).collect(Collectors.toList());
         // use Flux.generate instead of Flux.fromIterable because then I don't have to worry about the backpressure
         // the method will be called only one data is needed by the downstream
         return Flux.generate(
@@ -530,6 +960,10 @@ class CalculateGradientScoresCmd extends AbstractCmd {
                         sink.complete();
                         return state;
                     }
+                    Set<ComputeFileType> targetFileTypes = EnumSet.of(ComputeFileType.InputColorDepthImage);
+                    targetFileTypes.addAll(shapeScoreAlgorithm.getRequiredTargetVariantTypes());
+                    // start loading the next targets while this one is being scored
+                    mipsPrefetcher.prefetchAhead(scheduledTargets, state.currentIndex.get() - 1, targetFileTypes);
                     CDMatchEntity<M, T> cdsMatch = algPlusMatch.getRight();
                     calculateGradientScore(shapeScoreAlgorithm, cdsMatch);
                     sink.next(cdsMatch);
@@ -538,16 +972,111 @@ class CalculateGradientScoresCmd extends AbstractCmd {
         );
     }
 
-    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void calculateGradientScore(ColorDepthSearchAlgorithm<ShapeMatchScore> shapeScoreAlgorithm, CDMatchEntity<M, T> cdsMatch) {
+    /**
+     * Score the selected matches grouped by target instead of by mask. A target that was selected by many masks
+     * is loaded only once, while the masks' algorithms are prepared on demand and kept in the shared mask algorithms cache.
+     */
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    Flux<CDMatchEntity<M, T>> scoreMatchesGroupedByTarget(List<GroupedItems<M, CDMatchEntity<M, T>>> matchesGroupedByMask,
+                                                          MaskAlgorithmsCache<M> maskAlgorithmsCache,
+                                                          Scheduler scheduler,
+                                                          MIPsPrefetcher mipsPrefetcher,
+                                                          AdaptiveConcurrencyController concurrencyController) {
+        List<List<CDMatchEntity<M, T>>> matchesGroupedByTarget = new ArrayList<>(matchesGroupedByMask.stream()
+                .flatMap(maskMatches -> maskMatches.getItems().stream())
+                .collect(Collectors.groupingBy(CDMatchEntity::getMatchedImage, LinkedHashMap::new, Collectors.toList()))
+                .values());
+        LOG.info("Grouped the matches of {} masks by {} targets", matchesGroupedByMask.size(), matchesGroupedByTarget.size());
+        // the targets in the order in which they will be scored - used for prefetching the target images
+        List<T> scheduledTargets = matchesGroupedByTarget.stream().map(targetMatches -> targetMatches.get(0).getMatchedImage()).collect(Collectors.toList());
+        return Flux.range(0, matchesGroupedByTarget.size())
+                .parallel(CmdUtils.getTaskConcurrency(args.commonArgs))
+                .runOn(scheduler)
+                .flatMap(targetIndex -> Flux.defer(() -> {
+                    concurrencyController.acquire();
+                    long startTime = System.currentTimeMillis();
+                    List<CDMatchEntity<M, T>> targetMatches = matchesGroupedByTarget.get(targetIndex);
+                    return Flux.fromIterable(calculateTargetGradientScores(targetMatches, maskAlgorithmsCache, scheduledTargets, targetIndex, mipsPrefetcher))
+                            .doFinally(signal -> concurrencyController.release(targetMatches.size(), System.currentTimeMillis() - startTime));
+                }))
+                .sequential();
+    }
+
+    /**
+     * Score all matches of a target. The target and its variants are loaded through the MIPs cache, like in the mask grouped
+     * scoring, so they share the cached (and possibly sparse) images and the images loaded ahead by the prefetcher.
+     */
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    List<CDMatchEntity<M, T>> calculateTargetGradientScores(List<CDMatchEntity<M, T>> targetMatches,
+                                                            MaskAlgorithmsCache<M> maskAlgorithmsCache,
+                                                            List<T> scheduledTargets,
+                                                            int targetIndex,
+                                                            MIPsPrefetcher mipsPrefetcher) {
         long startTime = System.currentTimeMillis();
+        T target = targetMatches.get(0).getMatchedImage();
+        // the variants are loaded only when the first mask needs them and then reused for all other masks
+        Map<ComputeFileType, Supplier<ImageArray<?>>> targetVariantsSuppliers = new HashMap<>();
+        NeuronMIP<T> targetImage = null;
+        List<CDMatchEntity<M, T>> scoredMatches = new ArrayList<>();
+        for (CDMatchEntity<M, T> cdsMatch : targetMatches) {
+            ColorDepthSearchAlgorithm<ShapeMatchScore> shapeScoreAlgorithm = maskAlgorithmsCache.get(cdsMatch.getMaskImage());
+            if (shapeScoreAlgorithm == null) {
+                // the mask image could not be loaded
+                continue;
+            }
+            if (targetImage == null) {
+                Set<ComputeFileType> targetFileTypes = EnumSet.of(ComputeFileType.InputColorDepthImage);
+                targetFileTypes.addAll(shapeScoreAlgorithm.getRequiredTargetVariantTypes());
+                // start loading the next targets while this one is being scored
+                mipsPrefetcher.prefetchAhead(scheduledTargets, targetIndex, targetFileTypes);
+                LOG.debug("Load target image {} for {} matches", target, targetMatches.size());
+                targetImage = CachedMIPsUtils.loadMIP(target, ComputeFileType.InputColorDepthImage);
+            }
+            shapeScoreAlgorithm.getRequiredTargetVariantTypes().forEach(variantType -> targetVariantsSuppliers.computeIfAbsent(
+                    variantType,
+                    vt -> Suppliers.memoize(() -> NeuronMIPUtils.getImageArray(CachedMIPsUtils.loadMIP(target, vt)))));
+            setLoggingContext(cdsMatch);
+            calculateGradientScore(shapeScoreAlgorithm, cdsMatch, targetImage, targetVariantsSuppliers);
+            scoredMatches.add(cdsMatch);
+        }
+        LOG.debug("Computed gradient scores for {} masks against {} in {}s",
+                scoredMatches.size(), target, (System.currentTimeMillis() - startTime) / 1000.);
+        checkMemoryUsage();
+        return scoredMatches;
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void calculateGradientScore(ColorDepthSearchAlgorithm<ShapeMatchScore> shapeScoreAlgorithm, CDMatchEntity<M, T> cdsMatch) {
+        T target = cdsMatch.getMatchedImage();
+        setLoggingContext(cdsMatch);
+        LOG.debug("Load target image {}", target);
+        NeuronMIP<AbstractNeuronEntity> matchedTargetImage = CachedMIPsUtils.loadMIP(target, ComputeFileType.InputColorDepthImage);
+        calculateGradientScore(
+                shapeScoreAlgorithm,
+                cdsMatch,
+                matchedTargetImage,
+                NeuronMIPUtils.getImageLoaders(
+                        target,
+                        shapeScoreAlgorithm.getRequiredTargetVariantTypes(),
+                        (n, cft) -> NeuronMIPUtils.getImageArray(CachedMIPsUtils.loadMIP(n, cft))
+                ));
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void setLoggingContext(CDMatchEntity<M, T> cdsMatch) {
         M mask = cdsMatch.getMaskImage();
         T target = cdsMatch.getMatchedImage();
         // set context for logging - I don't clean the context on exit
         // because I want to be able to see the last mask and target even if sometimes it may not be correct
         MDC.put("maskId", mask.getMipId() + "/" + mask.getEntityId());
         MDC.put("targetId", target.getMipId() + "/" + target.getEntityId());
-        LOG.debug("Load target image {}", target);
-        NeuronMIP<AbstractNeuronEntity> matchedTargetImage = CachedMIPsUtils.loadMIP(target, ComputeFileType.InputColorDepthImage);
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void calculateGradientScore(ColorDepthSearchAlgorithm<ShapeMatchScore> shapeScoreAlgorithm,
+                                                                                                         CDMatchEntity<M, T> cdsMatch,
+                                                                                                         NeuronMIP<?> matchedTargetImage,
+                                                                                                         Map<ComputeFileType, Supplier<ImageArray<?>>> targetVariantsSuppliers) {
+        long startTime = System.currentTimeMillis();
+        M mask = cdsMatch.getMaskImage();
+        T target = cdsMatch.getMatchedImage();
         if (NeuronMIPUtils.hasImageArray(matchedTargetImage)) {
             LOG.debug("Calculate shape score for {} between {}:{} and {}:{}",
                     cdsMatch.getEntityId(),
@@ -555,11 +1084,7 @@ class CalculateGradientScoresCmd extends AbstractCmd {
                     target.getPublishedName(), target.getMipId());
             ShapeMatchScore gradScore = shapeScoreAlgorithm.calculateMatchingScore(
                     matchedTargetImage.getImageArray(),
-                    NeuronMIPUtils.getImageLoaders(
-                            target,
-                            shapeScoreAlgorithm.getRequiredTargetVariantTypes(),
-                            (n, cft) -> NeuronMIPUtils.getImageArray(CachedMIPsUtils.loadMIP(n, cft))
-                    )
+                    targetVariantsSuppliers
             );
             // only set the scores that were actually calculated
             if (gradScore.getGradientAreaGap() != -1) {
@@ -595,6 +1120,7 @@ class CalculateGradientScoresCmd extends AbstractCmd {
                         new EntityField<>("gradientAreaGap", null),
                         new EntityField<>("highExpressionArea", null),
                         new EntityField<>("normalizedScore", null),
+                        new EntityField<>("gradientScoreFingerprint", null),
                         new EntityField<>("updatedDate", new Date())
                 ));
     }
@@ -609,6 +1135,7 @@ class CalculateGradientScoresCmd extends AbstractCmd {
                         m -> ImmutablePair.of("gradientAreaGap", m.getGradientAreaGap()),
                         m -> ImmutablePair.of("highExpressionArea", m.getHighExpressionArea()),
                         m -> ImmutablePair.of("normalizedScore", m.getNormalizedScore()),
+                        m -> ImmutablePair.of("gradientScoreFingerprint", m.getGradientScoreFingerprint()),
                         m -> ImmutablePair.of("updatedDate", new Date())
                 ));
     }
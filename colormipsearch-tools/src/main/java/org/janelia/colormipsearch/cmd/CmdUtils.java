@@ -1,11 +1,14 @@
 package org.janelia.colormipsearch.cmd;
 
+import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.slf4j.Logger;
@@ -14,6 +17,9 @@ import org.slf4j.LoggerFactory;
 public class CmdUtils {
     private static final Logger LOG = LoggerFactory.getLogger(CmdUtils.class);
 
+    /**
+     * Create the executor for CPU bound tasks, sized to the task concurrency.
+     */
     static ExecutorService createCmdExecutor(CommonArgs args) {
         if (args.taskConcurrency > 0) {
             LOG.info("Create a thread pool with {} worker threads ({} available processors for workstealing pool)",
@@ -30,6 +36,67 @@ public class CmdUtils {
         }
     }
 
+    /**
+     * Create the executor for tasks that spend most of their time waiting for I/O - DB reads and writes or HTTP calls.
+     * If the JVM supports virtual threads every task runs on its own virtual thread, otherwise the tasks run on
+     * a separate pool of platform threads so that they never take CPU pool threads while they wait.
+     * In both cases the number of tasks that run concurrently is limited to the I/O task concurrency so that
+     * the DB or the HTTP services are not overloaded.
+     */
+    static ExecutorService createIOExecutor(CommonArgs args) {
+        return createIOExecutor(args, createVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * @param virtualThreadsExecutor virtual thread per task executor or null if virtual threads are not supported
+     */
+    static ExecutorService createIOExecutor(CommonArgs args, @Nullable ExecutorService virtualThreadsExecutor) {
+        int ioTaskConcurrency = args.ioTaskConcurrency > 0 ? args.ioTaskConcurrency : getTaskConcurrency(args);
+        if (virtualThreadsExecutor != null) {
+            LOG.info("Create a virtual thread per task executor for at most {} concurrent I/O tasks", ioTaskConcurrency);
+            return new ConcurrencyLimitedExecutorService(virtualThreadsExecutor, ioTaskConcurrency);
+        } else {
+            LOG.info("Create an I/O thread pool with {} threads", ioTaskConcurrency);
+            return Executors.newFixedThreadPool(
+                    ioTaskConcurrency,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("CMDIO-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+    }
+
+    /**
+     * Virtual threads are only available starting with Java 21 so the executor is created using reflection.
+     *
+     * @return a virtual thread per task executor or null if virtual threads are not supported
+     */
+    @Nullable
+    private static ExecutorService createVirtualThreadPerTaskExecutor() {
+        try {
+            Method executorFactoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) executorFactoryMethod.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // e.g. virtual threads are a preview feature that is not enabled
+            LOG.debug("Virtual threads are not available", e);
+            return null;
+        }
+    }
+
+    static MIPsPrefetcher createMIPsPrefetcher(CommonArgs args) {
+        return new MIPsPrefetcher(args.prefetchConcurrency, args.prefetchDepth, args.prefetchMemoryMB * 1024 * 1024);
+    }
+
+    static AdaptiveConcurrencyController createConcurrencyController(CommonArgs args, MIPsPrefetcher mipsPrefetcher) {
+        return new AdaptiveConcurrencyController(
+                args.adaptiveConcurrency,
+                args.minTaskConcurrency,
+                getTaskConcurrency(args),
+                mipsPrefetcher);
+    }
+
     static int getTaskConcurrency(CommonArgs args) {
         if (args.taskConcurrency > 0) {
             return args.taskConcurrency;
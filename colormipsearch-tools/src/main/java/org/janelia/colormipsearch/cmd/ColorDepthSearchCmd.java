@@ -1,16 +1,28 @@
 package org.janelia.colormipsearch.cmd;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BooleanSupplier;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.fasterxml.jackson.databind.DeserializationFeature;
@@ -22,6 +34,8 @@ import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithmProvider;
 import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithmProviderFactory;
 import org.janelia.colormipsearch.cds.ColorMIPSearch;
 import org.janelia.colormipsearch.cds.PixelMatchScore;
+import org.janelia.colormipsearch.cds.SpatialColorIndex;
+import org.janelia.colormipsearch.cmd.cdsprocess.ColorMIPProcessUtils;
 import org.janelia.colormipsearch.cmd.cdsprocess.ColorMIPSearchProcessor;
 import org.janelia.colormipsearch.cmd.cdsprocess.LocalColorMIPSearchProcessor;
 import org.janelia.colormipsearch.cmd.cdsprocess.SparkColorMIPSearchProcessor;
@@ -36,10 +50,12 @@ import org.janelia.colormipsearch.dataio.db.DBCDSSessionWriter;
 import org.janelia.colormipsearch.dataio.db.DBCDScoresOnlyWriter;
 import org.janelia.colormipsearch.dataio.db.DBCheckedCDMIPsWriter;
 import org.janelia.colormipsearch.dataio.db.DBNeuronMatchesWriter;
+import org.janelia.colormipsearch.dataio.db.DBSessionMatchesWriter;
 import org.janelia.colormipsearch.dataio.fs.JSONCDMIPsReader;
 import org.janelia.colormipsearch.dataio.fs.JSONCDSSessionWriter;
 import org.janelia.colormipsearch.dataio.fs.JSONNeuronMatchesWriter;
 import org.janelia.colormipsearch.imageprocessing.ImageRegionDefinition;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
 import org.janelia.colormipsearch.model.CDMatchEntity;
 import org.janelia.colormipsearch.model.ComputeFileType;
@@ -167,10 +183,45 @@ class ColorDepthSearchCmd extends AbstractCmd {
                 arity = 0)
         boolean useIDGeneratorLock = false;
 
+        @Parameter(names = {"--dedup-targets"}, arity = 0,
+                   description = "If set, targets with identical color depth image files are only searched once and " +
+                           "the matches are copied to all targets that share the image. This costs an extra read of every target file " +
+                           "(without decoding it) on the I/O pool before the search starts")
+        boolean dedupTargets;
+
+        @Parameter(names = {"--multiresolution-search"}, arity = 0,
+                   description = "If set, every target is first compared with the mask at low resolution and " +
+                           "only the targets that may still match are compared at full resolution. The matches are the same as without this option")
+        boolean multiresolutionSearch;
+
+        @Parameter(names = {"--targets-spatial-index"},
+                   description = "Spatial color index of the targets created with createTargetsIndex. If set, every mask " +
+                           "is only compared with its best ranked candidates from the index")
+        String targetsIndex;
+
+        @Parameter(names = {"--max-index-candidates"},
+                   description = "Maximum number of candidate targets selected from the index for a mask")
+        int maxIndexCandidates = 1000;
+
         @Parameter(names = {"--use-spark"}, arity = 0,
                    description = "If set, use spark to run color depth search process")
         boolean useSpark;
 
+        @Parameter(names = {"--write-from-executors"}, arity = 0,
+                   description = "If set, together with --use-spark, the spark executors write the matches directly " +
+                           "instead of sending them to the driver. JSON results are written to a separate sub-directory for each partition. " +
+                           "A retried task replaces the DB matches written by its failed attempt, but concurrent attempts of the same task " +
+                           "would duplicate them so spark speculative execution (spark.speculation) must not be enabled")
+        boolean writeFromExecutors;
+
+        @Parameter(names = {"--spark-targets-load-batch-size"},
+                   description = "Number of targets from a spark partition that are loaded into memory at the same time")
+        int sparkTargetsLoadBatchSize = 100;
+
+        @Parameter(names = {"--spark-targets-load-concurrency"},
+                   description = "Number of threads used by a spark task for reading and decoding its targets")
+        int sparkTargetsLoadConcurrency = 2;
+
         ColorDepthSearchArgs(CommonArgs commonArgs) {
             super(commonArgs);
         }
@@ -187,8 +238,14 @@ class ColorDepthSearchCmd extends AbstractCmd {
     ColorDepthSearchCmd(String commandName,
                         CommonArgs commonArgs,
                         Supplier<Long> cacheSizeSupplier) {
+        this(commandName, new ColorDepthSearchArgs(commonArgs), cacheSizeSupplier);
+    }
+
+    ColorDepthSearchCmd(String commandName,
+                        ColorDepthSearchArgs args,
+                        Supplier<Long> cacheSizeSupplier) {
         super(commandName);
-        this.args = new ColorDepthSearchArgs(commonArgs);
+        this.args = args;
         this.cacheSizeSupplier = cacheSizeSupplier;
         this.mapper = new ObjectMapper()
                 .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
@@ -203,100 +260,155 @@ class ColorDepthSearchCmd extends AbstractCmd {
 
     @Override
     void execute() {
-        // initialize the cache
-        CachedMIPsUtils.initializeCache(cacheSizeSupplier.get());
+        initializeMIPsCache();
         // perform color depth search for all masks against all targets
         runColorDepthSearch();
     }
 
-    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void runColorDepthSearch() {
+    void initializeMIPsCache() {
+        // initialize the cache
+        CachedMIPsUtils.initializeCache(cacheSizeSupplier.get());
+        if (args.sparseTargets) {
+            // target pixels that are not above the data threshold are never counted as matching pixels
+            CachedMIPsUtils.setSparseColorDepthImagesThreshold(args.dataThreshold);
+        }
+    }
+
+    /**
+     * @return the number of masks selected by the current arguments
+     */
+    int countMaskMIPs() {
+        return readMaskMIPs(getCDMipsReader()).size();
+    }
+
+    /**
+     * @return the number of targets selected by the current arguments
+     */
+    int countTargetMIPs() {
+        return readTargetMIPs(getCDMipsReader()).size();
+    }
+
+    /**
+     * Create the CDS session for the masks and targets selected by the current arguments.
+     *
+     * @return the session ID
+     */
+    Number createCDSSession() {
+        return createCDSSession(createColorMIPSearch(), Collections.singleton(args.getProcessingTag()));
+    }
+
+    /**
+     * Search the masks selected by the current arguments against the selected targets.
+     *
+     * @return the number of matches found
+     */
+    long runColorDepthSearch() {
+        return runColorDepthSearch(null, () -> true, false);
+    }
+
+    /**
+     * Search the masks selected by the current arguments against the selected targets as a shard of a distributed search.
+     * Unlike a regular search, the shard's matches replace the matches written by a previous attempt of the same shard
+     * and a write failure fails the search so that the shard can be retried.
+     *
+     * @param cdsSessionId session in which the matches are written
+     * @param canWriteResults checked before writing the matches - if it returns false the search fails without writing them
+     * @return the number of matches found
+     */
+    long runColorDepthSearchShard(Number cdsSessionId, BooleanSupplier canWriteResults) {
+        return runColorDepthSearch(cdsSessionId, canWriteResults, true);
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> long runColorDepthSearch(@Nullable Number cdsSessionId,
+                                                                                                      BooleanSupplier canWriteResults,
+                                                                                                      boolean shardWorker) {
         CDMIPsReader cdmipsReader = getCDMipsReader();
         ColorMIPSearchProcessor<M, T> colorMIPSearchProcessor;
-        ColorDepthSearchAlgorithmProvider<PixelMatchScore> cdsAlgorithmProvider;
-        ImageRegionDefinition excludedRegions = args.getRegionGeneratorForTextLabels();
-        cdsAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(
-                args.mirrorMask,
-                args.dataThreshold,
-                args.pixColorFluctuation,
-                args.xyShift,
-                excludedRegions
-        );
-        ColorMIPSearch colorMIPSearch = new ColorMIPSearch(args.pctPositivePixels, args.maskThreshold, cdsAlgorithmProvider);
-        @SuppressWarnings("unchecked")
-        List<M> maskMips = (List<M>) readMIPs(cdmipsReader,
-                args.masksLibraries,
-                args.masksPublishedNames,
-                args.masksDatasets,
-                args.masksTags,
-                args.masksExcludedTags,
-                args.masksAnnotations,
-                args.excludedMasksAnnotations,
-                args.masksStartIndex, args.masksLength,
-                args.maskMIPsFilter);
+        ColorMIPSearch colorMIPSearch = createColorMIPSearch();
+        List<M> maskMips = readMaskMIPs(cdmipsReader);
         LOG.info("Read {} masks", maskMips.size());
-        @SuppressWarnings("unchecked")
-        List<T> targetMips = (List<T>) readMIPs(cdmipsReader,
-                args.targetsLibraries,
-                args.targetsPublishedNames,
-                args.targetsDatasets,
-                args.targetsTags,
-                args.targetsExcludedTags,
-                args.targetsAnnotations,
-                args.excludedTargetsAnnotations,
-                args.targetsStartIndex, args.targetsLength,
-                args.libraryMIPsFilter);
+        List<T> targetMips = readTargetMIPs(cdmipsReader);
         LOG.info("Read {} targets", targetMips.size());
+        if (args.targetsIndex != null) {
+            targetMips = selectIndexedCandidates(maskMips, targetMips, colorMIPSearch);
+        }
         if (maskMips.isEmpty() || targetMips.isEmpty()) {
             LOG.info("Nothing to do for {} masks and {} targets", maskMips.size(), targetMips.size());
-            return;
+            return 0;
         }
         Set<String> processingTags = Collections.singleton(args.getProcessingTag());
-        // save CDS parameters
-        Number cdsRunId = getCDSSessionWriter().createSession(
-                args.masksLibraries.stream()
-                        .map(larg -> new DataSourceParam()
-                                .setAlignmentSpace(args.alignmentSpace)
-                                .addLibrary(larg.input)
-                                .addNames(args.masksPublishedNames)
-                                .addDatasets(args.masksDatasets)
-                                .addTags(args.masksTags)
-                                .setOffset(larg.offset)
-                                .setSize(larg.length))
-                        .collect(Collectors.toList()),
-                args.targetsLibraries.stream()
-                        .map(larg -> new DataSourceParam()
-                                .setAlignmentSpace(args.alignmentSpace)
-                                .addLibrary(larg.input)
-                                .addNames(args.targetsPublishedNames)
-                                .addDatasets(args.targetsDatasets)
-                                .addTags(args.targetsTags)
-                                .setOffset(larg.offset)
-                                .setSize(larg.length))
-                        .collect(Collectors.toList()),
-                colorMIPSearch.getCDSParameters(),
-                processingTags);
-        LOG.info("Created CDS session {} for processing tags {}", cdsRunId, processingTags);
+        Number cdsRunId;
+        if (cdsSessionId != null) {
+            cdsRunId = cdsSessionId;
+            LOG.info("Use CDS session {} for processing tags {}", cdsRunId, processingTags);
+        } else {
+            cdsRunId = createCDSSession(colorMIPSearch, processingTags);
+            LOG.info("Created CDS session {} for processing tags {}", cdsRunId, processingTags);
+        }
         if (args.useSpark) {
             colorMIPSearchProcessor = new SparkColorMIPSearchProcessor<>(
                     cdsRunId,
                     args.appName,
                     colorMIPSearch,
                     args.getProcessingPartitionSize(),
+                    args.sparkTargetsLoadBatchSize,
+                    args.sparkTargetsLoadConcurrency,
                     processingTags
             );
         } else {
+            MIPsPrefetcher mipsPrefetcher = CmdUtils.createMIPsPrefetcher(args.commonArgs);
             colorMIPSearchProcessor = new LocalColorMIPSearchProcessor<>(
                     cdsRunId,
                     colorMIPSearch,
                     args.getProcessingPartitionSize(),
                     CmdUtils.createCmdExecutor(args.commonArgs),
+                    mipsPrefetcher,
+                    CmdUtils.createConcurrencyController(args.commonArgs, mipsPrefetcher),
                     processingTags
             );
         }
+        if (args.useSpark && args.writeFromExecutors) {
+            try {
+                Map<T, List<T>> identicalTargets = args.dedupTargets
+                        ? groupTargetsWithIdenticalImages(targetMips)
+                        : null;
+                long nMatches = ((SparkColorMIPSearchProcessor<M, T>) colorMIPSearchProcessor).findAndWriteAllColorDepthMatches(
+                        maskMips,
+                        identicalTargets != null ? new ArrayList<>(identicalTargets.keySet()) : targetMips,
+                        identicalTargets,
+                        new ExecutorMatchesWriterFactory<>(
+                                args.getConfigFileName(),
+                                args.useIDGeneratorLock,
+                                args.commonArgs.resultsStorage,
+                                args.updateExistingMatches,
+                                args.commonArgs.noPrettyPrint,
+                                Objects.toString(args.getPerMaskDir(), null),
+                                Objects.toString(args.getPerTargetDir(), null)));
+                LOG.info("Executors wrote {} color depth search results", nMatches);
+                return nMatches;
+            } catch (Exception e) {
+                LOG.error("Error while finding and writing color depth matches", e);
+                throw new IllegalStateException(e);
+            } finally {
+                // the processed tags were only set on the executors' copies so set them on the driver's MIPs too
+                maskMips.forEach(m -> m.addProcessedTags(ProcessingType.ColorDepthSearch, processingTags));
+                targetMips.forEach(t -> t.addProcessedTags(ProcessingType.ColorDepthSearch, processingTags));
+                updateProcessingTags(maskMips, targetMips, processingTags);
+                colorMIPSearchProcessor.terminate();
+            }
+        }
         List<CDMatchEntity<M, T>> cdsResults;
         try {
-            // start the pairwise color depth search
-             cdsResults = colorMIPSearchProcessor.findAllColorDepthMatches(maskMips, targetMips);
+            if (args.dedupTargets) {
+                // only search the distinct target images and then copy the results to the identical targets
+                Map<T, List<T>> identicalTargets = groupTargetsWithIdenticalImages(targetMips);
+                cdsResults = ColorMIPProcessUtils.copyMatchesToIdenticalTargets(
+                        colorMIPSearchProcessor.findAllColorDepthMatches(maskMips, new ArrayList<>(identicalTargets.keySet())),
+                        identicalTargets);
+            } else {
+                // start the pairwise color depth search
+                cdsResults = colorMIPSearchProcessor.findAllColorDepthMatches(maskMips, targetMips);
+            }
         } catch (Exception e) {
             LOG.error("Error while finding color depth matches", e);
             throw new IllegalStateException(e);
@@ -304,6 +416,8 @@ class ColorDepthSearchCmd extends AbstractCmd {
         try {
             if (cdsResults.isEmpty()) {
                 LOG.info("No matches found!!!");
+            } else if (!canWriteResults.getAsBoolean()) {
+                throw new IllegalStateException("Not allowed to write the " + cdsResults.size() + " color depth search results");
             } else {
                 // clean up the cache as the mips are no longer needed at this point
                 CachedMIPsUtils.cleanCache();
@@ -314,24 +428,28 @@ class ColorDepthSearchCmd extends AbstractCmd {
                         (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                         (Runtime.getRuntime().totalMemory() / _1M));
                 if (args.writeBatchSize > 0) {
-                    Stream<Map.Entry<Integer, List<CDMatchEntity<M, T>>>> cdsResultsPartitionedStream;
+                    Stream<Map.Entry<Integer, List<CDMatchEntity<M, T>>>> cdsResultsPartitionedStream =
+                            ItemsHandling.partitionCollection(cdsResults, args.writeBatchSize).entrySet().stream();
                     if (args.parallelWriteResults && args.commonArgs.resultsStorage == StorageType.DB) {
-                        cdsResultsPartitionedStream = ItemsHandling.partitionCollection(cdsResults, args.writeBatchSize)
-                                .entrySet()
-                                .parallelStream();
+                        // the writes only wait for the DB so they run on the I/O executor
+                        ExecutorService writeExecutor = CmdUtils.createIOExecutor(args.commonArgs);
+                        try {
+                            CompletableFuture.allOf(cdsResultsPartitionedStream
+                                    .map(e -> CompletableFuture.runAsync(() -> saveCDSResults(e.getKey(), e.getValue(), shardWorker), writeExecutor))
+                                    .toArray(CompletableFuture<?>[]::new)).join();
+                        } finally {
+                            writeExecutor.shutdown();
+                        }
                     } else {
-                        cdsResultsPartitionedStream = ItemsHandling.partitionCollection(cdsResults, args.writeBatchSize)
-                                .entrySet()
-                                .stream();
+                        cdsResultsPartitionedStream
+                                .forEach(e -> {
+                                    Integer i = e.getKey();
+                                    List<CDMatchEntity<M, T>> resultsBatch = e.getValue();
+                                    saveCDSResults(i, resultsBatch, shardWorker);
+                                });
                     }
-                    cdsResultsPartitionedStream
-                            .forEach(e -> {
-                                Integer i = e.getKey();
-                                List<CDMatchEntity<M, T>> resultsBatch = e.getValue();
-                                saveCDSResults(i, resultsBatch);
-                            });
                 } else {
-                    saveCDSResults(0, cdsResults);
+                    saveCDSResults(0, cdsResults, shardWorker);
                 }
                 LOG.info("Finished writing {} color depth search results  - memory usage {}M out of {}M",
                         cdsResults.size(),
@@ -340,26 +458,149 @@ class ColorDepthSearchCmd extends AbstractCmd {
             }
         } catch (Exception e) {
             LOG.error("Error writing color depth match results", e);
-        } finally {
-            LOG.info("Set processing tags to {}:{}", ProcessingType.ColorDepthSearch, processingTags);
-            // update the mips processing tags
-            CDMIPsWriter cdmipsWriter = getCDMipsWriter();
-            if (cdmipsWriter != null) {
-                List<M> masksToTag = filterProcessedNeurons(maskMips, processingTags);
-                long taggedMasks = cdmipsWriter.addProcessingTags(
-                        masksToTag,
-                        ProcessingType.ColorDepthSearch,
-                        processingTags);
-                List<T> targetsToTag = filterProcessedNeurons(targetMips, processingTags);
-                long taggedTargets = cdmipsWriter.addProcessingTags(
-                        targetsToTag,
-                        ProcessingType.ColorDepthSearch,
-                        processingTags);
-                LOG.info("Tagged {} ({}) masks and {} ({}) targets", masksToTag.size(), taggedMasks, targetsToTag.size(), taggedTargets);
+            if (shardWorker) {
+                // the shard must not be marked as done if its matches were not written
+                throw new IllegalStateException(e);
             }
-            LOG.info("Finished setting processing tags to {}:{}", ProcessingType.ColorDepthSearch, processingTags);
+        } finally {
+            updateProcessingTags(maskMips, targetMips, processingTags);
             colorMIPSearchProcessor.terminate();
         }
+        return cdsResults.size();
+    }
+
+    private ColorMIPSearch createColorMIPSearch() {
+        ColorDepthSearchAlgorithmProvider<PixelMatchScore> cdsAlgorithmProvider;
+        ImageRegionDefinition excludedRegions = args.getRegionGeneratorForTextLabels();
+        cdsAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(
+                args.mirrorMask,
+                args.dataThreshold,
+                args.pixColorFluctuation,
+                args.xyShift,
+                excludedRegions
+        );
+        return new ColorMIPSearch(args.pctPositivePixels, args.maskThreshold, cdsAlgorithmProvider, args.multiresolutionSearch);
+    }
+
+    private Number createCDSSession(ColorMIPSearch colorMIPSearch, Set<String> processingTags) {
+        // save CDS parameters
+        return getCDSSessionWriter().createSession(
+                args.masksLibraries.stream()
+                        .map(larg -> new DataSourceParam()
+                                .setAlignmentSpace(args.alignmentSpace)
+                                .addLibrary(larg.input)
+                                .addNames(args.masksPublishedNames)
+                                .addDatasets(args.masksDatasets)
+                                .addTags(args.masksTags)
+                                .setOffset(larg.offset)
+                                .setSize(larg.length))
+                        .collect(Collectors.toList()),
+                args.targetsLibraries.stream()
+                        .map(larg -> new DataSourceParam()
+                                .setAlignmentSpace(args.alignmentSpace)
+                                .addLibrary(larg.input)
+                                .addNames(args.targetsPublishedNames)
+                                .addDatasets(args.targetsDatasets)
+                                .addTags(args.targetsTags)
+                                .setOffset(larg.offset)
+                                .setSize(larg.length))
+                        .collect(Collectors.toList()),
+                colorMIPSearch.getCDSParameters(),
+                processingTags);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <M extends AbstractNeuronEntity> List<M> readMaskMIPs(CDMIPsReader cdmipsReader) {
+        return (List<M>) readMIPs(cdmipsReader,
+                args.masksLibraries,
+                args.masksPublishedNames,
+                args.masksDatasets,
+                args.masksTags,
+                args.masksExcludedTags,
+                args.masksAnnotations,
+                args.excludedMasksAnnotations,
+                args.masksStartIndex, args.masksLength,
+                args.maskMIPsFilter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends AbstractNeuronEntity> List<T> readTargetMIPs(CDMIPsReader cdmipsReader) {
+        return (List<T>) readMIPs(cdmipsReader,
+                args.targetsLibraries,
+                args.targetsPublishedNames,
+                args.targetsDatasets,
+                args.targetsTags,
+                args.targetsExcludedTags,
+                args.targetsAnnotations,
+                args.excludedTargetsAnnotations,
+                args.targetsStartIndex, args.targetsLength,
+                args.libraryMIPsFilter);
+    }
+
+    /**
+     * Select the targets that are among the best ranked index candidates of at least one mask.
+     * Every selected target is still compared with all masks so the matches are verified with the full color depth search.
+     */
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> List<T> selectIndexedCandidates(List<M> maskMips,
+                                                                                                           List<T> targetMips,
+                                                                                                           ColorMIPSearch colorMIPSearch) {
+        long startTime = System.currentTimeMillis();
+        SpatialColorIndex targetsIndex;
+        try (InputStream indexStream = new BufferedInputStream(Files.newInputStream(Paths.get(args.targetsIndex)))) {
+            targetsIndex = SpatialColorIndex.read(indexStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (targetsIndex.getThreshold() > args.dataThreshold) {
+            LOG.warn("Targets index {} was created with threshold {} which is higher than the data threshold {}",
+                    args.targetsIndex, targetsIndex.getThreshold(), args.dataThreshold);
+        }
+        Set<String> candidateKeys = maskMips.stream()
+                .map(maskMip -> NeuronMIPUtils.loadComputeFile(maskMip, ComputeFileType.InputColorDepthImage))
+                .filter(NeuronMIPUtils::hasImageArray)
+                .flatMap(maskImage -> targetsIndex.findCandidates(
+                        colorMIPSearch.createQueryColorDepthSearchWithDefaultThreshold(maskImage.getImageArray()),
+                        args.mirrorMask,
+                        args.xyShift,
+                        args.maxIndexCandidates).stream())
+                .collect(Collectors.toSet());
+        List<T> candidateTargets = targetMips.stream()
+                .filter(targetMip -> candidateKeys.contains(CreateTargetsIndexCmd.getTargetIndexKey(targetMip)))
+                .collect(Collectors.toList());
+        LOG.info("Selected {} candidates out of {} targets from the {} indexed targets in {}s",
+                candidateTargets.size(), targetMips.size(), targetsIndex.getNTargets(), (System.currentTimeMillis() - startTime) / 1000.);
+        return candidateTargets;
+    }
+
+    private <T extends AbstractNeuronEntity> Map<T, List<T>> groupTargetsWithIdenticalImages(List<T> targetMips) {
+        ExecutorService ioExecutor = CmdUtils.createIOExecutor(args.commonArgs);
+        try {
+            return ColorMIPProcessUtils.groupMIPsWithIdenticalImages(targetMips, ioExecutor);
+        } finally {
+            ioExecutor.shutdown();
+        }
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void updateProcessingTags(List<M> maskMips,
+                                                                                                     List<T> targetMips,
+                                                                                                     Set<String> processingTags) {
+        LOG.info("Set processing tags to {}:{}", ProcessingType.ColorDepthSearch, processingTags);
+        // update the mips processing tags
+        CDMIPsWriter cdmipsWriter = getCDMipsWriter();
+        if (cdmipsWriter != null) {
+            List<M> masksToTag = filterProcessedNeurons(maskMips, processingTags);
+            long taggedMasks = cdmipsWriter.addProcessingTags(
+                    masksToTag,
+                    ProcessingType.ColorDepthSearch,
+                    processingTags);
+            List<T> targetsToTag = filterProcessedNeurons(targetMips, processingTags);
+            long taggedTargets = cdmipsWriter.addProcessingTags(
+                    targetsToTag,
+                    ProcessingType.ColorDepthSearch,
+                    processingTags);
+            LOG.info("Tagged {} ({}) masks and {} ({}) targets", masksToTag.size(), taggedMasks, targetsToTag.size(), taggedTargets);
+        }
+        LOG.info("Finished setting processing tags to {}:{}", ProcessingType.ColorDepthSearch, processingTags);
     }
 
     private CDMIPsReader getCDMipsReader() {
@@ -389,12 +630,15 @@ class ColorDepthSearchCmd extends AbstractCmd {
     }
 
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
-    NeuronMatchesWriter<CDMatchEntity<M, T>> getCDSMatchesWriter() {
+    NeuronMatchesWriter<CDMatchEntity<M, T>> getCDSMatchesWriter(boolean replaceSessionMatches) {
         if (args.commonArgs.resultsStorage == StorageType.DB) {
             DaosProvider daosProvider = getDaosProvider(args.useIDGeneratorLock);
             if (args.updateExistingMatches) {
                 // if a match exists update the scores
                 return new DBCDScoresOnlyWriter<>(daosProvider.getCDMatchesDao());
+            } else if (replaceSessionMatches) {
+                // create new matches replacing the ones written by a failed attempt in the same session
+                return new DBSessionMatchesWriter<>(daosProvider.getCDMatchesDao());
             } else {
                 // always create new matches
                 return new DBNeuronMatchesWriter<>(daosProvider.getCDMatchesDao());
@@ -451,12 +695,14 @@ class ColorDepthSearchCmd extends AbstractCmd {
         return neurons.stream().filter(n -> n.hasProcessedTags(ProcessingType.ColorDepthSearch, processedTags)).collect(Collectors.toList());
     }
 
-    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void saveCDSResults(int batchId, List<CDMatchEntity<M, T>> cdsBatchResults) {
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void saveCDSResults(int batchId,
+                                                                                                 List<CDMatchEntity<M, T>> cdsBatchResults,
+                                                                                                 boolean replaceSessionMatches) {
         LOG.info("Results batch: {} - write {} matches - memory usage {}M out of {}M",
                 batchId, cdsBatchResults.size(),
                 (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                 (Runtime.getRuntime().totalMemory() / _1M));
-        NeuronMatchesWriter<CDMatchEntity<M, T>> cdsResultsWriter = getCDSMatchesWriter();
+        NeuronMatchesWriter<CDMatchEntity<M, T>> cdsResultsWriter = getCDSMatchesWriter(replaceSessionMatches);
         long n = cdsResultsWriter.write(cdsBatchResults);
         LOG.info("Finished batch: {} - {} matches - memory usage {}M out of {}M",
                 batchId, n,
@@ -17,6 +17,35 @@ class CommonArgs {
                description = "Task concurrency - number of tasks to run concurrently")
     int taskConcurrency;
 
+    @Parameter(names = {"--prefetch-concurrency"},
+               description = "Size of the MIPs prefetch thread pool, which loads MIPs into the cache ahead of the computation. " +
+                       "If not set, MIPs are not prefetched")
+    int prefetchConcurrency = 0;
+
+    @Parameter(names = {"--io-task-concurrency"},
+               description = "Max number of blocking I/O tasks (DB reads and writes, HTTP calls) to run concurrently on the I/O executor - " +
+                       "the number of virtual threads allowed to run or, without virtual threads, the size of the I/O thread pool. " +
+                       "It does not size the MIPs prefetch pool. If not set it is the same as the task concurrency")
+    int ioTaskConcurrency = 0;
+
+    @Parameter(names = {"--prefetch-depth"},
+               description = "Number of upcoming MIPs that each worker prefetches ahead of the one it is currently processing")
+    int prefetchDepth = 4;
+
+    @Parameter(names = {"--prefetch-memory"},
+               description = "Maximum estimated memory in MB held by the MIPs that were prefetched but not yet used by the workers. " +
+                       "If not positive, prefetching is only bounded by the prefetch depth")
+    long prefetchMemoryMB = 512;
+
+    @Parameter(names = {"--adaptive-concurrency"}, arity = 0,
+               description = "If set, the number of partitions processed concurrently and the prefetch depth are adjusted at runtime " +
+                       "based on the memory usage, the GC activity and the processing latency")
+    boolean adaptiveConcurrency = false;
+
+    @Parameter(names = {"--min-task-concurrency"},
+               description = "Lower bound for the task concurrency when the concurrency is adjusted at runtime")
+    int minTaskConcurrency = 1;
+
     @Parameter(names = "--no-pretty-print", description = "Do not pretty print the results", arity = 0)
     boolean noPrettyPrint = false;
 
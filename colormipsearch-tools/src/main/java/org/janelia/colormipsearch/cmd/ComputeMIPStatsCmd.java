@@ -0,0 +1,180 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import org.apache.commons.lang3.StringUtils;
+import org.janelia.colormipsearch.dao.NeuronMetadataDao;
+import org.janelia.colormipsearch.dataio.CDMIPsReader;
+import org.janelia.colormipsearch.dataio.CDMIPsWriter;
+import org.janelia.colormipsearch.dataio.DataSourceParam;
+import org.janelia.colormipsearch.dataio.db.DBCDMIPsReader;
+import org.janelia.colormipsearch.dataio.fs.JSONCDMIPsReader;
+import org.janelia.colormipsearch.dataio.fs.JSONCDMIPsWriter;
+import org.janelia.colormipsearch.mips.NeuronMIP;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.EntityField;
+import org.janelia.colormipsearch.results.ItemsHandling;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command that computes the stats (signal pixel count, bounding box and decoded size) of the color depth MIPs
+ * and saves them with the neuron metadata, so that the cost of processing a MIP can be estimated without loading it.
+ */
+class ComputeMIPStatsCmd extends AbstractCmd {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ComputeMIPStatsCmd.class);
+
+    @Parameters(commandDescription = "Compute the color depth MIPs stats")
+    static class ComputeMIPStatsArgs extends AbstractCmdArgs {
+
+        @Parameter(names = {"--mips-storage"},
+                description = "Specifies MIPs storage")
+        StorageType mipsStorage = StorageType.DB;
+
+        @Parameter(names = {"--alignment-space", "-as"}, description = "Alignment space")
+        String alignmentSpace;
+
+        @Parameter(names = {"--library", "-l"}, required = true, variableArity = true, converter = ListArg.ListArgConverter.class,
+                description = "Libraries (or JSON files if the MIPs are stored on the file system) for which to compute the stats")
+        List<ListArg> libraries;
+
+        @Parameter(names = {"--threshold"}, description = "A pixel is a signal pixel if any of its channels is above this threshold")
+        int threshold = 100;
+
+        @Parameter(names = {"--recompute"}, description = "Recompute the stats for MIPs that already have them", arity = 0)
+        boolean recompute = false;
+
+        @Parameter(names = {"--processingPartitionSize", "-ps"}, description = "Processing partition size")
+        int processingPartitionSize = 100;
+
+        ComputeMIPStatsArgs(CommonArgs commonArgs) {
+            super(commonArgs);
+        }
+
+        @Override
+        List<String> validate() {
+            List<String> errors = new ArrayList<>();
+            if (mipsStorage != StorageType.DB && getOutputDir() == null) {
+                errors.add("An output directory is required for updating MIPs stored on the file system");
+            }
+            return errors;
+        }
+    }
+
+    private final ComputeMIPStatsArgs args;
+    private final ObjectMapper mapper;
+
+    ComputeMIPStatsCmd(String commandName, CommonArgs commonArgs) {
+        super(commandName);
+        this.args = new ComputeMIPStatsArgs(commonArgs);
+        this.mapper = new ObjectMapper()
+                .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        ;
+    }
+
+    @Override
+    ComputeMIPStatsArgs getArgs() {
+        return args;
+    }
+
+    @Override
+    void execute() {
+        ExecutorService executorService = CmdUtils.createCmdExecutor(args.commonArgs);
+        try {
+            args.libraries.forEach(libraryArg -> computeLibraryMIPsStats(libraryArg, executorService));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private void computeLibraryMIPsStats(ListArg libraryArg, ExecutorService executorService) {
+        long startTime = System.currentTimeMillis();
+        List<? extends AbstractNeuronEntity> libraryMIPs = getCDMIPsReader().readMIPs(
+                new DataSourceParam()
+                        .setAlignmentSpace(args.alignmentSpace)
+                        .addLibrary(libraryArg.input)
+                        .setOffset(libraryArg.offset)
+                        .setSize(libraryArg.length));
+        List<? extends AbstractNeuronEntity> mipsToProcess = libraryMIPs.stream()
+                .filter(m -> m.hasComputeFile(ComputeFileType.InputColorDepthImage))
+                .filter(m -> args.recompute || !m.hasMipStats())
+                .collect(Collectors.toList());
+        LOG.info("Compute stats for {} out of {} MIPs from {}", mipsToProcess.size(), libraryMIPs.size(), libraryArg);
+        AtomicLong nUpdates = new AtomicLong();
+        List<CompletableFuture<Void>> statsComputations = ItemsHandling.partitionCollection(mipsToProcess, args.processingPartitionSize).values().stream()
+                .map(mipsPartition -> CompletableFuture.runAsync(() -> {
+                    mipsPartition.forEach(this::computeMIPStats);
+                    if (args.mipsStorage == StorageType.DB) {
+                        nUpdates.addAndGet(updateMIPsStats(mipsPartition));
+                    }
+                }, executorService))
+                .collect(Collectors.toList());
+        CompletableFuture.allOf(statsComputations.toArray(new CompletableFuture<?>[0])).join();
+        if (args.mipsStorage != StorageType.DB) {
+            // a JSON library is rewritten entirely so that it includes the MIPs that already had stats too
+            CDMIPsWriter mipsWriter = new JSONCDMIPsWriter(
+                    args.getOutputDir(),
+                    StringUtils.substringBeforeLast(Paths.get(libraryArg.input).getFileName().toString(), ".json"),
+                    libraryArg.offset,
+                    libraryArg.length,
+                    false,
+                    mapper);
+            mipsWriter.open();
+            mipsWriter.write(libraryMIPs);
+            mipsWriter.close();
+            nUpdates.addAndGet(mipsToProcess.size());
+        }
+        LOG.info("Updated stats for {} MIPs from {} in {}s", nUpdates.get(), libraryArg, (System.currentTimeMillis() - startTime) / 1000.);
+    }
+
+    private void computeMIPStats(AbstractNeuronEntity mip) {
+        NeuronMIP<AbstractNeuronEntity> neuronMIP;
+        try {
+            neuronMIP = NeuronMIPUtils.loadComputeFile(mip, ComputeFileType.InputColorDepthImage);
+        } catch (Exception e) {
+            LOG.error("Error loading {}", mip, e);
+            return;
+        }
+        if (NeuronMIPUtils.hasNoImageArray(neuronMIP)) {
+            LOG.warn("No color depth image found for {}", mip);
+            return;
+        }
+        mip.setMipStats(NeuronMIPUtils.computeMIPStats(neuronMIP.getImageArray(), args.threshold));
+    }
+
+    private long updateMIPsStats(List<? extends AbstractNeuronEntity> mips) {
+        NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao = getDaosProvider(false).getNeuronMetadataDao();
+        List<AbstractNeuronEntity> mipsWithStats = mips.stream()
+                .filter(AbstractNeuronEntity::hasMipStats)
+                .collect(Collectors.toList());
+        List<Function<AbstractNeuronEntity, EntityField<?>>> statsFieldSelectors = Collections.singletonList(
+                m -> new EntityField<>("mipStats", m.getMipStats()));
+        return neuronMetadataDao.updateExistingNeurons(mipsWithStats, statsFieldSelectors);
+    }
+
+    private CDMIPsReader getCDMIPsReader() {
+        if (args.mipsStorage == StorageType.DB) {
+            return new DBCDMIPsReader(getDaosProvider(false).getNeuronMetadataDao());
+        } else {
+            return new JSONCDMIPsReader(mapper);
+        }
+    }
+}
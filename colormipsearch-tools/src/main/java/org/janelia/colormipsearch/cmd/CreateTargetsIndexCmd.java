@@ -0,0 +1,158 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.janelia.colormipsearch.cds.SpatialColorIndex;
+import org.janelia.colormipsearch.dataio.CDMIPsReader;
+import org.janelia.colormipsearch.dataio.DataSourceParam;
+import org.janelia.colormipsearch.dataio.db.DBCDMIPsReader;
+import org.janelia.colormipsearch.dataio.fs.JSONCDMIPsReader;
+import org.janelia.colormipsearch.mips.NeuronMIP;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.results.ItemsHandling;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command that creates the spatial color index of the target libraries. The index is used by the color depth search
+ * for selecting the candidate targets of a mask without comparing the mask with every target.
+ */
+class CreateTargetsIndexCmd extends AbstractCmd {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CreateTargetsIndexCmd.class);
+
+    @Parameters(commandDescription = "Create the spatial color index of the target libraries")
+    static class CreateTargetsIndexArgs extends AbstractCmdArgs {
+
+        @Parameter(names = {"--mips-storage"},
+                description = "Specifies MIPs storage")
+        StorageType mipsStorage = StorageType.DB;
+
+        @Parameter(names = {"--alignment-space", "-as"}, description = "Alignment space")
+        String alignmentSpace;
+
+        @Parameter(names = {"--targets", "-i"}, required = true, variableArity = true, converter = ListArg.ListArgConverter.class,
+                description = "Target libraries (or JSON files if the MIPs are stored on the file system) to index")
+        List<ListArg> targetsLibraries;
+
+        @Parameter(names = {"--index-file"}, required = true, description = "File where the index is written")
+        String indexFile;
+
+        @Parameter(names = {"--dataThreshold"}, description = "Only target pixels above this threshold are indexed")
+        int dataThreshold = 100;
+
+        @Parameter(names = {"--cell-size"}, description = "Size in pixels of the index cells")
+        int cellSize = 16;
+
+        @Parameter(names = {"--depth-buckets"}, description = "Number of buckets in which the pixel colors are quantized")
+        int nDepthBuckets = 8;
+
+        @Parameter(names = {"--processingPartitionSize", "-ps"}, description = "Processing partition size")
+        int processingPartitionSize = 100;
+
+        CreateTargetsIndexArgs(CommonArgs commonArgs) {
+            super(commonArgs);
+        }
+    }
+
+    /**
+     * @return the key used by the index for the given target
+     */
+    static String getTargetIndexKey(AbstractNeuronEntity targetMIP) {
+        return targetMIP.getComputeFileName(ComputeFileType.InputColorDepthImage);
+    }
+
+    private final CreateTargetsIndexArgs args;
+    private final ObjectMapper mapper;
+
+    CreateTargetsIndexCmd(String commandName, CommonArgs commonArgs) {
+        super(commandName);
+        this.args = new CreateTargetsIndexArgs(commonArgs);
+        this.mapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        ;
+    }
+
+    @Override
+    CreateTargetsIndexArgs getArgs() {
+        return args;
+    }
+
+    @Override
+    void execute() {
+        long startTime = System.currentTimeMillis();
+        CDMIPsReader cdmipsReader = getCDMIPsReader();
+        List<? extends AbstractNeuronEntity> targetMIPs = args.targetsLibraries.stream()
+                .flatMap(libraryArg -> cdmipsReader.readMIPs(
+                        new DataSourceParam()
+                                .setAlignmentSpace(args.alignmentSpace)
+                                .addLibrary(libraryArg.input)
+                                .setOffset(libraryArg.offset)
+                                .setSize(libraryArg.length)).stream())
+                .filter(m -> m.hasComputeFile(ComputeFileType.InputColorDepthImage))
+                .collect(Collectors.toList());
+        LOG.info("Index {} targets from {}", targetMIPs.size(), args.targetsLibraries);
+        SpatialColorIndex index = new SpatialColorIndex(args.cellSize, args.nDepthBuckets, args.dataThreshold);
+        ExecutorService executorService = CmdUtils.createCmdExecutor(args.commonArgs);
+        try {
+            List<CompletableFuture<Void>> indexingTasks = ItemsHandling.partitionCollection(targetMIPs, args.processingPartitionSize).values().stream()
+                    .map(targetsPartition -> CompletableFuture.runAsync(() -> targetsPartition.forEach(targetMIP -> indexTarget(index, targetMIP)), executorService))
+                    .collect(Collectors.toList());
+            CompletableFuture.allOf(indexingTasks.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            executorService.shutdown();
+        }
+        Path indexPath = Paths.get(args.indexFile);
+        try {
+            if (indexPath.getParent() != null) {
+                Files.createDirectories(indexPath.getParent());
+            }
+            try (OutputStream indexStream = new BufferedOutputStream(Files.newOutputStream(indexPath))) {
+                index.write(indexStream);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOG.info("Wrote index of {} targets to {} in {}s", index.getNTargets(), indexPath, (System.currentTimeMillis() - startTime) / 1000.);
+    }
+
+    private void indexTarget(SpatialColorIndex index, AbstractNeuronEntity targetMIP) {
+        NeuronMIP<AbstractNeuronEntity> neuronMIP;
+        try {
+            neuronMIP = NeuronMIPUtils.loadComputeFile(targetMIP, ComputeFileType.InputColorDepthImage);
+        } catch (Exception e) {
+            LOG.error("Error loading {}", targetMIP, e);
+            return;
+        }
+        if (NeuronMIPUtils.hasNoImageArray(neuronMIP)) {
+            LOG.warn("No color depth image found for {}", targetMIP);
+            return;
+        }
+        index.addTarget(getTargetIndexKey(targetMIP), neuronMIP.getImageArray());
+    }
+
+    private CDMIPsReader getCDMIPsReader() {
+        if (args.mipsStorage == StorageType.DB) {
+            return new DBCDMIPsReader(getDaosProvider(false).getNeuronMetadataDao());
+        } else {
+            return new JSONCDMIPsReader(mapper);
+        }
+    }
+}
@@ -233,7 +233,7 @@ class DeleteCDMatchesCmd extends AbstractCmd {
                 maskIdsToProcess.size() / bufferingSize + 1, bufferingSize,
                 (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                 (maxMemory / _1M));
-        ExecutorService executorService = CmdUtils.createCmdExecutor(args.commonArgs);
+        ExecutorService executorService = CmdUtils.createIOExecutor(args.commonArgs); // deletes only wait for the DB
         try {
             Scheduler scheduler = Schedulers.fromExecutorService(executorService);
 
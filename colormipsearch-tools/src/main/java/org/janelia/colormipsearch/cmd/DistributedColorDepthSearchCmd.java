@@ -0,0 +1,312 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Color depth search split in shards that are processed by several worker processes without a Spark cluster.
+ * The coordinator splits the masks x targets space in shards and puts them in a file based queue (see {@link CDSShardsQueue}).
+ * The workers can be started by the coordinator on the current host and/or separately on other hosts that share
+ * the queue directory. Each worker runs the regular color depth search for every shard it claims.
+ * Shards of workers that failed or stopped sending heartbeats are put back in the queue until they run out of attempts.
+ * All shards write their matches in the same CDS session and a retried shard replaces the matches
+ * written by its previous attempt, therefore the results can only be stored in the database.
+ * If the coordinator is restarted with a queue directory that already has shards it only waits for the remaining shards.
+ */
+class DistributedColorDepthSearchCmd extends AbstractCmd {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DistributedColorDepthSearchCmd.class);
+
+    enum DistributedRole {
+        coordinator,
+        worker
+    }
+
+    @Parameters(commandDescription = "Color depth search sharded across several worker processes")
+    static class DistributedColorDepthSearchArgs extends ColorDepthSearchCmd.ColorDepthSearchArgs {
+
+        @Parameter(names = {"--role"}, description = "Process role")
+        DistributedRole role = DistributedRole.coordinator;
+
+        @Parameter(names = {"--shards-queue-dir"}, required = true,
+                description = "Queue directory - it must be accessible to the coordinator and to all workers")
+        String shardsQueueDir;
+
+        @Parameter(names = {"--masks-per-shard"}, description = "Number of masks in a shard")
+        int masksPerShard = 1000;
+
+        @Parameter(names = {"--targets-per-shard"}, description = "Number of targets in a shard; if not set a shard contains all targets")
+        int targetsPerShard = 0;
+
+        @Parameter(names = {"--local-workers"}, description = "Number of worker processes started by the coordinator on the current host")
+        int localWorkers = 0;
+
+        @Parameter(names = {"--worker-jvm-args"}, variableArity = true,
+                description = "JVM arguments for the worker processes started by the coordinator")
+        List<String> workerJvmArgs = new ArrayList<>();
+
+        @Parameter(names = {"--worker-id"}, description = "Worker ID; if not set it is generated from the host name and the process ID")
+        String workerId;
+
+        @Parameter(names = {"--shard-timeout"}, description = "Time in seconds after which a shard without a heartbeat is re-assigned")
+        long shardTimeoutInSeconds = 600;
+
+        @Parameter(names = {"--max-shard-attempts"}, description = "Max number of attempts to process a shard")
+        int maxShardAttempts = 3;
+
+        @Parameter(names = {"--queue-poll-interval"}, description = "Interval in seconds for checking the queue")
+        long queuePollIntervalInSeconds = 10;
+
+        DistributedColorDepthSearchArgs(CommonArgs commonArgs) {
+            super(commonArgs);
+        }
+
+        @Override
+        List<String> validate() {
+            List<String> errors = new ArrayList<>();
+            if (useSpark) {
+                errors.add("Distributed color depth search does not use spark");
+            }
+            if (commonArgs.resultsStorage != StorageType.DB) {
+                // the JSON writers rewrite the whole per mask and per target files so the shards would overwrite each other's results
+                errors.add("Distributed color depth search only supports database results storage");
+            }
+            if (masksPerShard <= 0) {
+                errors.add("Masks per shard must be a positive number");
+            }
+            return errors;
+        }
+    }
+
+    private final DistributedColorDepthSearchArgs args;
+    private final String[] commandLineArgs;
+    private final ColorDepthSearchCmd colorDepthSearchCmd;
+
+    DistributedColorDepthSearchCmd(String commandName,
+                                   CommonArgs commonArgs,
+                                   Supplier<Long> cacheSizeSupplier,
+                                   String[] commandLineArgs) {
+        super(commandName);
+        this.args = new DistributedColorDepthSearchArgs(commonArgs);
+        this.commandLineArgs = commandLineArgs;
+        this.colorDepthSearchCmd = new ColorDepthSearchCmd(commandName, args, cacheSizeSupplier);
+    }
+
+    @Override
+    DistributedColorDepthSearchArgs getArgs() {
+        return args;
+    }
+
+    @Override
+    void execute() {
+        CDSShardsQueue shardsQueue = new CDSShardsQueue(Paths.get(args.shardsQueueDir));
+        if (args.role == DistributedRole.worker) {
+            runWorker(shardsQueue);
+        } else {
+            runCoordinator(shardsQueue);
+        }
+    }
+
+    private void runCoordinator(CDSShardsQueue shardsQueue) {
+        long startTime = System.currentTimeMillis();
+        if (shardsQueue.isEmpty()) {
+            createShards(shardsQueue);
+        } else {
+            LOG.info("Resume processing shards from {}", args.shardsQueueDir);
+        }
+        List<Process> localWorkers = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.localWorkers; i++) {
+                localWorkers.add(startLocalWorker(i));
+            }
+            for (;;) {
+                shardsQueue.releaseStaleShards(args.shardTimeoutInSeconds * 1000, args.maxShardAttempts);
+                int nPending = shardsQueue.countShards(CDSShardsQueue.ShardState.pending);
+                int nRunning = shardsQueue.countShards(CDSShardsQueue.ShardState.running);
+                int nDone = shardsQueue.countShards(CDSShardsQueue.ShardState.done);
+                int nFailed = shardsQueue.countShards(CDSShardsQueue.ShardState.failed);
+                LOG.info("Shards progress: {} pending, {} running, {} done, {} failed after {}s",
+                        nPending, nRunning, nDone, nFailed, (System.currentTimeMillis() - startTime) / 1000.);
+                if (nPending == 0 && nRunning == 0) {
+                    break;
+                }
+                if (nPending > 0) {
+                    // replace the local workers that exited while there is still work to do
+                    for (int i = 0; i < localWorkers.size(); i++) {
+                        Process localWorker = localWorkers.get(i);
+                        if (!localWorker.isAlive()) {
+                            LOG.warn("Local worker {} exited with {} - restart it", i, localWorker.exitValue());
+                            localWorkers.set(i, startLocalWorker(i));
+                        }
+                    }
+                }
+                sleep(args.queuePollIntervalInSeconds);
+            }
+        } finally {
+            for (Process localWorker : localWorkers) {
+                localWorker.destroy();
+            }
+        }
+        long nMatches = shardsQueue.getShards(CDSShardsQueue.ShardState.done).stream().mapToLong(shard -> shard.nMatches).sum();
+        List<CDSShardsQueue.CDSShard> failedShards = shardsQueue.getShards(CDSShardsQueue.ShardState.failed);
+        LOG.info("Finished distributed color depth search in {}s - found {} matches, {} shards failed",
+                (System.currentTimeMillis() - startTime) / 1000., nMatches, failedShards.size());
+        if (!failedShards.isEmpty()) {
+            failedShards.forEach(shard -> LOG.error("Shard {} failed after {} attempts: {}", shard, shard.attempts, shard.lastError));
+            throw new IllegalStateException(failedShards.size() + " color depth search shards failed");
+        }
+    }
+
+    private void createShards(CDSShardsQueue shardsQueue) {
+        int nMasks = colorDepthSearchCmd.countMaskMIPs();
+        int nTargets = colorDepthSearchCmd.countTargetMIPs();
+        long masksOffset = Math.max(args.masksStartIndex, 0);
+        long targetsOffset = Math.max(args.targetsStartIndex, 0);
+        int targetsPerShard = args.targetsPerShard > 0 ? args.targetsPerShard : Math.max(nTargets, 1);
+        // all shards write their matches in the same session so that a retried shard can replace the matches of the failed attempt
+        Number cdsSessionId = colorDepthSearchCmd.createCDSSession();
+        int nShards = 0;
+        for (int mi = 0; mi < nMasks; mi += args.masksPerShard) {
+            for (int ti = 0; ti < nTargets; ti += targetsPerShard) {
+                CDSShardsQueue.CDSShard shard = new CDSShardsQueue.CDSShard();
+                shard.shardId = String.format("shard-%07d-%07d", mi / args.masksPerShard, ti / targetsPerShard);
+                shard.masksStartIndex = masksOffset + mi;
+                shard.masksLength = Math.min(args.masksPerShard, nMasks - mi);
+                shard.targetsStartIndex = targetsOffset + ti;
+                shard.targetsLength = Math.min(targetsPerShard, nTargets - ti);
+                shard.sessionRefId = cdsSessionId;
+                shardsQueue.addShard(shard);
+                nShards++;
+            }
+        }
+        LOG.info("Created {} shards for {} masks and {} targets in session {} in {}",
+                nShards, nMasks, nTargets, cdsSessionId, args.shardsQueueDir);
+    }
+
+    private Process startLocalWorker(int workerIndex) {
+        List<String> workerCommand = new ArrayList<>();
+        workerCommand.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        workerCommand.addAll(args.workerJvmArgs);
+        workerCommand.add("-cp");
+        workerCommand.add(System.getProperty("java.class.path"));
+        workerCommand.add(Main.class.getName());
+        // same arguments as the coordinator except for the distributed role arguments
+        workerCommand.addAll(removeOptions(commandLineArgs, new HashSet<>(Arrays.asList("--role", "--worker-id", "--local-workers"))));
+        workerCommand.add("--role");
+        workerCommand.add(DistributedRole.worker.name());
+        workerCommand.add("--worker-id");
+        workerCommand.add(getDefaultWorkerId() + "-" + workerIndex);
+        try {
+            LOG.info("Start local worker {}", workerIndex);
+            return new ProcessBuilder(workerCommand).inheritIO().start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void runWorker(CDSShardsQueue shardsQueue) {
+        String workerId = StringUtils.defaultIfBlank(args.workerId, getDefaultWorkerId());
+        long heartbeatIntervalInMillis = Math.max(args.shardTimeoutInSeconds * 1000 / 4, 1);
+        ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("SHARDHEARTBEAT-%d")
+                        .setDaemon(true)
+                        .build());
+        colorDepthSearchCmd.initializeMIPsCache();
+        int nProcessedShards = 0;
+        try {
+            for (;;) {
+                CDSShardsQueue.CDSShard shard = shardsQueue.claimShard(workerId);
+                if (shard == null) {
+                    if (shardsQueue.countShards(CDSShardsQueue.ShardState.pending) == 0 &&
+                            shardsQueue.countShards(CDSShardsQueue.ShardState.running) == 0) {
+                        break;
+                    }
+                    // running shards may still be put back in the queue
+                    sleep(args.queuePollIntervalInSeconds);
+                    continue;
+                }
+                LOG.info("Worker {} claimed shard {}", workerId, shard);
+                ScheduledFuture<?> heartbeat = heartbeatExecutor.scheduleAtFixedRate(
+                        () -> shardsQueue.heartbeat(shard),
+                        heartbeatIntervalInMillis, heartbeatIntervalInMillis, TimeUnit.MILLISECONDS);
+                try {
+                    args.masksStartIndex = shard.masksStartIndex;
+                    args.masksLength = shard.masksLength;
+                    args.targetsStartIndex = shard.targetsStartIndex;
+                    args.targetsLength = shard.targetsLength;
+                    // a shard that was re-assigned while this worker was still processing it must not be written twice
+                    shard.nMatches = colorDepthSearchCmd.runColorDepthSearchShard(shard.sessionRefId, () -> shardsQueue.isShardAssigned(shard));
+                    heartbeat.cancel(false);
+                    if (shardsQueue.completeShard(shard)) {
+                        LOG.info("Worker {} completed shard {} with {} matches", workerId, shard, shard.nMatches);
+                    } else {
+                        LOG.warn("Worker {} completed shard {} but the shard had already been re-assigned", workerId, shard);
+                    }
+                } catch (Exception e) {
+                    heartbeat.cancel(false);
+                    LOG.error("Worker {} failed to process shard {}", workerId, shard, e);
+                    shardsQueue.releaseShard(shard, e.toString(), args.maxShardAttempts);
+                }
+                nProcessedShards++;
+            }
+        } finally {
+            heartbeatExecutor.shutdownNow();
+        }
+        LOG.info("Worker {} processed {} shards", workerId, nProcessedShards);
+    }
+
+    private String getDefaultWorkerId() {
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            hostName = "localhost";
+        }
+        // the runtime name is <pid>@<hostname>
+        return hostName + "-" + StringUtils.substringBefore(ManagementFactory.getRuntimeMXBean().getName(), "@");
+    }
+
+    private static List<String> removeOptions(String[] argv, Set<String> optionsWithValue) {
+        List<String> remainingArgs = new ArrayList<>();
+        for (int i = 0; i < argv.length; i++) {
+            if (optionsWithValue.contains(argv[i])) {
+                i++; // skip the option value too
+            } else {
+                remainingArgs.add(argv[i]);
+            }
+        }
+        return remainingArgs;
+    }
+
+    private void sleep(long seconds) {
+        try {
+            TimeUnit.SECONDS.sleep(seconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
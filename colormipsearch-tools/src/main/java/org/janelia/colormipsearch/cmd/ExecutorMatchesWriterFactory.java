@@ -0,0 +1,108 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import org.janelia.colormipsearch.cmd.cdsprocess.NeuronMatchesWriterFactory;
+import org.janelia.colormipsearch.config.ConfigProvider;
+import org.janelia.colormipsearch.dao.DaosProvider;
+import org.janelia.colormipsearch.dataio.NeuronMatchesWriter;
+import org.janelia.colormipsearch.dataio.db.DBCDScoresOnlyWriter;
+import org.janelia.colormipsearch.dataio.db.DBSessionMatchesWriter;
+import org.janelia.colormipsearch.dataio.fs.JSONNeuronMatchesWriter;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+
+/**
+ * Creates the color depth matches writers on the spark executors. Only the arguments needed to create the writers are
+ * sent to the executors and each executor JVM creates its own DB connection (see {@link DaosProvider}) from the same
+ * config file as the driver.
+ */
+class ExecutorMatchesWriterFactory<M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+        implements NeuronMatchesWriterFactory<CDMatchEntity<M, T>> {
+
+    private final String configFileName;
+    private final boolean useIDGeneratorLock;
+    private final StorageType resultsStorage;
+    private final boolean updateExistingMatches;
+    private final boolean noPrettyPrint;
+    private final String perMaskDir;
+    private final String perTargetDir;
+
+    ExecutorMatchesWriterFactory(String configFileName,
+                                 boolean useIDGeneratorLock,
+                                 StorageType resultsStorage,
+                                 boolean updateExistingMatches,
+                                 boolean noPrettyPrint,
+                                 String perMaskDir,
+                                 String perTargetDir) {
+        this.configFileName = configFileName;
+        this.useIDGeneratorLock = useIDGeneratorLock;
+        this.resultsStorage = resultsStorage;
+        this.updateExistingMatches = updateExistingMatches;
+        this.noPrettyPrint = noPrettyPrint;
+        this.perMaskDir = perMaskDir;
+        this.perTargetDir = perTargetDir;
+    }
+
+    @Override
+    public NeuronMatchesWriter<CDMatchEntity<M, T>> createWriter(String partitionName) {
+        if (resultsStorage == StorageType.DB) {
+            DaosProvider daosProvider = DaosProvider.getInstance(
+                    ConfigProvider.getInstance()
+                            .fromDefaultResources()
+                            .fromFile(configFileName)
+                            .get(),
+                    useIDGeneratorLock);
+            if (updateExistingMatches) {
+                // if a match exists update the scores
+                return new DBCDScoresOnlyWriter<>(daosProvider.getCDMatchesDao());
+            } else {
+                // create new matches replacing the ones written by a failed attempt of the same task
+                return new DBSessionMatchesWriter<>(daosProvider.getCDMatchesDao());
+            }
+        } else {
+            ObjectMapper mapper = new ObjectMapper()
+                    .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
+                    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+            // each partition writes to its own sub-directory because the same mask or target may be matched in several partitions
+            Path partitionPerMaskDir = perMaskDir != null ? Paths.get(perMaskDir, partitionName) : null;
+            Path partitionPerTargetDir = perTargetDir != null ? Paths.get(perTargetDir, partitionName) : null;
+            // remove the files written by a failed attempt of the same task
+            deletePartitionDir(partitionPerMaskDir);
+            deletePartitionDir(partitionPerTargetDir);
+            return new JSONNeuronMatchesWriter<>(
+                    noPrettyPrint ? mapper.writer() : mapper.writerWithDefaultPrettyPrinter(),
+                    AbstractNeuronEntity::getMipId, // group results by neuron MIP ID
+                    Comparator.comparingDouble(m -> -(((CDMatchEntity<?,?>) m).getMatchingPixels())), // descending order by matching pixels
+                    partitionPerMaskDir,
+                    partitionPerTargetDir
+            );
+        }
+    }
+
+    private void deletePartitionDir(@Nullable Path partitionDir) {
+        if (partitionDir == null || Files.notExists(partitionDir)) {
+            return;
+        }
+        try (Stream<Path> partitionFiles = Files.walk(partitionDir)) {
+            for (Path partitionFile : partitionFiles.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(partitionFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error removing the results of a previous attempt from " + partitionDir, e);
+        }
+    }
+}
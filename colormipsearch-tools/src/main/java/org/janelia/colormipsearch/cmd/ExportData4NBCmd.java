@@ -281,7 +281,7 @@ class ExportData4NBCmd extends AbstractCmd {
                 .addMipIDs(args.exportedMIPIDs)
                 .setOffset(args.offset)
                 .setSize(args.size);
-        Executor exportsExecutor = CmdUtils.createCmdExecutor(args.commonArgs);
+        Executor exportsExecutor = CmdUtils.createIOExecutor(args.commonArgs); // exports mostly wait for the DB and the JACS services
         ImageStoreMapping imageStoreMapping = new ImageStoreMapping(
                 args.defaultImageStore,
                 args.imageStoresPerMetadata.stream().collect(Collectors.toMap(
@@ -0,0 +1,216 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.janelia.colormipsearch.imageprocessing.ImageArrayUtils;
+import org.janelia.colormipsearch.mips.NeuronMIP;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Look-ahead loader that reads upcoming MIPs into the MIPs cache on a separate, bounded I/O pool
+ * so that the compute threads find the images already loaded when they get to them. The MIPs requested together
+ * are loaded as a batch, so an archive that contains several of them is only opened once.
+ * Prefetching is best effort - requests are dropped if the I/O queue is full or if the MIPs that were prefetched
+ * but not yet used by the compute threads exceed the prefetch memory budget, in which case the compute thread
+ * simply loads the image itself. A prefetched MIP stops counting against the budget as soon as the compute thread
+ * gets to it or it is evicted from the cache, so prefetching resumes once the compute threads catch up.
+ */
+public class MIPsPrefetcher {
+    private static final Logger LOG = LoggerFactory.getLogger(MIPsPrefetcher.class);
+    // size of a prefetched MIP while it is still being loaded
+    private static final long LOAD_IN_PROGRESS = -1;
+
+    private final ThreadPoolExecutor ioExecutor;
+    // the prefetch depth may be lowered at runtime under memory pressure
+    private volatile int prefetchDepth;
+    private final long maxPrefetchedBytes;
+    private final ToLongFunction<NeuronMIP<?>> mipWeigher;
+    // prefetched MIPs not yet used by the compute threads and their estimated size
+    private final Map<Pair<AbstractNeuronEntity, ComputeFileType>, Long> prefetchedMIPs;
+    private final AtomicLong prefetchedBytes;
+    // the loads in flight are counted against the budget using the size of the last loaded MIP
+    private final AtomicInteger pendingLoads;
+    private final AtomicLong lastMIPBytes;
+
+    /**
+     * @param prefetchConcurrency number of prefetch threads; if this is not positive prefetching is disabled
+     * @param prefetchDepth how many of the upcoming MIPs to load ahead of the current one
+     * @param maxPrefetchedBytes maximum estimated memory held by the MIPs that were prefetched but not yet used; if this is not positive it is not limited
+     */
+    MIPsPrefetcher(int prefetchConcurrency, int prefetchDepth, long maxPrefetchedBytes) {
+        this(prefetchConcurrency, prefetchDepth, maxPrefetchedBytes,
+                mip -> NeuronMIPUtils.hasImageArray(mip) ? ImageArrayUtils.getPixelsByteSize(mip.getImageArray()) : 0);
+    }
+
+    MIPsPrefetcher(int prefetchConcurrency, int prefetchDepth, long maxPrefetchedBytes, ToLongFunction<NeuronMIP<?>> mipWeigher) {
+        this.prefetchDepth = prefetchDepth;
+        this.maxPrefetchedBytes = maxPrefetchedBytes;
+        this.mipWeigher = mipWeigher;
+        this.prefetchedMIPs = new ConcurrentHashMap<>();
+        this.prefetchedBytes = new AtomicLong();
+        this.pendingLoads = new AtomicInteger();
+        this.lastMIPBytes = new AtomicLong();
+        if (prefetchConcurrency > 0 && prefetchDepth > 0) {
+            LOG.info("Create a prefetch pool with {} threads, a prefetch depth of {} and a prefetch memory budget of {}M",
+                    prefetchConcurrency, prefetchDepth, maxPrefetchedBytes / (1024 * 1024));
+            this.ioExecutor = new ThreadPoolExecutor(
+                    prefetchConcurrency, prefetchConcurrency,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(prefetchConcurrency * prefetchDepth * 4),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("MIPSPREFETCH-%d")
+                            .setDaemon(true)
+                            .build());
+        } else {
+            this.ioExecutor = null;
+        }
+    }
+
+    /**
+     * Prefetch the MIPs that follow the current position in the processing schedule.
+     * The MIP at the current position is considered used, so it no longer counts against the prefetch budget.
+     *
+     * @param scheduledMIPs MIPs in the order in which they will be processed
+     * @param currentIndex index of the MIP currently being processed; use -1 to prefetch the head of the schedule
+     * @param fileTypes compute file types to be prefetched for each MIP
+     * @param <N> neuron type
+     */
+    public <N extends AbstractNeuronEntity> void prefetchAhead(List<N> scheduledMIPs, int currentIndex, Collection<ComputeFileType> fileTypes) {
+        if (ioExecutor == null || !CachedMIPsUtils.isCacheEnabled()) {
+            return;
+        }
+        if (currentIndex >= 0 && currentIndex < scheduledMIPs.size()) {
+            for (ComputeFileType fileType : fileTypes) {
+                release(ImmutablePair.of(scheduledMIPs.get(currentIndex), fileType));
+            }
+        }
+        int endIndex = Math.min(scheduledMIPs.size(), currentIndex + 1 + getPrefetchDepth());
+        Map<ComputeFileType, List<N>> mipsToLoad = new LinkedHashMap<>();
+        prefetchLoop:
+        for (int i = Math.max(0, currentIndex + 1); i < endIndex; i++) {
+            N mip = scheduledMIPs.get(i);
+            for (ComputeFileType fileType : fileTypes) {
+                if (mip == null || CachedMIPsUtils.isMIPCached(mip, fileType)) {
+                    continue;
+                }
+                if (isOverBudget()) {
+                    LOG.trace("Prefetch budget exceeded - skip prefetching {}:{}", mip, fileType);
+                    break prefetchLoop;
+                }
+                if (prefetchedMIPs.putIfAbsent(ImmutablePair.of(mip, fileType), LOAD_IN_PROGRESS) != null) {
+                    // a load for this MIP is already in flight
+                    continue;
+                }
+                pendingLoads.incrementAndGet();
+                mipsToLoad.computeIfAbsent(fileType, t -> new ArrayList<>()).add(mip);
+            }
+        }
+        mipsToLoad.forEach((fileType, mips) -> prefetch(mips, fileType));
+    }
+
+    int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = Math.max(prefetchDepth, 0);
+    }
+
+    /**
+     * @return estimated memory held by the MIPs that were prefetched but not yet used
+     */
+    long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    int getPendingLoads() {
+        return pendingLoads.get();
+    }
+
+    /**
+     * Stop the I/O threads. Pending prefetch requests are discarded.
+     */
+    public void shutdown() {
+        if (ioExecutor != null) {
+            ioExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Load the MIPs on the I/O pool with the batch loader, so that an archive that contains several of them is opened only once.
+     * The batch is loaded sequentially by one I/O thread, therefore its memory is bounded by the size of the batch.
+     */
+    private <N extends AbstractNeuronEntity> void prefetch(List<N> mips, ComputeFileType fileType) {
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    List<NeuronMIP<N>> loadedMIPs = CachedMIPsUtils.loadMIPs(mips, fileType, Runnable::run);
+                    for (NeuronMIP<N> loadedMIP : loadedMIPs) {
+                        long mipBytes = mipWeigher.applyAsLong(loadedMIP);
+                        lastMIPBytes.set(mipBytes);
+                        // the MIP may have been used while it was loading, in which case it is no longer tracked
+                        prefetchedMIPs.computeIfPresent(ImmutablePair.of(loadedMIP.getNeuronInfo(), fileType), (k, v) -> {
+                            prefetchedBytes.addAndGet(mipBytes);
+                            return mipBytes;
+                        });
+                    }
+                } catch (Exception e) {
+                    LOG.debug("Error prefetching {} {} MIPs", mips.size(), fileType, e);
+                    mips.forEach(mip -> release(ImmutablePair.of(mip, fileType)));
+                } finally {
+                    pendingLoads.addAndGet(-mips.size());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the I/O queue is full
+            pendingLoads.addAndGet(-mips.size());
+            mips.forEach(mip -> prefetchedMIPs.remove(ImmutablePair.of(mip, fileType)));
+        }
+    }
+
+    private boolean isOverBudget() {
+        if (maxPrefetchedBytes <= 0 || getBudgetUsage() < maxPrefetchedBytes) {
+            return false;
+        }
+        // the prefetched MIPs that were evicted from the cache before they were used no longer hold any memory
+        prefetchedMIPs.forEach((mipKey, mipBytes) -> {
+            if (mipBytes != LOAD_IN_PROGRESS && !CachedMIPsUtils.isMIPCached(mipKey.getLeft(), mipKey.getRight())) {
+                release(mipKey);
+            }
+        });
+        return getBudgetUsage() >= maxPrefetchedBytes;
+    }
+
+    private long getBudgetUsage() {
+        return prefetchedBytes.get() + pendingLoads.get() * lastMIPBytes.get();
+    }
+
+    private void release(Pair<AbstractNeuronEntity, ComputeFileType> mipKey) {
+        prefetchedMIPs.computeIfPresent(mipKey, (k, mipBytes) -> {
+            if (mipBytes != LOAD_IN_PROGRESS) {
+                prefetchedBytes.addAndGet(-mipBytes);
+            }
+            return null;
+        });
+    }
+}
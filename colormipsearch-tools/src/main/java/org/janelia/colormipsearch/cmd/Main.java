@@ -1,11 +1,15 @@
 package org.janelia.colormipsearch.cmd;
 
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.function.Supplier;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
 import org.apache.commons.lang3.StringUtils;
+import org.janelia.colormipsearch.mips.MIPsDiskCache;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +22,10 @@ public class Main {
     private static class MainArgs {
         @Parameter(names = "--cacheSize", description = "Max cache size")
         long cacheSize = 0L;
+        @Parameter(names = "--mips-disk-cache-dir", description = "Node local directory used for caching MIP files read from a slow storage")
+        String mipsDiskCacheDir;
+        @Parameter(names = "--mips-disk-cache-quota", description = "Max size of the MIPs disk cache in MB")
+        long mipsDiskCacheQuota = 100 * 1024L;
         @Parameter(names = {"-h", "--help"}, description = "Display the help message", help = true, arity = 0)
         boolean displayHelpMessage = false;
     }
@@ -29,24 +37,8 @@ public class Main {
         }
 
         CommonArgs commonArgs = new CommonArgs();
-        AbstractCmd[] cmds = new AbstractCmd[] {
-                new CreateCDSDataInputCmd("createColorDepthSearchDataInput", commonArgs),
-                new ColorDepthSearchCmd("colorDepthSearch", commonArgs, () -> mainArgs.cacheSize),
-                new CalculateGradientScoresCmd("gradientScores", commonArgs, () -> mainArgs.cacheSize),
-                new NormalizeGradientScoresCmd("mormalizeGradientScores", commonArgs),
-                new ImportPPPResultsCmd("importPPPResults", commonArgs),
-                new ExportData4NBCmd("exportData", commonArgs),
-                new TagNeuronMetadataCmd("tag", commonArgs),
-                new CopyToMIPsStore("copyToMipsStore", commonArgs),
-                new ValidateNBDBDataCmd("validateDBData", commonArgs),
-                new DeleteCDMatchesCmd("deleteCDMatches", commonArgs),
-        };
-        JCommander.Builder cmdlineBuilder = JCommander.newBuilder()
-                .addObject(mainArgs);
-        for (AbstractCmd cmd : cmds) {
-            cmdlineBuilder.addCommand(cmd.getCommandName(), cmd.getArgs());
-        }
-        JCommander cmdline = cmdlineBuilder.build();
+        AbstractCmd[] cmds = createCmds(commonArgs, () -> mainArgs.cacheSize, argv);
+        JCommander cmdline = createCmdline(mainArgs, cmds);
 
         try {
             cmdline.parse(argv);
@@ -75,6 +67,9 @@ public class Main {
             cmdline.getConsole().println(sb.toString());
             System.exit(1);
         }
+        if (StringUtils.isNotBlank(mainArgs.mipsDiskCacheDir)) {
+            NeuronMIPUtils.setMIPsDiskCache(new MIPsDiskCache(Paths.get(mainArgs.mipsDiskCacheDir), mainArgs.mipsDiskCacheQuota * 1024 * 1024));
+        }
         // invoke the appropriate command
         for (AbstractCmd cmd : cmds) {
             if (cmd.matches(cmdline.getParsedCommand())) {
@@ -95,4 +90,34 @@ public class Main {
         cmdline.getConsole().println(sb.toString());
         System.exit(1);
     }
+
+    static AbstractCmd[] createCmds(CommonArgs commonArgs, Supplier<Long> cacheSizeSupplier, String[] argv) {
+        return new AbstractCmd[] {
+                new CreateCDSDataInputCmd("createColorDepthSearchDataInput", commonArgs),
+                new ComputeMIPStatsCmd("computeMIPStats", commonArgs),
+                new CreateTargetsIndexCmd("createTargetsIndex", commonArgs),
+                new ColorDepthSearchCmd("colorDepthSearch", commonArgs, cacheSizeSupplier),
+                new DistributedColorDepthSearchCmd("distributedColorDepthSearch", commonArgs, cacheSizeSupplier, argv),
+                new CalculateGradientScoresCmd("gradientScores", commonArgs, cacheSizeSupplier),
+                new NormalizeGradientScoresCmd("mormalizeGradientScores", commonArgs),
+                new ImportPPPResultsCmd("importPPPResults", commonArgs),
+                new ExportData4NBCmd("exportData", commonArgs),
+                new TagNeuronMetadataCmd("tag", commonArgs),
+                new CopyToMIPsStore("copyToMipsStore", commonArgs),
+                new ValidateNBDBDataCmd("validateDBData", commonArgs),
+                new DeleteCDMatchesCmd("deleteCDMatches", commonArgs),
+        };
+    }
+
+    /**
+     * Register all commands. JCommander rejects an option that is declared more than once by the arguments of a command.
+     */
+    static JCommander createCmdline(Object mainArgs, AbstractCmd[] cmds) {
+        JCommander.Builder cmdlineBuilder = JCommander.newBuilder()
+                .addObject(mainArgs);
+        for (AbstractCmd cmd : cmds) {
+            cmdlineBuilder.addCommand(cmd.getCommandName(), cmd.getArgs());
+        }
+        return cmdlineBuilder.build();
+    }
 }
@@ -0,0 +1,174 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.cds.ShapeMatchScore;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of the prepared shape score algorithms of the masks. The cache is shared by all masks partitions,
+ * so a mask is prepared only once even if its matches are scored by different partitions or threads -
+ * a request for a mask that is already being prepared waits for that preparation instead of starting a new one.
+ * The entries are evicted based on the estimated memory held by the prepared algorithms, or based on their number
+ * if no memory limit is set. A mask that could not be prepared is not cached, so a later request prepares it again.
+ *
+ * @param <M> mask type
+ */
+class MaskAlgorithmsCache<M extends AbstractNeuronEntity> {
+    private static final Logger LOG = LoggerFactory.getLogger(MaskAlgorithmsCache.class);
+
+    /**
+     * A prepared mask algorithm together with the estimated memory that it holds.
+     */
+    static class PreparedMaskAlgorithm {
+        private final ColorDepthSearchAlgorithm<ShapeMatchScore> algorithm;
+        private final long estimatedBytes;
+
+        /**
+         * @param algorithm the prepared algorithm or null if the mask could not be prepared
+         * @param estimatedBytes estimated memory held by the algorithm
+         */
+        PreparedMaskAlgorithm(ColorDepthSearchAlgorithm<ShapeMatchScore> algorithm, long estimatedBytes) {
+            this.algorithm = algorithm;
+            this.estimatedBytes = estimatedBytes;
+        }
+    }
+
+    private static class MaskAlgorithmKey<M extends AbstractNeuronEntity> {
+        private final M mask;
+        private final String algorithmParams;
+
+        MaskAlgorithmKey(M mask, String algorithmParams) {
+            this.mask = mask;
+            this.algorithmParams = algorithmParams;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+
+            if (o == null || getClass() != o.getClass()) return false;
+
+            MaskAlgorithmKey<?> that = (MaskAlgorithmKey<?>) o;
+
+            return new EqualsBuilder()
+                    .append(mask, that.mask).append(algorithmParams, that.algorithmParams).isEquals();
+        }
+
+        @Override
+        public int hashCode() {
+            return new HashCodeBuilder(17, 37)
+                    .append(mask).append(algorithmParams).toHashCode();
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("mask", mask)
+                    .append("algorithmParams", algorithmParams)
+                    .toString();
+        }
+    }
+
+    /**
+     * Thrown by the cache loader so that a mask that could not be prepared is not cached.
+     */
+    private static class MaskNotPreparedException extends RuntimeException {
+        MaskNotPreparedException(Object mask) {
+            super("Mask " + mask + " could not be prepared", null, false, false);
+        }
+    }
+
+    private final String algorithmParams;
+    private final LoadingCache<MaskAlgorithmKey<M>, PreparedMaskAlgorithm> preparedMaskAlgorithms;
+    private final AtomicLong estimatedMemoryUsage = new AtomicLong();
+
+    /**
+     * @param maskAlgorithmLoader prepares the algorithm of a mask
+     * @param algorithmParams parameters used for preparing the algorithms - they are part of the cache key
+     * @param maxMemoryInBytes maximum estimated memory held by the cached algorithms; if <= 0 the cache is bounded by maxEntries
+     * @param maxEntries maximum number of cached algorithms if no memory limit is set
+     */
+    MaskAlgorithmsCache(Function<M, PreparedMaskAlgorithm> maskAlgorithmLoader,
+                        String algorithmParams,
+                        long maxMemoryInBytes,
+                        long maxEntries) {
+        this.algorithmParams = algorithmParams;
+        CacheBuilder<MaskAlgorithmKey<M>, PreparedMaskAlgorithm> cacheBuilder = CacheBuilder.newBuilder()
+                .recordStats()
+                .removalListener((RemovalListener<MaskAlgorithmKey<M>, PreparedMaskAlgorithm>) notification -> {
+                    if (notification.getValue() != null) {
+                        estimatedMemoryUsage.addAndGet(-notification.getValue().estimatedBytes);
+                    }
+                });
+        if (maxMemoryInBytes > 0) {
+            // the weights are in KB because they must fit in an int; use a single segment
+            // because the limit is split between segments and a large mask could otherwise exceed a segment's limit
+            cacheBuilder
+                    .concurrencyLevel(1)
+                    .maximumWeight(Math.max(maxMemoryInBytes / 1024, 1))
+                    .weigher((k, v) -> (int) Math.min(Integer.MAX_VALUE, Math.max((v.estimatedBytes + 1023) / 1024, 1)));
+        } else {
+            cacheBuilder.maximumSize(Math.max(maxEntries, 1));
+        }
+        this.preparedMaskAlgorithms = cacheBuilder
+                .build(CacheLoader.from(k -> {
+                    PreparedMaskAlgorithm preparedMaskAlgorithm = maskAlgorithmLoader.apply(k.mask);
+                    if (preparedMaskAlgorithm == null || preparedMaskAlgorithm.algorithm == null) {
+                        throw new MaskNotPreparedException(k.mask);
+                    }
+                    estimatedMemoryUsage.addAndGet(preparedMaskAlgorithm.estimatedBytes);
+                    return preparedMaskAlgorithm;
+                }));
+    }
+
+    /**
+     * Get the prepared algorithm of the mask. The algorithm is prepared if it is not cached.
+     *
+     * @param mask
+     * @return the prepared algorithm or null if the mask could not be prepared
+     */
+    ColorDepthSearchAlgorithm<ShapeMatchScore> get(M mask) {
+        try {
+            return preparedMaskAlgorithms.getUnchecked(new MaskAlgorithmKey<>(mask, algorithmParams)).algorithm;
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof MaskNotPreparedException) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    CacheStats getStats() {
+        return preparedMaskAlgorithms.stats();
+    }
+
+    long getEstimatedMemoryUsage() {
+        return estimatedMemoryUsage.get();
+    }
+
+    void logStats() {
+        CacheStats stats = getStats();
+        LOG.info("Prepared mask algorithms cache: {} entries using an estimated {}M, {} hits, {} loads ({}s), {} evictions",
+                preparedMaskAlgorithms.size(),
+                getEstimatedMemoryUsage() / (1024 * 1024),
+                stats.hitCount(),
+                stats.loadCount(),
+                stats.totalLoadTime() / 1e9,
+                stats.evictionCount());
+    }
+}
@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -12,6 +13,7 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -26,6 +28,7 @@ import org.janelia.colormipsearch.dataio.CDMIPsWriter;
 import org.janelia.colormipsearch.dataio.DataSourceParam;
 import org.janelia.colormipsearch.dataio.NeuronMatchesReader;
 import org.janelia.colormipsearch.dataio.NeuronMatchesWriter;
+import org.janelia.colormipsearch.dataio.db.DBCDScoresNormalizer;
 import org.janelia.colormipsearch.dataio.db.DBCheckedCDMIPsWriter;
 import org.janelia.colormipsearch.dataio.db.DBNeuronMatchesReader;
 import org.janelia.colormipsearch.dataio.db.DBNeuronMatchesWriter;
@@ -41,6 +44,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
@@ -53,6 +57,27 @@ class NormalizeGradientScoresCmd extends AbstractCmd {
 
     @Parameters(commandDescription = "Normalize gradient scores. The scores will be normalized with respect to the selected subset based on specified target filters")
     static class NormalizeGradientScoresArgs extends AbstractGradientScoresArgs {
+        @Parameter(names = {"--pipelined"},
+                description = "If set, the matches of every masks partition are normalized, updated and the MIPs are tagged " +
+                        "as soon as the partition is read instead of collecting all normalized matches before writing them",
+                arity = 0)
+        boolean pipelined = false;
+
+        @Parameter(names = {"--update-batch-size"},
+                description = "Number of matches written with a single bulk update when the normalization is pipelined. " +
+                        "The matches of the masks that have the same MIP ID are never split between batches")
+        int updateBatchSize = 5000;
+
+        @Parameter(names = {"--concurrent-update-batches"},
+                description = "Maximum number of bulk updates in flight when the normalization is pipelined")
+        int concurrentUpdateBatches = 4;
+
+        @Parameter(names = {"--server-side"},
+                description = "If set, the scores are normalized by the database for every masks partition without reading the matches. " +
+                        "It is only supported if the results are stored in the database",
+                arity = 0)
+        boolean serverSide = false;
+
         NormalizeGradientScoresArgs(CommonArgs commonArgs) {
             super(commonArgs);
         }
@@ -83,6 +108,9 @@ class NormalizeGradientScoresCmd extends AbstractCmd {
     }
 
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> void normalizeAllGradientScores() {
+        if (args.serverSide && args.commonArgs.resultsStorage != StorageType.DB) {
+            throw new IllegalArgumentException("Server side normalization requires the results to be stored in the database");
+        }
         long startTime = System.currentTimeMillis();
         NeuronMatchesReader<CDMatchEntity<M, T>> cdMatchesReader = getCDMatchesReader();
         Collection<String> maskIdsToProcess = cdMatchesReader.listMatchesLocations(
@@ -113,16 +141,27 @@ class NormalizeGradientScoresCmd extends AbstractCmd {
                 (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
                 (maxMemory / _1M));
         ExecutorService executorService = CmdUtils.createCmdExecutor(args.commonArgs);
+        ExecutorService ioExecutorService = CmdUtils.createIOExecutor(args.commonArgs);
         try {
             Scheduler scheduler = Schedulers.fromExecutorService(executorService);
+            Scheduler ioScheduler = Schedulers.fromExecutorService(ioExecutorService);
+            if (args.serverSide) {
+                normalizeAllGradientScoresOnServer(maskIdsToProcess, bufferingSize, ioScheduler);
+                return;
+            }
+            if (args.pipelined) {
+                normalizeAllGradientScoresPipelined(cdMatchesReader, maskIdsToProcess, bufferingSize, scheduler, ioScheduler);
+                return;
+            }
             List<CDMatchEntity<M, T>> normalizedMatches = Flux.fromIterable(maskIdsToProcess)
                     .buffer(bufferingSize)
                     .parallel(CmdUtils.getTaskConcurrency(args.commonArgs))
-                    .runOn(scheduler)
+                    .runOn(ioScheduler) // read the matches on the I/O executor
                     .map(maskIds -> {
                         LOG.info("Retrieve matches for {} masks", maskIds.size());
                         return getCDMatchesForMasksMipIDs(cdMatchesReader, maskIds);
                     })
+                    .runOn(scheduler) // and normalize the scores on the CPU executor
                     .flatMap(this::updateNormalizedScoresForMatchesGroupedByMask)
                     .doOnNext(groupedMatches -> checkMemoryUsage())
                     .sequential()
@@ -150,9 +189,138 @@ class NormalizeGradientScoresCmd extends AbstractCmd {
                     (maxMemory / _1M));
         } finally {
             executorService.shutdown();
+            ioExecutorService.shutdown();
         }
     }
 
+    /**
+     * Normalize the scores without collecting all matches first: the matches are read by masks partitions,
+     * the masks of a partition are normalized in parallel and the normalized matches are written in concurrent batches,
+     * together with the processing tags of their MIPs, while the next partitions are being read.
+     */
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    void normalizeAllGradientScoresPipelined(NeuronMatchesReader<CDMatchEntity<M, T>> cdMatchesReader,
+                                             Collection<String> maskIdsToProcess,
+                                             int bufferingSize,
+                                             Scheduler scheduler,
+                                             Scheduler ioScheduler) {
+        long startTime = System.currentTimeMillis();
+        int updateBatchSize = Math.max(args.updateBatchSize, 1);
+        NeuronMatchesWriter<CDMatchEntity<M, T>> matchesWriter = getCDMatchesWriter();
+        CDMIPsWriter cdmipsWriter = getCDMipsWriter();
+        // number of matches in the current update batch - only accessed from the sequential part of the pipeline
+        long[] currentBatchSize = new long[] {0};
+        Long nNormalizedMatches = Flux.fromIterable(maskIdsToProcess)
+                .buffer(bufferingSize)
+                .parallel(CmdUtils.getTaskConcurrency(args.commonArgs))
+                .runOn(ioScheduler) // read the matches on the I/O executor
+                .map(maskIds -> {
+                    LOG.info("Retrieve matches for {} masks", maskIds.size());
+                    return getCDMatchesForMasksMipIDs(cdMatchesReader, maskIds);
+                })
+                .runOn(scheduler) // and normalize the masks in parallel on the CPU executor
+                .flatMap(matchesGroupedByMask -> Flux.fromIterable(matchesGroupedByMask)
+                        .parallel(CmdUtils.getTaskConcurrency(args.commonArgs))
+                        .runOn(scheduler)
+                        .doOnNext(groupedCDMatches -> {
+                            M mask = groupedCDMatches.getKey();
+                            MDC.put("maskId", mask.getMipId() + "/" + mask.getEntityId());
+                            normalizeScores(groupedCDMatches);
+                            MDC.remove("maskId");
+                        })
+                        .sequential()
+                        .collectList())
+                .doOnNext(matchesGroupedByMask -> checkMemoryUsage())
+                .sequential()
+                // the file based writer writes all matches of a MIP ID at once so the masks that have the same MIP ID
+                // must be written in the same batch
+                .flatMapIterable(matchesGroupedByMask -> matchesGroupedByMask.stream()
+                        .collect(Collectors.groupingBy(groupedCDMatches -> groupedCDMatches.getKey().getMipId(), LinkedHashMap::new, Collectors.toList()))
+                        .values())
+                .bufferUntil(sameMipMatchesGroupedByMask -> {
+                    currentBatchSize[0] += sameMipMatchesGroupedByMask.stream().mapToLong(GroupedItems::getItemsCount).sum();
+                    if (currentBatchSize[0] >= updateBatchSize) {
+                        currentBatchSize[0] = 0;
+                        return true;
+                    } else {
+                        return false;
+                    }
+                })
+                .flatMap(batch -> Mono.fromCallable(() -> writeNormalizedScoresBatch(batch, matchesWriter, cdmipsWriter))
+                                .subscribeOn(ioScheduler),
+                        Math.max(args.concurrentUpdateBatches, 1))
+                .reduce(0L, Long::sum)
+                .block();
+        LOG.info("Finished normalizing and updating scores for {} items in {}s - memory usage {}M out of {}M",
+                nNormalizedMatches,
+                (System.currentTimeMillis() - startTime) / 1000.,
+                (maxMemory - Runtime.getRuntime().freeMemory()) / _1M + 1, // round up
+                (maxMemory / _1M));
+    }
+
+    /**
+     * Let the database normalize the scores of every masks partition so that no match is transferred.
+     */
+    private void normalizeAllGradientScoresOnServer(Collection<String> maskIdsToProcess,
+                                                    int bufferingSize,
+                                                    Scheduler ioScheduler) {
+        long startTime = System.currentTimeMillis();
+        DaosProvider daosProvider = getDaosProvider(false);
+        DBCDScoresNormalizer<CDMatchEntity<AbstractNeuronEntity, AbstractNeuronEntity>> scoresNormalizer = new DBCDScoresNormalizer<>(
+                daosProvider.getNeuronMetadataDao(),
+                daosProvider.getCDMatchesDao());
+        Set<String> processingTags = Collections.singleton(args.getProcessingTag());
+        Long nTaggedMIPs = Flux.fromIterable(maskIdsToProcess)
+                .buffer(bufferingSize)
+                .parallel(CmdUtils.getTaskConcurrency(args.commonArgs))
+                .runOn(ioScheduler)
+                .map(maskIds -> {
+                    long startPartitionTime = System.currentTimeMillis();
+                    long tagged = scoresNormalizer.normalizeScoresByMask(
+                            args.alignmentSpace,
+                            getMasksDataSource(maskIds),
+                            getTargetsDataSource(),
+                            args.matchTags,
+                            null,
+                            getMatchScoresFilter(),
+                            ProcessingType.NormalizeGradientScore,
+                            processingTags);
+                    LOG.info("Normalized scores for {} masks and annotated {} mips with {} in {}s",
+                            maskIds.size(), tagged, ProcessingType.NormalizeGradientScore,
+                            (System.currentTimeMillis() - startPartitionTime) / 1000.);
+                    return tagged;
+                })
+                .sequential()
+                .reduce(0L, Long::sum)
+                .block();
+        LOG.info("Finished normalizing scores for {} masks and annotated {} mips in {}s",
+                maskIdsToProcess.size(), nTaggedMIPs,
+                (System.currentTimeMillis() - startTime) / 1000.);
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity>
+    long writeNormalizedScoresBatch(List<List<GroupedItems<M, CDMatchEntity<M, T>>>> batch,
+                                    NeuronMatchesWriter<CDMatchEntity<M, T>> matchesWriter,
+                                    CDMIPsWriter cdmipsWriter) {
+        long startTime = System.currentTimeMillis();
+        List<CDMatchEntity<M, T>> normalizedMatches = batch.stream()
+                .flatMap(Collection::stream)
+                .flatMap(groupedCDMatches -> groupedCDMatches.getItems().stream())
+                .collect(Collectors.toList());
+        long updated = matchesWriter.writeUpdates(
+                normalizedMatches,
+                Arrays.asList(
+                        m -> ImmutablePair.of("normalizedScore", m.getNormalizedScore()), // only update the normalized score
+                        m -> ImmutablePair.of("updatedDate", new Date())
+                ));
+        long updatesWithProcessedTag = cdmipsWriter != null ? updateProcessingTag(normalizedMatches, cdmipsWriter) : 0;
+        LOG.info("Updated {} scores ({} updated) for {} mask MIPs and annotated {} mips with {} in {}s",
+                normalizedMatches.size(), updated, batch.size(),
+                updatesWithProcessedTag, ProcessingType.NormalizeGradientScore,
+                (System.currentTimeMillis() - startTime) / 1000.);
+        return normalizedMatches.size();
+    }
+
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> NeuronMatchesReader<CDMatchEntity<M, T>> getCDMatchesReader() {
         if (args.commonArgs.resultsStorage == StorageType.DB) {
             DaosProvider daosProvider = getDaosProvider(false);
@@ -253,11 +421,16 @@ class NormalizeGradientScoresCmd extends AbstractCmd {
     }
 
     private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> long updateProcessingTag(List<CDMatchEntity<M, T>> cdMatches) {
-        Set<String> processingTags = Collections.singleton(args.getProcessingTag());
         CDMIPsWriter cdmipsWriter = getCDMipsWriter();
         if (cdmipsWriter == null) {
             return 0;
         }
+        return updateProcessingTag(cdMatches, cdmipsWriter);
+    }
+
+    private <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> long updateProcessingTag(List<CDMatchEntity<M, T>> cdMatches,
+                                                                                                     CDMIPsWriter cdmipsWriter) {
+        Set<String> processingTags = Collections.singleton(args.getProcessingTag());
         Set<AbstractNeuronEntity> mipsToUpdate = cdMatches.stream()
                 .flatMap(m -> Stream.of(m.getMaskImage(), m.getMatchedImage()))
                 .collect(Collectors.toSet());
@@ -281,41 +454,53 @@ class NormalizeGradientScoresCmd extends AbstractCmd {
             // nothing to do
             return Collections.emptyList();
         }
-        ScoresFilter neuronsMatchScoresFilter = new ScoresFilter();
-        if (args.pctPositivePixels > 0) {
-            neuronsMatchScoresFilter.addSScore("matchingPixelsRatio", args.pctPositivePixels / 100);
-        }
-        neuronsMatchScoresFilter.addSScore("gradientAreaGap|bidirectionalAreaGap", 0);
         // get all matches for the specified MIP IDs and group the final results by mask ID
         return MatchEntitiesGrouping.groupMatchesByMaskID(
                 cdsMatchesReader.readMatchesByMask(
                         args.alignmentSpace,
-                        new DataSourceParam()
-                                .setAlignmentSpace(args.alignmentSpace)
-                                .addMipIDs(maskCDMipIds)
-                                .addDatasets(args.maskDatasets)
-                                .addTags(args.maskTags)
-                                .addExcludedTags(args.maskExcludedTags)
-                                .addAnnotations(args.maskAnnotations)
-                                .addExcludedAnnotations(args.excludedMaskAnnotations),
-                        new DataSourceParam()
-                                .setAlignmentSpace(args.alignmentSpace)
-                                .addLibraries(args.targetsLibraries)
-                                .addNames(args.targetsPublishedNames)
-                                .addMipIDs(args.targetsMIPIDs)
-                                .addDatasets(args.targetDatasets)
-                                .addTags(args.targetTags)
-                                .addExcludedTags(args.targetExcludedTags)
-                                .addAnnotations(args.targetAnnotations)
-                                .addExcludedAnnotations(args.excludedTargetAnnotations)
-                                .addProcessingTags(args.getTargetsProcessingTags()),
+                        getMasksDataSource(maskCDMipIds),
+                        getTargetsDataSource(),
                         /*matchTags*/args.matchTags,
                         /*matchExcludedTags*/null,
-                        neuronsMatchScoresFilter,
+                        getMatchScoresFilter(),
                         /*sortCriteria*/Collections.emptyList(),
                         /*from*/0,
                         /*nRecords*/-1,
                         /*readPageSize*/0)
         );
     }
+
+    private ScoresFilter getMatchScoresFilter() {
+        ScoresFilter neuronsMatchScoresFilter = new ScoresFilter();
+        if (args.pctPositivePixels > 0) {
+            neuronsMatchScoresFilter.addSScore("matchingPixelsRatio", args.pctPositivePixels / 100);
+        }
+        neuronsMatchScoresFilter.addSScore("gradientAreaGap|bidirectionalAreaGap", 0);
+        return neuronsMatchScoresFilter;
+    }
+
+    private DataSourceParam getMasksDataSource(Collection<String> maskCDMipIds) {
+        return new DataSourceParam()
+                .setAlignmentSpace(args.alignmentSpace)
+                .addMipIDs(maskCDMipIds)
+                .addDatasets(args.maskDatasets)
+                .addTags(args.maskTags)
+                .addExcludedTags(args.maskExcludedTags)
+                .addAnnotations(args.maskAnnotations)
+                .addExcludedAnnotations(args.excludedMaskAnnotations);
+    }
+
+    private DataSourceParam getTargetsDataSource() {
+        return new DataSourceParam()
+                .setAlignmentSpace(args.alignmentSpace)
+                .addLibraries(args.targetsLibraries)
+                .addNames(args.targetsPublishedNames)
+                .addMipIDs(args.targetsMIPIDs)
+                .addDatasets(args.targetDatasets)
+                .addTags(args.targetTags)
+                .addExcludedTags(args.targetExcludedTags)
+                .addAnnotations(args.targetAnnotations)
+                .addExcludedAnnotations(args.excludedTargetAnnotations)
+                .addProcessingTags(args.getTargetsProcessingTags());
+    }
 }
@@ -169,7 +169,7 @@ class ValidateNBDBDataCmd extends AbstractCmd {
     }
 
     private void runDataValidation() {
-        Executor validationExecutor = CmdUtils.createCmdExecutor(args.commonArgs);
+        Executor validationExecutor = CmdUtils.createIOExecutor(args.commonArgs); // validation mostly waits for the DB and the JACS services
         NeuronMetadataDao<AbstractNeuronEntity> neuronMetadataDao = getDaosProvider(false).getNeuronMetadataDao();
         NeuronMatchesDao<CDMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>> neuronMatchesDao = getDaosProvider(false).getCDMatchesDao();
         CachedDataHelper dataHelper = new CachedDataHelper(
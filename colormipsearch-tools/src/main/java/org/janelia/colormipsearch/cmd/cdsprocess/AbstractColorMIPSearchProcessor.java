@@ -1,5 +1,7 @@
 package org.janelia.colormipsearch.cmd.cdsprocess;
 
+import java.io.Serializable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Supplier;
@@ -20,7 +22,8 @@ import org.janelia.colormipsearch.model.ProcessingType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-abstract class AbstractColorMIPSearchProcessor<M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> implements ColorMIPSearchProcessor<M, T> {
+// the processor fields are sent to the spark executors together with the tasks that use them
+abstract class AbstractColorMIPSearchProcessor<M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> implements ColorMIPSearchProcessor<M, T>, Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractColorMIPSearchProcessor.class);
 
@@ -47,6 +50,32 @@ abstract class AbstractColorMIPSearchProcessor<M extends AbstractNeuronEntity, T
                 (n, cft) -> NeuronMIPUtils.getImageArray(CachedMIPsUtils.loadMIP(n, cft)));
     }
 
+    /**
+     * Partition the targets by their file container so that each partition reads only a few archives or directories.
+     *
+     * @param targetMIPs targets to partition
+     * @param nPartitions number of partitions
+     * @return target partitions
+     */
+    List<List<T>> partitionTargetsByLocation(List<T> targetMIPs, int nPartitions) {
+        if (targetMIPs.stream().allMatch(AbstractNeuronEntity::hasMipStats)) {
+            // loading, caching and comparing a target gets more expensive as the target has more signal pixels
+            // but there is also a fixed cost for every target, so account for both
+            long averagePixelCount = (long) targetMIPs.stream()
+                    .mapToLong(targetMIP -> targetMIP.getMipStats().getPixelCount())
+                    .average()
+                    .orElse(0);
+            return ColorMIPProcessUtils.partitionByFileContainer(
+                    targetMIPs,
+                    nPartitions,
+                    targetMIP -> averagePixelCount + targetMIP.getMipStats().getPixelCount() + 1);
+        } else {
+            // without stats all targets are considered equally expensive since MIPs from the same alignment space
+            // have the same dimensions
+            return ColorMIPProcessUtils.partitionByFileContainer(targetMIPs, nPartitions, targetMIP -> 1L);
+        }
+    }
+
     /**
      * Applies the given algorithm to find the pixel matches.
      *
@@ -0,0 +1,35 @@
+package org.janelia.colormipsearch.cmd.cdsprocess;
+
+import org.apache.spark.Partitioner;
+
+/**
+ * Spark partitioner for items that were already assigned to a partition on the driver - the key is the partition index.
+ */
+class AssignedPartitioner extends Partitioner {
+
+    private final int numPartitions;
+
+    AssignedPartitioner(int numPartitions) {
+        this.numPartitions = numPartitions;
+    }
+
+    @Override
+    public int numPartitions() {
+        return numPartitions;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+        return (Integer) key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof AssignedPartitioner && ((AssignedPartitioner) o).numPartitions == numPartitions;
+    }
+
+    @Override
+    public int hashCode() {
+        return numPartitions;
+    }
+}
@@ -1,14 +1,162 @@
 package org.janelia.colormipsearch.cmd.cdsprocess;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
 import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.FileData;
+import org.janelia.colormipsearch.model.ProcessingType;
 import org.janelia.colormipsearch.results.ItemsHandling;
 import org.janelia.colormipsearch.results.ScoredEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ColorMIPProcessUtils {
+    private static final Logger LOG = LoggerFactory.getLogger(ColorMIPProcessUtils.class);
+
+    /**
+     * Group the MIPs that have identical color depth image files. The files are compared using a fingerprint of their
+     * raw content, so the images are neither decoded nor loaded into the MIPs cache, but every file is still read once.
+     * Identical images stored with different encodings are not grouped.
+     *
+     * @param mips MIPs to be grouped
+     * @param ioExecutor executor used for reading the files
+     * @param <N> neuron type
+     * @return a map from the MIP selected to represent each distinct image to the other MIPs that have the same image.
+     * The keys are in the same order as the input MIPs and MIPs without an image are kept as they are.
+     */
+    public static <N extends AbstractNeuronEntity> Map<N, List<N>> groupMIPsWithIdenticalImages(List<N> mips, Executor ioExecutor) {
+        long startTime = System.currentTimeMillis();
+        List<CompletableFuture<String>> pendingFingerprints = mips.stream()
+                .map(mip -> CompletableFuture.supplyAsync(
+                        () -> NeuronMIPUtils.computeFileContentFingerprint(mip.getComputeFileData(ComputeFileType.InputColorDepthImage)),
+                        ioExecutor))
+                .collect(Collectors.toList());
+        List<String> fingerprints = pendingFingerprints.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+        Map<String, N> representativesByFingerprint = new LinkedHashMap<>();
+        Map<N, List<N>> mipsByRepresentative = new LinkedHashMap<>();
+        for (int i = 0; i < mips.size(); i++) {
+            N mip = mips.get(i);
+            String fingerprint = fingerprints.get(i);
+            N representative = fingerprint != null ? representativesByFingerprint.putIfAbsent(fingerprint, mip) : null;
+            if (representative == null) {
+                mipsByRepresentative.put(mip, new ArrayList<>());
+            } else {
+                mipsByRepresentative.get(representative).add(mip);
+            }
+        }
+        LOG.info("Found {} distinct images for {} MIPs in {}s",
+                mipsByRepresentative.size(), mips.size(), (System.currentTimeMillis() - startTime) / 1000.);
+        return mipsByRepresentative;
+    }
+
+    /**
+     * Partition the MIPs so that MIPs from the same container (zip archive or directory) are processed together.
+     * Within a container the MIPs are sorted by name so that an archive is read sequentially. The containers are then
+     * laid out one after the other and cut in partitions with about the same estimated cost, therefore
+     * a partition typically covers only one or a few containers.
+     *
+     * @param mips MIPs to partition
+     * @param nPartitions number of partitions
+     * @param costEstimator estimated cost, e.g. number of pixels, for processing a MIP
+     * @param <N> neuron type
+     * @return list of non-empty partitions
+     */
+    public static <N extends AbstractNeuronEntity> List<List<N>> partitionByFileContainer(List<N> mips,
+                                                                                         int nPartitions,
+                                                                                         ToLongFunction<N> costEstimator) {
+        Map<String, List<N>> mipsByContainer = mips.stream()
+                .collect(Collectors.groupingBy(
+                        mip -> getFileContainer(mip.getComputeFileData(ComputeFileType.InputColorDepthImage)),
+                        TreeMap::new,
+                        Collectors.toList()));
+        long totalCost = mips.stream().mapToLong(costEstimator).sum();
+        long partitionCost = Math.max(1, (totalCost + nPartitions - 1) / Math.max(1, nPartitions));
+        List<List<N>> partitions = new ArrayList<>();
+        List<N> currentPartition = new ArrayList<>();
+        long currentPartitionCost = 0;
+        for (List<N> containerMIPs : mipsByContainer.values()) {
+            containerMIPs.sort(Comparator.comparing(
+                    mip -> StringUtils.defaultString(getFileName(mip.getComputeFileData(ComputeFileType.InputColorDepthImage)))));
+            for (N mip : containerMIPs) {
+                if (currentPartitionCost >= partitionCost && partitions.size() < nPartitions - 1) {
+                    partitions.add(currentPartition);
+                    currentPartition = new ArrayList<>();
+                    currentPartitionCost = 0;
+                }
+                currentPartition.add(mip);
+                currentPartitionCost += costEstimator.applyAsLong(mip);
+            }
+        }
+        if (!currentPartition.isEmpty()) {
+            partitions.add(currentPartition);
+        }
+        LOG.info("Created {} partitions from {} MIPs located in {} containers", partitions.size(), mips.size(), mipsByContainer.size());
+        return partitions;
+    }
+
+    private static String getFileContainer(@Nullable FileData fd) {
+        if (fd == null) {
+            return "";
+        } else if (fd.getDataType() == FileData.FileDataType.zipEntry) {
+            return fd.getFileName();
+        } else {
+            return StringUtils.substringBeforeLast(fd.getFileName(), "/");
+        }
+    }
+
+    @Nullable
+    private static String getFileName(@Nullable FileData fd) {
+        return fd != null ? fd.getName() : null;
+    }
+
+    /**
+     * Copy the matches found for a target to all the other targets that have an identical image.
+     *
+     * @param cdMatchEntities matches found for the distinct targets
+     * @param identicalTargets map from a target to the other targets that have the same image
+     * @return the original matches plus the copies for the identical targets
+     */
+    @SuppressWarnings("unchecked")
+    public static <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> List<CDMatchEntity<M, T>> copyMatchesToIdenticalTargets(List<CDMatchEntity<M, T>> cdMatchEntities,
+                                                                                                                                           Map<T, List<T>> identicalTargets) {
+        List<CDMatchEntity<M, T>> allMatches = new ArrayList<>(cdMatchEntities);
+        cdMatchEntities.forEach(cdMatch -> {
+            List<T> sameImageTargets = identicalTargets.getOrDefault(cdMatch.getMatchedImage(), Collections.emptyList());
+            sameImageTargets.forEach(target -> {
+                CDMatchEntity<M, T> targetMatch = (CDMatchEntity<M, T>) cdMatch.duplicate((src, dest) -> {
+                    dest.setSessionRefId(src.getSessionRefId());
+                    dest.setMaskImage(src.getMaskImage());
+                    dest.setMatchedImage(target.addProcessedTags(
+                            ProcessingType.ColorDepthSearch,
+                            src.getMatchedImage().getProcessedTags().getOrDefault(ProcessingType.ColorDepthSearch, Collections.emptySet())));
+                    dest.addAllTags(src.getTags());
+                });
+                allMatches.add(targetMatch);
+            });
+        });
+        return allMatches;
+    }
+
+
     public static <M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> List<CDMatchEntity<M, T>> selectBestMatches(List<CDMatchEntity<M, T>> cdMatchEntities,
                                                                                                                                int topLineMatches,
                                                                                                                                int topSamplesPerLine,
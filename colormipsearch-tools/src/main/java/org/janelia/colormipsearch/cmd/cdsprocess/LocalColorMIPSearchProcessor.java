@@ -1,22 +1,32 @@
 package org.janelia.colormipsearch.cmd.cdsprocess;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Streams;
 
 import org.janelia.colormipsearch.cds.PixelMatchScore;
 import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithm;
 import org.janelia.colormipsearch.cds.ColorMIPSearch;
+import org.janelia.colormipsearch.cds.TargetOccupancyPyramid;
+import org.janelia.colormipsearch.cmd.AdaptiveConcurrencyController;
 import org.janelia.colormipsearch.cmd.CachedMIPsUtils;
+import org.janelia.colormipsearch.cmd.MIPsPrefetcher;
+import org.janelia.colormipsearch.imageprocessing.ImageArray;
 import org.janelia.colormipsearch.mips.NeuronMIP;
 import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
@@ -39,16 +49,26 @@ public class LocalColorMIPSearchProcessor<M extends AbstractNeuronEntity, T exte
 
     private static final Logger LOG = LoggerFactory.getLogger(LocalColorMIPSearchProcessor.class);
     private static final long _1M = 1024 * 1024;
+    private static final Set<ComputeFileType> TARGET_FILE_TYPES = EnumSet.of(ComputeFileType.InputColorDepthImage);
 
     private final ExecutorService cdsExecutor;
+    private final MIPsPrefetcher mipsPrefetcher;
+    private final AdaptiveConcurrencyController concurrencyController;
+    // target pyramids are kept only as long as the target image is still referenced, i.e. while it is in the MIPs cache,
+    // so that they are built once and shared by all masks
+    private final Cache<ImageArray<?>, TargetOccupancyPyramid> targetPyramids = CacheBuilder.newBuilder().weakKeys().build();
 
     public LocalColorMIPSearchProcessor(Number cdsRunId,
                                         ColorMIPSearch colorMIPSearch,
                                         int localProcessingPartitionSize,
                                         ExecutorService cdsExecutor,
+                                        MIPsPrefetcher mipsPrefetcher,
+                                        AdaptiveConcurrencyController concurrencyController,
                                         Set<String> tags) {
         super(cdsRunId, colorMIPSearch, localProcessingPartitionSize, tags);
         this.cdsExecutor = cdsExecutor;
+        this.mipsPrefetcher = mipsPrefetcher;
+        this.concurrencyController = concurrencyController;
     }
 
     @Override
@@ -60,9 +80,13 @@ public class LocalColorMIPSearchProcessor<M extends AbstractNeuronEntity, T exte
         LOG.info("Searching {} masks against {} targets", nQueries, nTargets);
 
         Scheduler scheduler = Schedulers.fromExecutorService(cdsExecutor);
+        // the target partitions are the same for all masks
+        List<List<T>> targetMIPsPartitions = partitionTargetsByLocation(
+                targetMIPs,
+                (nTargets + localProcessingPartitionSize - 1) / localProcessingPartitionSize);
         Flux<List<CDMatchEntity<M, T>>> allColorDepthSearches = Flux.fromIterable(queryMIPs)
                 .index()
-                .flatMap(indexedQueryMIP -> submitMaskSearches(indexedQueryMIP.getT1(), indexedQueryMIP.getT2(), targetMIPs, scheduler));
+                .flatMap(indexedQueryMIP -> submitMaskSearches(indexedQueryMIP.getT1(), indexedQueryMIP.getT2(), targetMIPsPartitions, scheduler));
         LOG.info("Submitted all color depth searches for {} masks with {} targets in {}s - memory usage {}M",
                 queryMIPs.size(), targetMIPs.size(),
                 (System.currentTimeMillis() - startTime) / 1000.,
@@ -79,7 +103,7 @@ public class LocalColorMIPSearchProcessor<M extends AbstractNeuronEntity, T exte
         return allSearchResults;
     }
 
-    private ParallelFlux<List<CDMatchEntity<M, T>>> submitMaskSearches(long mIndex, M queryMIP, List<T> targetMIPs, Scheduler scheduler) {
+    private ParallelFlux<List<CDMatchEntity<M, T>>> submitMaskSearches(long mIndex, M queryMIP, List<List<T>> targetMIPsPartitions, Scheduler scheduler) {
         NeuronMIP<M> queryImage = NeuronMIPUtils.loadComputeFile(queryMIP, ComputeFileType.InputColorDepthImage); // load image - no caching for the mask
         if (queryImage == null || queryImage.hasNoImageArray()) {
             LOG.error("No input color depth image found for mask {}", queryMIP);
@@ -90,33 +114,87 @@ public class LocalColorMIPSearchProcessor<M extends AbstractNeuronEntity, T exte
             LOG.info("No computation created for {} because it is empty", queryMIP);
             return Flux.<List<CDMatchEntity<M, T>>>empty().parallel();
         }
-        ParallelFlux<List<CDMatchEntity<M, T>>> cdsComputations = Flux.fromIterable(targetMIPs)
-                .buffer(localProcessingPartitionSize)
+        // idle partitions steal the remaining targets of the busy ones so that the mask search does not wait for a few slow partitions
+        WorkStealingPartitions<T> targetsWork = new WorkStealingPartitions<>(targetMIPsPartitions);
+        ParallelFlux<List<CDMatchEntity<M, T>>> cdsComputations = Flux.fromIterable(targetMIPsPartitions)
                 .index()
                 .parallel()
                 .runOn(scheduler)
                 .map(indexedTargetMIPsPartition -> {
+                    int partitionIndex = indexedTargetMIPsPartition.getT1().intValue();
+                    List<T> targetMIPsPartition = indexedTargetMIPsPartition.getT2();
                     LOG.debug("Compare mask# {} - {} with {} partition of {} items",
-                            mIndex, queryMIP, indexedTargetMIPsPartition.getT1(), indexedTargetMIPsPartition.getT2().size());
+                            mIndex, queryMIP, partitionIndex, targetMIPsPartition.size());
+                    concurrencyController.acquire();
                     long startTime = System.currentTimeMillis();
-                    List<CDMatchEntity<M, T>> srs = indexedTargetMIPsPartition.getT2().stream()
-                            .map(targetMIP -> CachedMIPsUtils.loadMIP(targetMIP, ComputeFileType.InputColorDepthImage))
-                            .filter(NeuronMIPUtils::hasImageArray)
-                            .map(targetImage -> findPixelMatch(queryColorDepthSearch, queryImage, targetImage))
-                            .filter(m -> m.isMatchFound() && m.hasNoErrors())
-                            .collect(Collectors.toList());
-                    LOG.info("Found {} matches comparing mask# {} - {} with target partition {} of {} items in {}s",
-                            srs.size(), mIndex, queryMIP, indexedTargetMIPsPartition.getT1(), indexedTargetMIPsPartition.getT2().size(),
+                    List<CDMatchEntity<M, T>> srs = new ArrayList<>();
+                    int nProcessed = 0;
+                    int nStolen = 0;
+                    int nPruned = 0;
+                    int nLowResPruned = 0;
+                    try {
+                        for (;;) {
+                            T targetMIP;
+                            int targetIndex = targetsWork.takeOwn(partitionIndex);
+                            if (targetIndex >= 0) {
+                                // start loading the next targets while this one is being compared
+                                mipsPrefetcher.prefetchAhead(targetMIPsPartition, targetIndex, TARGET_FILE_TYPES);
+                                targetMIP = targetMIPsPartition.get(targetIndex);
+                            } else {
+                                targetMIP = targetsWork.steal(partitionIndex);
+                                if (targetMIP == null) {
+                                    break;
+                                }
+                                nStolen++;
+                            }
+                            nProcessed++;
+                            if (!colorMIPSearch.mayMatch(queryColorDepthSearch, targetMIP.getMipStats())) {
+                                // the target's stats show that it cannot match so don't even load it
+                                nPruned++;
+                                continue;
+                            }
+                            NeuronMIP<T> targetImage = CachedMIPsUtils.loadMIP(targetMIP, ComputeFileType.InputColorDepthImage);
+                            if (NeuronMIPUtils.hasImageArray(targetImage)) {
+                                if (!colorMIPSearch.mayMatch(queryColorDepthSearch, getTargetPyramid(targetImage.getImageArray()))) {
+                                    // the low resolution comparison shows that the target cannot match
+                                    nLowResPruned++;
+                                    continue;
+                                }
+                                CDMatchEntity<M, T> m = findPixelMatch(queryColorDepthSearch, queryImage, targetImage);
+                                if (m.isMatchFound() && m.hasNoErrors()) {
+                                    srs.add(m);
+                                }
+                            }
+                        }
+                    } finally {
+                        concurrencyController.release(nProcessed, System.currentTimeMillis() - startTime);
+                    }
+                    LOG.info("Found {} matches comparing mask# {} - {} with target partition {} of {} items ({} stolen from other partitions, {} pruned, {} pruned at low resolution) in {}s",
+                            srs.size(), mIndex, queryMIP, partitionIndex, nProcessed, nStolen, nPruned, nLowResPruned,
                             (System.currentTimeMillis() - startTime) / 1000.);
                     return srs;
                 });
-        LOG.info("Submitted color depth searches for mask# {} - {} with {} targets",
-                mIndex, queryMIP, targetMIPs.size());
+        LOG.info("Submitted color depth searches for mask# {} - {} with {} target partitions",
+                mIndex, queryMIP, targetMIPsPartitions.size());
         return cdsComputations;
     }
 
+    @Nullable
+    private TargetOccupancyPyramid getTargetPyramid(ImageArray<?> targetImageArray) {
+        if (!colorMIPSearch.isMultiresolutionSearch()) {
+            return null;
+        }
+        try {
+            return targetPyramids.get(targetImageArray, () -> colorMIPSearch.createTargetPyramid(targetImageArray));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
     @Override
     public void terminate() {
-        // nothing to do here
+        concurrencyController.shutdown();
+        mipsPrefetcher.shutdown();
+        cdsExecutor.shutdown();
     }
 }
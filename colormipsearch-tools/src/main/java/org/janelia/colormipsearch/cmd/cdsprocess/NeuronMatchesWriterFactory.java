@@ -0,0 +1,24 @@
+package org.janelia.colormipsearch.cmd.cdsprocess;
+
+import java.io.Serializable;
+
+import org.janelia.colormipsearch.dataio.NeuronMatchesWriter;
+import org.janelia.colormipsearch.model.AbstractMatchEntity;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+
+/**
+ * Creates matches writers on the nodes that produce the matches, so that the results do not have to be sent back to the driver.
+ * The factory is serialized and sent to the executors, therefore it must only hold serializable state and
+ * it must create all its resources (DB connections, JSON writers) when the writer is requested.
+ *
+ * @param <R> match type
+ */
+@FunctionalInterface
+public interface NeuronMatchesWriterFactory<R extends AbstractMatchEntity<? extends AbstractNeuronEntity, ? extends AbstractNeuronEntity>> extends Serializable {
+    /**
+     * @param partitionName unique name of the partition that is written -
+     *                      writers that write to files should use it to avoid conflicts with the other partitions
+     * @return a writer for the matches from the given partition
+     */
+    NeuronMatchesWriter<R> createWriter(String partitionName);
+}
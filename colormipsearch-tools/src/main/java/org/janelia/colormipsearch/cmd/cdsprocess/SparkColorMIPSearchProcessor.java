@@ -1,21 +1,34 @@
 package org.janelia.colormipsearch.cmd.cdsprocess;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
-import com.google.common.collect.Lists;
+import javax.annotation.Nullable;
 
+import com.google.common.collect.Iterators;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.spark.SparkConf;
+import org.apache.spark.TaskContext;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.util.LongAccumulator;
 import org.janelia.colormipsearch.cds.PixelMatchScore;
 import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithm;
 import org.janelia.colormipsearch.cds.ColorMIPSearch;
-import org.janelia.colormipsearch.cmd.CachedMIPsUtils;
+import org.janelia.colormipsearch.cds.TargetOccupancyPyramid;
+import org.janelia.colormipsearch.mips.NeuronMIP;
 import org.janelia.colormipsearch.mips.NeuronMIPUtils;
 import org.janelia.colormipsearch.model.AbstractNeuronEntity;
 import org.janelia.colormipsearch.model.CDMatchEntity;
@@ -23,20 +36,44 @@ import org.janelia.colormipsearch.model.ComputeFileType;
 import org.janelia.colormipsearch.results.ItemsHandling;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import scala.Tuple2;
 
 public class SparkColorMIPSearchProcessor<M extends AbstractNeuronEntity, T extends AbstractNeuronEntity> extends AbstractColorMIPSearchProcessor<M, T>
                                                                                                               implements Serializable {
     private static final Logger LOG = LoggerFactory.getLogger(SparkColorMIPSearchProcessor.class);
 
     private transient final JavaSparkContext sparkContext;
+    // number of targets from an RDD partition that are loaded at the same time and the threads used for loading them
+    private final int targetsLoadBatchSize;
+    private final int targetsLoadConcurrency;
 
     public SparkColorMIPSearchProcessor(Number cdsRunId,
                                         String appName,
                                         ColorMIPSearch colorMIPSearch,
                                         int localProcessingPartitionSize,
+                                        int targetsLoadBatchSize,
+                                        int targetsLoadConcurrency,
                                         Set<String> tags) {
+        this(cdsRunId,
+                new JavaSparkContext(new SparkConf().setAppName(appName)),
+                colorMIPSearch,
+                localProcessingPartitionSize,
+                targetsLoadBatchSize,
+                targetsLoadConcurrency,
+                tags);
+    }
+
+    SparkColorMIPSearchProcessor(Number cdsRunId,
+                                 JavaSparkContext sparkContext,
+                                 ColorMIPSearch colorMIPSearch,
+                                 int localProcessingPartitionSize,
+                                 int targetsLoadBatchSize,
+                                 int targetsLoadConcurrency,
+                                 Set<String> tags) {
         super(cdsRunId, colorMIPSearch, localProcessingPartitionSize, tags);
-        this.sparkContext = new JavaSparkContext(new SparkConf().setAppName(appName));
+        this.sparkContext = sparkContext;
+        this.targetsLoadBatchSize = targetsLoadBatchSize;
+        this.targetsLoadConcurrency = targetsLoadConcurrency;
     }
 
     @Override
@@ -47,36 +84,189 @@ public class SparkColorMIPSearchProcessor<M extends AbstractNeuronEntity, T exte
 
         LOG.info("Searching {} masks against {} targets", nQueries, nTargets);
 
-        JavaRDD<T> targetMIPsRDD = sparkContext.parallelize(targetMIPs);
+        JavaRDD<T> targetMIPsRDD = createTargetsRDD(targetMIPs);
         LOG.info("Created {} partitions for {} targets", targetMIPsRDD.getNumPartitions(), nTargets);
 
         List<CDMatchEntity<M, T>> cdsResults = ItemsHandling.partitionCollection(queryMIPs, localProcessingPartitionSize).entrySet().stream().parallel()
-                .map(indexedQueryMIPsPartition -> targetMIPsRDD.mapPartitions(targetMIPsItr -> {
-                    List<T> localTargetMIPs = Lists.newArrayList(targetMIPsItr);
-                    return indexedQueryMIPsPartition.getValue().stream()
-                            .map(queryMIP -> NeuronMIPUtils.loadComputeFile(queryMIP, ComputeFileType.InputColorDepthImage))
-                            .filter(queryImage -> queryImage != null && queryImage.hasImageArray())
-                            .flatMap(queryImage -> {
-                                ColorDepthSearchAlgorithm<PixelMatchScore> queryColorDepthSearch = colorMIPSearch.createQueryColorDepthSearchWithDefaultThreshold(queryImage.getImageArray());
-                                if (queryColorDepthSearch.getQuerySize() == 0) {
-                                    return Stream.of();
-                                } else {
-                                    return localTargetMIPs.stream()
-                                            .map(targetMIP -> CachedMIPsUtils.loadMIP(targetMIP, ComputeFileType.InputColorDepthImage))
-                                            .filter(targetImage -> targetImage != null && targetImage.hasImageArray())
-                                            .map(targetImage -> findPixelMatch(queryColorDepthSearch, queryImage, targetImage))
-                                            .filter(m -> m.isMatchFound() && m.hasNoErrors())
-                                            ;
-                                }
-                            })
-                            .iterator();
-                }).collect())
+                .map(indexedQueryMIPsPartition -> {
+                    // the query algorithms are created only once on the driver and then shared with all executors
+                    Broadcast<List<Pair<M, ColorDepthSearchAlgorithm<PixelMatchScore>>>> queryAlgorithms =
+                            sparkContext.broadcast(createQueryAlgorithms(indexedQueryMIPsPartition.getValue()));
+                    LOG.info("Broadcast {} query algorithms for query partition {}",
+                            queryAlgorithms.value().size(), indexedQueryMIPsPartition.getKey());
+                    try {
+                        return targetMIPsRDD.mapPartitions(targetMIPsItr -> findPartitionMatches(queryAlgorithms.value(), targetMIPsItr).iterator())
+                                .collect();
+                    } finally {
+                        queryAlgorithms.destroy();
+                    }
+                })
                 .flatMap(Collection::stream)
                 .collect(Collectors.toList());
         LOG.info("Found {} cds results in {}ms", cdsResults.size(), System.currentTimeMillis() - startTime);
         return cdsResults;
     }
 
+    /**
+     * Search all queries against all targets and write the matches directly from the executors, so that the matches
+     * never have to be collected on the driver. Unlike {@link #findAllColorDepthMatches(List, List)} the query partitions
+     * are processed one at a time - each job already spans all target partitions so running several jobs concurrently
+     * would only compete for the same executors.
+     *
+     * @param queryMIPs queries
+     * @param targetMIPs targets
+     * @param identicalTargets optional map from the searched targets to other targets that have the same image -
+     *                         if present the matches are also copied to the identical targets before being written
+     * @param matchesWriterFactory creates the matches writer on the executors
+     * @return number of matches found, including the ones copied to identical targets
+     */
+    public long findAndWriteAllColorDepthMatches(List<M> queryMIPs,
+                                                 List<T> targetMIPs,
+                                                 @Nullable Map<T, List<T>> identicalTargets,
+                                                 NeuronMatchesWriterFactory<CDMatchEntity<M, T>> matchesWriterFactory) {
+        long startTime = System.currentTimeMillis();
+        int nQueries = queryMIPs.size();
+        int nTargets = targetMIPs.size();
+
+        LOG.info("Searching {} masks against {} targets and write the results from the executors", nQueries, nTargets);
+        if (sparkContext.getConf().getBoolean("spark.speculation", false)) {
+            // a retried task replaces the matches of the failed attempt but two concurrent attempts would both write them
+            throw new IllegalStateException("Writing the matches from the executors requires spark.speculation to be disabled");
+        }
+
+        JavaRDD<T> targetMIPsRDD = createTargetsRDD(targetMIPs);
+        LOG.info("Created {} partitions for {} targets", targetMIPsRDD.getNumPartitions(), nTargets);
+        Broadcast<Map<T, List<T>>> identicalTargetsBroadcast = identicalTargets != null
+                ? sparkContext.broadcast(identicalTargets)
+                : null;
+        LongAccumulator matchesCounter = sparkContext.sc().longAccumulator("CDSMatches");
+        try {
+            ItemsHandling.partitionCollection(queryMIPs, localProcessingPartitionSize).forEach((queryPartitionIndex, queryPartition) -> {
+                Broadcast<List<Pair<M, ColorDepthSearchAlgorithm<PixelMatchScore>>>> queryAlgorithms =
+                        sparkContext.broadcast(createQueryAlgorithms(queryPartition));
+                LOG.info("Broadcast {} query algorithms for query partition {}", queryAlgorithms.value().size(), queryPartitionIndex);
+                try {
+                    targetMIPsRDD.foreachPartition(targetMIPsItr -> {
+                        List<CDMatchEntity<M, T>> partitionMatches = findPartitionMatches(queryAlgorithms.value(), targetMIPsItr);
+                        if (identicalTargetsBroadcast != null) {
+                            partitionMatches = ColorMIPProcessUtils.copyMatchesToIdenticalTargets(partitionMatches, identicalTargetsBroadcast.value());
+                        }
+                        if (!partitionMatches.isEmpty()) {
+                            String partitionName = "q" + queryPartitionIndex + "-t" + TaskContext.getPartitionId();
+                            matchesWriterFactory.createWriter(partitionName).write(partitionMatches);
+                            matchesCounter.add(partitionMatches.size());
+                        }
+                    });
+                } finally {
+                    queryAlgorithms.destroy();
+                }
+                LOG.info("Finished query partition {} - {} matches written so far", queryPartitionIndex, matchesCounter.value());
+            });
+        } finally {
+            if (identicalTargetsBroadcast != null) {
+                identicalTargetsBroadcast.destroy();
+            }
+        }
+        LOG.info("Found and wrote {} cds results in {}ms", matchesCounter.value(), System.currentTimeMillis() - startTime);
+        return matchesCounter.value();
+    }
+
+    /**
+     * Create the targets RDD partitioned by the location of the target files, so that an executor reads a few archives
+     * or directories sequentially instead of reading files scattered all over the storage.
+     */
+    private JavaRDD<T> createTargetsRDD(List<T> targetMIPs) {
+        List<List<T>> targetMIPsPartitions = partitionTargetsByLocation(targetMIPs, sparkContext.defaultParallelism());
+        List<Tuple2<Integer, T>> indexedTargetMIPs = IntStream.range(0, targetMIPsPartitions.size())
+                .boxed()
+                .flatMap(partitionIndex -> targetMIPsPartitions.get(partitionIndex).stream().map(targetMIP -> new Tuple2<>(partitionIndex, targetMIP)))
+                .collect(Collectors.toList());
+        return sparkContext.parallelizePairs(indexedTargetMIPs)
+                .partitionBy(new AssignedPartitioner(targetMIPsPartitions.size()))
+                .values();
+    }
+
+    /**
+     * Compare all queries with all targets from the current RDD partition. The targets are compared with every query
+     * so they are loaded only once, but in bounded batches on a bounded pool so that the executor memory does not grow
+     * with the size of the partition.
+     */
+    List<CDMatchEntity<M, T>> findPartitionMatches(List<Pair<M, ColorDepthSearchAlgorithm<PixelMatchScore>>> queryAlgorithms,
+                                                  Iterator<T> targetMIPsItr) {
+        List<Pair<M, NeuronMIP<M>>> queryImages = queryAlgorithms.stream()
+                .map(queryAlgorithm -> Pair.of(
+                        queryAlgorithm.getLeft(),
+                        new NeuronMIP<>(queryAlgorithm.getLeft(), null, queryAlgorithm.getRight().getQueryImage())))
+                .collect(Collectors.toList());
+        ExecutorService loadExecutor = Executors.newFixedThreadPool(Math.max(targetsLoadConcurrency, 1));
+        try {
+            List<CDMatchEntity<M, T>> partitionMatches = new ArrayList<>();
+            // skip the targets that based on their stats cannot match any query
+            Iterator<List<T>> targetBatchesItr = Iterators.partition(
+                    Iterators.filter(
+                            targetMIPsItr,
+                            targetMIP -> queryAlgorithms.stream().anyMatch(queryAlgorithm -> colorMIPSearch.mayMatch(queryAlgorithm.getRight(), targetMIP.getMipStats()))),
+                    Math.max(targetsLoadBatchSize, 1));
+            while (targetBatchesItr.hasNext()) {
+                List<NeuronMIP<T>> targetImages = NeuronMIPUtils.loadComputeFiles(
+                        targetBatchesItr.next().stream()
+                                .map(targetMIP -> Pair.of(targetMIP, ComputeFileType.InputColorDepthImage))
+                                .collect(Collectors.toList()),
+                        loadExecutor).stream()
+                        .filter(NeuronMIPUtils::hasImageArray)
+                        .collect(Collectors.toList());
+                // the target pyramids are built only once and then compared with every query
+                List<TargetOccupancyPyramid> targetPyramids = targetImages.stream()
+                        .map(targetImage -> colorMIPSearch.createTargetPyramid(targetImage.getImageArray()))
+                        .collect(Collectors.toList());
+                for (int qi = 0; qi < queryAlgorithms.size(); qi++) {
+                    ColorDepthSearchAlgorithm<PixelMatchScore> queryAlgorithm = queryAlgorithms.get(qi).getRight();
+                    NeuronMIP<M> queryImage = queryImages.get(qi).getRight();
+                    for (int ti = 0; ti < targetImages.size(); ti++) {
+                        if (colorMIPSearch.mayMatch(queryAlgorithm, targetImages.get(ti).getNeuronInfo().getMipStats()) &&
+                                colorMIPSearch.mayMatch(queryAlgorithm, targetPyramids.get(ti))) {
+                            CDMatchEntity<M, T> m = findPixelMatch(queryAlgorithm, queryImage, targetImages.get(ti));
+                            if (m.isMatchFound() && m.hasNoErrors()) {
+                                partitionMatches.add(m);
+                            }
+                        }
+                    }
+                }
+            }
+            return partitionMatches;
+        } finally {
+            loadExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Load the query images and create the color depth search algorithms for the given queries. Queries that have no image or
+     * no pixels above the threshold are skipped.
+     *
+     * @param queryMIPs
+     * @return
+     */
+    List<Pair<M, ColorDepthSearchAlgorithm<PixelMatchScore>>> createQueryAlgorithms(List<M> queryMIPs) {
+        return queryMIPs.stream()
+                .map(queryMIP -> NeuronMIPUtils.loadComputeFile(queryMIP, ComputeFileType.InputColorDepthImage))
+                .filter(NeuronMIPUtils::hasImageArray)
+                .map(queryImage -> {
+                    Pair<M, ColorDepthSearchAlgorithm<PixelMatchScore>> queryAlgorithm = ImmutablePair.of(
+                            queryImage.getNeuronInfo(),
+                            colorMIPSearch.createQueryColorDepthSearchWithDefaultThreshold(queryImage.getImageArray()));
+                    return queryAlgorithm;
+                })
+                .filter(queryAlgorithm -> {
+                    if (queryAlgorithm.getRight().getQuerySize() == 0) {
+                        LOG.info("No computation created for {} because it is empty", queryAlgorithm.getLeft());
+                        return false;
+                    } else {
+                        return true;
+                    }
+                })
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
     @Override
     public void terminate() {
         sparkContext.close();
@@ -0,0 +1,90 @@
+package org.janelia.colormipsearch.cmd.cdsprocess;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+/**
+ * Items split in partitions where every partition is consumed from the front by the worker that owns it.
+ * A worker that finished its own partition steals items from the back of the partition that has the most
+ * items left, so all partitions finish at about the same time even when the cost of processing an item
+ * varies a lot from one item to another.
+ *
+ * @param <T> item type
+ */
+class WorkStealingPartitions<T> {
+
+    private static class Partition<T> {
+        private final List<T> items;
+        private int head;
+        private int tail;
+
+        Partition(List<T> items) {
+            this.items = items;
+            this.head = 0;
+            this.tail = items.size();
+        }
+
+        synchronized int takeFirst() {
+            return head < tail ? head++ : -1;
+        }
+
+        @Nullable
+        synchronized T takeLast() {
+            return head < tail ? items.get(--tail) : null;
+        }
+
+        synchronized int remaining() {
+            return tail - head;
+        }
+    }
+
+    private final List<Partition<T>> partitions;
+
+    WorkStealingPartitions(List<List<T>> partitions) {
+        this.partitions = partitions.stream().map(Partition::new).collect(Collectors.toList());
+    }
+
+    /**
+     * Take the next item from the front of the worker's own partition.
+     *
+     * @param partitionIndex index of the partition owned by the worker
+     * @return the position of the item in its partition or -1 if there are no items left in the partition
+     */
+    int takeOwn(int partitionIndex) {
+        return partitions.get(partitionIndex).takeFirst();
+    }
+
+    /**
+     * Steal an item from the back of the partition with the most items left.
+     *
+     * @param partitionIndex index of the partition owned by the worker that steals
+     * @return the stolen item or null if all the other partitions were consumed
+     */
+    @Nullable
+    T steal(int partitionIndex) {
+        for (;;) {
+            Partition<T> victim = null;
+            int victimRemaining = 0;
+            for (int i = 0; i < partitions.size(); i++) {
+                if (i == partitionIndex) {
+                    continue;
+                }
+                int remaining = partitions.get(i).remaining();
+                if (remaining > victimRemaining) {
+                    victim = partitions.get(i);
+                    victimRemaining = remaining;
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            T item = victim.takeLast();
+            if (item != null) {
+                return item;
+            }
+            // somebody else took the last item of the victim partition in the meantime so look for another one
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveConcurrencyControllerTest {
+
+    private MIPsPrefetcher mipsPrefetcher;
+    private AtomicReference<Double> heapUsage;
+    private AtomicLong gcTime;
+    private AtomicLong clock;
+    private AdaptiveConcurrencyController concurrencyController;
+
+    @Before
+    public void setUp() {
+        mipsPrefetcher = new MIPsPrefetcher(1, 4, 1000);
+        heapUsage = new AtomicReference<>(0.5);
+        gcTime = new AtomicLong();
+        clock = new AtomicLong();
+        concurrencyController = new AdaptiveConcurrencyController(1, 8, mipsPrefetcher,
+                heapUsage::get, gcTime::get, clock::get);
+    }
+
+    @After
+    public void tearDown() {
+        concurrencyController.shutdown();
+        mipsPrefetcher.shutdown();
+    }
+
+    @Test
+    public void highPostGCHeapUsageHalvesTheConcurrency() {
+        adjust(0.9, 0);
+        assertEquals(4, concurrencyController.getConcurrencyLimit());
+        assertEquals(2, mipsPrefetcher.getPrefetchDepth());
+        adjust(0.9, 0);
+        adjust(0.9, 0);
+        adjust(0.9, 0);
+        // never below the min concurrency
+        assertEquals(1, concurrencyController.getConcurrencyLimit());
+        assertEquals(0, mipsPrefetcher.getPrefetchDepth());
+    }
+
+    @Test
+    public void highGCTimeHalvesTheConcurrency() {
+        // 2s of GC in a 10s interval
+        adjust(0.5, 2000);
+        assertEquals(4, concurrencyController.getConcurrencyLimit());
+        // 0.5s of GC in a 10s interval
+        adjust(0.5, 500);
+        assertEquals(4, concurrencyController.getConcurrencyLimit());
+    }
+
+    @Test
+    public void concurrencyIncreasesOnlyWhenPartitionsAreWaitingForMemory() throws InterruptedException {
+        adjust(0.9, 0);
+        adjust(0.9, 0);
+        assertEquals(2, concurrencyController.getConcurrencyLimit());
+        // nothing is waiting for a permit
+        adjust(0.5, 0);
+        assertEquals(2, concurrencyController.getConcurrencyLimit());
+
+        concurrencyController.acquire();
+        concurrencyController.acquire();
+        Thread waitingPartition = startWaitingPartition();
+        // not enough free memory after GC
+        adjust(0.75, 0);
+        assertEquals(2, concurrencyController.getConcurrencyLimit());
+        adjust(0.5, 0);
+        assertEquals(3, concurrencyController.getConcurrencyLimit());
+        assertEquals(2, mipsPrefetcher.getPrefetchDepth());
+        // the waiting partition got the new permit
+        waitingPartition.join(10000);
+        assertEquals(Thread.State.TERMINATED, waitingPartition.getState());
+    }
+
+    @Test
+    public void concurrencyDoesNotIncreaseWhenTheLatencyDegrades() throws InterruptedException {
+        adjust(0.9, 0);
+        assertEquals(4, concurrencyController.getConcurrencyLimit());
+        for (int i = 0; i < 4; i++) {
+            concurrencyController.acquire();
+        }
+        Thread waitingPartition = startWaitingPartition();
+        concurrencyController.release(10, 100);
+        // the released permit was taken by the waiting partition
+        waitingPartition.join(10000);
+        adjust(0.5, 0);
+        assertEquals(4, concurrencyController.getConcurrencyLimit());
+
+        Thread nextWaitingPartition = startWaitingPartition();
+        // 100ms per item is worse than 1.2 x the best 10ms per item
+        concurrencyController.release(10, 1000);
+        nextWaitingPartition.join(10000);
+        Thread lastWaitingPartition = startWaitingPartition();
+        adjust(0.5, 0);
+        assertEquals(4, concurrencyController.getConcurrencyLimit());
+        // the latency recovered
+        concurrencyController.release(10, 100);
+        lastWaitingPartition.join(10000);
+        Thread recoveredWaitingPartition = startWaitingPartition();
+        adjust(0.5, 0);
+        assertEquals(5, concurrencyController.getConcurrencyLimit());
+        recoveredWaitingPartition.join(10000);
+    }
+
+    private Thread startWaitingPartition() throws InterruptedException {
+        Thread waitingPartition = new Thread(concurrencyController::acquire);
+        waitingPartition.start();
+        while (waitingPartition.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        return waitingPartition;
+    }
+
+    /**
+     * Move the clock by 10s and adjust the concurrency with the given heap usage and the given GC time in the interval.
+     */
+    private void adjust(double postGCHeapUsage, long intervalGCTimeMillis) {
+        clock.addAndGet(10000);
+        gcTime.addAndGet(intervalGCTimeMillis);
+        heapUsage.set(postGCHeapUsage);
+        concurrencyController.adjust();
+    }
+}
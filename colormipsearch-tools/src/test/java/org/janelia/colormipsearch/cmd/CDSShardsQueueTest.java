@@ -0,0 +1,109 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CDSShardsQueueTest {
+
+    private Path queueDir;
+
+    @Before
+    public void setUp() throws IOException {
+        queueDir = Files.createTempDirectory("cdsshardsqueuetest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> testFiles = Files.walk(queueDir)) {
+            testFiles.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void shardsAreClaimedOnceAndFailedShardsAreRetried() {
+        CDSShardsQueue shardsQueue = new CDSShardsQueue(queueDir);
+        shardsQueue.addShard(createShard("s1"));
+        shardsQueue.addShard(createShard("s2"));
+
+        CDSShardsQueue.CDSShard s1 = shardsQueue.claimShard("w1");
+        CDSShardsQueue.CDSShard s2 = shardsQueue.claimShard("w2");
+        assertNotNull(s1);
+        assertNotNull(s2);
+        assertNull(shardsQueue.claimShard("w3"));
+        assertEquals(2, shardsQueue.countShards(CDSShardsQueue.ShardState.running));
+
+        s1.nMatches = 10;
+        assertTrue(shardsQueue.completeShard(s1));
+        // the first failure puts the shard back in the queue, the second one exhausts the attempts
+        assertEquals(CDSShardsQueue.ShardState.pending, shardsQueue.releaseShard(s2, "error", 2));
+        CDSShardsQueue.CDSShard retriedS2 = shardsQueue.claimShard("w3");
+        assertNotNull(retriedS2);
+        assertEquals(1, retriedS2.attempts);
+        assertEquals(CDSShardsQueue.ShardState.failed, shardsQueue.releaseShard(retriedS2, "error", 2));
+
+        assertEquals(0, shardsQueue.countShards(CDSShardsQueue.ShardState.pending));
+        assertEquals(0, shardsQueue.countShards(CDSShardsQueue.ShardState.running));
+        assertEquals(10, shardsQueue.getShards(CDSShardsQueue.ShardState.done).get(0).nMatches);
+        assertEquals(1, shardsQueue.countShards(CDSShardsQueue.ShardState.failed));
+    }
+
+    @Test
+    public void staleShardsAreReassigned() {
+        CDSShardsQueue shardsQueue = new CDSShardsQueue(queueDir);
+        shardsQueue.addShard(createShard("s1"));
+        CDSShardsQueue.CDSShard s1 = shardsQueue.claimShard("w1");
+        assertNotNull(s1);
+        assertEquals(0, shardsQueue.releaseStaleShards(60000, 3));
+        assertEquals(1, shardsQueue.releaseStaleShards(-1, 3));
+        // the original worker can no longer complete the shard
+        assertFalse(shardsQueue.completeShard(s1));
+        assertNotNull(shardsQueue.claimShard("w2"));
+    }
+
+    @Test
+    public void staleWorkerCannotChangeReassignedShard() {
+        CDSShardsQueue shardsQueue = new CDSShardsQueue(queueDir);
+        CDSShardsQueue.CDSShard shard = createShard("s1");
+        shard.sessionRefId = 100;
+        shardsQueue.addShard(shard);
+        CDSShardsQueue.CDSShard staleS1 = shardsQueue.claimShard("w1");
+        assertNotNull(staleS1);
+        assertTrue(shardsQueue.isShardAssigned(staleS1));
+        assertEquals(1, shardsQueue.releaseStaleShards(-1, 3));
+        CDSShardsQueue.CDSShard retriedS1 = shardsQueue.claimShard("w2");
+        assertNotNull(retriedS1);
+        assertEquals(100, retriedS1.sessionRefId.intValue());
+
+        // the first worker is still running but it no longer owns the shard
+        assertFalse(shardsQueue.isShardAssigned(staleS1));
+        assertFalse(shardsQueue.completeShard(staleS1));
+        assertNull(shardsQueue.releaseShard(staleS1, "error", 3));
+        assertEquals(1, shardsQueue.countShards(CDSShardsQueue.ShardState.running));
+
+        assertTrue(shardsQueue.isShardAssigned(retriedS1));
+        assertTrue(shardsQueue.completeShard(retriedS1));
+        assertEquals(1, shardsQueue.countShards(CDSShardsQueue.ShardState.done));
+        assertEquals(0, shardsQueue.countShards(CDSShardsQueue.ShardState.running));
+    }
+
+    private CDSShardsQueue.CDSShard createShard(String shardId) {
+        CDSShardsQueue.CDSShard shard = new CDSShardsQueue.CDSShard();
+        shard.shardId = shardId;
+        shard.masksLength = 10;
+        shard.targetsLength = 100;
+        return shard;
+    }
+}
@@ -1,15 +1,75 @@
 package org.janelia.colormipsearch.cmd;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
 
 import com.beust.jcommander.JCommander;
 
+import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithmProvider;
+import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithmProviderFactory;
+import org.janelia.colormipsearch.cds.ShapeMatchScore;
+import org.janelia.colormipsearch.dataio.DataSourceParam;
+import org.janelia.colormipsearch.dataio.NeuronMatchesReader;
+import org.janelia.colormipsearch.datarequests.ScoresFilter;
+import org.janelia.colormipsearch.datarequests.SortCriteria;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.EMNeuronEntity;
+import org.janelia.colormipsearch.model.FileData;
+import org.janelia.colormipsearch.model.LMNeuronEntity;
+import org.janelia.colormipsearch.results.MatchEntitiesGrouping;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import reactor.core.scheduler.Schedulers;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class CalculateGradientScoresCmdTest {
 
+    private Path testDir;
+
+    @Before
+    public void setUp() throws IOException {
+        testDir = Files.createTempDirectory("gradscorestest");
+        CachedMIPsUtils.initializeCache(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> testFiles = Files.walk(testDir)) {
+            testFiles.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
     @Test
     public void parseCmdArgs() {
         CalculateGradientScoresCmd cmd = new CalculateGradientScoresCmd(
@@ -43,6 +103,335 @@ public class CalculateGradientScoresCmdTest {
         assertEquals(Arrays.asList("ds1", "ds2", "ds3", "ds4", "ds5"), cmd.getArgs().targetDatasets);
     }
 
+    @Test
+    public void masksPartitionsInFlightAreDerivedFromTaskConcurrency() {
+        CalculateGradientScoresCmd cmd = createCmd(false);
+        cmd.getArgs().commonArgs.taskConcurrency = 8;
+        cmd.getArgs().mipsMatchesReadSize = 1;
+        assertEquals(8, cmd.getArgs().getMasksPartitionsInFlight());
+        cmd.getArgs().mipsMatchesReadSize = 3;
+        assertEquals(3, cmd.getArgs().getMasksPartitionsInFlight());
+        cmd.getArgs().mipsMatchesReadSize = 100;
+        assertEquals(2, cmd.getArgs().getMasksPartitionsInFlight());
+        cmd.getArgs().masksPartitionsInFlight = 5;
+        assertEquals(5, cmd.getArgs().getMasksPartitionsInFlight());
+    }
+
+    @Test
+    public void targetGroupedAndMaskGroupedScoresAreIdentical() throws IOException {
+        List<EMNeuronEntity> masks = Arrays.asList(createMask("m1", 1), createMask("m2", 2));
+        List<LMNeuronEntity> targets = Arrays.asList(createTarget("t1", 3), createTarget("t2", 4), createTarget("t3", 5));
+        List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> maskGroupedMatches = createMatches(masks, targets);
+        List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> targetGroupedMatches = createMatches(masks, targets);
+
+        assertEquals(maskGroupedMatches.size(), calculateGradientScores(maskGroupedMatches, false).size());
+        assertEquals(targetGroupedMatches.size(), calculateGradientScores(targetGroupedMatches, true).size());
+        for (int i = 0; i < maskGroupedMatches.size(); i++) {
+            CDMatchEntity<EMNeuronEntity, LMNeuronEntity> maskGroupedMatch = maskGroupedMatches.get(i);
+            CDMatchEntity<EMNeuronEntity, LMNeuronEntity> targetGroupedMatch = targetGroupedMatches.get(i);
+            assertTrue(maskGroupedMatch.hasGradScore());
+            assertEquals(maskGroupedMatch.getGradientAreaGap(), targetGroupedMatch.getGradientAreaGap());
+            assertEquals(maskGroupedMatch.getHighExpressionArea(), targetGroupedMatch.getHighExpressionArea());
+        }
+    }
+
+    @Test
+    public void sharedTargetIsLoadedOnceAcrossMasksPartitions() throws IOException {
+        List<EMNeuronEntity> masks = Arrays.asList(createMask("m1", 1), createMask("m2", 2));
+        LoadCountingTarget sharedTarget = initTarget(new LoadCountingTarget(), "t1", 3);
+        List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matches = createMatches(masks, Collections.singletonList(sharedTarget));
+        CalculateGradientScoresCmd cmd = createCmd(true);
+        // every mask is read in its own partition
+        cmd.getArgs().mipsMatchesReadSize = 1;
+
+        assertEquals(2, cmd.calculateMasksGradientScores(Arrays.asList("m1", "m2"), new InMemoryMatchesReader<>(matches)));
+        assertEquals(1, sharedTarget.nLoads.get());
+        matches.forEach(m -> assertTrue(m.hasGradScore()));
+    }
+
+    @Test
+    public void incrementalScoringOnlyRescoresChangedMatches() throws IOException {
+        List<EMNeuronEntity> masks = Arrays.asList(createMask("m1", 1), createMask("m2", 2));
+        LMNeuronEntity t1 = createTarget("t1", 3);
+        LMNeuronEntity t2 = createTarget("t2", 4);
+        CDMatchEntity<EMNeuronEntity, LMNeuronEntity> m1t1 = createMatches(masks.subList(0, 1), Collections.singletonList(t1)).get(0);
+        CDMatchEntity<EMNeuronEntity, LMNeuronEntity> m1t2 = createMatches(masks.subList(0, 1), Collections.singletonList(t2)).get(0);
+        CDMatchEntity<EMNeuronEntity, LMNeuronEntity> m2t1 = createMatches(masks.subList(1, 2), Collections.singletonList(t1)).get(0);
+        m1t2.setEntityId(2);
+        m2t1.setEntityId(3);
+        InMemoryMatchesReader<LMNeuronEntity> matchesReader = new InMemoryMatchesReader<>(Arrays.asList(m1t1, m1t2, m2t1));
+        List<String> maskIds = Arrays.asList("m1", "m2");
+
+        // the first run scores all matches
+        assertEquals(3, createIncrementalCmd(20).calculateMasksGradientScores(maskIds, matchesReader));
+        long m1t2AreaGap = m1t2.getGradientAreaGap();
+        // nothing changed so nothing is scored again
+        assertEquals(0, createIncrementalCmd(20).calculateMasksGradientScores(maskIds, matchesReader));
+
+        // change the reference of the t2 gradient - only m1 is affected
+        t2.setComputeFileData(ComputeFileType.GradientImage, createImage("t2-grad-v2.png", 4, true));
+        m1t1.setGradientAreaGap(12345L);
+        m1t2.setGradientAreaGap(12345L);
+        m1t1.updateNormalizedScore(-1f);
+        m2t1.updateNormalizedScore(-1f);
+        // all best matches of m1 are normalized and written again but only m1-t2 is scored again
+        assertEquals(2, createIncrementalCmd(20).calculateMasksGradientScores(maskIds, matchesReader));
+        assertEquals(12345L, (long) m1t1.getGradientAreaGap());
+        assertEquals(m1t2AreaGap, (long) m1t2.getGradientAreaGap());
+        assertTrue(m1t1.getNormalizedScore() > 0);
+        assertEquals(-1f, m2t1.getNormalizedScore(), 0);
+
+        // a changed scoring parameter affects all matches
+        assertEquals(3, createIncrementalCmd(10).calculateMasksGradientScores(maskIds, matchesReader));
+        assertEquals(0, createIncrementalCmd(10).calculateMasksGradientScores(maskIds, matchesReader));
+    }
+
+    @Test
+    public void rewrittenInputFileIsScoredAgain() throws IOException {
+        List<EMNeuronEntity> masks = Collections.singletonList(createMask("m1", 1));
+        LMNeuronEntity t1 = createTarget("t1", 3);
+        List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matches = createMatches(masks, Collections.singletonList(t1));
+        InMemoryMatchesReader<LMNeuronEntity> matchesReader = new InMemoryMatchesReader<>(matches);
+        List<String> maskIds = Collections.singletonList("m1");
+
+        assertEquals(1, createIncrementalCmd(20).calculateMasksGradientScores(maskIds, matchesReader));
+        String fingerprint = matches.get(0).getGradientScoreFingerprint();
+        assertEquals(0, createIncrementalCmd(20).calculateMasksGradientScores(maskIds, matchesReader));
+
+        // rewrite the target gradient at the same location - the file reference does not change
+        FileData gradientRef = t1.getComputeFileData(ComputeFileType.GradientImage);
+        Path gradientPath = Paths.get(gradientRef.getFileName());
+        FileTime previousModifiedTime = Files.getLastModifiedTime(gradientPath);
+        assertEquals(gradientRef, createImage(gradientPath.getFileName().toString(), 7, true));
+        Files.setLastModifiedTime(gradientPath, FileTime.fromMillis(previousModifiedTime.toMillis() + 60000));
+
+        assertEquals(1, createIncrementalCmd(20).calculateMasksGradientScores(maskIds, matchesReader));
+        assertNotEquals(fingerprint, matches.get(0).getGradientScoreFingerprint());
+    }
+
+    @Test
+    public void failedBidirectionalMatchesAreScoredAgain() throws IOException {
+        EMNeuronEntity m1 = createMask("m1", 1);
+        EMNeuronEntity m2 = createMask("m2", 2);
+        LMNeuronEntity t1 = createTarget("t1", 3);
+        m1.setComputeFileData(ComputeFileType.Vol3DSegmentation, createVolume("m1.nrrd", 2));
+        // the volume of m2 does not exist
+        m2.setComputeFileData(ComputeFileType.Vol3DSegmentation, FileData.fromString(testDir.resolve("m2.nrrd").toString()));
+        t1.setComputeFileData(ComputeFileType.Vol3DSegmentation, createVolume("t1.nrrd", 4));
+        List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matches = createMatches(Arrays.asList(m1, m2), Collections.singletonList(t1));
+        InMemoryMatchesReader<LMNeuronEntity> matchesReader = new InMemoryMatchesReader<>(matches);
+        List<String> maskIds = Arrays.asList("m1", "m2");
+
+        CalculateGradientScoresCmd cmd = createIncrementalCmd(20);
+        cmd.getArgs().useBidirectionalMatching = true;
+        cmd.getArgs().bidirectionalMatchingXYRadius = 0;
+        cmd.getArgs().bidirectionalMatchingZTolerance = 0;
+        assertEquals(2, cmd.calculateMasksGradientScores(maskIds, matchesReader));
+        assertEquals(16L, (long) matches.get(0).getBidirectionalAreaGap());
+        assertNotNull(matches.get(0).getGradientScoreFingerprint());
+        assertNull(matches.get(1).getGradientScoreFingerprint());
+        // only the match whose bidirectional area gap failed is scored again
+        assertEquals(1, cmd.calculateMasksGradientScores(maskIds, matchesReader));
+    }
+
+    private CalculateGradientScoresCmd createIncrementalCmd(int negativeRadius) {
+        CalculateGradientScoresCmd cmd = createCmd(false);
+        cmd.getArgs().incremental = true;
+        cmd.getArgs().negativeRadius = negativeRadius;
+        return cmd;
+    }
+
+    private CalculateGradientScoresCmd createCmd(boolean groupByTarget) {
+        CommonArgs commonArgs = new CommonArgs();
+        commonArgs.taskConcurrency = 2;
+        commonArgs.resultsStorage = StorageType.FS;
+        commonArgs.outputDir = testDir.toString();
+        CalculateGradientScoresCmd cmd = new CalculateGradientScoresCmd("gradScore", commonArgs, () -> 0L);
+        cmd.getArgs().noNameLabel = true;
+        cmd.getArgs().noColorScaleLabel = true;
+        cmd.getArgs().numberOfBestLines = 10;
+        cmd.getArgs().numberOfBestSamplesPerLine = 10;
+        cmd.getArgs().numberOfBestMatchesPerSample = 10;
+        cmd.getArgs().groupByTarget = groupByTarget;
+        return cmd;
+    }
+
+    private <T extends AbstractNeuronEntity>
+    List<CDMatchEntity<EMNeuronEntity, T>> calculateGradientScores(List<CDMatchEntity<EMNeuronEntity, T>> matches, boolean groupByTarget) {
+        CalculateGradientScoresCmd cmd = createCmd(groupByTarget);
+        CommonArgs commonArgs = cmd.getArgs().commonArgs;
+        ColorDepthSearchAlgorithmProvider<ShapeMatchScore> shapeScoreAlgorithmProvider = ColorDepthSearchAlgorithmProviderFactory.createShapeMatchCDSAlgorithmProvider(
+                false,
+                null,
+                cmd.getArgs().getRegionGeneratorForTextLabels());
+        MaskAlgorithmsCache<EMNeuronEntity> maskAlgorithmsCache = new MaskAlgorithmsCache<>(
+                mask -> cmd.prepareMaskAlgorithm(mask, shapeScoreAlgorithmProvider),
+                "params",
+                0,
+                10);
+        ExecutorService executorService = CmdUtils.createCmdExecutor(commonArgs);
+        MIPsPrefetcher mipsPrefetcher = CmdUtils.createMIPsPrefetcher(commonArgs);
+        AdaptiveConcurrencyController concurrencyController = CmdUtils.createConcurrencyController(commonArgs, mipsPrefetcher);
+        try {
+            return cmd.calculateGradientScores(
+                    MatchEntitiesGrouping.groupMatchesByMaskID(matches),
+                    maskAlgorithmsCache,
+                    Schedulers.fromExecutorService(executorService),
+                    mipsPrefetcher,
+                    concurrencyController);
+        } finally {
+            concurrencyController.shutdown();
+            mipsPrefetcher.shutdown();
+            executorService.shutdown();
+        }
+    }
+
+    private <T extends AbstractNeuronEntity> List<CDMatchEntity<EMNeuronEntity, T>> createMatches(List<EMNeuronEntity> masks, List<T> targets) {
+        List<CDMatchEntity<EMNeuronEntity, T>> matches = new ArrayList<>();
+        for (EMNeuronEntity mask : masks) {
+            for (T target : targets) {
+                CDMatchEntity<EMNeuronEntity, T> match = new CDMatchEntity<>();
+                match.setEntityId(matches.size() + 1);
+                match.setMaskImage(mask);
+                match.setMatchedImage(target);
+                match.setMatchingPixels(100);
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    private EMNeuronEntity createMask(String name, long seed) throws IOException {
+        EMNeuronEntity mask = new EMNeuronEntity();
+        mask.setEntityId(seed);
+        mask.setMipId(name);
+        mask.setComputeFileData(ComputeFileType.InputColorDepthImage, createImage(name + ".png", seed, false));
+        return mask;
+    }
+
+    private LMNeuronEntity createTarget(String name, long seed) throws IOException {
+        return initTarget(new LMNeuronEntity(), name, seed);
+    }
+
+    private <T extends AbstractNeuronEntity> T initTarget(T target, String name, long seed) throws IOException {
+        target.setEntityId(seed);
+        target.setMipId(name);
+        target.setPublishedName(name);
+        target.setComputeFileData(ComputeFileType.InputColorDepthImage, createImage(name + ".png", seed, false));
+        target.setComputeFileData(ComputeFileType.GradientImage, createImage(name + "-grad.png", seed, true));
+        target.setComputeFileData(ComputeFileType.ZGapImage, createImage(name + "-zgap.png", seed, false));
+        return target;
+    }
+
+    /**
+     * Create an image with a few random blobs - a color depth image or a grayscale gradient image.
+     */
+    private FileData createImage(String name, long seed, boolean grayscale) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            for (int i = 0; i < 4; i++) {
+                g.setColor(grayscale
+                        ? new Color(random.nextInt(256) * 0x010101)
+                        : Color.getHSBColor(random.nextFloat(), 1f, 1f));
+                g.fillOval(random.nextInt(48), random.nextInt(32), 8 + random.nextInt(16), 8 + random.nextInt(16));
+            }
+        } finally {
+            g.dispose();
+        }
+        Path imagePath = testDir.resolve(name);
+        ImageIO.write(image, "png", imagePath.toFile());
+        return FileData.fromString(imagePath.toString());
+    }
+
+    /**
+     * Create a 16x8x4 NRRD volume with a 2x2x2 cube at the given x.
+     */
+    private FileData createVolume(String name, int x0) throws IOException {
+        int width = 16;
+        int height = 8;
+        int depth = 4;
+        byte[] voxels = new byte[width * height * depth];
+        for (int z = 1; z < 3; z++) {
+            for (int y = 1; y < 3; y++) {
+                for (int x = x0; x < x0 + 2; x++) {
+                    voxels[(z * height + y) * width + x] = (byte) 255;
+                }
+            }
+        }
+        Path volumePath = testDir.resolve(name);
+        try (OutputStream volumeStream = Files.newOutputStream(volumePath)) {
+            volumeStream.write(("NRRD0004\n" +
+                    "type: uint8\n" +
+                    "dimension: 3\n" +
+                    "sizes: " + width + " " + height + " " + depth + "\n" +
+                    "encoding: raw\n" +
+                    "\n").getBytes(StandardCharsets.US_ASCII));
+            volumeStream.write(voxels);
+        }
+        return FileData.fromString(volumePath.toString());
+    }
+
+    /**
+     * Target that counts how many times its color depth image is read.
+     */
+    private static class LoadCountingTarget extends LMNeuronEntity {
+        private final AtomicInteger nLoads = new AtomicInteger();
+
+        @Override
+        public FileData getComputeFileData(ComputeFileType t) {
+            if (t == ComputeFileType.InputColorDepthImage && Arrays.stream(Thread.currentThread().getStackTrace())
+                    .anyMatch(f -> f.getClassName().equals(NeuronMIPUtils.class.getName()) && f.getMethodName().equals("loadComputeFile"))) {
+                nLoads.incrementAndGet();
+            }
+            return super.getComputeFileData(t);
+        }
+    }
+
+    private static class InMemoryMatchesReader<T extends AbstractNeuronEntity> implements NeuronMatchesReader<CDMatchEntity<EMNeuronEntity, T>> {
+        private final List<CDMatchEntity<EMNeuronEntity, T>> matches;
+
+        InMemoryMatchesReader(List<CDMatchEntity<EMNeuronEntity, T>> matches) {
+            this.matches = matches;
+        }
+
+        @Override
+        public Collection<String> listMatchesLocations(Collection<DataSourceParam> matchesSource) {
+            return matches.stream().map(m -> m.getMaskImage().getMipId()).distinct().collect(Collectors.toList());
+        }
+
+        @Override
+        public List<CDMatchEntity<EMNeuronEntity, T>> readMatchesByMask(String alignmentSpace,
+                                                                        DataSourceParam maskDataSource,
+                                                                        DataSourceParam targetDataSource,
+                                                                        Collection<String> matchTags,
+                                                                        Collection<String> matchExcludedTags,
+                                                                        ScoresFilter matchScoresFilter,
+                                                                        List<SortCriteria> sortCriteriaList,
+                                                                        long from,
+                                                                        int nRecords,
+                                                                        int readPageSize) {
+            return matches.stream()
+                    .filter(m -> maskDataSource.getMipIDs().contains(m.getMaskImage().getMipId()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public List<CDMatchEntity<EMNeuronEntity, T>> readMatchesByTarget(String alignmentSpace,
+                                                                          DataSourceParam maskDataSource,
+                                                                          DataSourceParam targetDataSource,
+                                                                          Collection<String> matchTags,
+                                                                          Collection<String> matchExcludedTags,
+                                                                          ScoresFilter matchScoresFilter,
+                                                                          List<SortCriteria> sortCriteriaList,
+                                                                          long from,
+                                                                          int nRecords,
+                                                                          int readPageSize) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     private ListArg createListArg(String lname) {
         ListArg arg = new ListArg();
         arg.input = lname;
@@ -0,0 +1,99 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CmdUtilsTest {
+
+    @Test
+    public void ioExecutorLimitsTheConcurrentTasks() throws Exception {
+        CommonArgs commonArgs = new CommonArgs();
+        commonArgs.ioTaskConcurrency = 2;
+        // an unbounded pool stands in for the virtual thread per task executor
+        ExecutorService ioExecutor = CmdUtils.createIOExecutor(commonArgs, Executors.newCachedThreadPool());
+        try {
+            assertTrue(ioExecutor instanceof ConcurrencyLimitedExecutorService);
+            assertEquals(2, runConcurrentTasks(ioExecutor, 8));
+        } finally {
+            ioExecutor.shutdown();
+        }
+        assertTrue(ioExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void ioExecutorFallsBackToAFixedPoolWithoutVirtualThreads() throws Exception {
+        CommonArgs commonArgs = new CommonArgs();
+        commonArgs.taskConcurrency = 3;
+        // the I/O task concurrency defaults to the task concurrency
+        ExecutorService ioExecutor = CmdUtils.createIOExecutor(commonArgs, null);
+        try {
+            assertTrue(ioExecutor instanceof ThreadPoolExecutor);
+            assertEquals(3, ((ThreadPoolExecutor) ioExecutor).getMaximumPoolSize());
+            assertEquals(3, runConcurrentTasks(ioExecutor, 8));
+            assertTrue(ioExecutor.submit(() -> Thread.currentThread().getName()).get().startsWith("CMDIO-"));
+        } finally {
+            ioExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrencyLimitedExecutorReleasesThePermitsOfFailedTasks() throws Exception {
+        ExecutorService ioExecutor = new ConcurrencyLimitedExecutorService(Executors.newCachedThreadPool(), 1);
+        try {
+            Future<?> failedTask = ioExecutor.submit(() -> {
+                throw new IllegalStateException("task failed");
+            });
+            try {
+                failedTask.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException expected) {
+                // the task failure is reported through its future
+            }
+            assertEquals("done", ioExecutor.submit(() -> "done").get(10, TimeUnit.SECONDS));
+        } finally {
+            ioExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Run the tasks so that each one waits until all tasks were submitted and a while longer.
+     *
+     * @return the max number of tasks that ran at the same time
+     */
+    private int runConcurrentTasks(ExecutorService executor, int nTasks) throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch allSubmitted = new CountDownLatch(1);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < nTasks; i++) {
+            tasks.add(executor.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    allSubmitted.await();
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }));
+        }
+        allSubmitted.countDown();
+        for (Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        return maxRunning.get();
+    }
+}
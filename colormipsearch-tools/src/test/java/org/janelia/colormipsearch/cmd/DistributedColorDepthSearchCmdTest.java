@@ -0,0 +1,47 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DistributedColorDepthSearchCmdTest {
+
+    @Test
+    public void shardsCannotWriteResultsToTheFileSystem() {
+        // two masks in shards of one mask - with FS storage both shards would rewrite the same per target files
+        List<String> errors = validateArgs("--results-storage", "FS", "--output-dir", "cdsresults");
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("database results storage"));
+    }
+
+    @Test
+    public void shardsCanWriteResultsToTheDatabase() {
+        assertTrue(validateArgs("--results-storage", "DB").isEmpty());
+    }
+
+    private List<String> validateArgs(String... storageArgs) {
+        CommonArgs commonArgs = new CommonArgs();
+        DistributedColorDepthSearchCmd cmd = new DistributedColorDepthSearchCmd(
+                "distributedColorDepthSearch", commonArgs, () -> 0L, new String[0]);
+        JCommander cmdline = Main.createCmdline(new Object(), new AbstractCmd[] {cmd});
+        String[] cmdArgs = new String[] {
+                "distributedColorDepthSearch",
+                "--alignment-space", "JRC2018_Unisex_20x_HR",
+                "--masks", "masksLibrary:0:2",
+                "--targets", "targetsLibrary",
+                "--processing-tag", "cds",
+                "--shards-queue-dir", "shards",
+                "--masks-per-shard", "1"
+        };
+        String[] argv = new String[cmdArgs.length + storageArgs.length];
+        System.arraycopy(cmdArgs, 0, argv, 0, cmdArgs.length);
+        System.arraycopy(storageArgs, 0, argv, cmdArgs.length, storageArgs.length);
+        cmdline.parse(argv);
+        return cmd.getArgs().validate();
+    }
+}
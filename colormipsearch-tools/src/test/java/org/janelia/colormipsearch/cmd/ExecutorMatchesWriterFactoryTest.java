@@ -0,0 +1,122 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.janelia.colormipsearch.cmd.cdsprocess.NeuronMatchesWriterFactory;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.EMNeuronEntity;
+import org.janelia.colormipsearch.model.LMNeuronEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExecutorMatchesWriterFactoryTest {
+
+    private Path testDir;
+
+    @Before
+    public void setUp() throws IOException {
+        testDir = Files.createTempDirectory("executorwriterstest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> testFiles = Files.walk(testDir)) {
+            testFiles.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void retriedPartitionReplacesTheMatchesOfTheFailedAttempt() throws Exception {
+        NeuronMatchesWriterFactory<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matchesWriterFactory = createExecutorWriterFactory();
+
+        // the failed attempt wrote the matches before it failed
+        matchesWriterFactory.createWriter("q0-t0").write(Arrays.asList(
+                createMatch("m1", "t1", 10),
+                createMatch("m1", "t2", 20)));
+        // the retried task writes the same partition again
+        matchesWriterFactory.createWriter("q0-t0").write(Arrays.asList(
+                createMatch("m1", "t1", 10),
+                createMatch("m1", "t3", 30)));
+
+        // only the matches of the retried task are written, in descending order of their matching pixels
+        assertEquals(Arrays.asList("t3", "t1"), readMatchedIds(testDir.resolve("masks/q0-t0/m1.json")));
+        assertEquals(Arrays.asList("m1"), readMatchedIds(testDir.resolve("targets/q0-t0/t1.json")));
+        assertEquals(Arrays.asList("m1"), readMatchedIds(testDir.resolve("targets/q0-t0/t3.json")));
+        // the target that was only matched by the failed attempt has no results
+        assertFalse(Files.exists(testDir.resolve("targets/q0-t0/t2.json")));
+    }
+
+    @Test
+    public void partitionsWriteTheSameMaskToDifferentFiles() throws Exception {
+        NeuronMatchesWriterFactory<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matchesWriterFactory = createExecutorWriterFactory();
+
+        matchesWriterFactory.createWriter("q0-t0").write(Arrays.asList(createMatch("m1", "t1", 10)));
+        matchesWriterFactory.createWriter("q0-t1").write(Arrays.asList(createMatch("m1", "t2", 20)));
+
+        assertEquals(Arrays.asList("t1"), readMatchedIds(testDir.resolve("masks/q0-t0/m1.json")));
+        assertEquals(Arrays.asList("t2"), readMatchedIds(testDir.resolve("masks/q0-t1/m1.json")));
+    }
+
+    /**
+     * Create the factory the same way the executors get it - as a serialized copy of the driver's factory.
+     */
+    @SuppressWarnings("unchecked")
+    private NeuronMatchesWriterFactory<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> createExecutorWriterFactory() throws Exception {
+        NeuronMatchesWriterFactory<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> driverWriterFactory = new ExecutorMatchesWriterFactory<>(
+                null,
+                false,
+                StorageType.FS,
+                false,
+                true,
+                testDir.resolve("masks").toString(),
+                testDir.resolve("targets").toString());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(driverWriterFactory);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (NeuronMatchesWriterFactory<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>>) in.readObject();
+        }
+    }
+
+    private CDMatchEntity<EMNeuronEntity, LMNeuronEntity> createMatch(String maskId, String targetId, int matchingPixels) {
+        EMNeuronEntity mask = new EMNeuronEntity();
+        mask.setMipId(maskId);
+        LMNeuronEntity target = new LMNeuronEntity();
+        target.setMipId(targetId);
+        CDMatchEntity<EMNeuronEntity, LMNeuronEntity> match = new CDMatchEntity<>();
+        match.setMaskImage(mask);
+        match.setMatchedImage(target);
+        match.setMatchingPixels(matchingPixels);
+        return match;
+    }
+
+    /**
+     * @return the MIP IDs of the matched images in the order in which they were written
+     */
+    private List<String> readMatchedIds(Path resultsFile) throws IOException {
+        JsonNode results = new ObjectMapper().readTree(resultsFile.toFile()).get("results");
+        return StreamSupport.stream(results.spliterator(), false)
+                .map(r -> r.get("image").get("mipId").asText())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,106 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.EMNeuronEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MIPsPrefetcherTest {
+
+    private static final Set<ComputeFileType> FILE_TYPES = Collections.singleton(ComputeFileType.InputColorDepthImage);
+
+    private MIPsPrefetcher mipsPrefetcher;
+
+    @Before
+    public void setUp() {
+        CachedMIPsUtils.initializeCache(100);
+        // every prefetched MIP is weighed 100 bytes so only 3 fit in the budget
+        mipsPrefetcher = new MIPsPrefetcher(1, 2, 250, mip -> 100);
+    }
+
+    @After
+    public void tearDown() {
+        mipsPrefetcher.shutdown();
+        CachedMIPsUtils.initializeCache(0);
+    }
+
+    @Test
+    public void prefetchingBacksOffAndResumes() throws InterruptedException {
+        List<EMNeuronEntity> mips = createMIPs(7);
+
+        mipsPrefetcher.prefetchAhead(mips, -1, FILE_TYPES);
+        waitForPendingLoads();
+        assertEquals(200, mipsPrefetcher.getPrefetchedBytes());
+
+        // MIP 3 would exceed the budget while MIP 2 is still loading
+        mipsPrefetcher.prefetchAhead(mips.subList(2, mips.size()), -1, FILE_TYPES);
+        waitForPendingLoads();
+        assertEquals(300, mipsPrefetcher.getPrefetchedBytes());
+        assertTrue(isCached(mips.get(2)));
+        assertFalse(isCached(mips.get(3)));
+
+        // the MIPs used by the worker no longer count against the budget
+        mipsPrefetcher.prefetchAhead(mips, 0, FILE_TYPES);
+        mipsPrefetcher.prefetchAhead(mips, 2, FILE_TYPES);
+        waitForPendingLoads();
+        assertTrue(isCached(mips.get(3)));
+        assertTrue(isCached(mips.get(4)));
+        assertEquals(300, mipsPrefetcher.getPrefetchedBytes());
+
+        // the MIPs evicted before they were used no longer count against the budget either
+        CachedMIPsUtils.cleanCache();
+        mipsPrefetcher.prefetchAhead(mips.subList(5, mips.size()), -1, FILE_TYPES);
+        waitForPendingLoads();
+        assertTrue(isCached(mips.get(5)));
+        assertTrue(isCached(mips.get(6)));
+        assertEquals(200, mipsPrefetcher.getPrefetchedBytes());
+    }
+
+    @Test
+    public void prefetchingIsNotLimitedWithoutABudget() throws InterruptedException {
+        MIPsPrefetcher unboundedPrefetcher = new MIPsPrefetcher(1, 5, 0, mip -> 100);
+        try {
+            List<EMNeuronEntity> mips = createMIPs(5);
+            unboundedPrefetcher.prefetchAhead(mips, -1, FILE_TYPES);
+            long startTime = System.currentTimeMillis();
+            while (unboundedPrefetcher.getPendingLoads() > 0 && System.currentTimeMillis() - startTime < 10000) {
+                Thread.sleep(10);
+            }
+            assertEquals(500, unboundedPrefetcher.getPrefetchedBytes());
+        } finally {
+            unboundedPrefetcher.shutdown();
+        }
+    }
+
+    private List<EMNeuronEntity> createMIPs(int n) {
+        List<EMNeuronEntity> mips = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            EMNeuronEntity mip = new EMNeuronEntity();
+            mip.setMipId("mip" + i);
+            mips.add(mip);
+        }
+        return mips;
+    }
+
+    private boolean isCached(EMNeuronEntity mip) {
+        return CachedMIPsUtils.isMIPCached(mip, ComputeFileType.InputColorDepthImage);
+    }
+
+    private void waitForPendingLoads() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (mipsPrefetcher.getPendingLoads() > 0 && System.currentTimeMillis() - startTime < 10000) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mipsPrefetcher.getPendingLoads());
+    }
+}
@@ -0,0 +1,38 @@
+package org.janelia.colormipsearch.cmd;
+
+import com.beust.jcommander.JCommander;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MainTest {
+
+    @Test
+    public void allCommandsCanBeRegistered() {
+        AbstractCmd[] cmds = Main.createCmds(new CommonArgs(), () -> 0L, new String[0]);
+        // fails if an option is declared more than once by the arguments of a command
+        JCommander cmdline = Main.createCmdline(new Object(), cmds);
+        assertEquals(cmds.length, cmdline.getCommands().size());
+        for (AbstractCmd cmd : cmds) {
+            StringBuilder sb = new StringBuilder();
+            cmdline.getUsageFormatter().usage(cmd.getCommandName(), sb);
+            assertTrue(cmd.getCommandName(), sb.length() > 0);
+        }
+    }
+
+    @Test
+    public void commandArgsCanBeParsed() {
+        AbstractCmd[] cmds = Main.createCmds(new CommonArgs(), () -> 0L, new String[0]);
+        JCommander cmdline = Main.createCmdline(new Object(), cmds);
+        cmdline.parse("colorDepthSearch",
+                "--alignment-space", "JRC2018_Unisex_20x_HR",
+                "--masks", "masksLibrary",
+                "--targets", "targetsLibrary",
+                "--processing-tag", "cds",
+                "--targets-index", "10",
+                "--targets-spatial-index", "targets.idx");
+        assertEquals("colorDepthSearch", cmdline.getParsedCommand());
+    }
+}
@@ -0,0 +1,127 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.cds.ShapeMatchScore;
+import org.janelia.colormipsearch.model.EMNeuronEntity;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MaskAlgorithmsCacheTest {
+
+    @Test
+    public void concurrentRequestsPrepareTheMaskOnce() throws Exception {
+        AtomicInteger nLoads = new AtomicInteger();
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch allRequested = new CountDownLatch(1);
+        MaskAlgorithmsCache<EMNeuronEntity> maskAlgorithmsCache = new MaskAlgorithmsCache<>(
+                mask -> {
+                    nLoads.incrementAndGet();
+                    loadStarted.countDown();
+                    try {
+                        allRequested.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new MaskAlgorithmsCache.PreparedMaskAlgorithm(createAlgorithm(), 1024);
+                },
+                "params",
+                1024 * 1024,
+                0);
+        EMNeuronEntity mask = createMask("m1");
+        int nRequests = 8;
+        ExecutorService executorService = Executors.newFixedThreadPool(nRequests);
+        try {
+            List<Future<?>> requests = new ArrayList<>();
+            for (int i = 0; i < nRequests; i++) {
+                requests.add(executorService.submit(() -> maskAlgorithmsCache.get(mask)));
+            }
+            assertTrue(loadStarted.await(10, TimeUnit.SECONDS));
+            // give the other requests the chance to wait for the load in progress
+            Thread.sleep(100);
+            allRequested.countDown();
+            for (Future<?> request : requests) {
+                request.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(1, nLoads.get());
+        assertEquals(1, maskAlgorithmsCache.getStats().loadCount());
+        // the requests that waited for the load in progress are counted as misses
+        assertEquals(nRequests, maskAlgorithmsCache.getStats().requestCount());
+    }
+
+    @Test
+    public void masksAreEvictedBasedOnTheEstimatedMemory() {
+        AtomicInteger nLoads = new AtomicInteger();
+        MaskAlgorithmsCache<EMNeuronEntity> maskAlgorithmsCache = new MaskAlgorithmsCache<>(
+                mask -> {
+                    nLoads.incrementAndGet();
+                    return new MaskAlgorithmsCache.PreparedMaskAlgorithm(createAlgorithm(), 400 * 1024);
+                },
+                "params",
+                1024 * 1024,
+                100);
+        for (int i = 0; i < 5; i++) {
+            maskAlgorithmsCache.get(createMask("m" + i));
+        }
+        assertEquals(5, nLoads.get());
+        // only 2 prepared masks fit in 1MB
+        assertEquals(3, maskAlgorithmsCache.getStats().evictionCount());
+        assertEquals(2 * 400 * 1024, maskAlgorithmsCache.getEstimatedMemoryUsage());
+        maskAlgorithmsCache.get(createMask("m4"));
+        assertEquals(5, nLoads.get());
+    }
+
+    @Test
+    public void masksThatCouldNotBePreparedAreNotCached() {
+        AtomicInteger nLoads = new AtomicInteger();
+        MaskAlgorithmsCache<EMNeuronEntity> maskAlgorithmsCache = new MaskAlgorithmsCache<>(
+                mask -> {
+                    // the first preparation fails, e.g. the mask image could not be read
+                    return nLoads.incrementAndGet() == 1
+                            ? new MaskAlgorithmsCache.PreparedMaskAlgorithm(null, 0)
+                            : new MaskAlgorithmsCache.PreparedMaskAlgorithm(createAlgorithm(), 1024);
+                },
+                "params",
+                1024 * 1024,
+                100);
+        EMNeuronEntity mask = createMask("m1");
+        assertNull(maskAlgorithmsCache.get(mask));
+        assertEquals(0, maskAlgorithmsCache.getEstimatedMemoryUsage());
+        // the failed preparation is retried
+        assertNotNull(maskAlgorithmsCache.get(mask));
+        assertNotNull(maskAlgorithmsCache.get(mask));
+        assertEquals(2, nLoads.get());
+        assertEquals(1, maskAlgorithmsCache.getStats().loadExceptionCount());
+        assertEquals(1024, maskAlgorithmsCache.getEstimatedMemoryUsage());
+    }
+
+    @SuppressWarnings("unchecked")
+    private ColorDepthSearchAlgorithm<ShapeMatchScore> createAlgorithm() {
+        return (ColorDepthSearchAlgorithm<ShapeMatchScore>) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {ColorDepthSearchAlgorithm.class},
+                (proxy, method, args) -> null);
+    }
+
+    private EMNeuronEntity createMask(String mipId) {
+        EMNeuronEntity mask = new EMNeuronEntity();
+        mask.setMipId(mipId);
+        return mask;
+    }
+}
@@ -0,0 +1,164 @@
+package org.janelia.colormipsearch.cmd;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.beust.jcommander.JCommander;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.janelia.colormipsearch.dataio.DataSourceParam;
+import org.janelia.colormipsearch.dataio.NeuronMatchesReader;
+import org.janelia.colormipsearch.dataio.fs.JSONNeuronMatchesReader;
+import org.janelia.colormipsearch.dataio.fs.JSONNeuronMatchesWriter;
+import org.janelia.colormipsearch.model.AbstractNeuronEntity;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.EMNeuronEntity;
+import org.janelia.colormipsearch.model.LMNeuronEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NormalizeGradientScoresCmdTest {
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private Path testDir;
+
+    @Before
+    public void setUp() throws IOException {
+        testDir = Files.createTempDirectory("normalizescorestest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> testFiles = Files.walk(testDir)) {
+            testFiles.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void parsePipelinedArgs() {
+        NormalizeGradientScoresCmd cmd = new NormalizeGradientScoresCmd("normalizeGradientScores", new CommonArgs());
+        JCommander.newBuilder()
+                .addCommand(cmd.getCommandName(), cmd.getArgs())
+                .build()
+                .parse("normalizeGradientScores",
+                        "-as", "brain",
+                        "--masks-libraries", "flyem_1",
+                        "--processing-tag", "normalize-123",
+                        "--pipelined",
+                        "--update-batch-size", "100",
+                        "--concurrent-update-batches", "2");
+        assertTrue(cmd.getArgs().pipelined);
+        assertEquals(100, cmd.getArgs().updateBatchSize);
+        assertEquals(2, cmd.getArgs().concurrentUpdateBatches);
+    }
+
+    @Test
+    public void pipelinedAndCollectedNormalizationWriteTheSameScores() throws IOException {
+        Path inputDir = testDir.resolve("input");
+        writeInputMatches(inputDir, createMatches(
+                Arrays.asList("m1", "m2", "m3", "m4", "m5"),
+                Arrays.asList("t1", "t2", "t3", "t4")));
+
+        Path collectedOutputDir = testDir.resolve("collected");
+        runNormalizeGradientScores(inputDir, collectedOutputDir, false);
+        Path pipelinedOutputDir = testDir.resolve("pipelined");
+        runNormalizeGradientScores(inputDir, pipelinedOutputDir, true);
+
+        Map<String, Float> collectedScores = readNormalizedScores(collectedOutputDir);
+        assertEquals(20, collectedScores.size());
+        assertTrue(collectedScores.values().stream().allMatch(score -> score > 0));
+        assertEquals(collectedScores, readNormalizedScores(pipelinedOutputDir));
+    }
+
+    private void runNormalizeGradientScores(Path inputDir, Path outputDir, boolean pipelined) {
+        CommonArgs commonArgs = new CommonArgs();
+        commonArgs.resultsStorage = StorageType.FS;
+        commonArgs.outputDir = outputDir.toString();
+        commonArgs.taskConcurrency = 2;
+        NormalizeGradientScoresCmd cmd = new NormalizeGradientScoresCmd("normalizeGradientScores", commonArgs);
+        JCommander.newBuilder()
+                .addCommand(cmd.getCommandName(), cmd.getArgs())
+                .build()
+                .parse("normalizeGradientScores",
+                        "-as", "brain",
+                        "--masks-libraries", inputDir.toString(),
+                        "--processing-tag", "normalize-123");
+        cmd.getArgs().processingPartitionSize = 2;
+        cmd.getArgs().pipelined = pipelined;
+        // small batches so that the pipelined masks are written by several concurrent batches
+        cmd.getArgs().updateBatchSize = 5;
+        cmd.getArgs().concurrentUpdateBatches = 2;
+        cmd.execute();
+    }
+
+    private List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> createMatches(List<String> maskIds, List<String> targetIds) {
+        List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matches = new ArrayList<>();
+        for (int mi = 0; mi < maskIds.size(); mi++) {
+            EMNeuronEntity mask = new EMNeuronEntity();
+            mask.setMipId(maskIds.get(mi));
+            for (int ti = 0; ti < targetIds.size(); ti++) {
+                LMNeuronEntity target = new LMNeuronEntity();
+                target.setMipId(targetIds.get(ti));
+                CDMatchEntity<EMNeuronEntity, LMNeuronEntity> match = new CDMatchEntity<>();
+                match.setMaskImage(mask);
+                match.setMatchedImage(target);
+                match.setMatchingPixels(100 + 10 * mi + 25 * ti);
+                match.setGradientAreaGap(1000L + 100L * ((mi + 2 * ti) % 5));
+                match.setHighExpressionArea(50L * (ti + 1));
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    private void writeInputMatches(Path inputDir, List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matches) {
+        new JSONNeuronMatchesWriter<EMNeuronEntity, LMNeuronEntity, CDMatchEntity<EMNeuronEntity, LMNeuronEntity>>(
+                mapper.writer(),
+                AbstractNeuronEntity::getMipId,
+                Comparator.comparingInt(m -> -((CDMatchEntity<?, ?>) m).getMatchingPixels()),
+                inputDir,
+                null
+        ).write(matches);
+    }
+
+    /**
+     * @return normalized scores of all written matches indexed by mask and target MIP IDs
+     */
+    private Map<String, Float> readNormalizedScores(Path outputDir) {
+        NeuronMatchesReader<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> matchesReader = new JSONNeuronMatchesReader<>(mapper);
+        List<String> resultFiles = new ArrayList<>(matchesReader.listMatchesLocations(
+                Collections.singletonList(new DataSourceParam().addLibrary(outputDir.toString()))));
+        return matchesReader.readMatchesByMask(
+                        "brain",
+                        new DataSourceParam().addMipIDs(resultFiles),
+                        new DataSourceParam(),
+                        Collections.emptyList(),
+                        null,
+                        null,
+                        Collections.emptyList(),
+                        0,
+                        -1,
+                        0).stream()
+                .collect(Collectors.toMap(
+                        m -> m.getMaskImage().getMipId() + "-" + m.getMatchedImage().getMipId(),
+                        CDMatchEntity::getNormalizedScore,
+                        (s1, s2) -> s1,
+                        TreeMap::new));
+    }
+}
@@ -0,0 +1,150 @@
+package org.janelia.colormipsearch.cmd.cdsprocess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.EMNeuronEntity;
+import org.janelia.colormipsearch.model.FileData;
+import org.janelia.colormipsearch.model.NeuronMIPStats;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ColorMIPProcessUtilsTest {
+
+    @Test
+    public void partitionByFileContainerCreatesTheRequestedPartitions() {
+        List<EMNeuronEntity> mips = new ArrayList<>();
+        mips.addAll(createZipEntryMIPs("/data/c.zip", 10, 0));
+        mips.addAll(createFileMIPs("/data/a", 10, 0));
+        mips.addAll(createZipEntryMIPs("/data/b.zip", 10, 0));
+        Collections.shuffle(mips);
+
+        List<List<EMNeuronEntity>> partitions = ColorMIPProcessUtils.partitionByFileContainer(mips, 4, mip -> 1L);
+        assertEquals(4, partitions.size());
+        assertEquals(mips.size(), partitions.stream().mapToInt(List::size).sum());
+        assertEquals(new HashSet<>(mips), partitions.stream().flatMap(List::stream).collect(Collectors.toSet()));
+        partitions.forEach(p -> assertTrue(p.size() >= 6 && p.size() <= 8));
+
+        // more partitions than MIPs only creates non empty partitions
+        List<List<EMNeuronEntity>> smallPartitions = ColorMIPProcessUtils.partitionByFileContainer(mips.subList(0, 3), 10, mip -> 1L);
+        assertEquals(3, smallPartitions.size());
+        smallPartitions.forEach(p -> assertFalse(p.isEmpty()));
+    }
+
+    @Test
+    public void partitionByFileContainerKeepsContainersContiguous() {
+        List<EMNeuronEntity> mips = new ArrayList<>();
+        mips.addAll(createZipEntryMIPs("/data/b.zip", 7, 0));
+        mips.addAll(createFileMIPs("/data/a", 5, 0));
+        mips.addAll(createZipEntryMIPs("/data/c.zip", 9, 0));
+        Collections.shuffle(mips);
+
+        List<List<EMNeuronEntity>> partitions = ColorMIPProcessUtils.partitionByFileContainer(mips, 3, mip -> 1L);
+        List<String> locations = partitions.stream()
+                .flatMap(List::stream)
+                .map(mip -> getContainer(mip) + ":" + mip.getComputeFileData(ComputeFileType.InputColorDepthImage).getNameCompOnly())
+                .collect(Collectors.toList());
+        // the containers are laid out one after the other and each container is read in the order of its entries
+        List<String> expectedLocations = new ArrayList<>(locations);
+        Collections.sort(expectedLocations);
+        assertEquals(expectedLocations, locations);
+        // a container is split at most between consecutive partitions
+        Set<String> seenContainers = new HashSet<>();
+        String lastContainer = null;
+        for (List<EMNeuronEntity> partition : partitions) {
+            for (EMNeuronEntity mip : partition) {
+                String container = getContainer(mip);
+                if (!container.equals(lastContainer)) {
+                    assertTrue(container + " is not contiguous", seenContainers.add(container));
+                    lastContainer = container;
+                }
+            }
+        }
+        assertEquals(3, seenContainers.size());
+    }
+
+    @Test
+    public void partitionTargetsByLocationBalancesTheCost() {
+        List<EMNeuronEntity> mips = new ArrayList<>();
+        mips.addAll(createZipEntryMIPs("/data/a.zip", 10, 10000));
+        mips.addAll(createZipEntryMIPs("/data/b.zip", 30, 0));
+        AbstractColorMIPSearchProcessor<EMNeuronEntity, EMNeuronEntity> processor = createProcessor();
+
+        // the targets with more signal pixels are more expensive so the first partition gets fewer targets
+        List<List<EMNeuronEntity>> partitions = processor.partitionTargetsByLocation(mips, 2);
+        assertEquals(2, partitions.size());
+        assertEquals(9, partitions.get(0).size());
+        assertEquals(31, partitions.get(1).size());
+
+        // without stats all targets have the same cost
+        mips.forEach(mip -> mip.setMipStats(null));
+        List<List<EMNeuronEntity>> unitCostPartitions = processor.partitionTargetsByLocation(mips, 2);
+        assertEquals(2, unitCostPartitions.size());
+        assertEquals(20, unitCostPartitions.get(0).size());
+        assertEquals(20, unitCostPartitions.get(1).size());
+    }
+
+    @Test
+    public void partitionEmptyInput() {
+        assertTrue(ColorMIPProcessUtils.partitionByFileContainer(Collections.<EMNeuronEntity>emptyList(), 4, mip -> 1L).isEmpty());
+        assertTrue(createProcessor().partitionTargetsByLocation(Collections.emptyList(), 4).isEmpty());
+    }
+
+    private List<EMNeuronEntity> createZipEntryMIPs(String archive, int n, long pixelCount) {
+        List<EMNeuronEntity> mips = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            mips.add(createMIP(
+                    FileData.fromComponents(FileData.FileDataType.zipEntry, archive, String.format("mip-%03d.png", i)),
+                    pixelCount));
+        }
+        return mips;
+    }
+
+    private List<EMNeuronEntity> createFileMIPs(String dir, int n, long pixelCount) {
+        List<EMNeuronEntity> mips = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            mips.add(createMIP(FileData.fromString(String.format("%s/mip-%03d.png", dir, i)), pixelCount));
+        }
+        return mips;
+    }
+
+    private EMNeuronEntity createMIP(FileData fd, long pixelCount) {
+        EMNeuronEntity mip = new EMNeuronEntity();
+        mip.setMipId(fd.getFileName() + ":" + fd.getName());
+        mip.setComputeFileData(ComputeFileType.InputColorDepthImage, fd);
+        NeuronMIPStats mipStats = new NeuronMIPStats();
+        mipStats.setPixelCount(pixelCount);
+        mip.setMipStats(mipStats);
+        return mip;
+    }
+
+    private String getContainer(EMNeuronEntity mip) {
+        FileData fd = mip.getComputeFileData(ComputeFileType.InputColorDepthImage);
+        return fd.getDataType() == FileData.FileDataType.zipEntry
+                ? fd.getFileName()
+                : fd.getFileName().substring(0, fd.getFileName().lastIndexOf('/'));
+    }
+
+    private AbstractColorMIPSearchProcessor<EMNeuronEntity, EMNeuronEntity> createProcessor() {
+        return new AbstractColorMIPSearchProcessor<EMNeuronEntity, EMNeuronEntity>(1, null, 1, Collections.emptySet()) {
+            @Override
+            public List<CDMatchEntity<EMNeuronEntity, EMNeuronEntity>> findAllColorDepthMatches(List<EMNeuronEntity> queryMIPs,
+                                                                                               List<EMNeuronEntity> targetMIPs) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void terminate() {
+            }
+        };
+    }
+}
@@ -0,0 +1,184 @@
+package org.janelia.colormipsearch.cmd.cdsprocess;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithm;
+import org.janelia.colormipsearch.cds.ColorDepthSearchAlgorithmProviderFactory;
+import org.janelia.colormipsearch.cds.ColorMIPSearch;
+import org.janelia.colormipsearch.cds.PixelMatchScore;
+import org.janelia.colormipsearch.mips.NeuronMIPUtils;
+import org.janelia.colormipsearch.model.CDMatchEntity;
+import org.janelia.colormipsearch.model.ComputeFileType;
+import org.janelia.colormipsearch.model.EMNeuronEntity;
+import org.janelia.colormipsearch.model.FileData;
+import org.janelia.colormipsearch.model.LMNeuronEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SparkColorMIPSearchProcessorTest {
+
+    private Path testDir;
+    private SparkColorMIPSearchProcessor<EMNeuronEntity, LMNeuronEntity> sparkProcessor;
+
+    @Before
+    public void setUp() throws IOException {
+        testDir = Files.createTempDirectory("sparkcdstest");
+        // the spark context is not needed for searching a partition the way the executors do it
+        sparkProcessor = new SparkColorMIPSearchProcessor<>(
+                1L,
+                (JavaSparkContext) null,
+                createColorMIPSearch(),
+                2,
+                2,
+                2,
+                Collections.singleton("cds"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> testFiles = Files.walk(testDir)) {
+            testFiles.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void broadcastQueryAlgorithmsFindTheSameMatchesAsTheDirectSearch() throws Exception {
+        List<EMNeuronEntity> masks = Arrays.asList(
+                createMask("m1", createImage("m1.png", 1)),
+                createMask("m2", createImage("m2.png", 2)),
+                createMask("m3", createImage("m3.png", 3)),
+                // an empty mask has no query algorithm so it is not broadcast
+                createMask("empty", createImage("empty.png", -1)));
+        List<LMNeuronEntity> targets = Arrays.asList(
+                createTarget("t1", masks.get(0).getComputeFileData(ComputeFileType.InputColorDepthImage)),
+                createTarget("t2", masks.get(1).getComputeFileData(ComputeFileType.InputColorDepthImage)),
+                createTarget("t3", createImage("t3.png", 4)));
+
+        List<Pair<EMNeuronEntity, ColorDepthSearchAlgorithm<PixelMatchScore>>> queryAlgorithms = sparkProcessor.createQueryAlgorithms(masks);
+        assertEquals(Arrays.asList("m1", "m2", "m3"),
+                queryAlgorithms.stream().map(qa -> qa.getLeft().getMipId()).collect(Collectors.toList()));
+
+        // the executors get a serialized copy of the processor with the task closure and of the broadcast query algorithms
+        SparkColorMIPSearchProcessor<EMNeuronEntity, LMNeuronEntity> executorProcessor = serializeAndDeserialize(sparkProcessor);
+        List<Pair<EMNeuronEntity, ColorDepthSearchAlgorithm<PixelMatchScore>>> executorQueryAlgorithms = queryAlgorithms.stream()
+                .map(qa -> Pair.of(qa.getLeft(), serializeAndDeserialize(qa.getRight())))
+                .collect(Collectors.toList());
+        List<CDMatchEntity<EMNeuronEntity, LMNeuronEntity>> executorMatches = executorProcessor.findPartitionMatches(
+                executorQueryAlgorithms, targets.iterator());
+
+        // compare every mask with every target without creating the query algorithms upfront
+        ColorMIPSearch colorMIPSearch = createColorMIPSearch();
+        Map<String, Integer> expectedMatches = new TreeMap<>();
+        for (EMNeuronEntity mask : masks) {
+            ColorDepthSearchAlgorithm<PixelMatchScore> queryAlgorithm = colorMIPSearch.createQueryColorDepthSearchWithDefaultThreshold(
+                    NeuronMIPUtils.loadImageFromFileData(mask.getComputeFileData(ComputeFileType.InputColorDepthImage)));
+            if (queryAlgorithm.getQuerySize() == 0) {
+                continue;
+            }
+            for (LMNeuronEntity target : targets) {
+                PixelMatchScore pixelMatchScore = queryAlgorithm.calculateMatchingScore(
+                        NeuronMIPUtils.loadImageFromFileData(target.getComputeFileData(ComputeFileType.InputColorDepthImage)),
+                        Collections.emptyMap());
+                if (colorMIPSearch.isMatch(pixelMatchScore)) {
+                    expectedMatches.put(mask.getMipId() + "-" + target.getMipId(), pixelMatchScore.getScore());
+                }
+            }
+        }
+        assertFalse(expectedMatches.isEmpty());
+        assertEquals(expectedMatches, executorMatches.stream()
+                .collect(Collectors.toMap(this::getMatchKey, CDMatchEntity::getMatchingPixels, (m1, m2) -> m1, TreeMap::new)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> V serializeAndDeserialize(V value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return (V) in.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String getMatchKey(CDMatchEntity<EMNeuronEntity, LMNeuronEntity> m) {
+        return m.getMaskImage().getMipId() + "-" + m.getMatchedImage().getMipId();
+    }
+
+    private ColorMIPSearch createColorMIPSearch() {
+        return new ColorMIPSearch(
+                0.0,
+                100,
+                ColorDepthSearchAlgorithmProviderFactory.createPixMatchCDSAlgorithmProvider(
+                        false,
+                        100,
+                        2.0,
+                        0,
+                        img -> (x, y) -> false));
+    }
+
+    private EMNeuronEntity createMask(String mipId, FileData imageFile) {
+        EMNeuronEntity mask = new EMNeuronEntity();
+        mask.setMipId(mipId);
+        mask.setComputeFileData(ComputeFileType.InputColorDepthImage, imageFile);
+        return mask;
+    }
+
+    private LMNeuronEntity createTarget(String mipId, FileData imageFile) {
+        LMNeuronEntity target = new LMNeuronEntity();
+        target.setMipId(mipId);
+        target.setComputeFileData(ComputeFileType.InputColorDepthImage, imageFile);
+        return target;
+    }
+
+    /**
+     * Create a 64x48 color image with a few random blobs; a negative seed creates an empty image.
+     */
+    private FileData createImage(String name, long seed) throws IOException {
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        if (seed >= 0) {
+            Random random = new Random(seed);
+            Graphics2D g = image.createGraphics();
+            try {
+                for (int i = 0; i < 4; i++) {
+                    g.setColor(Color.getHSBColor(random.nextFloat(), 1f, 1f));
+                    g.fillOval(random.nextInt(48), random.nextInt(32), 8 + random.nextInt(16), 8 + random.nextInt(16));
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+        Path imagePath = testDir.resolve(name);
+        ImageIO.write(image, "png", imagePath.toFile());
+        return FileData.fromString(imagePath.toString());
+    }
+}
@@ -0,0 +1,79 @@
+package org.janelia.colormipsearch.cmd.cdsprocess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WorkStealingPartitionsTest {
+
+    @Test
+    public void idlePartitionStealsFromTheBackOfTheLargestPartition() {
+        WorkStealingPartitions<Integer> partitions = new WorkStealingPartitions<>(Arrays.asList(
+                Arrays.asList(1, 2, 3, 4, 5),
+                Collections.singletonList(6),
+                Arrays.asList(7, 8)));
+        assertEquals(0, partitions.takeOwn(1));
+        assertEquals(-1, partitions.takeOwn(1));
+        assertEquals(Integer.valueOf(5), partitions.steal(1));
+        assertEquals(Integer.valueOf(4), partitions.steal(1));
+        assertEquals(0, partitions.takeOwn(0));
+        assertEquals(1, partitions.takeOwn(0));
+        // partition 0 has only one item left now so the next one comes from partition 2
+        assertEquals(Integer.valueOf(8), partitions.steal(1));
+        assertEquals(2, partitions.takeOwn(0));
+        assertEquals(-1, partitions.takeOwn(0));
+        assertEquals(Integer.valueOf(7), partitions.steal(0));
+        assertNull(partitions.steal(0));
+        assertNull(partitions.steal(1));
+    }
+
+    @Test
+    public void everyItemIsTakenExactlyOnce() throws InterruptedException {
+        List<List<Integer>> items = new ArrayList<>();
+        int nItems = 0;
+        for (int p = 0; p < 8; p++) {
+            List<Integer> partitionItems = new ArrayList<>();
+            for (int i = 0; i < (p + 1) * 100; i++) {
+                partitionItems.add(nItems++);
+            }
+            items.add(partitionItems);
+        }
+        WorkStealingPartitions<Integer> partitions = new WorkStealingPartitions<>(items);
+        int[] taken = new int[nItems];
+        List<Thread> workers = new ArrayList<>();
+        for (int p = 0; p < items.size(); p++) {
+            int partitionIndex = p;
+            Thread worker = new Thread(() -> {
+                for (;;) {
+                    Integer item;
+                    int itemIndex = partitions.takeOwn(partitionIndex);
+                    if (itemIndex >= 0) {
+                        item = items.get(partitionIndex).get(itemIndex);
+                    } else {
+                        item = partitions.steal(partitionIndex);
+                        if (item == null) {
+                            break;
+                        }
+                    }
+                    synchronized (taken) {
+                        taken[item]++;
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int i = 0; i < nItems; i++) {
+            assertEquals(1, taken[i]);
+        }
+    }
+}